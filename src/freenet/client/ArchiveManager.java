@@ -4,12 +4,14 @@
 package freenet.client;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PipedInputStream;
 import java.io.PipedOutputStream;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -33,11 +35,13 @@ import freenet.support.MutableBoolean;
 import freenet.support.Logger.LogLevel;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
 import freenet.support.compress.CompressionOutputSizeException;
 import freenet.support.compress.Compressor;
 import freenet.support.compress.Compressor.COMPRESSOR_TYPE;
 import freenet.support.io.BucketTools;
 import freenet.support.io.Closer;
+import freenet.support.io.CountedOutputStream;
 
 /**
  * Cache of recently decoded archives:
@@ -214,7 +218,10 @@ public class ArchiveManager {
 		if(logMINOR) Logger.minor(this, "Fetch cached: "+key+ ' ' +filename);
 		ArchiveKey k = new ArchiveKey(key, filename);
 		ArchiveStoreItem asi = null;
-		synchronized (this) {
+		// Only lock the LRU, not the manager, so that many readers can be served while another
+		// thread extracts an archive. Items are only removed from the LRU while holding its lock,
+		// so we cannot put back one which has just been removed.
+		synchronized (storedData) {
 			asi = storedData.get(k);
 			if(asi == null) return null;
 			// Promote to top of LRU
@@ -349,9 +356,9 @@ public class ArchiveManager {
 			}
 
 			if(ARCHIVE_TYPE.ZIP == archiveType)
-				handleZIPArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
+				handleZIPArchive(ctx, key, is, archiveSize, element, callback, gotElement, throwAtExit, context);
 			else if(ARCHIVE_TYPE.TAR == archiveType)
-				handleTARArchive(ctx, key, is, element, callback, gotElement, throwAtExit, context);
+				handleTARArchive(ctx, key, is, archiveSize, element, callback, gotElement, throwAtExit, context);
 		else
 				throw new ArchiveFailureException("Unknown or unsupported archive algorithm " + archiveType);
 			if(wrapper != null) {
@@ -365,11 +372,13 @@ public class ArchiveManager {
 	}
 	}
 
-	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+	private void handleTARArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, long archiveSize, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		if(logMINOR) Logger.minor(this, "Handling a TAR Archive");
 		TarArchiveInputStream tarIS = null;
+		ArchivePacker packer = null;
 		try {
 			tarIS = new TarArchiveInputStream(data);
+			packer = new ArchivePacker(archiveSize);
 
 			// MINOR: Assumes the first entry in the tarball is a directory.
 			ArchiveEntry entry;
@@ -378,7 +387,7 @@ public class ArchiveManager {
 			HashSet<String> names = new HashSet<String>();
 			boolean gotMetadata = false;
 
-outerTAR:		while(true) {
+			while(true) {
 				try {
 				entry = tarIS.getNextEntry();
 				} catch (IllegalArgumentException e) {
@@ -397,42 +406,31 @@ outerTAR:		while(true) {
 					gotMetadata = true;
 				if(size > maxArchivedFileSize && !name.equals(element)) {
 					addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+				} else if(size <= maxArchivedFileSize) {
+					// The size may not be known in advance, but we always want the element we were asked for.
+					if(packer.add(name, tarIS, buf, size, name.equals(element)))
+						names.add(name);
+					else
+						addErrorElement(ctx, key, name, "File too big: greater than current archived file size limit "+maxArchivedFileSize, true);
 				} else {
-					// Read the element
-					long realLen = 0;
+					// We are here because they asked for this file.
 					Bucket output = tempBucketFactory.makeBucket(size);
 					OutputStream out = output.getOutputStream();
-
 					try {
 						int readBytes;
-						while((readBytes = tarIS.read(buf)) > 0) {
+						while((readBytes = tarIS.read(buf)) > 0)
 							out.write(buf, 0, readBytes);
-							readBytes += realLen;
-							if(readBytes > maxArchivedFileSize) {
-								addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-								out.close();
-								out = null;
-								output.free();
-								continue outerTAR;
-							}
-						}
-						
 					} finally {
-						if(out != null) out.close();
-					}
-					if(size <= maxArchivedFileSize) {
-						addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
-						names.add(name);
-						trimStoredData();
-					} else {
-						// We are here because they asked for this file.
-						callback.gotBucket(output, context);
-						gotElement.value = true;
-						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+						out.close();
 					}
+					callback.gotBucket(output, context);
+					gotElement.value = true;
+					addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
 				}
 			}
 
+			packer.finish(ctx, key, gotElement, element, callback, context);
+
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, context);
@@ -446,15 +444,18 @@ outerTAR:		while(true) {
 		} catch (IOException e) {
 			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
 		} finally {
+			if(packer != null) packer.close();
 			Closer.close(tarIS);
 		}
 	}
 
-	private void handleZIPArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
+	private void handleZIPArchive(ArchiveStoreContext ctx, FreenetURI key, InputStream data, long archiveSize, String element, ArchiveExtractCallback callback, MutableBoolean gotElement, boolean throwAtExit, ClientContext context) throws ArchiveFailureException, ArchiveRestartException {
 		if(logMINOR) Logger.minor(this, "Handling a ZIP Archive");
 		ZipInputStream zis = null;
+		ArchivePacker packer = null;
 		try {
 			zis = new ZipInputStream(data);
+			packer = new ArchivePacker(archiveSize);
 
 			// MINOR: Assumes the first entry in the zip is a directory.
 			ZipEntry entry;
@@ -463,7 +464,7 @@ outerTAR:		while(true) {
 			HashSet<String> names = new HashSet<String>();
 			boolean gotMetadata = false;
 
-outerZIP:		while(true) {
+			while(true) {
 				entry = zis.getNextEntry();
 				if(entry == null) break;
 				if(entry.isDirectory()) continue;
@@ -477,42 +478,31 @@ outerZIP:		while(true) {
 					gotMetadata = true;
 				if(size > maxArchivedFileSize && !name.equals(element)) {
 					addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
+				} else if(size <= maxArchivedFileSize) {
+					// The size may not be known in advance, but we always want the element we were asked for.
+					if(packer.add(name, zis, buf, size, name.equals(element)))
+						names.add(name);
+					else
+						addErrorElement(ctx, key, name, "File too big: greater than current archived file size limit "+maxArchivedFileSize, true);
 				} else {
-					// Read the element
-					long realLen = 0;
+					// We are here because they asked for this file.
 					Bucket output = tempBucketFactory.makeBucket(size);
 					OutputStream out = output.getOutputStream();
 					try {
-						
 						int readBytes;
-						while((readBytes = zis.read(buf)) > 0) {
+						while((readBytes = zis.read(buf)) > 0)
 							out.write(buf, 0, readBytes);
-							readBytes += realLen;
-							if(readBytes > maxArchivedFileSize) {
-								addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
-								out.close();
-								out = null;
-								output.free();
-								continue outerZIP;
-							}
-						}
-						
 					} finally {
-						if(out != null) out.close();
-					}
-					if(size <= maxArchivedFileSize) {
-						addStoreElement(ctx, key, name, output, gotElement, element, callback, context);
-						names.add(name);
-						trimStoredData();
-					} else {
-						// We are here because they asked for this file.
-						callback.gotBucket(output, context);
-						gotElement.value = true;
-						addErrorElement(ctx, key, name, "File too big: "+size+" greater than current archived file size limit "+maxArchivedFileSize, true);
+						out.close();
 					}
+					callback.gotBucket(output, context);
+					gotElement.value = true;
+					addErrorElement(ctx, key, name, "File too big: "+maxArchivedFileSize+" greater than current archived file size limit "+maxArchivedFileSize, true);
 				}
 			}
 
+			packer.finish(ctx, key, gotElement, element, callback, context);
+
 			// If no metadata, generate some
 			if(!gotMetadata) {
 				generateMetadata(ctx, key, names, gotElement, element, callback, context);
@@ -526,6 +516,7 @@ outerZIP:		while(true) {
 		} catch (IOException e) {
 			throw new ArchiveFailureException("Error reading archive: "+e.getMessage(), e);
 		} finally {
+			if(packer != null) packer.close();
 			if(zis != null) {
 				try {
 					zis.close();
@@ -660,7 +651,10 @@ outerZIP:		while(true) {
 	 * callback != null.
 	 */
 	private ArchiveStoreItem addStoreElement(ArchiveStoreContext ctx, FreenetURI key, String name, Bucket temp, MutableBoolean gotElement, String callbackName, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException {
-		RealArchiveStoreItem element = new RealArchiveStoreItem(ctx, key, name, temp);
+		return addStoreElement(new RealArchiveStoreItem(ctx, key, name, temp), key, name, gotElement, callbackName, callback, context);
+	}
+
+	private ArchiveStoreItem addStoreElement(ArchiveStoreItem element, FreenetURI key, String name, MutableBoolean gotElement, String callbackName, ArchiveExtractCallback callback, ClientContext context) throws ArchiveFailureException {
 		element.addToContext();
 		if(logMINOR) Logger.minor(this, "Adding store element: "+element+" ( "+key+ ' ' +name+" size "+element.spaceUsed()+" )");
 		ArchiveStoreItem oldItem;
@@ -686,6 +680,99 @@ outerZIP:		while(true) {
 		return element;
 	}
 
+	/**
+	 * Collects the files extracted from one archive in a single temporary bucket, and adds them
+	 * to the cache once the whole archive has been read. A freesite container may hold hundreds
+	 * of small files, and one bucket per file costs far more than the files themselves.
+	 */
+	private class ArchivePacker {
+
+		private final RandomAccessBucket bucket;
+		private final CountedOutputStream out;
+		private final ArrayList<String> names = new ArrayList<String>();
+		private final ArrayList<Long> offsets = new ArrayList<Long>();
+		private final ArrayList<Long> lengths = new ArrayList<Long>();
+		private PackedArchiveData data;
+		/** True once the items have been added to the cache. */
+		private boolean added;
+
+		ArchivePacker(long sizeEstimate) throws IOException {
+			bucket = tempBucketFactory.makeBucket(sizeEstimate);
+			out = new CountedOutputStream(bucket.getOutputStream());
+		}
+
+		/**
+		 * Copy a file from the archive.
+		 * @param size The size of the file according to the archive, which the archive stream
+		 * enforces, or -1 if it is not known.
+		 * @param noLimit If false and the file is bigger than maxArchivedFileSize, don't add it.
+		 * @return False if the file was not added because it is too big.
+		 */
+		boolean add(String name, InputStream is, byte[] buf, long size, boolean noLimit) throws IOException {
+			long start = out.written();
+			int readBytes;
+			if(noLimit || size >= 0) {
+				while((readBytes = is.read(buf)) > 0)
+					out.write(buf, 0, readBytes);
+			} else {
+				// Don't know how big it is, so buffer it, rather than leave part of it in the
+				// bucket if it is too big.
+				ByteArrayOutputStream file = new ByteArrayOutputStream();
+				while((readBytes = is.read(buf)) > 0) {
+					file.write(buf, 0, readBytes);
+					if(file.size() > maxArchivedFileSize) return false;
+				}
+				file.writeTo(out);
+			}
+			names.add(name);
+			offsets.add(start);
+			lengths.add(out.written() - start);
+			return true;
+		}
+
+		/** Add the files to the cache, calling the callback if one of them is the element. */
+		void finish(ArchiveStoreContext ctx, FreenetURI key, MutableBoolean gotElement, String element, ArchiveExtractCallback callback, ClientContext context) throws IOException, ArchiveFailureException {
+			out.close();
+			data = new PackedArchiveData(bucket.toRandomAccessBuffer(), ArchiveManager.this);
+			if(logMINOR) Logger.minor(this, "Packed "+names.size()+" files from "+key+" in "+out.written()+" bytes");
+			synchronized(ArchiveManager.this) {
+				cachedData += data.size();
+			}
+			for(int i=0;i<names.size();i++) {
+				String name = names.get(i);
+				PackedArchiveStoreItem item = new PackedArchiveStoreItem(ctx, key, name, data, offsets.get(i), lengths.get(i));
+				addStoreElement(item, key, name, gotElement, element, callback, context);
+			}
+			// The items hold the data now. If they have all been dropped, so has the charge.
+			added = true;
+			data.removeItem();
+			trimStoredData();
+		}
+
+		/** Free the data, unless the cache still has some of the files. */
+		void close() {
+			if(data != null) {
+				if(!added) data.removeItem();
+				data.release();
+			} else {
+				Closer.close(out);
+				bucket.free();
+			}
+		}
+
+	}
+
+	/** @return The number of bytes the cache is charged for. */
+	synchronized long getCachedData() {
+		return cachedData;
+	}
+
+	/** Called when the last file from a packed archive has left the cache. */
+	synchronized void packedDataRemoved(PackedArchiveData data) {
+		cachedData -= data.size();
+		if(logMINOR) Logger.minor(this, "Dropped packed archive data: "+data.size()+" bytes, cachedData="+cachedData);
+	}
+
 	/**
 	 * Drop any stored data beyond the limit.
 	 * Call synchronized on storedData.
@@ -10,6 +10,10 @@ public abstract class FECCodec {
     
     public static final long MIN_MEMORY_ALLOCATION = 8*1024*1024+256*1024;
     public static final int MAX_TOTAL_BLOCKS_PER_SEGMENT = 256;
+    /** TableFECCodec produces the same blocks as OnionFECCodec, but it is off by default until 
+     * it has had more testing. */
+    static final boolean USE_TABLE_CODEC = 
+        "true".equalsIgnoreCase(System.getProperty("freenet.fec.tableCodec", "false"));
     
     /** Maximum memory usage with the given number of data blocks and check blocks, not including 
      * the blocks themselves. */
@@ -48,6 +52,8 @@ public abstract class FECCodec {
         case NONREDUNDANT:
             return null;
         case ONION_STANDARD:
+            if(USE_TABLE_CODEC)
+                return new TableFECCodec();
             return new OnionFECCodec();
         default:
             throw new IllegalArgumentException();
@@ -0,0 +1,211 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.io.BufferedInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.client.async.ClientContext;
+import freenet.support.api.Bucket;
+import freenet.support.api.LockableRandomAccessBuffer;
+import freenet.support.io.ResumeFailedException;
+
+/**
+ * The files extracted from one archive, stored back to back in a single read-only buffer, so
+ * that an archive uses one temporary bucket rather than one per file. Each
+ * PackedArchiveStoreItem and each Bucket handed out to a reader holds a reference, and the
+ * buffer is freed when the last one is released.
+ *
+ * The whole buffer counts against the archive cache's size limit until the last of its items
+ * has left the cache, since any one of them keeps all of it.
+ */
+class PackedArchiveData {
+
+	private final LockableRandomAccessBuffer data;
+	private final ArchiveManager manager;
+	/** Protected by this. Starts at 1 for the ArchiveManager while it adds the items. */
+	private int refs = 1;
+	/** Items still in the cache. Protected by this. Starts at 1 for the ArchiveManager while it
+	 * adds the items. */
+	private int items = 1;
+
+	/** @param manager The cache which has been charged for the whole buffer, and which we
+	 * tell when the last item has left it. */
+	PackedArchiveData(LockableRandomAccessBuffer data, ArchiveManager manager) {
+		this.data = data;
+		this.manager = manager;
+	}
+
+	/** @return The number of bytes charged to the cache for this archive. */
+	long size() {
+		return data.size();
+	}
+
+	/** An item has been added to the cache. */
+	synchronized void addItem() {
+		items++;
+	}
+
+	/** An item has left the cache. When the last has gone, the cache no longer holds the
+	 * buffer, although readers may still have it. */
+	void removeItem() {
+		synchronized(this) {
+			if(items == 0) return;
+			if(--items > 0) return;
+		}
+		manager.packedDataRemoved(this);
+	}
+
+	/** @return False if the data has already been freed. */
+	synchronized boolean addRef() {
+		if(refs == 0) return false;
+		refs++;
+		return true;
+	}
+
+	void release() {
+		synchronized(this) {
+			if(refs == 0) return;
+			if(--refs > 0) return;
+		}
+		data.free();
+	}
+
+	/**
+	 * Get one file as a read-only Bucket, which keeps the data until it is freed.
+	 * @return Null if the data has already been freed.
+	 */
+	Bucket getReaderBucket(long offset, long length) {
+		if(!addRef()) return null;
+		return new ReaderBucket(offset, length);
+	}
+
+	private class ReaderBucket implements Bucket {
+
+		private final long offset;
+		private final long length;
+		/** Protected by this. */
+		private boolean freed;
+
+		ReaderBucket(long offset, long length) {
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public void free() {
+			synchronized(this) {
+				if(freed) return;
+				freed = true;
+			}
+			release();
+		}
+
+		private synchronized void checkFreed() throws IOException {
+			if(freed) throw new IOException("Already freed");
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new BufferedInputStream(getInputStreamUnbuffered());
+		}
+
+		@Override
+		public InputStream getInputStreamUnbuffered() throws IOException {
+			checkFreed();
+			return new InputStream() {
+
+				private long ptr; // relative to offset
+
+				@Override
+				public int read() throws IOException {
+					byte[] buf = new byte[1];
+					if(read(buf, 0, 1) < 0) return -1;
+					return buf[0] & 0xff;
+				}
+
+				@Override
+				public int read(byte[] buf, int off, int len) throws IOException {
+					checkFreed();
+					if(ptr >= length) return -1;
+					if(len == 0) return 0;
+					len = (int) Math.min(len, length - ptr);
+					data.pread(offset + ptr, buf, off, len);
+					ptr += len;
+					return len;
+				}
+
+				@Override
+				public long skip(long n) {
+					if(n <= 0) return 0;
+					n = Math.min(n, length - ptr);
+					ptr += n;
+					return n;
+				}
+
+				@Override
+				public int available() {
+					return (int) Math.min(Integer.MAX_VALUE, length - ptr);
+				}
+
+			};
+		}
+
+		@Override
+		public String getName() {
+			return "PackedArchiveData:" + offset + ':' + length;
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public OutputStream getOutputStreamUnbuffered() throws IOException {
+			throw new IOException("Read only");
+		}
+
+		@Override
+		public boolean isReadOnly() {
+			return true;
+		}
+
+		@Override
+		public void setReadOnly() {
+			// Already read only
+		}
+
+		@Override
+		public long size() {
+			return length;
+		}
+
+		@Override
+		protected void finalize() throws Throwable {
+			free();
+			super.finalize();
+		}
+
+		@Override
+		public Bucket createShadow() {
+			return null;
+		}
+
+		@Override
+		public void onResume(ClientContext context) throws ResumeFailedException {
+			throw new UnsupportedOperationException(); // Not persistent.
+		}
+
+		@Override
+		public void storeTo(DataOutputStream dos) throws IOException {
+			throw new UnsupportedOperationException();
+		}
+
+	}
+
+}
@@ -0,0 +1,61 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+
+/**
+ * A file extracted from an archive, stored in the archive's PackedArchiveData along with the
+ * other files from the same archive.
+ */
+class PackedArchiveStoreItem extends ArchiveStoreItem {
+
+	private final PackedArchiveData data;
+	private final long offset;
+	private final long length;
+
+	/**
+	 * @param ctx The context object which tracks all the items with this key.
+	 * @param key2 The key from which the archive was fetched.
+	 * @param realName The name of the file in that archive.
+	 * @param data The files extracted from the archive. Must not have been freed yet.
+	 * @param offset The offset of this file within data.
+	 * @param length The length of this file.
+	 */
+	PackedArchiveStoreItem(ArchiveStoreContext ctx, FreenetURI key2, String realName, PackedArchiveData data, long offset, long length) {
+		super(new ArchiveKey(key2, realName), ctx);
+		if(!data.addRef()) throw new IllegalStateException("Already freed");
+		data.addItem();
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * The whole PackedArchiveData is charged to the cache until its last item is dropped,
+	 * because any one of them keeps all of it. So the items themselves count for nothing.
+	 */
+	@Override
+	long spaceUsed() {
+		return 0;
+	}
+
+	@Override
+	void innerClose() {
+		data.removeItem();
+		data.release();
+	}
+
+	@Override
+	Bucket getDataOrThrow() throws ArchiveFailureException {
+		return getReaderBucket();
+	}
+
+	@Override
+	Bucket getReaderBucket() throws ArchiveFailureException {
+		return data.getReaderBucket(offset, length);
+	}
+
+}
@@ -0,0 +1,330 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client;
+
+import java.lang.ref.SoftReference;
+import java.util.Arrays;
+
+import freenet.client.InsertContext.CompatibilityMode;
+import freenet.support.HelperThreads;
+import freenet.support.LRUMap;
+
+/**
+ * Table-driven Reed-Solomon codec over GF(2^8), producing exactly the same check blocks as
+ * OnionFECCodec (Rizzo's Vandermonde code, which is what com.onionnetworks.fec.PureCode
+ * implements), but built for long blocks:
+ * <ul>
+ * <li>Multiplication is a lookup in a full 64KB product table, and we combine two source
+ * blocks per pass over the destination, so each destination byte is loaded and stored half as
+ * often as with one addMul() per source.</li>
+ * <li>The blocks are processed in stripes of STRIPE_SIZE bytes, so the part of every source
+ * block we are working on stays in cache while we compute all the outputs, rather than reading
+ * the whole segment from memory again for each output block.</li>
+ * <li>Stripes are independent, so big encodes and decodes are split across cores with
+ * HelperThreads.</li>
+ * <li>The encoding matrix for k data blocks is computed once for all 256-k possible check blocks,
+ * and cached. Decoding only inverts the matrix for the blocks we actually have, and writes the
+ * missing data blocks directly, without copying the check blocks first.</li>
+ * </ul>
+ * Enable with -Dfreenet.fec.tableCodec=true, see FECCodec.getInstance().
+ */
+public class TableFECCodec extends FECCodec {
+
+    /** Bytes of each block processed at a time. */
+    static final int STRIPE_SIZE = 2048;
+    /** Don't use helper threads for jobs with less than this many bytes of multiply-adds. */
+    static final long MIN_PARALLEL_WORK = 1024*1024;
+    /** The field is GF(2^8) with this primitive polynomial, as in PureCode. */
+    private static final int PRIMITIVE_POLYNOMIAL = 0x11d;
+    private static final int FIELD_SIZE = 256;
+
+    private static final int[] EXP = new int[2*(FIELD_SIZE-1)];
+    private static final int[] LOG = new int[FIELD_SIZE];
+    /** MUL[a][b] = a*b */
+    private static final byte[][] MUL = new byte[FIELD_SIZE][FIELD_SIZE];
+
+    static {
+        int x = 1;
+        for(int i=0;i<FIELD_SIZE-1;i++) {
+            EXP[i] = x;
+            EXP[i+FIELD_SIZE-1] = x;
+            LOG[x] = i;
+            x <<= 1;
+            if(x >= FIELD_SIZE) x ^= PRIMITIVE_POLYNOMIAL;
+        }
+        for(int a=1;a<FIELD_SIZE;a++)
+            for(int b=1;b<FIELD_SIZE;b++)
+                MUL[a][b] = (byte) EXP[LOG[a]+LOG[b]];
+    }
+
+    private static int mul(int a, int b) {
+        if(a == 0 || b == 0) return 0;
+        return EXP[LOG[a]+LOG[b]];
+    }
+
+    private static int inverse(int a) {
+        return EXP[FIELD_SIZE-1-LOG[a]];
+    }
+
+    @Override
+    public void decode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent, int blockLength) {
+        int k = dataBlocks.length;
+        checkSize(k, checkBlocks.length);
+        // Which block we use for each row of the decoding matrix, chosen exactly as
+        // OnionFECCodec does: the present data blocks, with the gaps filled by the first
+        // check blocks.
+        int[] blockNumbers = new int[k];
+        byte[][] sources = new byte[k][];
+        int missing = 0;
+        for(int i=0;i<k;i++) {
+            if(dataBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            if(!dataBlocksPresent[i]) {
+                missing++;
+                continue;
+            }
+            sources[i] = dataBlocks[i];
+            blockNumbers[i] = i;
+        }
+        if(missing == 0) return;
+        int[] missingBlocks = new int[missing];
+        int target = 0;
+        int found = 0;
+        for(int i=0;i<checkBlocks.length && found < missing;i++) {
+            if(!checkBlocksPresent[i]) continue;
+            if(checkBlocks[i].length != blockLength) throw new IllegalArgumentException();
+            while(sources[target] != null) target++;
+            sources[target] = checkBlocks[i];
+            blockNumbers[target] = i + k;
+            missingBlocks[found++] = target;
+        }
+        if(found < missing) throw new IllegalArgumentException("Not enough blocks to decode");
+        // Invert the rows of the encoding matrix for the blocks we have.
+        byte[][] encode = getEncodeMatrix(k);
+        int[][] matrix = new int[k][k];
+        for(int i=0;i<k;i++) {
+            if(blockNumbers[i] < k) {
+                matrix[i][blockNumbers[i]] = 1;
+            } else {
+                byte[] row = encode[blockNumbers[i]-k];
+                for(int j=0;j<k;j++) matrix[i][j] = row[j] & 0xff;
+            }
+        }
+        invert(matrix);
+        byte[][] coefficients = new byte[missing][k];
+        byte[][] outputs = new byte[missing][];
+        for(int i=0;i<missing;i++) {
+            int[] row = matrix[missingBlocks[i]];
+            for(int j=0;j<k;j++) coefficients[i][j] = (byte) row[j];
+            outputs[i] = dataBlocks[missingBlocks[i]];
+        }
+        multiply(coefficients, sources, outputs, blockLength);
+    }
+
+    @Override
+    public void encode(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] checkBlocksPresent,
+            int blockLength) {
+        int k = dataBlocks.length;
+        checkSize(k, checkBlocks.length);
+        for(int i=0;i<k;i++) {
+            if(dataBlocks[i] == null || dataBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+        }
+        int mustEncode = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocks[i] == null || checkBlocks[i].length != blockLength)
+                throw new IllegalArgumentException();
+            if(!checkBlocksPresent[i]) mustEncode++;
+        }
+        if(mustEncode == 0) return; // Done already.
+        byte[][] encode = getEncodeMatrix(k);
+        byte[][] coefficients = new byte[mustEncode][];
+        byte[][] outputs = new byte[mustEncode][];
+        int x = 0;
+        for(int i=0;i<checkBlocks.length;i++) {
+            if(checkBlocksPresent[i]) continue;
+            coefficients[x] = encode[i];
+            outputs[x++] = checkBlocks[i];
+        }
+        multiply(coefficients, dataBlocks, outputs, blockLength);
+    }
+
+    private static void checkSize(int k, int checkBlocks) {
+        if(k < 1 || k + checkBlocks > MAX_TOTAL_BLOCKS_PER_SEGMENT)
+            throw new IllegalArgumentException();
+    }
+
+    /** Cache of the encoding matrices by k. The memory usage is relatively small so we account
+     * for it in the FEC jobs, see maxMemoryOverheadDecode() etc. */
+    private static final LRUMap<Integer, SoftReference<byte[][]>> recentlyUsedMatrices = LRUMap.createSafeMap();
+
+    /** @return The rows of the encoding matrix for all possible check blocks for k data blocks,
+     * i.e. check block i is the sum of matrix[i][j] times data block j. */
+    static synchronized byte[][] getEncodeMatrix(int k) {
+        SoftReference<byte[][]> ref;
+        while((ref = recentlyUsedMatrices.peekValue()) != null) {
+            // Remove oldest matrices if they have been GC'ed.
+            if(ref.get() == null) {
+                recentlyUsedMatrices.popKey();
+            } else {
+                break;
+            }
+        }
+        ref = recentlyUsedMatrices.get(k);
+        if(ref != null) {
+            byte[][] matrix = ref.get();
+            if(matrix != null) {
+                recentlyUsedMatrices.push(k, ref);
+                return matrix;
+            }
+        }
+        byte[][] matrix = createEncodeMatrix(k);
+        recentlyUsedMatrices.push(k, new SoftReference<byte[][]>(matrix));
+        return matrix;
+    }
+
+    /** Build the same systematic code as PureCode: Take the Vandermonde matrix with row 0
+     * being 1,0,0... and row r being alpha^((r-1)*c), and multiply it by the inverse of its top
+     * k rows. The top k rows become the identity, the data blocks, and the rest give the check
+     * blocks. */
+    private static byte[][] createEncodeMatrix(int k) {
+        int[][] top = new int[k][k];
+        top[0][0] = 1;
+        for(int r=1;r<k;r++)
+            for(int c=0;c<k;c++)
+                top[r][c] = vandermonde(r, c);
+        invert(top);
+        int checkBlocks = MAX_TOTAL_BLOCKS_PER_SEGMENT - k;
+        byte[][] matrix = new byte[checkBlocks][k];
+        int[] row = new int[k];
+        for(int i=0;i<checkBlocks;i++) {
+            for(int j=0;j<k;j++) row[j] = vandermonde(i+k, j);
+            for(int c=0;c<k;c++) {
+                int sum = 0;
+                for(int j=0;j<k;j++)
+                    sum ^= mul(row[j], top[j][c]);
+                matrix[i][c] = (byte) sum;
+            }
+        }
+        return matrix;
+    }
+
+    private static int vandermonde(int row, int col) {
+        return EXP[((row-1)*col) % (FIELD_SIZE-1)];
+    }
+
+    /** Invert a matrix in place by Gauss-Jordan elimination.
+     * @throws IllegalArgumentException If the matrix is singular. */
+    static void invert(int[][] matrix) {
+        int k = matrix.length;
+        int[][] inverse = new int[k][k];
+        for(int i=0;i<k;i++) inverse[i][i] = 1;
+        for(int col=0;col<k;col++) {
+            int pivot = col;
+            while(pivot < k && matrix[pivot][col] == 0) pivot++;
+            if(pivot == k) throw new IllegalArgumentException("Singular matrix");
+            if(pivot != col) {
+                int[] t = matrix[pivot]; matrix[pivot] = matrix[col]; matrix[col] = t;
+                t = inverse[pivot]; inverse[pivot] = inverse[col]; inverse[col] = t;
+            }
+            int[] pivotRow = matrix[col];
+            int[] pivotInverseRow = inverse[col];
+            int factor = inverse(pivotRow[col]);
+            if(factor != 1) {
+                for(int j=0;j<k;j++) {
+                    pivotRow[j] = mul(pivotRow[j], factor);
+                    pivotInverseRow[j] = mul(pivotInverseRow[j], factor);
+                }
+            }
+            for(int r=0;r<k;r++) {
+                if(r == col) continue;
+                int f = matrix[r][col];
+                if(f == 0) continue;
+                int[] row = matrix[r];
+                int[] inverseRow = inverse[r];
+                for(int j=0;j<k;j++) {
+                    row[j] ^= mul(f, pivotRow[j]);
+                    inverseRow[j] ^= mul(f, pivotInverseRow[j]);
+                }
+            }
+        }
+        for(int i=0;i<k;i++) matrix[i] = inverse[i];
+    }
+
+    /** Set each outputs[i] to the sum of coefficients[i][j] * sources[j], using helper threads
+     * for big jobs. */
+    private static void multiply(final byte[][] coefficients, final byte[][] sources, final byte[][] outputs, final int blockLength) {
+        int stripes = (blockLength + STRIPE_SIZE - 1) / STRIPE_SIZE;
+        long work = (long)outputs.length * sources.length * blockLength;
+        HelperThreads.run(stripes, work >= MIN_PARALLEL_WORK, new HelperThreads.Task() {
+
+            @Override
+            public void run(int stripe) {
+                int offset = stripe * STRIPE_SIZE;
+                multiplyStripe(coefficients, sources, outputs, offset, Math.min(STRIPE_SIZE, blockLength - offset));
+            }
+
+        });
+    }
+
+    static void multiplyStripe(byte[][] coefficients, byte[][] sources, byte[][] outputs, int offset, int length) {
+        int k = sources.length;
+        for(int i=0;i<outputs.length;i++) {
+            byte[] out = outputs[i];
+            byte[] c = coefficients[i];
+            Arrays.fill(out, offset, offset+length, (byte)0);
+            // Skip zero coefficients, and take the rest two at a time.
+            int pending = -1;
+            for(int j=0;j<k;j++) {
+                if(c[j] == 0) continue;
+                if(pending < 0) {
+                    pending = j;
+                } else {
+                    addMul2(out, sources[pending], MUL[c[pending] & 0xff], sources[j], MUL[c[j] & 0xff], offset, length);
+                    pending = -1;
+                }
+            }
+            if(pending >= 0)
+                addMul(out, sources[pending], MUL[c[pending] & 0xff], offset, length);
+        }
+    }
+
+    /** out ^= a * ma ^ b * mb, where ma and mb are the rows of MUL for the coefficients. Simple
+     * loops are deliberate: HotSpot unrolls them itself, and manual unrolling stops it from
+     * eliminating the range checks. */
+    private static void addMul2(byte[] out, byte[] a, byte[] ma, byte[] b, byte[] mb, int offset, int length) {
+        int end = offset + length;
+        for(int i=offset;i<end;i++)
+            out[i] ^= ma[a[i] & 0xff] ^ mb[b[i] & 0xff];
+    }
+
+    /** out ^= a * ma, where ma is the row of MUL for the coefficient. */
+    private static void addMul(byte[] out, byte[] a, byte[] ma, int offset, int length) {
+        int end = offset + length;
+        for(int i=offset;i<end;i++)
+            out[i] ^= ma[a[i] & 0xff];
+    }
+
+    @Override
+    public long maxMemoryOverheadDecode(int dataBlocks, int checkBlocks) {
+        int k = dataBlocks;
+        // Cached encoding matrix, plus the decoding matrix and its inverse as int[]'s.
+        return MAX_TOTAL_BLOCKS_PER_SEGMENT*k + k*k*4*2 + k*k;
+    }
+
+    @Override
+    public long maxMemoryOverheadEncode(int dataBlocks, int checkBlocks) {
+        int k = dataBlocks;
+        // Cached encoding matrix, and the matrices used to build it.
+        return MAX_TOTAL_BLOCKS_PER_SEGMENT*k + k*k*4*2;
+    }
+
+    @Override
+    public int getCheckBlocks(int dataBlocks, CompatibilityMode cmode) {
+        // Must be exactly the same as OnionFECCodec, since it is the same code.
+        return ONION.getCheckBlocks(dataBlocks, cmode);
+    }
+
+    private static final OnionFECCodec ONION = new OnionFECCodec();
+
+}
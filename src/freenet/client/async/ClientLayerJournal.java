@@ -0,0 +1,179 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import freenet.crypt.ChecksumChecker;
+import freenet.crypt.ChecksumFailedException;
+import freenet.support.Logger;
+import freenet.support.api.BucketFactory;
+import freenet.support.io.PrependLengthOutputStream;
+
+/**
+ * Append-only log of the changes to the persistent requests since client.dat was last written in
+ * full. ClientLayerPersister decides what goes in a commit; this class just frames them.
+ *
+ * The file starts with the ID of the client.dat it applies to, so it is never replayed onto an
+ * older or newer snapshot. Each commit is written with its length and a checksum, so a commit
+ * which was only partly written when the node crashed is ignored, along with anything after it.
+ * Hence after loading we always write client.dat in full before appending again.
+ */
+final class ClientLayerJournal {
+
+    private static volatile boolean logMINOR;
+    static {
+        Logger.registerClass(ClientLayerJournal.class);
+    }
+
+    private static final long MAGIC = 0x6a0c91e4d2b57f38L;
+    private static final int HEADER_LENGTH = 16;
+
+    private final File file;
+    private final ChecksumChecker checker;
+    private final BucketFactory bf;
+    /** Null if not open for appending. */
+    private OutputStream os;
+    private long length;
+    private int commits;
+
+    ClientLayerJournal(File file, ChecksumChecker checker, BucketFactory bf) {
+        this.file = file;
+        this.checker = checker;
+        this.bf = bf;
+    }
+
+    /** Start a new journal for a snapshot, discarding the old one.
+     * @param snapshotID The ID written to the new client.dat. */
+    void create(long snapshotID) throws IOException {
+        close();
+        try (DataOutputStream dos = new DataOutputStream(new FileOutputStream(file))) {
+            dos.writeLong(MAGIC);
+            dos.writeLong(snapshotID);
+        }
+        os = new BufferedOutputStream(new FileOutputStream(file, true));
+        length = HEADER_LENGTH;
+        commits = 0;
+    }
+
+    /** @return True if we can append commits. False if the journal has not been created since
+     * loading, or a write failed. */
+    boolean isOpen() {
+        return os != null;
+    }
+
+    /** Start writing a commit. Close the returned stream and then call finishCommit() to write
+     * it. If writing fails, call close(), and write client.dat in full. */
+    PrependLengthOutputStream startCommit() throws IOException {
+        if(os == null) throw new IllegalStateException("Journal not open");
+        return checker.checksumWriterWithLength(os, bf);
+    }
+
+    /** Flush the commit to disk.
+     * @return The number of bytes added to the journal. */
+    long finishCommit() throws IOException {
+        os.flush();
+        long oldLength = length;
+        length = file.length();
+        commits++;
+        if(logMINOR) Logger.minor(this, "Commit "+commits+" to "+file+" : "+(length - oldLength)+" bytes");
+        return length - oldLength;
+    }
+
+    /** @return The length of the journal in bytes. */
+    long length() {
+        return length;
+    }
+
+    int commits() {
+        return commits;
+    }
+
+    void close() {
+        if(os == null) return;
+        try {
+            os.close();
+        } catch (IOException e) {
+            Logger.error(this, "Unable to close "+file+" : "+e, e);
+        }
+        os = null;
+    }
+
+    /** Close and delete the journal, e.g. if we are no longer using it. */
+    void delete() {
+        close();
+        file.delete();
+    }
+
+    /** Open the journal for replay.
+     * @param snapshotID The ID of the client.dat we have loaded.
+     * @return A Reader, or null if the file does not exist or doesn't belong to the snapshot. */
+    Reader open(long snapshotID) throws IOException {
+        try (DataInputStream header = new DataInputStream(new FileInputStream(file))) {
+            if(header.readLong() != MAGIC) {
+                Logger.error(this, "Bad magic in "+file);
+                return null;
+            }
+            long id = header.readLong();
+            if(id != snapshotID) {
+                Logger.normal(this, "Not replaying "+file+" : written for a different "+
+                        "snapshot (probably the node crashed while writing it)");
+                return null;
+            }
+        } catch (FileNotFoundException e) {
+            return null;
+        } catch (EOFException e) {
+            return null;
+        }
+        DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        dis.skipBytes(HEADER_LENGTH);
+        return new Reader(dis, file.length());
+    }
+
+    final class Reader {
+
+        private final DataInputStream dis;
+        private final long maxLength;
+
+        private Reader(DataInputStream dis, long maxLength) {
+            this.dis = dis;
+            this.maxLength = maxLength;
+        }
+
+        /** @return The contents of the next commit, or null if there are no more valid commits.
+         * The caller must close it. */
+        InputStream nextCommit() throws IOException {
+            try {
+                return checker.checksumReaderWithLength(dis, bf, maxLength);
+            } catch (EOFException e) {
+                // End of journal, or truncated by a crash.
+                return null;
+            } catch (ChecksumFailedException e) {
+                Logger.error(this, "Checksum failed in "+file+", ignoring the rest of the journal");
+                return null;
+            }
+        }
+
+        void close() {
+            try {
+                dis.close();
+            } catch (IOException e) {
+                Logger.error(this, "Unable to close "+file+" : "+e, e);
+            }
+        }
+
+    }
+
+}
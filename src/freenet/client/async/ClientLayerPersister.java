@@ -13,15 +13,19 @@ import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 
 import freenet.clients.fcp.ClientRequest;
 import freenet.clients.fcp.RequestIdentifier;
 import freenet.crypt.CRCChecksumChecker;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
+import freenet.crypt.SHA256;
 import freenet.node.DatabaseKey;
 import freenet.node.MasterKeysWrongPasswordException;
 import freenet.node.Node;
@@ -101,8 +105,34 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     private File dir;
     private String baseName;
     
+    /** If true, each checkpoint only appends the requests which have changed to a journal, and 
+     * client.dat is only rewritten when the journal gets too big, at shutdown, and after 
+     * startup. This is much faster with a large queue, since most requests don't change between
+     * checkpoints. Only used when client.dat is not encrypted. */
+    static final boolean USE_JOURNAL = 
+        "true".equalsIgnoreCase(System.getProperty("freenet.clientLayer.journal", "false"));
+    /** Don't rewrite client.dat until the journal is at least this big, even if client.dat is
+     * smaller. */
+    static final long MIN_JOURNAL_COMPACT_SIZE = 1024 * 1024;
+    private File journalFile;
+    private boolean useJournal;
+    /** Non-null once we have written client.dat with a journal. */
+    private ClientLayerJournal journal;
+    /** Hash of each request as last written to client.dat or the journal. Only kept when using
+     * the journal. */
+    private final Map<RequestIdentifier, byte[]> savedDigests = 
+        new HashMap<RequestIdentifier, byte[]>();
+    private long snapshotLength;
+    
+    private volatile long lastCheckpointTime;
+    private volatile long lastCheckpointBytes;
+    private volatile int lastCheckpointRequests;
+    private volatile boolean lastCheckpointFull;
+    
     private static final long MAGIC = 0xd332925f3caf4aedL;
     private static final int VERSION = 1;
+    /** As VERSION but followed by the ID of the snapshot, which the journal must match. */
+    private static final int JOURNAL_VERSION = 2;
     
     private static volatile boolean logMINOR;
     static {
@@ -146,6 +176,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                 deleteFile(dir, baseName, false, true);
                 deleteFile(dir, baseName, true, false);
                 deleteFile(dir, baseName, true, true);
+                deleteJournal(dir, baseName);
                 onStarted(true);
                 if(salt == null) {
                     salt = new byte[32];
@@ -185,6 +216,19 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
+    private void deleteJournal(File dir, String baseName) {
+        if(journal != null) {
+            journal.close();
+            journal = null;
+        }
+        File f = makeJournalFilename(dir, baseName);
+        try {
+            FileUtil.secureDelete(f);
+        } catch (IOException e) {
+            f.delete();
+        }
+    }
+
     private void innerSetFilesOnly(File dir, String baseName, boolean writeEncrypted,
             DatabaseKey encryptionKey) throws MasterKeysWrongPasswordException {
         if(writeEncrypted && encryptionKey == null)
@@ -194,6 +238,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
         if(writeToFilename.equals(oldWriteToFilename)) return;
+        setJournal(dir, baseName, writeEncrypted);
         System.out.println("Will save downloads to "+writeToFilename);
         deleteAfterSuccessfulWrite = makeFilename(dir, baseName, false, !writeEncrypted);
         otherDeleteAfterSuccessfulWrite = makeFilename(dir, baseName, true, !writeEncrypted);
@@ -239,6 +284,11 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         if(clientDatBakCryptExists && loaded.needsMore()) {
             innerLoad(loaded, makeBucket(dir, baseName, true, encryptionKey), noSerialize, context, requestStarters, random);
         }
+        // The journal is newer than any of the above, so replay it last.
+        if(loaded.snapshotID != 0)
+            replayJournal(loaded, makeJournalFilename(dir, baseName), noSerialize, context);
+        if(loaded.stats != null)
+            bandwidthStatsPutter.addFrom(loaded.stats);
         
         deleteAfterSuccessfulWrite = writeEncrypted ? clientDat : clientDatCrypt;
         otherDeleteAfterSuccessfulWrite = writeEncrypted ? clientDatBak : clientDatBakCrypt;
@@ -246,6 +296,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         writeToBucket = makeBucket(dir, baseName, false, writeEncrypted ? encryptionKey : null);
         writeToFilename = makeFilename(dir, baseName, false, writeEncrypted);
         writeToBackupFilename = makeFilename(dir, baseName, true, writeEncrypted);
+        setJournal(dir, baseName, writeEncrypted);
         
         if(loaded.doneSomething()) {
             if(!noSerialize) {
@@ -339,6 +390,23 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         return new File(parent, baseName + (backup ? ".bak" : "") + (encrypted ? ".crypt" : ""));
                 
     }
+    
+    private File makeJournalFilename(File parent, String baseName) {
+        return new File(parent, baseName + ".journal");
+    }
+    
+    /** Decide whether to use the journal. It is not encrypted, so it is only used if client.dat
+     * isn't. The next checkpoint will write client.dat in full anyway, and after that the 
+     * journal is either created or deleted. */
+    private void setJournal(File dir, String baseName, boolean writeEncrypted) {
+        journalFile = makeJournalFilename(dir, baseName);
+        useJournal = USE_JOURNAL && !writeEncrypted;
+        if(journal != null) {
+            journal.close();
+            journal = null;
+        }
+        savedDigests.clear();
+    }
 
     private enum RequestLoadStatus {
         // In order of preference, best first.
@@ -361,17 +429,32 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         private final Map<RequestIdentifier, PartiallyLoadedRequest> partiallyLoadedRequests 
             = new HashMap<RequestIdentifier, PartiallyLoadedRequest>();
         
+        /** Requests removed according to the journal. */
+        private final Set<RequestIdentifier> removed = new HashSet<RequestIdentifier>();
+        
         private byte[] salt;
         
         private boolean somethingFailed;
         
         private boolean doneSomething;
         
+        /** The ID of the first snapshot we read all the requests from, or 0 if it has no 
+         * journal. Not the first header we read: if we crashed while rewriting client.dat, it 
+         * has the new ID but we load from client.dat.bak, and the journal still matches that. */
+        private long snapshotID;
+        
+        private boolean readSnapshotID;
+        
+        /** The most recent stats we have read. */
+        private PersistentStatsPutter stats;
+        
         /** Add a partially loaded request. 
          * @param reqID The request identifier. Must be non-null; caller should regenerate it if
-         * necessary. */
+         * necessary.
+         * @param replace True if the request comes from the journal, and so is newer than any
+         * request we have already loaded, unless we failed to load it at all. */
         void addPartiallyLoadedRequest(RequestIdentifier reqID, ClientRequest request, 
-                RequestLoadStatus status) {
+                RequestLoadStatus status, boolean replace) {
             if(reqID == null) {
                 if(request == null) {
                     somethingFailed = true;
@@ -380,8 +463,13 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
                     reqID = request.getRequestIdentifier();
                 }
             }
+            if(replace && status != RequestLoadStatus.FAILED)
+                removed.remove(reqID);
+            else if(removed.contains(reqID))
+                return;
             PartiallyLoadedRequest old = partiallyLoadedRequests.get(reqID);
-            if(old == null || old.status.ordinal() > status.ordinal()) {
+            if(old == null || old.status.ordinal() > status.ordinal() || 
+                    (replace && status != RequestLoadStatus.FAILED)) {
                 partiallyLoadedRequests.put(reqID, new PartiallyLoadedRequest(request, status));
                 if(!(status == RequestLoadStatus.LOADED || status == RequestLoadStatus.RESTORED_FULLY))
                     somethingFailed = true;
@@ -389,6 +477,18 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             }
         }
 
+        /** The request was removed after the snapshot was written. */
+        void removeRequest(RequestIdentifier reqID) {
+            partiallyLoadedRequests.remove(reqID);
+            removed.add(reqID);
+        }
+        
+        void setSnapshotID(long id) {
+            if(readSnapshotID) return;
+            snapshotID = id;
+            readSnapshotID = true;
+        }
+
         public boolean needsMore() {
             return somethingFailed || !doneSomething;
         }
@@ -447,7 +547,8 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         long magic = ois.readLong();
         if(magic != MAGIC) throw new IOException("Bad magic");
         int version = ois.readInt();
-        if(version != VERSION) throw new IOException("Bad version");
+        if(version != VERSION && version != JOURNAL_VERSION) throw new IOException("Bad version");
+        long snapshotID = version == JOURNAL_VERSION ? ois.readLong() : 0;
         byte[] salt = new byte[32];
         try {
             checker.readAndChecksum(ois, salt, 0, salt.length);
@@ -458,75 +559,13 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         requestStarters.setGlobalSalt(salt);
         int requestCount = ois.readInt();
         for(int i=0;i<requestCount;i++) {
-            ClientRequest request = null;
-            RequestIdentifier reqID = readRequestIdentifier(ois);
-            if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
-                Logger.warning(this, "Not reading request because already have it");
-                skipChecksummedObject(ois, length); // Request itself
-                skipChecksummedObject(ois, length); // Recovery data
-                continue;
-            }
-            try {
-                if(!noSerialize) {
-                    request = (ClientRequest) readChecksummedObject(ois, length);
-                    if(request != null) {
-                        if(reqID != null) {
-                            if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
-                                Logger.error(this, "Request does not match request identifier, discarding");
-                                request = null;
-                            } else {
-                                loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED);
-                            }
-                        }
-                    }
-                } else
-                    skipChecksummedObject(ois, length);
-            } catch (ChecksumFailedException e) {
-                Logger.error(this, "Failed to load request (checksum failed)");
-                System.err.println("Failed to load a request (checksum failed)");
-            } catch (Throwable t) {
-                // Some more serious problem. Try to load the rest anyway.
-                Logger.error(this, "Failed to load request: "+t, t);
-                System.err.println("Failed to load a request: "+t);
-                t.printStackTrace();
-            }
-            if(request == null || logMINOR) {
-                try {
-                    ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
-                    if(request == null && restored != null) {
-                        request = restored;
-                        boolean loadedFully = restored.fullyResumed();
-                        loaded.addPartiallyLoadedRequest(reqID, request, 
-                                loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED);
-                    }
-                } catch (ChecksumFailedException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recover a request (checksum failed)");
-                        System.err.println("Failed to recover a request (checksum failed)");
-                    } else {
-                        Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                } catch (StorageFormatException e) {
-                    if(request == null) {
-                        Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
-                        System.err.println("Failed to recovery a request (storage format): "+e);
-                        e.printStackTrace();
-                    } else {
-                        Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
-                    }
-                    if(request == null)
-                        loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED);
-                }
-            } else {
-                skipChecksummedObject(ois, length);
-            }
+            readRequest(loaded, ois, length, context, noSerialize, false);
         }
+        loaded.setSnapshotID(snapshotID);
         if(latest) {
             try {
                 // Don't bother with the buckets to free or the stats unless reading from the latest version (client.dat not client.dat.bak).
-                readStatsAndBuckets(ois, length, context);
+                readStatsAndBuckets(loaded, ois, length, context);
             } catch (Throwable t) {
                 Logger.error(this, "Failed to restore stats and delete old temp files: "+t, t);
             }
@@ -534,10 +573,120 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         ois.close();
         fis = null;
     }
+    
+    /** Read a single request, as written by writeRequest().
+     * @param replace True if reading from the journal. */
+    private void readRequest(PartialLoad loaded, ObjectInputStream ois, long length, 
+            ClientContext context, boolean noSerialize, boolean replace) throws IOException {
+        ClientRequest request = null;
+        RequestIdentifier reqID = readRequestIdentifier(ois);
+        if(reqID != null && context.persistentRoot.hasRequest(reqID)) {
+            Logger.warning(this, "Not reading request because already have it");
+            skipChecksummedObject(ois, length); // Request itself
+            skipChecksummedObject(ois, length); // Recovery data
+            return;
+        }
+        try {
+            if(!noSerialize) {
+                request = (ClientRequest) readChecksummedObject(ois, length);
+                if(request != null) {
+                    if(reqID != null) {
+                        if(!reqID.sameIdentifier(request.getRequestIdentifier())) {
+                            Logger.error(this, "Request does not match request identifier, discarding");
+                            request = null;
+                        } else {
+                            loaded.addPartiallyLoadedRequest(reqID, request, RequestLoadStatus.LOADED, replace);
+                        }
+                    }
+                }
+            } else
+                skipChecksummedObject(ois, length);
+        } catch (ChecksumFailedException e) {
+            Logger.error(this, "Failed to load request (checksum failed)");
+            System.err.println("Failed to load a request (checksum failed)");
+        } catch (Throwable t) {
+            // Some more serious problem. Try to load the rest anyway.
+            Logger.error(this, "Failed to load request: "+t, t);
+            System.err.println("Failed to load a request: "+t);
+            t.printStackTrace();
+        }
+        if(request == null || logMINOR) {
+            try {
+                ClientRequest restored = readRequestFromRecoveryData(ois, length, reqID);
+                if(request == null && restored != null) {
+                    request = restored;
+                    boolean loadedFully = restored.fullyResumed();
+                    loaded.addPartiallyLoadedRequest(reqID, request, 
+                            loadedFully ? RequestLoadStatus.RESTORED_FULLY : RequestLoadStatus.RESTORED_RESTARTED, replace);
+                }
+            } catch (ChecksumFailedException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recover a request (checksum failed)");
+                    System.err.println("Failed to recover a request (checksum failed)");
+                } else {
+                    Logger.error(this, "Test recovery failed: Checksum failed for "+reqID);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED, replace);
+            } catch (StorageFormatException e) {
+                if(request == null) {
+                    Logger.error(this, "Failed to recovery a request (storage format): "+e, e);
+                    System.err.println("Failed to recovery a request (storage format): "+e);
+                    e.printStackTrace();
+                } else {
+                    Logger.error(this, "Test recovery failed for "+reqID+" : "+e, e);
+                }
+                if(request == null)
+                    loaded.addPartiallyLoadedRequest(reqID, null, RequestLoadStatus.FAILED, replace);
+            }
+        } else {
+            skipChecksummedObject(ois, length);
+        }
+    }
+    
+    /** Apply the changes written to the journal since the snapshot we have loaded. Each commit
+     * is a list of changed requests, each preceded by true and followed by false, then the 
+     * identifiers of removed requests, then the stats and buckets to free as in client.dat. */
+    private void replayJournal(PartialLoad loaded, File file, boolean noSerialize, 
+            ClientContext context) {
+        ClientLayerJournal journal = new ClientLayerJournal(file, checker, tempBucketFactory);
+        ClientLayerJournal.Reader reader = null;
+        long length = file.length();
+        int commits = 0;
+        try {
+            reader = journal.open(loaded.snapshotID);
+            if(reader == null) return;
+            InputStream is;
+            while((is = reader.nextCommit()) != null) {
+                ObjectInputStream ois = new ObjectInputStream(is);
+                try {
+                    while(ois.readBoolean())
+                        readRequest(loaded, ois, length, context, noSerialize, true);
+                    int removed = ois.readInt();
+                    for(int i=0;i<removed;i++) {
+                        RequestIdentifier reqID = readRequestIdentifier(ois);
+                        if(reqID != null) loaded.removeRequest(reqID);
+                    }
+                    if(!noSerialize)
+                        readStatsAndBuckets(loaded, ois, length, context);
+                } finally {
+                    ois.close();
+                }
+                commits++;
+            }
+        } catch (Throwable t) {
+            Logger.error(this, "Failed to replay "+file+" after "+commits+" commits: "+t, t);
+            System.err.println("Failed to replay "+file+" after "+commits+" commits: "+t);
+            loaded.setSomethingFailed();
+        } finally {
+            if(reader != null) reader.close();
+        }
+        if(commits > 0)
+            System.out.println("Replayed "+commits+" changes to persistent requests from "+file);
+    }
 
-    private void readStatsAndBuckets(ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
-        PersistentStatsPutter storedStatsPutter = (PersistentStatsPutter) ois.readObject();
-        this.bandwidthStatsPutter.addFrom(storedStatsPutter);
+    private void readStatsAndBuckets(PartialLoad loaded, ObjectInputStream ois, long length, ClientContext context) throws IOException, ClassNotFoundException {
+        loaded.stats = (PersistentStatsPutter) ois.readObject();
         int count = ois.readInt();
         DelayedFree[] buckets = new DelayedFree[count];
         for(int i=0;i<count;i++) {
@@ -557,10 +706,17 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     
     protected void save(boolean shutdown) {
         if(writeToFilename == null) return;
+        long startTime = System.currentTimeMillis();
+        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+        if(useJournal && !shutdown && journal != null && journal.isOpen() && 
+                journal.length() < Math.max(snapshotLength, MIN_JOURNAL_COMPACT_SIZE)) {
+            if(appendToJournal(buckets, startTime)) return;
+            // Otherwise write client.dat in full, which starts a new journal.
+        }
         if(writeToFilename.exists()) {
             FileUtil.renameTo(writeToFilename, writeToBackupFilename);
         }
-        if(innerSave(shutdown)) {
+        if(innerSave(shutdown, buckets, startTime)) {
             if(deleteAfterSuccessfulWrite != null) {
                 deleteAfterSuccessfulWrite.delete();
                 deleteAfterSuccessfulWrite = null;
@@ -572,15 +728,26 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private boolean innerSave(boolean shutdown) {
-        DelayedFree[] buckets = persistentTempFactory.grabBucketsToFree();
+    private boolean innerSave(boolean shutdown, DelayedFree[] buckets, long startTime) {
         OutputStream fos = null;
+        long snapshotID = 0;
+        if(useJournal) {
+            // Any old journal no longer matches, even if we crash before creating the new one.
+            while(snapshotID == 0)
+                snapshotID = getClientContext().fastWeakRandom.nextLong();
+            savedDigests.clear();
+        }
         try {
             fos = writeToBucket.getOutputStream();
             BufferedOutputStream bos = new BufferedOutputStream(fos);
             ObjectOutputStream oos = new ObjectOutputStream(bos);
             oos.writeLong(MAGIC);
-            oos.writeInt(VERSION);
+            if(useJournal) {
+                oos.writeInt(JOURNAL_VERSION);
+                oos.writeLong(snapshotID);
+            } else {
+                oos.writeInt(VERSION);
+            }
             checker.writeAndChecksum(oos, salt);
             ClientRequest[] requests = getRequests();
             if(shutdown) {
@@ -595,28 +762,35 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             }
             oos.writeInt(requests.length);
             for(ClientRequest req : requests) {
-                // Write the request identifier so we can skip reading the request if we already have it.
-                writeRequestIdentifier(oos, req.getRequestIdentifier());
-                // Write the actual request.
-                writeChecksummedObject(oos, req, req.toString());
-                // Write recovery data. This is just enough to restart the request from scratch, 
-                // but may support continuing the request in simple cases e.g. if a fetch is now
-                // just a single splitfile.
-                writeRecoveryData(oos, req);
+                if(useJournal) {
+                    byte[] buf = writeRequest(req);
+                    savedDigests.put(req.getRequestIdentifier(), SHA256.digest(buf));
+                    oos.write(buf);
+                } else {
+                    writeRequest(oos, req);
+                }
             }
             bandwidthStatsPutter.updateData(node);
             oos.writeObject(bandwidthStatsPutter);
-            if(buckets == null) {
-                oos.writeInt(0);
-            } else {
-                oos.writeInt(buckets.length);
-                for(DelayedFree bucket : buckets)
-                    writeChecksummedObject(oos, bucket, null);
-            }
+            writeBuckets(oos, buckets);
             oos.close();
             fos = null;
             Logger.normal(this, "Saved "+requests.length+" requests to "+writeToFilename);
             persistentTempFactory.finishDelayedFree(buckets);
+            snapshotLength = writeToFilename.length();
+            onCheckpointWritten(startTime, snapshotLength, requests.length, true);
+            if(useJournal) {
+                if(journal == null)
+                    journal = new ClientLayerJournal(journalFile, checker, tempBucketFactory);
+                try {
+                    journal.create(snapshotID);
+                } catch (IOException e) {
+                    Logger.error(this, "Unable to create "+journalFile+" : "+e, e);
+                    journal.close();
+                }
+            } else if(journalFile != null && journalFile.exists()) {
+                journalFile.delete();
+            }
             return true;
         } catch (IOException e) {
             System.err.println("Failed to write persistent requests: "+e);
@@ -632,7 +806,102 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
     
-    private void writeRecoveryData(ObjectOutputStream os, ClientRequest req) throws IOException {
+    /** Append the requests which have changed since the last checkpoint, and the identifiers 
+     * of those which have been removed, to the journal. We can't tell which requests have 
+     * changed without serializing them, but most of the cost of a checkpoint is the disk I/O.
+     * @return False if we need to write client.dat in full instead. */
+    private boolean appendToJournal(DelayedFree[] buckets, long startTime) {
+        ClientRequest[] requests = getRequests();
+        Map<RequestIdentifier, byte[]> digests = 
+            new HashMap<RequestIdentifier, byte[]>(requests.length * 2);
+        int changed = 0;
+        PrependLengthOutputStream commit = null;
+        try {
+            commit = journal.startCommit();
+            ObjectOutputStream oos = new ObjectOutputStream(commit);
+            for(ClientRequest req : requests) {
+                RequestIdentifier reqID = req.getRequestIdentifier();
+                byte[] buf = writeRequest(req);
+                byte[] digest = SHA256.digest(buf);
+                digests.put(reqID, digest);
+                if(Arrays.equals(digest, savedDigests.get(reqID))) continue;
+                oos.writeBoolean(true);
+                oos.write(buf);
+                changed++;
+            }
+            oos.writeBoolean(false);
+            int removed = 0;
+            for(RequestIdentifier reqID : savedDigests.keySet())
+                if(!digests.containsKey(reqID)) removed++;
+            oos.writeInt(removed);
+            for(RequestIdentifier reqID : savedDigests.keySet())
+                if(!digests.containsKey(reqID)) writeRequestIdentifier(oos, reqID);
+            bandwidthStatsPutter.updateData(node);
+            oos.writeObject(bandwidthStatsPutter);
+            writeBuckets(oos, buckets);
+            oos.close();
+            commit = null;
+            long written = journal.finishCommit();
+            savedDigests.clear();
+            savedDigests.putAll(digests);
+            if(logMINOR) Logger.minor(this, "Saved "+changed+" of "+requests.length+" requests and "+
+                    removed+" removals to "+journalFile);
+            persistentTempFactory.finishDelayedFree(buckets);
+            onCheckpointWritten(startTime, written, changed, false);
+            return true;
+        } catch (IOException e) {
+            Logger.error(this, "Failed to write to "+journalFile+" : "+e, e);
+            System.err.println("Failed to write persistent requests to journal: "+e);
+            if(commit != null) {
+                try {
+                    commit.abort();
+                    commit.close();
+                } catch (IOException e1) {
+                    // Ignore, we are not going to use the journal again.
+                }
+            }
+            journal.close();
+            return false;
+        }
+    }
+    
+    private void onCheckpointWritten(long startTime, long bytes, int requests, boolean full) {
+        lastCheckpointTime = System.currentTimeMillis() - startTime;
+        lastCheckpointBytes = bytes;
+        lastCheckpointRequests = requests;
+        lastCheckpointFull = full;
+    }
+    
+    /** Write a request followed by its recovery data, as it appears in client.dat, to a byte
+     * array. */
+    private byte[] writeRequest(ClientRequest req) throws IOException {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        writeRequest(baos, req);
+        return baos.toByteArray();
+    }
+    
+    private void writeRequest(OutputStream os, ClientRequest req) throws IOException {
+        // Write the request identifier so we can skip reading the request if we already have it.
+        writeRequestIdentifier(new DataOutputStream(os), req.getRequestIdentifier());
+        // Write the actual request.
+        writeChecksummedObject(os, req, req.toString());
+        // Write recovery data. This is just enough to restart the request from scratch, 
+        // but may support continuing the request in simple cases e.g. if a fetch is now
+        // just a single splitfile.
+        writeRecoveryData(os, req);
+    }
+    
+    private void writeBuckets(ObjectOutputStream oos, DelayedFree[] buckets) throws IOException {
+        if(buckets == null) {
+            oos.writeInt(0);
+        } else {
+            oos.writeInt(buckets.length);
+            for(DelayedFree bucket : buckets)
+                writeChecksummedObject(oos, bucket, null);
+        }
+    }
+    
+    private void writeRecoveryData(OutputStream os, ClientRequest req) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         DataOutputStream dos = new DataOutputStream(oos);
         try {
@@ -666,7 +935,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
         }
     }
 
-    private void writeChecksummedObject(ObjectOutputStream os, Object req, String name) throws IOException {
+    private void writeChecksummedObject(OutputStream os, Object req, String name) throws IOException {
         PrependLengthOutputStream oos = checker.checksumWriterWithLength(os, tempBucketFactory);
         try {
             ObjectOutputStream innerOOS = new ObjectOutputStream(oos);
@@ -745,6 +1014,27 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
     public synchronized File getWriteFilename() {
         return writeToFilename;
     }
+    
+    /** @return How long the last checkpoint took to write, in milliseconds. */
+    public long getLastCheckpointTime() {
+        return lastCheckpointTime;
+    }
+    
+    /** @return How many bytes the last checkpoint wrote to client.dat or the journal. */
+    public long getLastCheckpointBytes() {
+        return lastCheckpointBytes;
+    }
+    
+    /** @return How many requests the last checkpoint wrote. */
+    public int getLastCheckpointRequests() {
+        return lastCheckpointRequests;
+    }
+    
+    /** @return True if the last checkpoint wrote client.dat in full rather than to the 
+     * journal. */
+    public boolean wasLastCheckpointFull() {
+        return lastCheckpointFull;
+    }
 
     public void panic() {
         killAndWaitForNotWriting();
@@ -757,6 +1047,7 @@ public class ClientLayerPersister extends PersistentJobRunnerImpl {
             deleteFile(dir, baseName, false, true);
             deleteFile(dir, baseName, true, false);
             deleteFile(dir, baseName, true, true);
+            deleteJournal(dir, baseName);
         }
     }
 
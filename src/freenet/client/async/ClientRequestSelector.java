@@ -26,6 +26,8 @@ import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.RandomGrabArrayItemExclusionList;
 import freenet.support.RandomGrabArrayWithObject;
 import freenet.support.RemoveRandom.RemoveRandomReturn;
 import freenet.support.RemoveRandomParent;
@@ -44,13 +46,16 @@ import freenet.support.TimeUtil;
  * wakeup time is Long.MAX_VALUE) or because a key has been fetched repeatedly and has entered 
  * a cooldown period, meaning it will be fetchable in 30 minutes.
  * 
- * LOCKING: Consequently we need to lock the entire tree whenever we access either the tree or the
- * cooldown tracker (which really should be part of the tree, TODO!): When a request completes, we
- * start at the request itself and go up the tree until we stop updating the wakeup times. However
- * when we choose a request to send, we start at the top and go down (and update the cooldown times
- * when backtracking back up the tree if we don't find anything).
+ * LOCKING: Consequently we need to lock the entire subtree for a priority whenever we access 
+ * either the tree or the cooldown tracker (which really should be part of the tree, TODO!): When a
+ * request completes, we start at the request itself and go up the tree until we stop updating the
+ * wakeup times. However when we choose a request to send, we start at the top and go down (and 
+ * update the cooldown times when backtracking back up the tree if we don't find anything).
  * 
- * **We lock on ClientRequestSelector** when using the tree, including the cooldown times.
+ * **We lock on priorityLocks[priority]** when using the tree, including the cooldown times. The
+ * wakeup times never propagate above a priority, so each priority can be used independently: the
+ * RequestStarter can choose a request from one priority while requests are being registered at
+ * another. Only reregisterAll() takes two locks, and it takes them in priority order.
  * 
  * REDFLAG LOCKING: Actually in the completion case we could find the top and then lock the whole 
  * tree, and then update the cooldowns; and/or we could avoid updating the cooldowns during request 
@@ -77,24 +82,27 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	static class ClientRequestRGANode extends SectoredRandomGrabArraySimple<RequestClient,ClientRequestSchedulerGroup> {
 
         public ClientRequestRGANode(RequestClient object, RemoveRandomParent parent,
-                ClientRequestSelector root) {
-            super(object, parent, root);
+                ClientRequestSelector root, Object lock) {
+            super(object, parent, root, lock);
         }
 	    
 	}
 	
 	static class RequestClientRGANode extends SectoredRandomGrabArray<RequestClient,ClientRequestRGANode> {
 
-        public RequestClientRGANode(RemoveRandomParent parent, ClientRequestSelector root) {
-            super(parent, root);
+        public RequestClientRGANode(RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
+            super(parent, root, lock);
         }
 	    
 	}
 	
 	/**
-     * The base of the tree.
+     * The base of the tree. One per priority, never null.
      */
-    protected RequestClientRGANode[] priorities;
+    protected final RequestClientRGANode[] priorities;
+    
+    /** The lock for each priority's subtree. */
+    private final Object[] priorityLocks;
     
     protected final Deque<BaseSendableGet>recentSuccesses;
     
@@ -114,6 +122,11 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 			recentSuccesses = null;
 		}
 		priorities = new RequestClientRGANode[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		priorityLocks = new Object[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+		for(int i=0;i<priorities.length;i++) {
+			priorityLocks[i] = new Object();
+			priorities[i] = new RequestClientRGANode(null, this, priorityLocks[i]);
+		}
 	}
 	
 	private static volatile boolean logMINOR;
@@ -145,9 +158,9 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	
 	/** Choose a priority to start requests from.
 	 * @return The priority chosen or the time at which a priority will have requests to send.
-	 * LOCKING: Synchronized because we may create new priorities. Both the cooldown queue and the 
-	 * RGA hierarchy, rooted at the priorities, use ClientRequestSelector lock. */
-	private synchronized long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
+	 * LOCKING: Not synchronized. The priorities are created in the constructor, and each one
+	 * takes its own lock. */
+	private long choosePriority(int fuzz, RandomSource random, ClientContext context, long now){
 	    RequestClientRGANode result = null;
 		
 		long wakeupTime = Long.MAX_VALUE;
@@ -309,7 +322,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 	 * most of the time.
 	 * @return Either a chosen request or the time at which we should try again if all priorities 
 	 * are waiting for requests to finish / cooldown periods to expire. */
-	SelectorReturn chooseRequestInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RequestStarter starter, boolean realTime, ClientContext context, long now) {
+	SelectorReturn chooseRequestInner(int fuzz, RandomSource random, OfferedKeysList offeredKeys, RandomGrabArrayItemExclusionList starter, boolean realTime, ClientContext context, long now) {
 		// Priorities start at 0
 		if(logMINOR) Logger.minor(this, "removeFirst()");
 		boolean tryOfferedKeys = offeredKeys != null && random.nextBoolean();
@@ -337,7 +350,7 @@ public class ClientRequestSelector implements KeysFetchingLocally {
 outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CLASS;choosenPriorityClass++) {
 			if(logMINOR) Logger.minor(this, "Using priority "+choosenPriorityClass);
 			RequestClientRGANode chosenTracker = priorities[choosenPriorityClass];
-			if(chosenTracker == null) {
+			if(chosenTracker.isEmpty()) {
 				if(logMINOR) Logger.minor(this, "No requests to run: chosen priority empty");
 				continue; // Try next priority
 			}
@@ -352,8 +365,8 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 				if(logMINOR)
 					Logger.minor(this, "Got priority tracker "+chosenTracker);
 				RemoveRandomReturn val;
-				synchronized(this) {
-				    // We must hold the overall lock, just as in addToGrabArrays.
+				synchronized(priorityLocks[choosenPriorityClass]) {
+				    // We must hold the priority's lock, just as in addToGrabArrays.
 				    // This is important for keeping the cooldown tracker consistent amongst other 
 				    // things: We can get a race condition between thread A reading the tree, 
 				    // finding nothing and setCachedWakeup(), and thread B waking up a request, 
@@ -385,10 +398,15 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
 					if(clientGrabber != null) {
 						RandomGrabArray baseRGA = clientGrabber.getGrabber(req.getSchedulerGroup());
 						if(baseRGA != null) {
+							RandomGrabArray moved;
 							// Must synchronize to avoid nasty race conditions with cooldown.
-							synchronized(this) {
-								baseRGA.remove(req, context);
+							synchronized(priorityLocks[choosenPriorityClass]) {
+								moved = baseRGA.remove(req, context);
 							}
+							// If it has moved again, remove() takes the lock for its current
+							// priority. Never while holding another priority's lock.
+							while(moved != null)
+								moved = moved.remove(req, context);
 						} else {
 							// Okay, it's been removed already. Cool.
 						}
@@ -618,25 +636,21 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
         if((priorityClass > RequestStarter.PAUSED_PRIORITY_CLASS) || (priorityClass < RequestStarter.MAXIMUM_PRIORITY_CLASS))
             throw new IllegalStateException("Invalid priority: "+priorityClass+" - range is "+RequestStarter.MAXIMUM_PRIORITY_CLASS+" (most important) to "+RequestStarter.PAUSED_PRIORITY_CLASS+" (least important)");
         // Client
-        synchronized(this) {
+        synchronized(priorityLocks[priorityClass]) {
             ClientRequestRGANode requestGrabber = makeSRGAForClient(priorityClass, client, context);
             requestGrabber.add(cr, req, context);
         }
         sched.wakeStarter();
     }
 
+    /** LOCKING: Caller must hold priorityLocks[priorityClass]. */
     private ClientRequestRGANode makeSRGAForClient(short priorityClass,
             RequestClient client, ClientContext context) {
         RequestClientRGANode clientGrabber = priorities[priorityClass];
-        if(clientGrabber == null) {
-            clientGrabber = new RequestClientRGANode(null, this);
-            priorities[priorityClass] = clientGrabber;
-            if(logMINOR) Logger.minor(this, "Registering client tracker for priority "+priorityClass+" : "+clientGrabber);
-        }
         // Request
         ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
         if(requestGrabber == null) {
-            requestGrabber = new ClientRequestRGANode(client, clientGrabber, this);
+            requestGrabber = new ClientRequestRGANode(client, clientGrabber, this, priorityLocks[priorityClass]);
             if(logMINOR)
                 Logger.minor(this, "Creating new grabber: "+requestGrabber+" for "+client+" from "+clientGrabber+" : prio="+priorityClass);
             clientGrabber.addGrabber(client, requestGrabber, context);
@@ -653,39 +667,43 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
             return;
         }
         ClientRequestSchedulerGroup group = request.getSchedulerGroup();
-        synchronized(this) {
-            // First by priority
-            RequestClientRGANode clientGrabber = priorities[oldPrio];
-            if(clientGrabber == null) {
-                // Normal as most of the schedulers aren't relevant to any given insert/request.
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            // Then by RequestClient
-            ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
-            if(requestGrabber == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
-            if(rga == null) {
-                if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
-                return;
-            }
-            requestGrabber.maybeRemove(rga, context);
-            requestGrabber = makeSRGAForClient(newPrio, client, context);
-            if(requestGrabber.getGrabber(group) != null) {
-                Logger.error(this, "RGA already exists for "+request+" : "+requestGrabber.getGrabber(group)+
-                        " but want to insert "+rga, new Exception("error"));
+        // Always take the locks in priority order.
+        synchronized(priorityLocks[Math.min(oldPrio, newPrio)]) {
+            synchronized(priorityLocks[Math.max(oldPrio, newPrio)]) {
+                // First by priority
+                RequestClientRGANode clientGrabber = priorities[oldPrio];
+                // Then by RequestClient
+                ClientRequestRGANode requestGrabber = clientGrabber.getGrabber(client);
+                if(requestGrabber == null) {
+                    // Normal as most of the schedulers aren't relevant to any given insert/request.
+                    if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+                    return;
+                }
+                RandomGrabArrayWithObject<ClientRequestSchedulerGroup> rga = requestGrabber.getGrabber(group);
+                if(rga == null) {
+                    if(logMINOR) Logger.minor(this, "Changing priority but request not running "+request, new Exception("debug"));
+                    return;
+                }
                 requestGrabber.maybeRemove(rga, context);
+                requestGrabber = makeSRGAForClient(newPrio, client, context);
+                // The RGA belongs to the old priority's lock, so move the requests rather than 
+                // the RGA. Anything that has already been taken out of the RGA by 
+                // SendableRequest.unregister() is left for it to remove, and if it is moved 
+                // while unregister() is waiting for the lock, RGA.remove() will follow it.
+                for(int i=0;i<rga.size();i++) {
+                    RandomGrabArrayItem item = rga.get(i);
+                    if(item == null || item.getParentGrabArray() != rga) continue;
+                    requestGrabber.add(group, item, context);
+                }
+                rga.clear();
             }
-            requestGrabber.addGrabber(group, rga, context);
         }
     }
 
-    public synchronized long countQueuedRequests(ClientContext context) {
+    public long countQueuedRequests(ClientContext context) {
         long total = 0;
         for(int i=0;i<priorities.length;i++) {
+          synchronized(priorityLocks[i]) {
             RequestClientRGANode prio = priorities[i];
             if(prio == null || prio.isEmpty())
                 System.out.println("Priority "+i+" : empty");
@@ -715,6 +733,7 @@ outer:	for(;choosenPriorityClass <= RequestStarter.MINIMUM_FETCHABLE_PRIORITY_CL
                         }
                     }
             }
+          }
         }
         return total;
     }   
@@ -7,6 +7,9 @@ import static java.lang.String.format;
 
 import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
 
 import freenet.crypt.RandomSource;
@@ -60,8 +63,13 @@ class KeyListenerTracker implements KeySalter {
 	final boolean isRTScheduler;
 	
 	protected final ClientRequestScheduler sched;
-	/** Transient even for persistent scheduler. There is one for each of transient, persistent. */
-	private final ArrayList<KeyListener> keyListeners;
+	/** Transient even for persistent scheduler. There is one for each of transient, persistent.
+	 * Copy on write, so that we can check every listener for each block without holding the
+	 * lock. Protected by this when changed. */
+	private volatile KeyListener[] keyListeners = new KeyListener[0];
+	/** The same listeners, so that adding and removing doesn't need to scan the array.
+	 * Protected by this. */
+	private final HashSet<KeyListener> keyListenerSet = new HashSet<KeyListener>();
 
 	final boolean persistent;
 	
@@ -74,7 +82,6 @@ class KeyListenerTracker implements KeySalter {
 		this.isSSKScheduler = forSSKs;
 		this.isRTScheduler = forRT;
 		this.sched = sched;
-		keyListeners = new ArrayList<KeyListener>();
 		if(globalSalt == null) {
 		    globalSalt = new byte[32];
 		    random.nextBytes(globalSalt);
@@ -99,39 +106,49 @@ class KeyListenerTracker implements KeySalter {
 		if(listener == null) throw new NullPointerException();
 		synchronized (this) {
 			// We have to register before checking the disk, so it may well get registered twice.
-			if(keyListeners.contains(listener))
+			if(!keyListenerSet.add(listener))
 				return;
-			keyListeners.add(listener);
+			KeyListener[] old = keyListeners;
+			KeyListener[] listeners = Arrays.copyOf(old, old.length+1);
+			listeners[old.length] = listener;
+			keyListeners = listeners;
 		}
 		if (logMINOR)
-			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.size()+" : "+listener);
+			Logger.minor(this, "Added pending keys to "+this+" : size now "+keyListeners.length+" : "+listener);
 	}
 	
 	public boolean removePendingKeys(KeyListener listener) {
 		boolean ret;
 		synchronized (this) {
-			ret = keyListeners.remove(listener);
+			ret = keyListenerSet.remove(listener);
+			if(ret) {
+				KeyListener[] old = keyListeners;
+				KeyListener[] listeners = new KeyListener[old.length-1];
+				int x = 0;
+				for(KeyListener l : old) {
+					if(l != listener) listeners[x++] = l;
+				}
+				keyListeners = listeners;
+			}
 		}
 		listener.onRemove();
 		if (logMINOR)
-			Logger.minor(this, "Removed pending keys from "+this+" : size now "+keyListeners.size()+" : "+listener, new Exception("debug"));
+			Logger.minor(this, "Removed pending keys from "+this+" : size now "+keyListeners.length+" : "+listener, new Exception("debug"));
 		return ret;
 	}
 	
 	public boolean removePendingKeys(HasKeyListener hasListener) {
 		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
-		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
-				HasKeyListener hkl;
-				try {
-					hkl = listener.getHasKeyListener();
-				} catch (Throwable t) {
-					Logger.error(this, format("Error in getHasKeyListener callback for %s", listener), t);
-					continue;
-				}
-				if (hkl == hasListener) {
-					matches.add(listener);
-				}
+		for (KeyListener listener : keyListeners) {
+			HasKeyListener hkl;
+			try {
+				hkl = listener.getHasKeyListener();
+			} catch (Throwable t) {
+				Logger.error(this, format("Error in getHasKeyListener callback for %s", listener), t);
+				continue;
+			}
+			if (hkl == hasListener) {
+				matches.add(listener);
 			}
 		}
 		if (matches.isEmpty()) {
@@ -168,7 +185,7 @@ class KeyListenerTracker implements KeySalter {
 		return priority;
 	}
 	
-	public synchronized long countWaitingKeys() {
+	public long countWaitingKeys() {
 		long count = 0;
 		for (KeyListener listener : keyListeners) {
 			try {
@@ -198,7 +215,7 @@ class KeyListenerTracker implements KeySalter {
 		return false;
 	}
 	
-	public synchronized boolean anyProbablyWantKey(Key key, ClientContext context) {
+	public boolean anyProbablyWantKey(Key key, ClientContext context) {
 		assert(key instanceof NodeSSK == isSSKScheduler);
 		byte[] saltedKey = saltKey(key);
 		for (KeyListener listener : keyListeners) {
@@ -301,19 +318,23 @@ class KeyListenerTracker implements KeySalter {
 	 * Returns all KeyListeners that return true on probablyWantKey(key, saltedKey)
 	 */
 	private List<KeyListener> probablyWantKey(Key key, byte[] saltedKey) {
-		ArrayList<KeyListener> matches = new ArrayList<KeyListener>();
-		synchronized (this) {
-			for (KeyListener listener : keyListeners) {
-				try {
-					if (!listener.probablyWantKey(key, saltedKey)) {
-						continue;
-					}
-				} catch (Throwable t) {
-					Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+		List<KeyListener> matches = null;
+		for (KeyListener listener : keyListeners) {
+			try {
+				if (!listener.probablyWantKey(key, saltedKey)) {
 					continue;
 				}
-				matches.add(listener);
+			} catch (Throwable t) {
+				Logger.error(this, format("Error in probablyWantKey callback for %s", listener), t);
+				continue;
+			}
+			if (matches == null) {
+				matches = new ArrayList<KeyListener>();
 			}
+			matches.add(listener);
+		}
+		if (matches == null) {
+			return Collections.emptyList();
 		}
 		return matches;
 	}
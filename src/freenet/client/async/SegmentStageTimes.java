@@ -0,0 +1,70 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Total time spent in each stage of decoding and encoding splitfile segments, for the
+ * statistics page. Shared by all fetches and inserts. */
+public final class SegmentStageTimes {
+
+    public enum Stage {
+        /** Fetching: Reading the blocks from disk and checking them against their keys. */
+        FETCH_READ_CHECK,
+        /** Fetching: FEC decoding the missing data blocks. */
+        FETCH_DECODE,
+        /** Fetching: Checking the decoded data blocks against their keys. */
+        FETCH_CHECK_DECODED,
+        /** Fetching: Writing the data blocks to disk. */
+        FETCH_WRITE,
+        /** Fetching: FEC encoding the missing check blocks, for healing. */
+        FETCH_ENCODE,
+        /** Fetching: Checking the encoded check blocks against their keys. */
+        FETCH_CHECK_ENCODED,
+        /** Inserting: Reading the data blocks and cross-segment check blocks. */
+        INSERT_READ,
+        /** Inserting: Computing the keys of the data blocks. */
+        INSERT_DATA_KEYS,
+        /** Inserting: FEC encoding the check blocks. */
+        INSERT_ENCODE,
+        /** Inserting: Writing the check blocks to disk. */
+        INSERT_WRITE,
+        /** Inserting: Computing the keys of the check blocks. */
+        INSERT_CHECK_KEYS
+    }
+
+    private static final AtomicLongArray totalTimes = new AtomicLongArray(Stage.values().length);
+    private static final AtomicLongArray counts = new AtomicLongArray(Stage.values().length);
+
+    private SegmentStageTimes() {
+        // Static only.
+    }
+
+    /** Record that a stage has finished.
+     * @param start The System.nanoTime() when the stage started.
+     * @return The current System.nanoTime(), i.e. the start of the next stage. */
+    static long finished(Stage stage, long start) {
+        long now = System.nanoTime();
+        totalTimes.addAndGet(stage.ordinal(), now - start);
+        counts.incrementAndGet(stage.ordinal());
+        return now;
+    }
+
+    /** @return The total time spent in each stage in milliseconds, indexed by Stage.ordinal(). */
+    public static long[] getTotalTimes() {
+        long[] ret = new long[totalTimes.length()];
+        for(int i=0;i<ret.length;i++)
+            ret[i] = totalTimes.get(i) / (1000 * 1000);
+        return ret;
+    }
+
+    /** @return The number of times each stage has run, indexed by Stage.ordinal(). */
+    public static long[] getCounts() {
+        long[] ret = new long[counts.length()];
+        for(int i=0;i<ret.length;i++)
+            ret[i] = counts.get(i);
+        return ret;
+    }
+
+}
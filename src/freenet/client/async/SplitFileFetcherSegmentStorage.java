@@ -15,6 +15,7 @@ import freenet.client.FetchException;
 import freenet.client.FetchException.FetchExceptionMode;
 import freenet.client.Metadata.SplitfileAlgorithm;
 import freenet.client.async.PersistentJobRunner.CheckpointLock;
+import freenet.client.async.SegmentStageTimes.Stage;
 import freenet.crypt.ChecksumFailedException;
 import freenet.keys.CHKBlock;
 import freenet.keys.CHKDecodeException;
@@ -25,6 +26,7 @@ import freenet.keys.ClientCHKBlock;
 import freenet.keys.Key;
 import freenet.keys.NodeCHK;
 import freenet.node.KeysFetchingLocally;
+import freenet.support.HelperThreads;
 import freenet.support.Logger;
 import freenet.support.MemoryLimitedChunk;
 import freenet.support.MemoryLimitedJob;
@@ -350,18 +352,19 @@ public class SplitFileFetcherSegmentStorage {
             return;
         }
         
+        long start = System.nanoTime();
         int totalBlocks = totalBlocks();
-        byte[][] allBlocks = readAllBlocks();
-        SplitFileSegmentKeys keys = getSegmentKeys();
-        if(allBlocks == null || keys == null) {
+        final SplitFileSegmentKeys keys = getSegmentKeys();
+        if(keys == null) {
             return;
         }
         class MyBlock {
-            final byte[] buf;
             final int blockNumber;
             final int slot;
-            MyBlock(byte[] buf, int blockNumber, int slot) {
-                this.buf = buf;
+            /** Read from disk, and the key it actually encodes to, or null if it can't be encoded. */
+            byte[] buf;
+            ClientCHK actualKey;
+            MyBlock(int blockNumber, int slot) {
                 this.blockNumber = blockNumber;
                 this.slot = slot;
             }
@@ -375,7 +378,7 @@ public class SplitFileFetcherSegmentStorage {
                     Logger.warning(this, "Inconsistency decoding splitfile: slot "+i+" has bogus block number "+blocksFetched[i]);
                     if(blocksFetched[i] != -1)
                         blocksFetched[i] = -1;
-                    maybeBlocks.add(new MyBlock(allBlocks[i], (short)-1, i));
+                    maybeBlocks.add(new MyBlock((short)-1, i));
                     continue;
                 } else if(used[blocksFetched[i]]) {
                     Logger.warning(this, "Inconsistency decoding splitfile: slot "+i+" has duplicate block number "+blocksFetched[i]);
@@ -383,7 +386,7 @@ public class SplitFileFetcherSegmentStorage {
                     continue;
                 } else {
                     if(logMINOR) Logger.minor(this, "Found block "+blocksFetched[i]+" in slot "+i);
-                    maybeBlocks.add(new MyBlock(allBlocks[i], blocksFetched[i], i));
+                    maybeBlocks.add(new MyBlock(blocksFetched[i], i));
                     used[blocksFetched[i]] = true;
                     fetchedCount++;
                 }
@@ -410,46 +413,77 @@ public class SplitFileFetcherSegmentStorage {
             return;
         }
         
+        // Read the blocks and encode them to check whether the keys are the same. Reads are
+        // serialised by readBlock(), so while one thread is reading a block, the others are 
+        // encoding the blocks already read.
+        final MyBlock[] toCheck = maybeBlocks.toArray(new MyBlock[maybeBlocks.size()]);
+        final IOException[] readFailed = new IOException[1];
+        RAFLock lock = parent.lockRAFOpen();
+        try {
+            HelperThreads.run(toCheck.length, true, new HelperThreads.Task() {
+                
+                @Override
+                public void run(int index) {
+                    MyBlock test = toCheck[index];
+                    try {
+                        test.buf = readBlock(test.slot);
+                    } catch (IOException e) {
+                        synchronized(readFailed) {
+                            if(readFailed[0] == null) readFailed[0] = e;
+                        }
+                        return;
+                    }
+                    // Can't be encoded without a crypto key, so it will be treated as invalid.
+                    if(test.blockNumber == -1) return;
+                    ClientCHK decodeKey = keys.getKey(test.blockNumber, null, false);
+                    try {
+                        test.actualKey = ClientCHKBlock.encodeSplitfileBlock(test.buf, 
+                                decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm()).getClientKey();
+                    } catch (CHKEncodeException e) {
+                        test.actualKey = null;
+                    }
+                }
+                
+            });
+        } finally {
+            lock.unlock();
+        }
+        if(readFailed[0] != null) throw readFailed[0];
+        
         // Check the blocks and put them into the correct positions.
         int validBlocks = 0;
         int validDataBlocks = 0;
         byte[][] dataBlocks = new byte[blocksForDecode()][];
         byte[][] checkBlocks = new byte[this.checkBlocks][];
         
-        for(MyBlock test : maybeBlocks) {
+        for(MyBlock test : toCheck) {
             boolean failed = false;
             int blockNumber = test.blockNumber;
             byte[] buf = test.buf;
             ClientCHK decodeKey = blockNumber == -1 ? null : keys.getKey(blockNumber, null, false);
-            // Encode it to check whether the key is the same.
-            try {
-                ClientCHKBlock block =
-                    ClientCHKBlock.encodeSplitfileBlock(buf, decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
-                ClientCHK actualKey = block.getClientKey();
-                if(decodeKey == null || !decodeKey.equals(actualKey)) {
-                    // Is it a different block?
-                    blockNumber = (short)keys.getBlockNumber(actualKey, null);
-                    if(blockNumber == -1) {
-                        Logger.error(this, "Block which should be block #"+test.blockNumber+" in slot "+test.slot+" for segment "+this+" is not valid for key "+decodeKey);
-                        failed = true;
-                        synchronized(this) {
-                            blockChooser.onUnSuccess(blockNumber);
-                            if(blocksFetched[test.slot] == test.blockNumber) {
-                                blocksFetched[test.slot] = (short)-1;
-                            }
-                        }
-                    } else {
-                        synchronized(this) {
-                            blockChooser.onUnSuccess(blockNumber);
-                            blocksFetched[test.slot] = blockNumber;
-                            this.blockChooser.onSuccess(blockNumber);
+            ClientCHK actualKey = test.actualKey;
+            if(actualKey == null) {
+                Logger.error(this, "Block which should be "+blockNumber+" for segment "+this+" cannot be encoded for key "+decodeKey);
+                failed = true;
+            } else if(decodeKey == null || !decodeKey.equals(actualKey)) {
+                // Is it a different block?
+                blockNumber = (short)keys.getBlockNumber(actualKey, null);
+                if(blockNumber == -1) {
+                    Logger.error(this, "Block which should be block #"+test.blockNumber+" in slot "+test.slot+" for segment "+this+" is not valid for key "+decodeKey);
+                    failed = true;
+                    synchronized(this) {
+                        blockChooser.onUnSuccess(blockNumber);
+                        if(blocksFetched[test.slot] == test.blockNumber) {
+                            blocksFetched[test.slot] = (short)-1;
                         }
                     }
+                } else {
+                    synchronized(this) {
+                        blockChooser.onUnSuccess(blockNumber);
+                        blocksFetched[test.slot] = blockNumber;
+                        this.blockChooser.onSuccess(blockNumber);
+                    }
                 }
-                
-            } catch (CHKEncodeException e) {
-                Logger.error(this, "Block which should be "+blockNumber+" for segment "+this+" cannot be encoded for key "+decodeKey);
-                failed = true;
             }
             if(!failed) {
                 validBlocks++;
@@ -461,9 +495,9 @@ public class SplitFileFetcherSegmentStorage {
                     checkBlocks[blockNumber - dataBlocks.length] = buf;
             }
         }
-        allBlocks = null;
         maybeBlocks.clear();
         maybeBlocks = null;
+        start = SegmentStageTimes.finished(Stage.FETCH_READ_CHECK, start);
         if(validBlocks < blocksForDecode()) {
             // Metadata didn't match blocks on disk; write metadata immediately.
             writeMetadata();
@@ -494,6 +528,7 @@ public class SplitFileFetcherSegmentStorage {
         if(validDataBlocks < blocksForDecode()) {
             if(logMINOR) Logger.minor(this, "Decoding in memory for "+this);
             parent.fecCodec.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, CHKBlock.DATA_LENGTH);
+            start = SegmentStageTimes.finished(Stage.FETCH_DECODE, start);
         }
         boolean capturingBinaryBlob = parent.fetcher.wantBinaryBlob();
         boolean checkDecodedKeys = FORCE_CHECK_FEC_KEYS || capturingBinaryBlob;
@@ -501,18 +536,24 @@ public class SplitFileFetcherSegmentStorage {
             // Check that the decoded blocks correspond to the keys given.
             // This will catch odd bugs and ensure consistent behaviour.
             checkDecodedDataBlocks(dataBlocks, dataBlocksPresent, keys, capturingBinaryBlob);
+            start = SegmentStageTimes.finished(Stage.FETCH_CHECK_DECODED, start);
         }
         writeAllDataBlocks(dataBlocks);
+        SegmentStageTimes.finished(Stage.FETCH_WRITE, start);
         // Report success if we are not verifying decoded keys, but if we *are*, we need to wait
         // until FEC encoding completes.
         if(!checkDecodedKeys)
             parent.finishedSuccess(this);
         triggerAllCrossSegmentCallbacks();
+        start = System.nanoTime();
         parent.fecCodec.encode(dataBlocks, checkBlocks, checkBlocksPresent, CHKBlock.DATA_LENGTH);
+        start = SegmentStageTimes.finished(Stage.FETCH_ENCODE, start);
         // Check these *after* we complete, to reduce the critical path.
         // FIXME possibility of inconsistency with malicious splitfiles?
         if(checkDecodedKeys) {
-            if(!checkEncodedDataBlocks(checkBlocks, checkBlocksPresent, keys, capturingBinaryBlob)) {
+            boolean encodedOK = checkEncodedDataBlocks(checkBlocks, checkBlocksPresent, keys, capturingBinaryBlob);
+            SegmentStageTimes.finished(Stage.FETCH_CHECK_ENCODED, start);
+            if(!encodedOK) {
                 // The downloaded blocks were correct, the encoded blocks are not.
                 // That means the splitfile is broken as inserted, or there's some wierd in-memory data corruption.
                 synchronized(this) {
@@ -538,61 +579,73 @@ public class SplitFileFetcherSegmentStorage {
 
     private void checkDecodedDataBlocks(byte[][] dataBlocks, boolean[] dataBlocksPresent, 
             SplitFileSegmentKeys keys, boolean capturingBinaryBlob) {
+        ClientCHKBlock[] blocks = encodeBlocks(dataBlocks, dataBlocksPresent, keys, 0);
         for(int i=0;i<dataBlocks.length;i++) {
             if(dataBlocksPresent[i]) continue;
             ClientCHK decodeKey = keys.getKey(i, null, false);
             // Encode it to check whether the key is the same.
-            ClientCHKBlock block;
-            try {
-                block = ClientCHKBlock.encodeSplitfileBlock(dataBlocks[i], decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
-                ClientCHK actualKey = block.getClientKey();
-                if(!actualKey.equals(decodeKey)) {
-                    if(i == dataBlocks.length-1 && this.segNo == parent.segments.length-1 && 
-                            parent.lastBlockMightNotBePadded()) {
-                        // Ignore.
-                        return;
-                    } else {
-                        // Usual case.
-                        parent.fail(new FetchException(FetchExceptionMode.SPLITFILE_DECODE_ERROR, "Decoded block does not match expected key"));
-                        return;
-                    }
-                }
-                if(capturingBinaryBlob)
-                    parent.fetcher.maybeAddToBinaryBlob(block);
-            } catch (CHKEncodeException e) {
+            ClientCHKBlock block = blocks[i];
+            if(block == null) {
                 // Impossible!
                 parent.fail(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Decoded block could not be encoded"));
                 Logger.error(this, "Impossible: Decoded block could not be encoded");
                 return;
             }
+            ClientCHK actualKey = block.getClientKey();
+            if(!actualKey.equals(decodeKey)) {
+                if(i == dataBlocks.length-1 && this.segNo == parent.segments.length-1 && 
+                        parent.lastBlockMightNotBePadded()) {
+                    // Ignore.
+                    return;
+                } else {
+                    // Usual case.
+                    parent.fail(new FetchException(FetchExceptionMode.SPLITFILE_DECODE_ERROR, "Decoded block does not match expected key"));
+                    return;
+                }
+            }
+            if(capturingBinaryBlob)
+                parent.fetcher.maybeAddToBinaryBlob(block);
         }
     }
 
     private boolean checkEncodedDataBlocks(byte[][] checkBlocks, boolean[] checkBlocksPresent, 
             SplitFileSegmentKeys keys, boolean capturingBinaryBlob) {
+        ClientCHKBlock[] blocks = encodeBlocks(checkBlocks, checkBlocksPresent, keys, blocksForDecode());
         for(int i=0;i<checkBlocks.length;i++) {
             if(checkBlocksPresent[i]) continue;
             ClientCHK decodeKey = keys.getKey(i+blocksForDecode(), null, false);
             // Encode it to check whether the key is the same.
-            ClientCHKBlock block;
-            try {
-                block = ClientCHKBlock.encodeSplitfileBlock(checkBlocks[i], decodeKey.getCryptoKey(), decodeKey.getCryptoAlgorithm());
-                ClientCHK actualKey = block.getClientKey();
-                if(!actualKey.equals(decodeKey)) {
-                    Logger.error(this, "Splitfile check block "+i+" does not encode to expected key for "+this+" for "+parent);
-                    return false;
-                }
-                if(capturingBinaryBlob)
-                    parent.fetcher.maybeAddToBinaryBlob(block);
-            } catch (CHKEncodeException e) {
+            ClientCHKBlock block = blocks[i];
+            if(block == null) {
                 // Impossible!
                 parent.fail(new FetchException(FetchExceptionMode.INTERNAL_ERROR, "Decoded block could not be encoded"));
                 Logger.error(this, "Impossible: Decoded block could not be encoded");
                 return false;
             }
+            ClientCHK actualKey = block.getClientKey();
+            if(!actualKey.equals(decodeKey)) {
+                Logger.error(this, "Splitfile check block "+i+" does not encode to expected key for "+this+" for "+parent);
+                return false;
+            }
+            if(capturingBinaryBlob)
+                parent.fetcher.maybeAddToBinaryBlob(block);
         }
         return true;
     }
+    
+    /** Encode the blocks which we didn't have before decoding, using the crypto keys for their 
+     * block numbers.
+     * @param offset The block number of blocks[0].
+     * @return The encoded blocks, null where present[i] or if the block could not be encoded. */
+    private ClientCHKBlock[] encodeBlocks(byte[][] blocks, boolean[] present, 
+            SplitFileSegmentKeys keys, int offset) {
+        ClientCHK[] expectedKeys = new ClientCHK[blocks.length];
+        for(int i=0;i<blocks.length;i++) {
+            if(!present[i])
+                expectedKeys[i] = keys.getKey(i+offset, null, false);
+        }
+        return ClientCHKBlock.encodeSplitfileBlocks(blocks, expectedKeys);
+    }
 
     private void queueHeal(byte[][] dataBlocks, byte[][] checkBlocks, boolean[] dataBlocksPresent, boolean[] checkBlocksPresent) throws IOException {
         for(int i=0;i<dataBlocks.length;i++) {
@@ -621,19 +674,6 @@ public class SplitFileFetcherSegmentStorage {
         parent.fetcher.queueHeal(data, cryptoKey, cryptoAlgorithm);
     }
 
-    private synchronized byte[][] readAllBlocks() throws IOException {
-        RAFLock lock = parent.lockRAFOpen();
-        try {
-            // FIXME consider using a single big byte[].
-            byte[][] ret = new byte[blocksForDecode()][];
-            for(int i=0;i<ret.length;i++)
-                ret[i] = readBlock(i);
-            return ret;
-        } finally {
-            lock.unlock();
-        }
-    }
-
     private void triggerAllCrossSegmentCallbacks() {
         SplitFileFetcherCrossSegmentStorage[] crossSegmentsByBlockCopy;
         synchronized(this) {
@@ -924,7 +964,7 @@ public class SplitFileFetcherSegmentStorage {
     /** Write content to an OutputStream. We already have raf.lock(). 
      * @throws IOException */
     void writeToInner(OutputStream os) throws IOException {
-        // FIXME if we use readAllBlocks() we'll need to run on the memory limited queue???
+        // FIXME if we read all the blocks at once we'll need to run on the memory limited queue???
         for(int i=0;i<dataBlocks;i++) { // Don't include cross-check blocks.
             byte[] buf = readBlock(i);
             if(i == dataBlocks-1 && this.segNo == parent.segments.length-1) {
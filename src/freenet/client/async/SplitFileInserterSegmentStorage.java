@@ -12,6 +12,7 @@ import freenet.client.FECCodec;
 import freenet.client.InsertException;
 import freenet.client.InsertException.InsertExceptionMode;
 import freenet.client.async.PersistentJobRunner.CheckpointLock;
+import freenet.client.async.SegmentStageTimes.Stage;
 import freenet.crypt.ChecksumChecker;
 import freenet.crypt.ChecksumFailedException;
 import freenet.keys.CHKBlock;
@@ -21,6 +22,7 @@ import freenet.keys.ClientCHKBlock;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestItemKey;
+import freenet.support.HelperThreads;
 import freenet.support.Logger;
 import freenet.support.MemoryLimitedChunk;
 import freenet.support.MemoryLimitedJob;
@@ -449,16 +451,22 @@ public class SplitFileInserterSegmentStorage {
             }
             lock = parent.lockRAF();
             if(logMINOR) Logger.minor(this, "Encoding "+this+" for "+parent);
+            long start = System.nanoTime();
             byte[][] dataBlocks = readDataAndCrossCheckBlocks();
+            start = SegmentStageTimes.finished(Stage.INSERT_READ, start);
             generateKeys(dataBlocks, 0);
+            start = SegmentStageTimes.finished(Stage.INSERT_DATA_KEYS, start);
             byte[][] checkBlocks = new byte[checkBlockCount][];
             for(int i=0;i<checkBlocks.length;i++)
                 checkBlocks[i] = new byte[CHKBlock.DATA_LENGTH];
             if(dataBlocks == null || checkBlocks == null) return; // Failed with disk error.
             parent.codec.encode(dataBlocks, checkBlocks, new boolean[checkBlocks.length], CHKBlock.DATA_LENGTH);
+            start = SegmentStageTimes.finished(Stage.INSERT_ENCODE, start);
             for(int i=0;i<checkBlocks.length;i++)
                 writeCheckBlock(i, checkBlocks[i]);
+            start = SegmentStageTimes.finished(Stage.INSERT_WRITE, start);
             generateKeys(checkBlocks, dataBlockCount + crossCheckBlockCount);
+            SegmentStageTimes.finished(Stage.INSERT_CHECK_KEYS, start);
             synchronized(this) {
                 encoded = true;
             }
@@ -473,11 +481,20 @@ public class SplitFileInserterSegmentStorage {
         }
     }
 
-    /** Generate keys for each block and record them. 
+    /** Generate keys for each block and record them. The blocks are encoded across all cores.
      * @throws IOException */
-    private void generateKeys(byte[][] dataBlocks, int offset) throws IOException {
-        for(int i=0;i<dataBlocks.length;i++) {
-            setKey(i + offset, encodeBlock(dataBlocks[i]).getClientKey());
+    private void generateKeys(final byte[][] dataBlocks, int offset) throws IOException {
+        final ClientCHK[] keys = new ClientCHK[dataBlocks.length];
+        HelperThreads.run(dataBlocks.length, true, new HelperThreads.Task() {
+            
+            @Override
+            public void run(int i) {
+                keys[i] = encodeBlock(dataBlocks[i]).getClientKey();
+            }
+            
+        });
+        for(int i=0;i<keys.length;i++) {
+            setKey(i + offset, keys[i]);
         }
     }
 
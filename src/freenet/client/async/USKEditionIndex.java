@@ -0,0 +1,246 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.client.async;
+
+import static java.util.concurrent.TimeUnit.DAYS;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import freenet.keys.FreenetURI;
+import freenet.keys.USK;
+import freenet.support.Logger;
+import freenet.support.io.FileUtil;
+
+/**
+ * The latest known editions of the USKs we are subscribed to, kept on disk so that after a
+ * restart USKFetcher starts from the last slot we knew about, rather than probing every edition
+ * after the one in the URI again.
+ *
+ * The file is a log: every change appends a line with the USK's latest known good edition and
+ * latest slot, and loading takes the highest of each. It is rewritten from memory when the log
+ * is much longer than the number of USKs. Only subscribed USKs are recorded, so the file is not
+ * a list of every freesite visited, and USKs which have been neither subscribed nor updated for
+ * MAX_AGE are dropped when it is rewritten.
+ *
+ * The file is not encrypted, so it is only kept if the physical security level allows it, see
+ * setPersistent(). Otherwise the editions are only kept in memory.
+ */
+final class USKEditionIndex {
+
+	private static volatile boolean logMINOR;
+	static {
+		Logger.registerClass(USKEditionIndex.class);
+	}
+
+	static final long MAX_AGE = DAYS.toMillis(30);
+	/** Rewrite the file when it has this many more lines than entries. */
+	static final int MAX_WASTED_LINES = 1000;
+
+	static final class Entry {
+		final long knownGood;
+		final long latestSlot;
+		final long lastUsed;
+		/** True if loaded from disk and not updated since. */
+		final boolean loaded;
+
+		Entry(long knownGood, long latestSlot, long lastUsed, boolean loaded) {
+			this.knownGood = knownGood;
+			this.latestSlot = latestSlot;
+			this.lastUsed = lastUsed;
+			this.loaded = loaded;
+		}
+	}
+
+	private final File file;
+	private final File tempFile;
+	/** By clear USK. Protected by this. */
+	private final Map<USK, Entry> entries = new TreeMap<USK, Entry>(USK.FAST_COMPARATOR);
+	/** Protected by this. */
+	private Writer log;
+	/** Lines in the file. Protected by this. */
+	private int lines;
+	/** If false, don't read or write the file. Protected by this. */
+	private boolean persistent;
+
+	/** @param persistent If false, the file is deleted, and the editions are only kept in
+	 * memory. */
+	USKEditionIndex(File file, boolean persistent) {
+		this.file = file;
+		this.tempFile = new File(file.getPath() + ".tmp");
+		this.persistent = persistent;
+	}
+
+	/**
+	 * Read the index from disk, dropping old entries and rewriting the file if necessary.
+	 * @return The entries, by clear USK. Empty if not persistent.
+	 */
+	synchronized Map<USK, Entry> load() {
+		if(!persistent) {
+			delete();
+			return new TreeMap<USK, Entry>();
+		}
+		long now = System.currentTimeMillis();
+		try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"))) {
+			String line;
+			while((line = br.readLine()) != null) {
+				lines++;
+				String[] split = line.split(" ", 4);
+				if(split.length != 4) continue;
+				try {
+					long knownGood = Long.parseLong(split[0]);
+					long latestSlot = Long.parseLong(split[1]);
+					long lastUsed = Long.parseLong(split[2]);
+					USK clear = USK.create(new FreenetURI(split[3])).clearCopy();
+					Entry old = entries.get(clear);
+					if(old != null) {
+						knownGood = Math.max(knownGood, old.knownGood);
+						latestSlot = Math.max(latestSlot, old.latestSlot);
+						lastUsed = Math.max(lastUsed, old.lastUsed);
+					}
+					entries.put(clear, new Entry(knownGood, latestSlot, lastUsed, true));
+				} catch (NumberFormatException e) {
+					Logger.error(this, "Bad line in "+file+" : "+line);
+				} catch (MalformedURLException e) {
+					Logger.error(this, "Bad USK in "+file+" : "+line);
+				}
+			}
+		} catch (FileNotFoundException e) {
+			// Not written yet.
+		} catch (IOException e) {
+			Logger.error(this, "Unable to read "+file+" : "+e, e);
+		}
+		List<USK> expired = new ArrayList<USK>();
+		for(Map.Entry<USK, Entry> e : entries.entrySet()) {
+			if(now - e.getValue().lastUsed > MAX_AGE) expired.add(e.getKey());
+		}
+		for(USK usk : expired)
+			entries.remove(usk);
+		if(logMINOR) Logger.minor(this, "Loaded "+entries.size()+" USK editions from "+lines+" lines, "+expired.size()+" expired");
+		if(lines > entries.size() || !expired.isEmpty())
+			rewrite();
+		return new TreeMap<USK, Entry>(entries);
+	}
+
+	/**
+	 * Record the latest editions of a USK we are subscribed to.
+	 * @param clear The USK with the edition cleared.
+	 */
+	void update(USK clear, long knownGood, long latestSlot) {
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			Entry old = entries.get(clear);
+			if(old != null) {
+				knownGood = Math.max(knownGood, old.knownGood);
+				latestSlot = Math.max(latestSlot, old.latestSlot);
+				// Don't write the same values more than once a day just to update lastUsed.
+				if(old.knownGood == knownGood && old.latestSlot == latestSlot &&
+						now - old.lastUsed < DAYS.toMillis(1)) return;
+			}
+			entries.put(clear, new Entry(knownGood, latestSlot, now, false));
+			if(!persistent) return;
+			append(clear, knownGood, latestSlot, now);
+			if(lines > entries.size() + MAX_WASTED_LINES)
+				rewrite();
+		}
+	}
+
+	/** @return The entry for a clear USK, or null. */
+	synchronized Entry get(USK clear) {
+		return entries.get(clear);
+	}
+
+	synchronized int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Start or stop keeping the editions on disk, e.g. because the physical security level has
+	 * changed. If starting, write what we know now. If stopping, delete the file.
+	 */
+	synchronized void setPersistent(boolean persistent) {
+		if(this.persistent == persistent) return;
+		this.persistent = persistent;
+		if(persistent)
+			rewrite();
+		else
+			delete();
+	}
+
+	/** Close the file. Called on shutdown. */
+	synchronized void close() {
+		closeLog();
+	}
+
+	private void closeLog() {
+		if(log == null) return;
+		try {
+			log.close();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to close "+file+" : "+e, e);
+		}
+		log = null;
+	}
+
+	private void delete() {
+		closeLog();
+		lines = 0;
+		for(File f : new File[] { file, tempFile }) {
+			if(!f.exists()) continue;
+			try {
+				FileUtil.secureDelete(f);
+			} catch (IOException e) {
+				Logger.error(this, "Unable to delete "+f+" : "+e, e);
+			}
+		}
+	}
+
+	private void append(USK clear, long knownGood, long latestSlot, long lastUsed) {
+		try {
+			if(log == null)
+				log = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+			writeLine(log, clear, knownGood, latestSlot, lastUsed);
+			log.flush();
+			lines++;
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write to "+file+" : "+e, e);
+			closeLog();
+		}
+	}
+
+	private void rewrite() {
+		closeLog();
+		try (Writer w = new OutputStreamWriter(new FileOutputStream(tempFile), "UTF-8")) {
+			for(Map.Entry<USK, Entry> e : entries.entrySet()) {
+				Entry entry = e.getValue();
+				writeLine(w, e.getKey(), entry.knownGood, entry.latestSlot, entry.lastUsed);
+			}
+		} catch (IOException e) {
+			Logger.error(this, "Unable to write "+tempFile+" : "+e, e);
+			return;
+		}
+		if(!FileUtil.renameTo(tempFile, file)) {
+			Logger.error(this, "Unable to rename "+tempFile+" to "+file);
+			return;
+		}
+		lines = entries.size();
+	}
+
+	private static void writeLine(Writer w, USK clear, long knownGood, long latestSlot, long lastUsed) throws IOException {
+		w.write(knownGood+" "+latestSlot+" "+lastUsed+" "+clear.getURI().toString(false, false)+"\n");
+	}
+
+}
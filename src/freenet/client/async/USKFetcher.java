@@ -577,7 +577,9 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 			Logger.minor(this, "Just checking store on "+this);
 		// origUSK is a hint. We *do* want to check the edition given.
 		// Whereas latestSlot we've definitely fetched, we don't want to re-check.
-		watchingKeys = new USKWatchingKeys(origUSK, Math.max(0, uskManager.lookupLatestSlot(origUSK)+1));
+		long start = Math.max(0, uskManager.lookupLatestSlot(origUSK)+1);
+		watchingKeys = new USKWatchingKeys(origUSK, start);
+		uskManager.onFetcherStart(origUSK, start);
 		attemptsToStart = new ArrayList<USKAttempt>();
 	}
 	
@@ -955,6 +957,7 @@ public class USKFetcher implements ClientGetState, USKCallback, HasKeyListener,
 				}
 		}
 		USKAttempt a = new USKAttempt(l, forever);
+		uskManager.onEditionProbed();
 		if(forever)
 			pollingAttempts.put(i, a);
 		else {
@@ -3,6 +3,7 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.client.async;
 
+import static java.util.concurrent.TimeUnit.HOURS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.net.MalformedURLException;
@@ -11,6 +12,8 @@ import java.util.Arrays;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.client.FetchContext;
 import freenet.client.FetchException;
@@ -24,11 +27,15 @@ import freenet.node.NodeClientCore;
 import freenet.node.RequestClient;
 import freenet.node.RequestClientBuilder;
 import freenet.node.RequestStarter;
+import freenet.node.SecurityLevelListener;
+import freenet.node.SecurityLevels.PHYSICAL_THREAT_LEVEL;
+import freenet.node.SemiOrderedShutdownHook;
 import freenet.support.Executor;
 import freenet.support.LRUMap;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
 import freenet.support.io.NullBucket;
 
 /**
@@ -59,12 +66,26 @@ public class USKManager {
 		});
 	}
 	
-	/** Latest version successfully fetched by blanked-edition-number USK */
+	/** Latest version successfully fetched by blanked-edition-number USK. Concurrent so that
+	 * lookups don't need the lock; changes are still made while holding it. */
 	final Map<USK, Long> latestKnownGoodByClearUSK;
 	
 	/** Latest SSK slot known to be by the author by blanked-edition-number USK */
 	final Map<USK, Long> latestSlotByClearUSK;
 	
+	/** The latest editions of subscribed USKs, saved to disk so that we don't have to probe
+	 * from the start again after a restart. */
+	private final USKEditionIndex editionIndex;
+	
+	/** Number of USK editions we have started to probe for since startup. */
+	private final AtomicLong editionsProbed = new AtomicLong();
+	
+	/** Number of editions USKFetchers didn't need to probe because the index told them a 
+	 * later slot than the one they were asked for. */
+	private final AtomicLong editionsSkipped = new AtomicLong();
+	
+	private final long startTime;
+	
 	/** Subscribers by clear USK */
 	final Map<USK, USKCallback[]> subscribersByClearUSK;
 	
@@ -106,13 +127,46 @@ public class USKManager {
 		realFetchContext = client.getFetchContext();
 		// Performance: I'm pretty sure there is no spatial locality in the underlying data, so it's okay to use the FAST_COMPARATOR here.
 		// That is, even if two USKs are by the same author, they won't necessarily be updated or polled at the same time.
-		latestKnownGoodByClearUSK = new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
-		latestSlotByClearUSK = new TreeMap<USK, Long>(USK.FAST_COMPARATOR);
+		latestKnownGoodByClearUSK = new ConcurrentSkipListMap<USK, Long>(USK.FAST_COMPARATOR);
+		latestSlotByClearUSK = new ConcurrentSkipListMap<USK, Long>(USK.FAST_COMPARATOR);
 		subscribersByClearUSK = new TreeMap<USK, USKCallback[]>(USK.FAST_COMPARATOR);
 		backgroundFetchersByClearUSK = new TreeMap<USK, USKFetcher>(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersLRU = LRUMap.createSafeMap(USK.FAST_COMPARATOR);
 		temporaryBackgroundFetchersPrefetch = new WeakHashMap<USK, Long>();
 		executor = core.getExecutor();
+		startTime = System.currentTimeMillis();
+		// The file is not encrypted, so only keep it if the physical security level is low.
+		editionIndex = new USKEditionIndex(core.node.userDir().file("usk-editions.dat"), 
+				persistEditions(core.node.securityLevels.getPhysicalThreatLevel()));
+		core.node.securityLevels.addPhysicalThreatLevelListener(new SecurityLevelListener<PHYSICAL_THREAT_LEVEL>() {
+
+			@Override
+			public void onChange(PHYSICAL_THREAT_LEVEL oldLevel, PHYSICAL_THREAT_LEVEL newLevel) {
+				editionIndex.setPersistent(persistEditions(newLevel));
+			}
+
+		});
+		SemiOrderedShutdownHook.get().addLateJob(new NativeThread("Close USK edition index", NativeThread.NORM_PRIORITY, false) {
+
+			@Override
+			public void realRun() {
+				editionIndex.close();
+			}
+
+		});
+		for(Map.Entry<USK, USKEditionIndex.Entry> e : editionIndex.load().entrySet()) {
+			USKEditionIndex.Entry entry = e.getValue();
+			if(entry.knownGood >= 0)
+				latestKnownGoodByClearUSK.put(e.getKey(), entry.knownGood);
+			if(entry.latestSlot >= 0)
+				latestSlotByClearUSK.put(e.getKey(), entry.latestSlot);
+		}
+	}
+
+	/** @return True if we can keep the edition index on disk, unencrypted, at this physical
+	 * security level. */
+	private static boolean persistEditions(PHYSICAL_THREAT_LEVEL level) {
+		return level == PHYSICAL_THREAT_LEVEL.LOW || level == PHYSICAL_THREAT_LEVEL.NORMAL;
 	}
 
 	public void init(ClientContext context) {
@@ -123,7 +177,7 @@ public class USKManager {
 	 * Look up the latest known working version of the given USK.
 	 * @return The latest known edition number, or -1.
 	 */
-	public synchronized long lookupKnownGood(USK usk) {
+	public long lookupKnownGood(USK usk) {
 		Long l = latestKnownGoodByClearUSK.get(usk.clearCopy());
 		if(l != null)
 			return l.longValue();
@@ -135,13 +189,51 @@ public class USKManager {
 	 * fetched or not, of the given USK.
 	 * @return The latest known edition number, or -1.
 	 */
-	public synchronized long lookupLatestSlot(USK usk) {
+	public long lookupLatestSlot(USK usk) {
 		Long l = latestSlotByClearUSK.get(usk.clearCopy());
 		if(l != null)
 			return l.longValue();
 		else return -1;
 	}
 
+	/** Only subscribed USKs go into the edition index, so it is not a list of every USK fetched. */
+	private synchronized boolean shouldRecord(USK clear) {
+		return subscribersByClearUSK.containsKey(clear) || backgroundFetchersByClearUSK.containsKey(clear) ||
+			editionIndex.get(clear) != null;
+	}
+
+	/** Called by USKFetcher when it starts to probe for an edition. */
+	void onEditionProbed() {
+		editionsProbed.incrementAndGet();
+	}
+
+	/** Called by USKFetcher when it is created.
+	 * @param start The first edition it will probe for. */
+	void onFetcherStart(USK origUSK, long start) {
+		USKEditionIndex.Entry entry = editionIndex.get(origUSK.clearCopy());
+		if(entry == null || !entry.loaded) return;
+		long skipped = start - Math.max(0, origUSK.suggestedEdition);
+		if(skipped > 0)
+			editionsSkipped.addAndGet(skipped);
+	}
+
+	/** @return The number of USK editions probed for per hour since startup. */
+	public double getEditionsProbedPerHour() {
+		long uptime = Math.max(1, System.currentTimeMillis() - startTime);
+		return editionsProbed.get() * (double)HOURS.toMillis(1) / uptime;
+	}
+
+	/** @return The number of editions we didn't need to probe for because their USKs' latest
+	 * editions were saved before the last restart. */
+	public long getEditionsSkipped() {
+		return editionsSkipped.get();
+	}
+
+	/** @return The number of USKs in the edition index. */
+	public int getEditionIndexSize() {
+		return editionIndex.size();
+	}
+
 	public USKFetcherTag getFetcher(USK usk, FetchContext ctx, boolean keepLast, boolean persistent, boolean realTime, 
 			USKFetcherCallback callback, boolean ownFetchContext, ClientContext context, boolean checkStoreOnly) {
 		return USKFetcherTag.create(usk, callback, persistent, realTime, ctx, keepLast, 0, ownFetchContext, checkStoreOnly || ctx.localRequestOnly);
@@ -428,6 +520,8 @@ public class USKManager {
 		USK clear = origUSK.clearCopy();
 		final USKCallback[] callbacks;
 		boolean newSlot = false;
+		long slot;
+		boolean record;
 		synchronized(this) {
 			Long l = latestKnownGoodByClearUSK.get(clear);
 			if(logMINOR) Logger.minor(this, "Old known good: "+l);
@@ -446,9 +540,13 @@ public class USKManager {
 				if(logMINOR) Logger.minor(this, "Put "+number);
 				newSlot = true;
 			} 
+			slot = l.longValue();
 			
 			callbacks = subscribersByClearUSK.get(clear);
+			record = shouldRecord(clear);
 		}
+		if(record)
+			editionIndex.update(clear, number, slot);
 		if(callbacks != null) {
 			// Run off-thread, because of locking, and because client callbacks may take some time
 					final USK usk = origUSK.copy(number);
@@ -468,6 +566,8 @@ public class USKManager {
 		if(logMINOR) Logger.minor(this, "Updating (slot) "+origUSK.getURI()+" : "+number);
 		USK clear = origUSK.clearCopy();
 		final USKCallback[] callbacks;
+		long knownGood;
+		boolean record;
 		synchronized(this) {
 			Long l = latestSlotByClearUSK.get(clear);
 			if(logMINOR) Logger.minor(this, "Old slot: "+l);
@@ -483,7 +583,12 @@ public class USKManager {
 				temporaryBackgroundFetchersPrefetch.put(clear, System.currentTimeMillis());
 				schedulePrefetchChecker();
 			}
+			l = latestKnownGoodByClearUSK.get(clear);
+			knownGood = l == null ? -1 : l.longValue();
+			record = shouldRecord(clear);
 		}
+		if(record)
+			editionIndex.update(clear, knownGood, number);
 		if(callbacks != null) {
 			// Run off-thread, because of locking, and because client callbacks may take some time
 					final USK usk = origUSK.copy(number);
@@ -533,8 +638,8 @@ public class USKManager {
 		curEd = lookupLatestSlot(origUSK);
 		long goodEd;
 		goodEd = lookupKnownGood(origUSK);
+		USK clear = origUSK.clearCopy();
 		synchronized(this) {
-			USK clear = origUSK.clearCopy();
 			USKCallback[] callbacks = subscribersByClearUSK.get(clear);
 			if(callbacks == null) {
 				callbacks = new USKCallback[] { cb };
@@ -564,6 +669,7 @@ public class USKManager {
 				f.addSubscriber(cb, origUSK.suggestedEdition);
 			}
 		}
+		editionIndex.update(clear, goodEd, curEd);
 		if(goodEd > ed)
 			cb.onFoundEdition(goodEd, origUSK.copy(curEd), context, false, (short)-1, null, true, curEd > ed);
 		else if(curEd > ed)
@@ -75,7 +75,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		try {
 			isr = new InputStreamReader(input, charset);
 			osw = new OutputStreamWriter(output, charset);
-			r = new BufferedReader(isr, 4096);
+			// HTMLParseContext reads in blocks, so doesn't need a BufferedReader.
+			r = isr;
 			w = new BufferedWriter(osw, 4096);
 		} catch(UnsupportedEncodingException e) {
 			throw UnknownCharsetException.create(e, charset);
@@ -192,6 +193,10 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			StringBuilder b = new StringBuilder(100);
 			StringBuilder balt = new StringBuilder(4000);
 			List<String> splitTag = new ArrayList<String>();
+			// Read a block at a time rather than calling read() on the Reader for every character.
+			char[] buf = new char[READ_BUFFER_SIZE];
+			int bufPos = 0;
+			int bufLen = 0;
 			String currentTag = null;
 			char pprevC = 0;
 			char prevC = 0;
@@ -213,7 +218,13 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				int x;
 				
 				try {
-					x = r.read();
+					if(bufPos == bufLen) {
+						bufPos = 0;
+						bufLen = r.read(buf);
+						while(bufLen == 0)
+							bufLen = r.read(buf);
+					}
+					x = (bufLen == -1) ? -1 : buf[bufPos++];
 				}
 				/** 
 				 * libgcj up to at least 4.2.2 has a bug: InputStreamReader.refill() throws this exception when BufferedInputReader.refill() returns false for EOF. See:
@@ -485,6 +496,7 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		static final int INTAGCOMMENT = 4;
 		static final int INTAGCOMMENTCLOSING = 5;
 		static final int INTAGWHITESPACE = 6;
+		static final int READ_BUFFER_SIZE = 8192;
 		boolean killTag = false; // just this one
 		boolean writeStyleScriptWithTag = false; // just this one
 		boolean expectingBadComment = false;
@@ -496,6 +508,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		int styleScriptRecurseCount = 0;
 		String currentStyleScriptChunk = "";
 		StringBuilder writeAfterTag = new StringBuilder(1024);
+		/** Reused by saveText() and saveComment() when they need to change what they write. */
+		final StringBuilder textBuffer = new StringBuilder(1024);
 
 		public void closeXHTMLTag(String element, Writer w) throws IOException {
 			// Assume that missing closes are way more common than extra closes.
@@ -526,26 +540,41 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			return;
 		}
 		
-		StringBuilder out = new StringBuilder(s.length()*2);
-		
-		for(int i=0;i<s.length();i++) {
+		int len = s.length();
+		boolean escapeLT = !(pc.inStyle || pc.inScript);
+		int i;
+		for(i=0;i<len;i++) {
 			char c = s.charAt(i);
-			if(c == '<' && !(pc.inStyle || pc.inScript)) {
-				//Scripts and styles parsed elsewhere
-				out.append("&lt;");
-			}
-			else if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) {
-				// Not a real character
-				// STRONGLY suggests somebody is using a bogus charset.
-				// This could be in order to break the filter.
-				if(logDEBUG) Logger.debug(this, "Removing '"+c+"' from the output stream");
-				continue;
-			}
-			else {
-				out.append(c);
+			if((c == '<' && escapeLT) || ((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')))
+				break;
+		}
+		String sout;
+		if(i == len) {
+			// Usually there is nothing to change.
+			sout = s.toString();
+		} else {
+			StringBuilder out = pc.textBuffer;
+			out.setLength(0);
+			out.append(s, 0, i);
+			for(;i<len;i++) {
+				char c = s.charAt(i);
+				if(c == '<' && escapeLT) {
+					//Scripts and styles parsed elsewhere
+					out.append("&lt;");
+				}
+				else if((c < 32) && (c != '\t') && (c != '\n') && (c != '\r')) {
+					// Not a real character
+					// STRONGLY suggests somebody is using a bogus charset.
+					// This could be in order to break the filter.
+					if(logDEBUG) Logger.debug(this, "Removing '"+c+"' from the output stream");
+					continue;
+				}
+				else {
+					out.append(c);
+				}
 			}
+			sout = out.toString();
 		}
-		String sout = out.toString();
 		
 		if (pc.inStyle || pc.inScript) {
 			pc.currentStyleScriptChunk += sout;
@@ -672,7 +701,8 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			pc.killTag = false;
 			return;
 		}
-		StringBuilder sb = new StringBuilder();
+		StringBuilder sb = pc.textBuffer;
+		sb.setLength(0);
 		for(int i=0;i<s.length();i++) {
 			char c = s.charAt(i);
 			if(c == '<') {
@@ -1977,6 +2007,10 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		protected final HashSet<String> parsedAttrs;
 		private final HashSet<String> uriAttrs;
 		private final HashSet<String> inlineURIAttrs;
+		/** True if sanitizeHash() does nothing but look at the attributes. Tags whose attributes
+		 * all pass through unchanged can then skip building the maps. False for subclasses which
+		 * do anything more, or which might in future. */
+		private final boolean simpleAttributes;
 
 		TagVerifier(String tag, String[] allowedAttrs) {
 			this(tag, allowedAttrs, null, null);
@@ -2000,9 +2034,21 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 				for (String inlineURIAttr: inlineURIAttrs)
 					this.inlineURIAttrs.add(inlineURIAttr);
 			}
+			Class<?> c = getClass();
+			simpleAttributes = c == TagVerifier.class || c == BaseCoreTagVerifier.class || c == CoreTagVerifier.class;
 		}
 
 		ParsedTag sanitize(ParsedTag t, HTMLParseContext pc) throws DataFilterException {
+			if (simpleAttributes) {
+				// Most tags have no attributes, or only ones we allow anyway.
+				String[] outAttrs = passThroughAttributes(t);
+				if (outAttrs != null) {
+					if (outAttrs.length == 0 && expungeTagIfNoAttributes()) return null;
+					if (t.startSlash)
+						return new ParsedTag(t, (String[])null);
+					return new ParsedTag(t, outAttrs);
+				}
+			}
 			/** Map contains the attributes, in order. The key is always the name
 			 * of the attribute, but the value can be a raw Object if it has no value.
 			 * "src" is different to "src=". Arguably we should probably use null in 
@@ -2147,6 +2193,48 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 		protected boolean expungeTagIfNoAttributes() {                  
 			return false;                                           
 		}  
+
+		/**
+		 * If every attribute is a name="value" pair which sanitizeHash() would keep as it is,
+		 * in the same place, return the sanitized attributes without building any maps.
+		 * @return The attributes as sanitize() would write them, or null if they need the
+		 * full treatment.
+		 */
+		private String[] passThroughAttributes(ParsedTag t) {
+			String[] in = t.unparsedAttrs;
+			if (in == null || in.length == 0) return emptyStringArray;
+			String[] names = new String[in.length];
+			String[] out = new String[in.length];
+			for (int i = 0; i < in.length; i++) {
+				String s = in[i];
+				int idx = s.indexOf('=');
+				if (idx <= 0 || idx == s.length() - 1) return null;
+				String x = s.substring(0, idx).toLowerCase();
+				if (!passesThrough(x)) return null;
+				// A repeated attribute replaces the earlier one and moves to the end.
+				for (int j = 0; j < i; j++)
+					if (names[j].equals(x)) return null;
+				String y = stripQuotes(s.substring(idx + 1));
+				// Blank values are removed in XHTML.
+				if (y.length() == 0) return null;
+				names[i] = x;
+				out[i] = x + "=\"" + y + '"';
+			}
+			return out;
+		}
+
+		/** @return True if sanitizeHash() keeps the attribute's value as it is. */
+		boolean passesThrough(String attr) {
+			return allowedAttrs.contains(attr) && !isParsedOrURI(attr);
+		}
+
+		final boolean isParsedOrURI(String attr) {
+			return parsedAttrs.contains(attr) || isURI(attr);
+		}
+
+		final boolean isURI(String attr) {
+			return uriAttrs.contains(attr) || inlineURIAttrs.contains(attr);
+		}
 	}
 
 	static String stripQuotes(String s) {
@@ -2372,6 +2460,14 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			}
 			return hn;
 		}
+
+		@Override
+		boolean passesThrough(String attr) {
+			// Checked by sanitizeHash() above, but not changed.
+			if (attr.equals("id") || attr.equals("class"))
+				return !isURI(attr);
+			return super.passesThrough(attr);
+		}
 	}
 
 	static class CoreTagVerifier extends BaseCoreTagVerifier {
@@ -2441,13 +2537,14 @@ public class HTMLFilter implements ContentDataFilter, CharsetExtractor {
 			HTMLParseContext pc) throws DataFilterException {
 			Map<String, Object> hn = super.sanitizeHash(h, p, pc);
 			// events (default and added)
-			for (String name: eventAttrs) {
-				String arg = getHashString(h, name);
-				if (arg != null) {
-					arg = sanitizeScripting(arg);
-					if (arg != null)
-						hn.put(name, arg);
-				}
+			// There are a lot of these, and few attributes on any one tag.
+			for (Map.Entry<String, Object> entry : h.entrySet()) {
+				String name = entry.getKey();
+				if (!eventAttrs.contains(name) || !(entry.getValue() instanceof String))
+					continue;
+				String arg = sanitizeScripting((String) entry.getValue());
+				if (arg != null)
+					hn.put(name, arg);
 			}
 			
 			return hn;
@@ -3,6 +3,7 @@ package freenet.clients.fcp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 import freenet.support.api.BucketFactory;
 
@@ -19,5 +20,19 @@ public abstract class BaseDataCarryingMessage extends FCPMessage {
 	}
 
 	protected abstract void writeData(OutputStream os) throws IOException;
+	
+	/**
+	 * Send the message, writing the data directly to the socket's channel if possible.
+	 * @param os The buffered stream for the socket.
+	 * @param channel The socket's channel, or null.
+	 */
+	public void send(OutputStream os, WritableByteChannel channel) throws IOException {
+		super.send(os);
+		writeData(os, channel);
+	}
+	
+	protected void writeData(OutputStream os, WritableByteChannel channel) throws IOException {
+		writeData(os);
+	}
 
 }
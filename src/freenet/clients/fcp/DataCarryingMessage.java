@@ -6,6 +6,7 @@ package freenet.clients.fcp;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.WritableByteChannel;
 
 import freenet.client.async.PersistenceDisabledException;
 import freenet.support.Logger;
@@ -64,8 +65,13 @@ public abstract class DataCarryingMessage extends BaseDataCarryingMessage {
 	
 	@Override
 	protected void writeData(OutputStream os) throws IOException {
+		writeData(os, null);
+	}
+	
+	@Override
+	protected void writeData(OutputStream os, WritableByteChannel channel) throws IOException {
 		long len = dataLength();
-		if(len > 0) BucketTools.copyTo(bucket, os, len);
+		if(len > 0) BucketTools.copyTo(bucket, os, channel, len);
 		if(freeOnSent) bucket.free(); // Always transient so no removeFrom() needed.
 	}
 	
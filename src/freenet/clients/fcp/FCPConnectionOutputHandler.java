@@ -113,7 +113,10 @@ public class FCPConnectionOutputHandler implements Runnable {
 				}
 			} else {
 				if(logMINOR) Logger.minor(this, "Sending "+msg);
-				msg.send(os);
+				if(msg instanceof BaseDataCarryingMessage)
+					((BaseDataCarryingMessage) msg).send(os, handler.sock.getChannel());
+				else
+					msg.send(os);
 				flushed = false;
 			}
 		}
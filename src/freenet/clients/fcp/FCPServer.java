@@ -33,6 +33,7 @@ import freenet.config.InvalidConfigValueException;
 import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.NetworkInterface;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
@@ -122,6 +123,8 @@ public class FCPServer implements Runnable, DownloadCache {
 		try {
 			if(ssl) {
 				tempNetworkInterface = SSLNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
+			} else if(ChannelNetworkInterface.FOR_BLOCKING_SOCKETS) {
+				tempNetworkInterface = ChannelNetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			} else {
 				tempNetworkInterface = NetworkInterface.create(port, bindTo, allowedHosts, node.executor, true);
 			}
@@ -196,6 +196,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	private boolean checkCache(ClientContext context) {
 		// Fproxy uses lookupInstant() with mustCopy = false. I.e. it can reuse stuff unsafely. If the user frees it it's their fault.
 		if(bogusUSK(context)) return false;
+		if(checkFilteredCache(context)) return true;
 		CacheFetchResult result = context.downloadCache == null ? null : context.downloadCache.lookupInstant(uri, !fctx.filterData, false, null);
 		if(result == null) return false;
 		Bucket data = null;
@@ -265,6 +266,7 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 				is = null;
 				os.close();
 				os = null;
+				output = cacheFilteredData(context, output, fullMimeType);
 				// Since we are not re-using the data bucket, we can happily stay in the FProxyFetchTracker.
 				this.onSuccess(new FetchResult(new ClientMetadata(fullMimeType), output), null);
 				output = null;
@@ -286,6 +288,30 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 		}
 	}
 
+	/** Look up the key in fproxy's cache of data it has already fetched and filtered. Unlike
+	 * filtered data in the download cache, this was filtered by the filter we are running now,
+	 * with the same settings and link exceptions (the cache is cleared when those change), so
+	 * RE_FILTER would produce exactly the same output, and we only skip it for RE_FETCH.
+	 * @return True if it was found and we don't need to start the request. */
+	private boolean checkFilteredCache(ClientContext context) {
+		if(refilterPolicy == REFILTER_POLICY.RE_FETCH) return false;
+		FilteredContentCache.Key key = FilteredContentCache.makeKey(uri, fctx, context.linkFilterExceptionProvider);
+		if(key == null) return false;
+		FetchResult result = tracker.filteredCache.get(key, maxSize);
+		if(result == null) return false;
+		// The cache won't free the data until we do, so we can stay in the tracker.
+		onSuccess(result, null);
+		return true;
+	}
+
+	/** Add data we have just fetched and filtered to fproxy's cache, if it is reusable.
+	 * @return The bucket to use in its place. */
+	private Bucket cacheFilteredData(ClientContext context, Bucket data, String mimeType) {
+		FilteredContentCache.Key key = FilteredContentCache.makeKey(uri, fctx, context.linkFilterExceptionProvider);
+		if(key == null) return data;
+		return tracker.filteredCache.put(key, mimeType, data);
+	}
+
 	/** If the key is a USK and a) we are requested to do an exhaustive search, or b) 
 	 * there is a later version, then we can't use the download queue as a cache.
 	 * @return True if we can't use the download queue, false if we can. */
@@ -391,11 +417,15 @@ public class FProxyFetchInProgress implements ClientEventListener, ClientGetCall
 	@Override
 	public void onSuccess(FetchResult result, ClientGetter state) {
 		Bucket droppedData = null;
+		Bucket data = result.asBucket();
+		// Fetched and filtered by the client layer.
+		if(state != null)
+			data = cacheFilteredData(tracker.context, data, result.getMimeType());
 		synchronized(this) {
 			if(cancelled)
-				droppedData = result.asBucket();
+				droppedData = data;
 			else
-				this.data = result.asBucket();
+				this.data = data;
 			this.mimeType = result.getMimeType();
 			this.finished = true;
 		}
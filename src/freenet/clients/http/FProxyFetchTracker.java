@@ -33,6 +33,7 @@ public class FProxyFetchTracker implements Runnable {
 	private long fetchIdentifiers;
 	private final FetchContext fctx;
 	private final RequestClient rc;
+	final FilteredContentCache filteredCache;
 	private boolean queuedJob;
 	private boolean requeue;
 
@@ -41,6 +42,7 @@ public class FProxyFetchTracker implements Runnable {
 		this.context = context;
 		this.fctx = fctx;
 		this.rc = rc;
+		filteredCache = new FilteredContentCache();
 	}
 	
 	public FProxyFetchWaiter makeFetcher(FreenetURI key, long maxSize, FetchContext fctx, REFILTER_POLICY refilterPolicy) throws FetchException {
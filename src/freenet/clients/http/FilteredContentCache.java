@@ -0,0 +1,272 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchContext;
+import freenet.client.FetchResult;
+import freenet.client.filter.LinkFilterExceptionProvider;
+import freenet.keys.FreenetURI;
+import freenet.support.LRUMap;
+import freenet.support.LogThresholdCallback;
+import freenet.support.Logger;
+import freenet.support.Logger.LogLevel;
+import freenet.support.api.Bucket;
+import freenet.support.io.NoFreeBucket;
+
+/**
+ * Files which fproxy has fetched and filtered recently, so that a popular freesite can be shown
+ * again without going back to the client layer or running the content filter over it again.
+ * Keyed by the URI and the settings which affect the filter's output. Bounded in total size and
+ * number of entries, least recently used first out.
+ *
+ * The data is kept in the buckets the fetches returned. These are temp buckets, so they are in
+ * RAM while small and young and are migrated to (encrypted if necessary) disk otherwise. An
+ * entry which is evicted while fproxy is still sending it is freed when the last user is done
+ * with it.
+ *
+ * LOCKING: Synchronized on this. Does not call out while holding the lock.
+ */
+public class FilteredContentCache {
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerLogThresholdCallback(new LogThresholdCallback() {
+
+			@Override
+			public void shouldUpdate() {
+				logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+			}
+		});
+	}
+
+	static final long DEFAULT_MAX_SIZE = 32*1024*1024;
+	static final int DEFAULT_MAX_ENTRIES = 1024;
+
+	private final long maxSize;
+	private final int maxEntries;
+	/** Bigger files aren't cached. They are usually downloads rather than parts of a page. */
+	private final long maxEntrySize;
+	private final LRUMap<Key, Entry> entries = new LRUMap<Key, Entry>();
+	private long totalSize;
+	private long hits;
+	private long misses;
+
+	public FilteredContentCache() {
+		this(DEFAULT_MAX_SIZE, DEFAULT_MAX_ENTRIES);
+	}
+
+	FilteredContentCache(long maxSize, int maxEntries) {
+		this.maxSize = maxSize;
+		this.maxEntries = maxEntries;
+		this.maxEntrySize = maxSize / 8;
+	}
+
+	/** Everything which determines what the filter produces for a key. */
+	static final class Key {
+
+		final FreenetURI uri;
+		final String overrideMIME;
+		final String charset;
+		/** Compared by identity. What it excepts can change, so the cache is cleared when it 
+		 * does. */
+		final LinkFilterExceptionProvider linkFilterExceptionProvider;
+		private final int hashCode;
+
+		Key(FreenetURI uri, String overrideMIME, String charset, LinkFilterExceptionProvider linkFilterExceptionProvider) {
+			this.uri = uri;
+			this.overrideMIME = overrideMIME;
+			this.charset = charset;
+			this.linkFilterExceptionProvider = linkFilterExceptionProvider;
+			int h = uri.hashCode();
+			if(overrideMIME != null) h = h * 31 + overrideMIME.hashCode();
+			if(charset != null) h = h * 31 + charset.hashCode();
+			hashCode = h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o == this) return true;
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(hashCode != k.hashCode) return false;
+			if(linkFilterExceptionProvider != k.linkFilterExceptionProvider) return false;
+			if(overrideMIME == null ? k.overrideMIME != null : !overrideMIME.equals(k.overrideMIME)) return false;
+			if(charset == null ? k.charset != null : !charset.equals(k.charset)) return false;
+			return uri.equals(k.uri);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public String toString() {
+			return uri+" type="+overrideMIME+" charset="+charset;
+		}
+
+	}
+
+	/**
+	 * @return The key to cache a fetch under, or null if its output can't be reused.
+	 */
+	static Key makeKey(FreenetURI uri, FetchContext fctx, LinkFilterExceptionProvider linkFilterExceptionProvider) {
+		// Unfiltered data is already cached by the download queue.
+		if(!fctx.filterData) return null;
+		// Web-pushing puts IDs which belong to a single page view into the page.
+		if(fctx.tagReplacer != null) return null;
+		// Which edition we get depends on what we know about the USK at the time.
+		if(uri.isUSK() && uri.getSuggestedEdition() < 0) return null;
+		return new Key(uri, fctx.overrideMIME, fctx.charset, linkFilterExceptionProvider);
+	}
+
+	private static final class Entry {
+
+		final String mimeType;
+		final Bucket data;
+		final long size;
+		/** Number of CachedBuckets for this entry which haven't been freed yet. */
+		private int users;
+		private boolean evicted;
+
+		Entry(String mimeType, Bucket data) {
+			this.mimeType = mimeType;
+			this.data = data;
+			this.size = data.size();
+		}
+
+	}
+
+	/** The data in an entry. Freeing it tells the cache we are done with it. */
+	private final class CachedBucket extends NoFreeBucket {
+
+		private static final long serialVersionUID = 1L;
+		private final Entry entry;
+		private boolean freed;
+
+		CachedBucket(Entry entry) {
+			super(entry.data);
+			this.entry = entry;
+		}
+
+		@Override
+		public void free() {
+			boolean free;
+			synchronized(FilteredContentCache.this) {
+				if(freed) return;
+				freed = true;
+				entry.users--;
+				free = entry.evicted && entry.users == 0;
+			}
+			if(free) entry.data.free();
+		}
+
+	}
+
+	/**
+	 * Look up a filtered file.
+	 * @param maxSize The largest file the caller would accept.
+	 * @return The MIME type and the data, which must be freed when the caller is done with it,
+	 * or null if it isn't cached.
+	 */
+	public FetchResult get(Key key, long maxSize) {
+		Entry entry;
+		synchronized(this) {
+			entry = entries.get(key);
+			if(entry == null || entry.size > maxSize) {
+				misses++;
+				return null;
+			}
+			hits++;
+			entries.push(key, entry);
+			entry.users++;
+		}
+		if(logMINOR) Logger.minor(this, "Found "+key+" in the filtered content cache");
+		return new FetchResult(new ClientMetadata(entry.mimeType), new CachedBucket(entry));
+	}
+
+	/**
+	 * Cache a file which has just been fetched and filtered. The cache takes over the data.
+	 * @return The bucket to use in its place, which must be freed as usual. This is the data
+	 * itself if it is not cached.
+	 */
+	public Bucket put(Key key, String mimeType, Bucket data) {
+		if(data.size() > maxEntrySize) return data;
+		data.setReadOnly();
+		Entry entry = new Entry(mimeType, data);
+		entry.users++;
+		List<Entry> toFree = null;
+		synchronized(this) {
+			Entry old = entries.get(key);
+			if(old != null) {
+				entries.removeKey(key);
+				if(evict(old)) {
+					toFree = new ArrayList<Entry>();
+					toFree.add(old);
+				}
+			}
+			entries.push(key, entry);
+			totalSize += entry.size;
+			while(totalSize > maxSize || entries.size() > maxEntries) {
+				Entry e = entries.popValue();
+				if(evict(e)) {
+					if(toFree == null) toFree = new ArrayList<Entry>();
+					toFree.add(e);
+				}
+			}
+		}
+		if(toFree != null) {
+			for(Entry e : toFree)
+				e.data.free();
+		}
+		if(logMINOR) Logger.minor(this, "Cached "+key+" : "+entry.size+" bytes");
+		return new CachedBucket(entry);
+	}
+
+	/** Drop everything, e.g. because the links the filter lets through have changed. Data which
+	 * is still being sent is freed when the last user is done with it. */
+	public void clear() {
+		List<Entry> toFree = new ArrayList<Entry>();
+		synchronized(this) {
+			while(!entries.isEmpty()) {
+				Entry e = entries.popValue();
+				if(evict(e))
+					toFree.add(e);
+			}
+		}
+		for(Entry e : toFree)
+			e.data.free();
+		if(logMINOR) Logger.minor(this, "Cleared the filtered content cache");
+	}
+
+	/** Caller must hold the lock and have removed the entry from the map.
+	 * @return True if the entry is not in use and so the caller should free it. */
+	private boolean evict(Entry entry) {
+		entry.evicted = true;
+		totalSize -= entry.size;
+		return entry.users == 0;
+	}
+
+	public synchronized long hits() {
+		return hits;
+	}
+
+	public synchronized long misses() {
+		return misses;
+	}
+
+	public synchronized int entries() {
+		return entries.size();
+	}
+
+	public synchronized long size() {
+		return totalSize;
+	}
+
+}
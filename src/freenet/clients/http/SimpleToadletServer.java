@@ -5,6 +5,7 @@ package freenet.clients.http;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetAddress;
 import java.net.Socket;
 import java.net.SocketException;
@@ -30,6 +31,7 @@ import freenet.config.SubConfig;
 import freenet.crypt.SSL;
 import freenet.io.AllowedHosts;
 import freenet.io.NetworkInterface;
+import freenet.io.ChannelNetworkInterface;
 import freenet.io.SSLNetworkInterface;
 import freenet.keys.FreenetURI;
 import freenet.l10n.NodeL10n;
@@ -122,6 +124,15 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 	
 	private int fproxyConnections;
 	
+	/** Config setting for the non-blocking connection layer, takes effect on restart. */
+	private volatile boolean nonBlocking;
+	/** Whether we are actually using the non-blocking connection layer. */
+	private final boolean useNonBlocking;
+	/** Maximum number of open connections, including idle ones, in non-blocking mode. */
+	private int maxNonBlockingConnections;
+	/** Protected by this. Only created if useNonBlocking. */
+	private ToadletConnectionSelector connectionSelector;
+	
 	private boolean finishedStartup;
 	
 	/** The PushDataManager handles all the pushing tasks*/
@@ -319,6 +330,11 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 				} else {
 					myThread.interrupt();
 					myThread = null;
+					if(connectionSelector != null) {
+						// Closes the idle connections. Recreated when FProxy is re-enabled.
+						connectionSelector.close();
+						connectionSelector = null;
+					}
 					SimpleToadletServer.this.notifyAll();
 					return;
 				}
@@ -700,6 +716,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 					public void set(Integer val) {
 						synchronized(SimpleToadletServer.this) {
 							maxFproxyConnections = val;
+							if(connectionSelector != null)
+								connectionSelector.setMaxWorkers(val);
 							SimpleToadletServer.this.notifyAll();
 						}
 					}
@@ -707,6 +725,45 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		}, false);
 		maxFproxyConnections = fproxyConfig.getInt("maxFproxyConnections");
 		
+		// Off by default until it has had more testing.
+		fproxyConfig.register("nonBlocking", false, configItemOrder++, true, false, "SimpleToadletServer.nonBlocking", "SimpleToadletServer.nonBlockingLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						return nonBlocking;
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						if(nonBlocking == val) return;
+						nonBlocking = val;
+						throw new NodeNeedRestartException(l10n("nonBlockingNeedsRestart"));
+					}
+		});
+		nonBlocking = fproxyConfig.getBoolean("nonBlocking");
+		
+		fproxyConfig.register("maxNonBlockingConnections", 1000, configItemOrder++, true, false, "SimpleToadletServer.maxNonBlockingConnections", "SimpleToadletServer.maxNonBlockingConnectionsLong",
+				new IntCallback() {
+
+					@Override
+					public Integer get() {
+						synchronized(SimpleToadletServer.this) {
+							return maxNonBlockingConnections;
+						}
+					}
+
+					@Override
+					public void set(Integer val) {
+						synchronized(SimpleToadletServer.this) {
+							maxNonBlockingConnections = val;
+							SimpleToadletServer.this.notifyAll();
+						}
+					}
+			
+		}, false);
+		maxNonBlockingConnections = fproxyConfig.getInt("maxNonBlockingConnections");
+		
 		fproxyConfig.register("metaRefreshSamePageInterval", 1, configItemOrder++, true, false, "SimpleToadletServer.metaRefreshSamePageInterval", "SimpleToadletServer.metaRefreshSamePageIntervalLong",
 				new IntCallback() {
 
@@ -776,6 +833,9 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			ssl = fproxyConfig.getBoolean("ssl");
 		}
 		
+		// SSLNetworkInterface's sockets don't have channels.
+		useNonBlocking = nonBlocking && !ssl;
+		
 		this.allowedHosts=fproxyConfig.getString("allowedHosts");
 
 		if(!enabled) {
@@ -814,6 +874,8 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		if (this.networkInterface!=null) return;
 		if(ssl) {
 			this.networkInterface = SSLNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
+		} else if(useNonBlocking || ChannelNetworkInterface.FOR_BLOCKING_SOCKETS) {
+			this.networkInterface = ChannelNetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		} else {
 			this.networkInterface = NetworkInterface.create(port, this.bindTo, allowedHosts, executor, true);
 		}
@@ -892,6 +954,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			else toadlets.addLast(te);
 			t.container = this;
 		}
+		linkExceptionsChanged();
 		if (menu != null && name != null) {
 			pageMaker.addNavigationLink(menu, urlPrefix, name, title, fullOnly, cb, l10n);
 		}
@@ -917,9 +980,20 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 			if(e.menu != null && e.name != null) {
 				pageMaker.removeNavigationLink(e.menu, e.name);
 			}
+			linkExceptionsChanged();
 		}
 	}
 	
+	/** Registering or unregistering a toadlet can change which links isLinkExcepted() lets 
+	 * through, so fproxy can't reuse content it filtered before. */
+	private void linkExceptionsChanged() {
+		NodeClientCore core = this.core;
+		if(core == null) return;
+		FProxyToadlet fproxy = core.getFProxy();
+		if(fproxy != null)
+			fproxy.fetchTracker.filteredCache.clear();
+	}
+	
 	public StartupToadlet getStartupToadlet() {
 		return startupToadlet;
 	}
@@ -978,7 +1052,7 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
 		boolean finishedStartup = false;
 		while(true) {
 			synchronized(this) {
-				while(fproxyConnections > maxFproxyConnections) {
+				while(fproxyConnections > (connectionSelector != null ? maxNonBlockingConnections : maxFproxyConnections)) {
 					try {
 						wait();
 					} catch (InterruptedException e) {
@@ -996,11 +1070,62 @@ public final class SimpleToadletServer implements ToadletContainer, Runnable, Li
                 continue; // timeout
             if(logMINOR)
                 Logger.minor(this, "Accepted connection");
+            if(finishedStartup && useNonBlocking && conn.getChannel() != null) {
+            	ToadletConnectionSelector selector = getConnectionSelector();
+            	if(selector != null) {
+            		synchronized(this) {
+            			fproxyConnections++;
+            		}
+            		selector.add(conn);
+            		continue;
+            	}
+            }
             SocketHandler sh = new SocketHandler(conn, finishedStartup);
             sh.start();
 		}
 	}
 	
+	/** Create the non-blocking connection layer if necessary. Not created until after startup,
+	 * because it uses the executor. */
+	private synchronized ToadletConnectionSelector getConnectionSelector() {
+		if(connectionSelector != null) return connectionSelector;
+		// FProxy has been disabled since we accepted the connection.
+		if(myThread == null) return null;
+		try {
+			connectionSelector = new ToadletConnectionSelector(new NonBlockingHandler(), executor, maxFproxyConnections);
+		} catch (IOException e) {
+			Logger.error(this, "Unable to create selector, falling back to a thread per connection: "+e, e);
+			return null;
+		}
+		connectionSelector.start();
+		// Existing connections now count against maxNonBlockingConnections.
+		notifyAll();
+		return connectionSelector;
+	}
+	
+	private class NonBlockingHandler implements ToadletConnectionSelector.Handler {
+
+		@Override
+		public boolean handle(Socket sock, InputStream is) {
+			if(logMINOR) Logger.minor(this, "Handling requests on "+sock);
+			try {
+				return ToadletContextImpl.handle(sock, is, SimpleToadletServer.this, pageMaker, getUserAlertManager(), bookmarkManager, true);
+			} catch (Throwable t) {
+				Logger.error(this, "Caught in SimpleToadletServer: "+t, t);
+				return false;
+			}
+		}
+
+		@Override
+		public void closed(Socket sock) {
+			synchronized(SimpleToadletServer.this) {
+				fproxyConnections--;
+				SimpleToadletServer.this.notifyAll();
+			}
+		}
+
+	}
+	
 	public class SocketHandler implements PrioRunnable {
 
 		Socket sock;
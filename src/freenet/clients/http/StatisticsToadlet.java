@@ -17,6 +17,7 @@ import java.util.Locale;
 import java.util.Map;
 
 import freenet.client.async.ClientRequester;
+import freenet.client.async.SegmentStageTimes;
 import freenet.client.HighLevelSimpleClient;
 import freenet.config.SubConfig;
 import freenet.crypt.ciphers.Rijndael;
@@ -42,6 +43,7 @@ import freenet.node.stats.DataStoreStats;
 import freenet.node.stats.StatsNotAvailableException;
 import freenet.node.stats.StoreAccessStats;
 import freenet.support.BandwidthStatsContainer;
+import freenet.support.FileLoggerHook;
 import freenet.support.HTMLNode;
 import freenet.support.SizeUtil;
 import freenet.support.TimeUtil;
@@ -438,6 +440,8 @@ public class StatisticsToadlet extends Toadlet {
 			HTMLNode threadsPriorityInfobox = nextTableCell.addChild("div", "class", "infobox");
 			drawThreadPriorityStatsBox(threadsPriorityInfobox);
 			
+			drawSegmentStagesBox(nextTableCell.addChild("div", "class", "infobox"));
+			
 			nextTableCell = overviewTableRow.addChild("td");
 
 			// thread usage box
@@ -633,6 +637,7 @@ public class StatisticsToadlet extends Toadlet {
 		HTMLNode threadsInfoboxContent = node.addChild("div", "class", "infobox-content");
 		int[] activeThreadsByPriority = stats.getActiveThreadsByPriority();
 		int[] waitingThreadsByPriority = stats.getWaitingThreadsByPriority();
+		double[] queueWaitByPriority = stats.getAverageQueueWaitByPriority();
 		
 		HTMLNode threadsByPriorityTable = threadsInfoboxContent.addChild("table", "border", "0");
 		HTMLNode row = threadsByPriorityTable.addChild("tr");
@@ -640,12 +645,36 @@ public class StatisticsToadlet extends Toadlet {
 		row.addChild("th", l10n("priority"));
 		row.addChild("th", l10n("running"));
 		row.addChild("th", l10n("waiting"));
+		if(queueWaitByPriority != null)
+			row.addChild("th", l10n("queueWait"));
 		
 		for(int i=0; i<activeThreadsByPriority.length; i++) {
 			row = threadsByPriorityTable.addChild("tr");
 			row.addChild("td", String.valueOf(i+1));
 			row.addChild("td", String.valueOf(activeThreadsByPriority[i]));
 			row.addChild("td", String.valueOf(waitingThreadsByPriority[i]));
+			if(queueWaitByPriority != null)
+				row.addChild("td", fix3p1US.format(queueWaitByPriority[i]));
+		}
+	}
+
+	private void drawSegmentStagesBox(HTMLNode box) {
+		box.addChild("div", "class", "infobox-header", l10n("segmentStagesTitle"));
+		HTMLNode table = box.addChild("div", "class", "infobox-content").addChild("table", "border", "0");
+		HTMLNode row = table.addChild("tr");
+		row.addChild("th", l10n("segmentStage"));
+		row.addChild("th", l10n("count"));
+		row.addChild("th", l10n("avgTime"));
+		row.addChild("th", l10n("totalTime"));
+		long[] totalTimes = SegmentStageTimes.getTotalTimes();
+		long[] counts = SegmentStageTimes.getCounts();
+		for(SegmentStageTimes.Stage stage : SegmentStageTimes.Stage.values()) {
+			int i = stage.ordinal();
+			row = table.addChild("tr");
+			row.addChild("td", stage.name());
+			row.addChild("td", Long.toString(counts[i]));
+			row.addChild("td", counts[i] == 0 ? "-" : TimeUtil.formatTime(totalTimes[i] / counts[i], 2, true));
+			row.addChild("td", TimeUtil.formatTime(totalTimes[i], 2, true));
 		}
 	}
 
@@ -1057,7 +1086,21 @@ public class StatisticsToadlet extends Toadlet {
 				activityList.addChild("li", "ARK\u00a0Fetch\u00a0Requests:\u00a0" + numARKFetchers);
 			activityList.addChild("li", "BackgroundFetcherByUSKSize:\u00a0" + node.clientCore.uskManager.getBackgroundFetcherByUSKSize());
 			activityList.addChild("li", "temporaryBackgroundFetchersLRUSize:\u00a0" + node.clientCore.uskManager.getTemporaryBackgroundFetchersLRU());
+			activityList.addChild("li", "USKEditionIndexSize:\u00a0" + node.clientCore.uskManager.getEditionIndexSize());
+			activityList.addChild("li", "USKEditionsProbedPerHour:\u00a0" + this.fix1p1.format(node.clientCore.uskManager.getEditionsProbedPerHour()));
+			activityList.addChild("li", "USKEditionsSkippedByIndex:\u00a0" + node.clientCore.uskManager.getEditionsSkipped());
+			activityList.addChild("li", "ClientLayerLastCheckpoint:\u00a0" + (node.clientCore.clientLayerPersister.wasLastCheckpointFull() ? "full" : "journal") + 
+					",\u00a0" + node.clientCore.clientLayerPersister.getLastCheckpointRequests() + "\u00a0requests,\u00a0" + 
+					SizeUtil.formatSize(node.clientCore.clientLayerPersister.getLastCheckpointBytes(), true) + ",\u00a0" + 
+					node.clientCore.clientLayerPersister.getLastCheckpointTime() + "ms");
 			activityList.addChild("li", "outputBandwidthLiabilityUsage:\u00a0" + this.fix3p1pct.format(node.nodeStats.getBandwidthLiabilityUsage()));
+			FilteredContentCache filteredCache = node.clientCore.getFProxy().fetchTracker.filteredCache;
+			activityList.addChild("li", "FProxyFilteredCache:\u00a0" + filteredCache.hits() + "\u00a0hits,\u00a0" + 
+					filteredCache.misses() + "\u00a0misses,\u00a0" + filteredCache.entries() + "\u00a0entries,\u00a0" + 
+					SizeUtil.formatSize(filteredCache.size(), true));
+			FileLoggerHook logger = Node.logConfigHandler == null ? null : Node.logConfigHandler.getFileLoggerHook();
+			if (logger != null)
+				activityList.addChild("li", "LogLinesDropped:\u00a0" + logger.droppedLines());
 		}
 		
 	}
@@ -1277,6 +1320,9 @@ public class StatisticsToadlet extends Toadlet {
 		overviewList.addChild("li", "pInstantRejectRequestRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKRequestRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKRequestRT())+" (SSK)");
 		overviewList.addChild("li", "pInstantRejectInsertRT:\u00a0" + fix3p1pct.format(stats.pRejectIncomingInstantlyCHKInsertRT())+" (CHK) "+fix3p1pct.format(stats.pRejectIncomingInstantlySSKInsertRT())+" (SSK)");
 		overviewList.addChild("li", "unclaimedFIFOSize:\u00a0" + node.getUnclaimedFIFOSize());
+		overviewList.addChild("li", "packetSenderLoopsPerSecond:\u00a0" + fix1p2.format(node.ps.getLoopsPerSecond()));
+		overviewList.addChild("li", "packetSenderTimePerLoop:\u00a0" + fix1p1.format(node.ps.getAverageLoopTime() / 1000.0) + "\u00a0\u00b5s");
+		overviewList.addChild("li", "packetSenderPeersPerLoop:\u00a0" + fix1p2.format(node.ps.getAveragePeersPerLoop()));
 		overviewList.addChild("li", "RAMBucketPoolSize:\u00a0" + SizeUtil.formatSize(core.tempBucketFactory.getRamUsed())+ " / "+ SizeUtil.formatSize(core.tempBucketFactory.getMaxRamUsed()));
 		overviewList.addChild("li", "uptimeAverage:\u00a0" + fix3p1pct.format(node.uptime.getUptime()));
 		
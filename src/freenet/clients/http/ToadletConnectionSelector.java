@@ -0,0 +1,383 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Executor;
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Connection layer for the HTTP server which doesn't need a thread per connection.
+ *
+ * Idle connections sit in a Selector. When a connection has sent a complete request line and
+ * headers, and up to MAX_BUFFERED_BODY bytes of the body, it is switched to blocking mode and
+ * handed to a worker, which runs ToadletContextImpl on it with the data we have already read.
+ * The worker handles any further requests which are already waiting (pipelining), and then
+ * gives the connection back to the Selector if it is to be kept alive. There are at most
+ * maxWorkers workers; requests beyond that wait in a queue.
+ *
+ * The sockets must have a SocketChannel, see ChannelNetworkInterface.
+ */
+final class ToadletConnectionSelector implements PrioRunnable {
+
+	/** Maximum length of a request line and headers which we will buffer before handing the
+	 * connection to a worker anyway. ToadletContextImpl will reject it if it is too long. */
+	static final int MAX_HEADERS_LENGTH = 65536;
+	/** Buffer up to this much of a request body before handing the connection to a worker.
+	 * The worker reads the rest of a bigger body itself. */
+	static final int MAX_BUFFERED_BODY = 65536;
+	/** Close connections which have been idle for this long. */
+	static final long IDLE_TIMEOUT = MINUTES.toMillis(5);
+	private static final long SELECT_TIMEOUT = SECONDS.toMillis(1);
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+
+	/** Handles the requests once we have read them. */
+	interface Handler {
+		/**
+		 * Handle the requests which are waiting on a connection. See ToadletContextImpl.handle().
+		 * @param is The input stream, including any data we have already read.
+		 * @return True if the connection is idle and should be kept open.
+		 */
+		boolean handle(Socket sock, InputStream is);
+
+		/** Called exactly once for each connection, after we have closed it. */
+		void closed(Socket sock);
+	}
+
+	private static final class Connection {
+		final SocketChannel channel;
+		/** Data we have read but not yet handled. */
+		byte[] buf = new byte[INITIAL_BUFFER_SIZE];
+		int length;
+		long lastActive;
+
+		Connection(SocketChannel channel) {
+			this.channel = channel;
+		}
+	}
+
+	private final Handler handler;
+	private final Executor executor;
+	private final Selector selector;
+	/** Connections to register with the selector: new ones and ones handed back by workers. */
+	private final ConcurrentLinkedQueue<Connection> toRegister = new ConcurrentLinkedQueue<Connection>();
+	/** Connections waiting for a worker. Protected by this. */
+	private final ArrayDeque<Connection> ready = new ArrayDeque<Connection>();
+	/** Protected by this. */
+	private int runningWorkers;
+	/** Protected by this. */
+	private int maxWorkers;
+	private volatile boolean closed;
+	private long lastIdleCheck;
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(ToadletConnectionSelector.class);
+	}
+
+	ToadletConnectionSelector(Handler handler, Executor executor, int maxWorkers) throws IOException {
+		this.handler = handler;
+		this.executor = executor;
+		this.maxWorkers = maxWorkers;
+		selector = Selector.open();
+	}
+
+	void start() {
+		executor.execute(this, "HTTP connection selector");
+	}
+
+	synchronized void setMaxWorkers(int maxWorkers) {
+		this.maxWorkers = maxWorkers;
+	}
+
+	/** Add a newly accepted connection. */
+	void add(Socket sock) {
+		SocketChannel channel = sock.getChannel();
+		if(channel == null) throw new IllegalArgumentException("Socket has no channel");
+		toRegister.add(new Connection(channel));
+		selector.wakeup();
+	}
+
+	/** Stop accepting requests and close all the idle connections. Connections which are being
+	 * handled are closed when the worker has finished with them. */
+	void close() {
+		closed = true;
+		selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		freenet.support.Logger.OSThread.logPID(this);
+		while(!closed) {
+			try {
+				innerRun();
+			} catch (Throwable t) {
+				Logger.error(this, "Caught "+t, t);
+			}
+		}
+		for(SelectionKey key : selector.keys())
+			close((Connection) key.attachment());
+		Connection c;
+		while((c = toRegister.poll()) != null)
+			close(c);
+		try {
+			selector.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+	}
+
+	@Override
+	public int getPriority() {
+		return NativeThread.HIGH_PRIORITY;
+	}
+
+	private void innerRun() throws IOException {
+		// Keys selected by selectNow() below may not have been handled yet.
+		if(selector.selectedKeys().isEmpty())
+			selector.select(SELECT_TIMEOUT);
+		else
+			selector.selectNow();
+		if(closed) return;
+		long now = System.currentTimeMillis();
+		registerPending(now);
+		List<Connection> dispatch = null;
+		for(Iterator<SelectionKey> i = selector.selectedKeys().iterator(); i.hasNext();) {
+			SelectionKey key = i.next();
+			i.remove();
+			if(!key.isValid()) continue;
+			Connection c = (Connection) key.attachment();
+			if(!read(c, now)) {
+				key.cancel();
+				close(c);
+				continue;
+			}
+			if(requestReady(c.buf, c.length)) {
+				key.cancel();
+				if(dispatch == null) dispatch = new ArrayList<Connection>();
+				dispatch.add(c);
+			}
+		}
+		if(now - lastIdleCheck > SELECT_TIMEOUT) {
+			lastIdleCheck = now;
+			closeIdle(now);
+		}
+		if(dispatch != null) {
+			// A cancelled key is only deregistered by the next select, and we can't put the
+			// channel back in blocking mode until then.
+			selector.selectNow();
+			for(Connection c : dispatch)
+				dispatch(c);
+		}
+	}
+
+	private void registerPending(long now) {
+		Connection c;
+		while((c = toRegister.poll()) != null) {
+			try {
+				c.channel.configureBlocking(false);
+				c.channel.register(selector, SelectionKey.OP_READ, c);
+				c.lastActive = now;
+			} catch (IOException e) {
+				close(c);
+			}
+		}
+	}
+
+	/** Read whatever is available.
+	 * @return False if the connection has been closed by the other side. */
+	private boolean read(Connection c, long now) {
+		try {
+			while(true) {
+				if(c.length == c.buf.length) {
+					if(c.length >= MAX_HEADERS_LENGTH + MAX_BUFFERED_BODY) return true;
+					c.buf = Arrays.copyOf(c.buf, Math.min(c.buf.length * 2, MAX_HEADERS_LENGTH + MAX_BUFFERED_BODY));
+				}
+				int read = c.channel.read(ByteBuffer.wrap(c.buf, c.length, c.buf.length - c.length));
+				if(read < 0) return false;
+				if(read == 0) return true;
+				c.length += read;
+				c.lastActive = now;
+			}
+		} catch (IOException e) {
+			if(logMINOR) Logger.minor(this, "Error reading from "+c.channel+" : "+e);
+			return false;
+		}
+	}
+
+	/**
+	 * @return True if the buffer contains a complete request line and headers, and either
+	 * all of the body or at least MAX_BUFFERED_BODY bytes of it. Also true if the headers are
+	 * too long, so that ToadletContextImpl can reject them.
+	 */
+	static boolean requestReady(byte[] buf, int length) {
+		// Skip empty lines before the request line, as ToadletContextImpl does.
+		int start = 0;
+		while(start < length && (buf[start] == '\r' || buf[start] == '\n'))
+			start++;
+		int headersEnd = -1;
+		for(int i=start;i<length;i++) {
+			if(buf[i] != '\n') continue;
+			if(i+1 < length && buf[i+1] == '\n') {
+				headersEnd = i+2;
+				break;
+			}
+			if(i+2 < length && buf[i+1] == '\r' && buf[i+2] == '\n') {
+				headersEnd = i+3;
+				break;
+			}
+		}
+		if(headersEnd < 0)
+			return length - start >= MAX_HEADERS_LENGTH;
+		long contentLength = contentLength(buf, start, headersEnd);
+		return length - headersEnd >= Math.min(contentLength, MAX_BUFFERED_BODY);
+	}
+
+	/** @return The Content-Length in the given headers, or 0 if there isn't a valid one. */
+	private static long contentLength(byte[] buf, int start, int end) {
+		final byte[] name = "content-length:".getBytes();
+		int lineStart = start;
+		for(int i=start;i<end;i++) {
+			if(buf[i] != '\n') continue;
+			if(i - lineStart > name.length && regionMatchesIgnoreCase(buf, lineStart, name)) {
+				String value = new String(buf, lineStart + name.length, i - lineStart - name.length).trim();
+				try {
+					return Math.max(0, Long.parseLong(value));
+				} catch (NumberFormatException e) {
+					// ToadletContextImpl will reject it.
+					return 0;
+				}
+			}
+			lineStart = i+1;
+		}
+		return 0;
+	}
+
+	private static boolean regionMatchesIgnoreCase(byte[] buf, int offset, byte[] lowerCase) {
+		for(int i=0;i<lowerCase.length;i++) {
+			byte b = buf[offset+i];
+			if(b >= 'A' && b <= 'Z') b += 'a' - 'A';
+			if(b != lowerCase[i]) return false;
+		}
+		return true;
+	}
+
+	private void closeIdle(long now) {
+		for(SelectionKey key : selector.keys()) {
+			if(!key.isValid()) continue;
+			Connection c = (Connection) key.attachment();
+			if(now - c.lastActive > IDLE_TIMEOUT) {
+				if(logMINOR) Logger.minor(this, "Closing idle connection "+c.channel);
+				key.cancel();
+				close(c);
+			}
+		}
+	}
+
+	private void dispatch(Connection c) {
+		try {
+			c.channel.configureBlocking(true);
+		} catch (IOException e) {
+			close(c);
+			return;
+		}
+		synchronized(this) {
+			if(runningWorkers >= maxWorkers) {
+				ready.add(c);
+				return;
+			}
+			runningWorkers++;
+		}
+		executor.execute(new Worker(c), "HTTP worker");
+	}
+
+	private class Worker implements PrioRunnable {
+
+		private Connection c;
+
+		Worker(Connection c) {
+			this.c = c;
+		}
+
+		@Override
+		public void run() {
+			freenet.support.Logger.OSThread.logPID(this);
+			try {
+				while(c != null) {
+					handle(c);
+					synchronized(ToadletConnectionSelector.this) {
+						c = ready.poll();
+					}
+				}
+			} finally {
+				synchronized(ToadletConnectionSelector.this) {
+					runningWorkers--;
+					// Shouldn't happen, but don't strand anything.
+					c = ready.poll();
+					if(c != null) runningWorkers++;
+				}
+				if(c != null) executor.execute(new Worker(c), "HTTP worker");
+			}
+		}
+
+		@Override
+		public int getPriority() {
+			return NativeThread.HIGH_PRIORITY-1;
+		}
+
+	}
+
+	private void handle(Connection c) {
+		Socket sock = c.channel.socket();
+		boolean keepOpen = false;
+		try {
+			InputStream is = new BufferedInputStream(new SequenceInputStream(
+					new ByteArrayInputStream(c.buf, 0, c.length), sock.getInputStream()), 4096);
+			keepOpen = handler.handle(sock, is);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught "+t+" handling "+c.channel, t);
+		}
+		if(keepOpen && !closed) {
+			// Everything we read has been used.
+			c.buf = new byte[INITIAL_BUFFER_SIZE];
+			c.length = 0;
+			toRegister.add(c);
+			selector.wakeup();
+		} else {
+			close(c);
+		}
+	}
+
+	private void close(Connection c) {
+		try {
+			c.channel.close();
+		} catch (IOException e) {
+			// Ignore
+		}
+		handler.closed(c.channel.socket());
+	}
+
+}
@@ -14,6 +14,7 @@ import java.net.InetAddress;
 import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
@@ -67,6 +68,8 @@ public class ToadletContextImpl implements ToadletContext {
 	private ArrayList<ReceivedCookie> cookies; // Null until the first time the user queries us for a ReceivedCookie.
 	private ArrayList<Cookie> replyCookies; // Null until the first time the user sets a Cookie.
 	private final OutputStream sockOutputStream;
+	/** Null unless the socket was accepted through a channel. */
+	private final WritableByteChannel sockChannel;
 	private final PageMaker pagemaker;
 	private final BucketFactory bf;
 	private final ToadletContainer container;
@@ -106,6 +109,7 @@ public class ToadletContextImpl implements ToadletContext {
 		this.closed = false;
 		this.uri=uri;
 		sockOutputStream = sock.getOutputStream();
+		sockChannel = sock.getChannel();
 		remoteAddr = sock.getInetAddress();
 		if(logDEBUG)
 			Logger.debug(this, "Connection from "+remoteAddr);
@@ -486,17 +490,37 @@ public class ToadletContextImpl implements ToadletContext {
 	 * Handle an incoming connection. Blocking, obviously.
 	 */
 	public static void handle(Socket sock, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager) {
+		InputStream is;
+		try {
+			is = new BufferedInputStream(sock.getInputStream(), 4096);
+		} catch (IOException e) {
+			return;
+		}
+		handle(sock, is, container, pageMaker, userAlertManager, bookmarkManager, false);
+	}
+
+	/**
+	 * Handle requests from a connection. Blocking while handling a request.
+	 * @param is The input stream for the connection. Must support mark(). May start with data
+	 * which has already been read from the socket.
+	 * @param returnWhenIdle If true, return as soon as we have handled a request and there is
+	 * no more input waiting, rather than blocking until the next request arrives.
+	 * @return True if we returned because the connection is idle and should be kept open.
+	 * Otherwise the connection is finished with.
+	 */
+	static boolean handle(Socket sock, InputStream is, ToadletContainer container, PageMaker pageMaker, UserAlertManager userAlertManager, BookmarkManager bookmarkManager, boolean returnWhenIdle) {
 		try {
-			InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
-			
 			LineReadingInputStream lis = new LineReadingInputStream(is);
 			
 			while(true) {
 				
+				if(returnWhenIdle && is.available() == 0)
+					return true;
+				
 				String firstLine = lis.readLine(32768, 128, false); // ISO-8859-1 or US-ASCII, _not_ UTF-8
 				if (firstLine == null) {
 					sock.close();
-					return;
+					return false;
 				} else if (firstLine.equals("")) {
 					continue;
 				}
@@ -518,7 +542,7 @@ public class ToadletContextImpl implements ToadletContext {
 					if(logMINOR) Logger.minor(ToadletContextImpl.class, "URI: "+uri+" path "+uri.getPath()+" host "+uri.getHost()+" frag "+uri.getFragment()+" port "+uri.getPort()+" query "+uri.getQuery()+" scheme "+uri.getScheme());
 				} catch (URISyntaxException e) {
 					sendURIParseError(sock.getOutputStream(), true, e);
-					return;
+					return false;
 				}
 				String method = split[0];
 				
@@ -528,7 +552,7 @@ public class ToadletContextImpl implements ToadletContext {
 					String line = lis.readLine(32768, 128, false); // ISO-8859 or US-ASCII, not UTF-8
 					if (line == null) {
 						sock.close();
-						return;
+						return false;
 					}
 					//System.out.println("Length="+line.length()+": "+line);
 					if(line.length() == 0) break;
@@ -567,7 +591,7 @@ public class ToadletContextImpl implements ToadletContext {
 					if (slen == null) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 				} else if (METHODS_CANNOT_HAVE_DATA.contains(method)) {
 					// <method> can not have data
@@ -575,7 +599,7 @@ public class ToadletContextImpl implements ToadletContext {
 					if (slen != null) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 				}
 
@@ -587,7 +611,7 @@ public class ToadletContextImpl implements ToadletContext {
 					} catch (NumberFormatException e) {
 						ctx.shouldDisconnect = true;
 						ctx.sendReplyHeaders(400, "Bad Request", null, null, -1);
-						return;
+						return false;
 					}
 					if(allowPost && ((!container.publicGatewayMode()) || ctx.isAllowedFullAccess())) {
 						data = bf.makeBucket(len);
@@ -600,7 +624,7 @@ public class ToadletContextImpl implements ToadletContext {
 							sendError(sock.getOutputStream(), 403, "Forbidden", "Content not allowed in this configuration", true, null);
 						}
 						ctx.close();
-						return;
+						return false;
 					}
 				} else {
 					// we're not doing to use it, but we have to keep
@@ -611,7 +635,7 @@ public class ToadletContextImpl implements ToadletContext {
 				if (!container.enableExtendedMethodHandling()) {
 					if (!METHODS_RESTRICTED_MODE.contains(method)) {
 						sendError(sock.getOutputStream(), 403, "Forbidden", "Method not allowed in this configuration", true, null);
-						return;
+						return false;
 					}
 				}
 
@@ -666,7 +690,7 @@ public class ToadletContextImpl implements ToadletContext {
 					}
 					if(ctx.shouldDisconnect) {
 						sock.close();
-						return;
+						return false;
 					}
 				} finally {
 					if(data != null) data.free();
@@ -706,6 +730,7 @@ public class ToadletContextImpl implements ToadletContext {
 				// ignore and return
 			}
 		}
+		return false;
 	}
 	
 	private static void callToadletMethod(Toadlet t, String method, URI uri, HTTPRequestImpl req, 
@@ -802,7 +827,7 @@ public class ToadletContextImpl implements ToadletContext {
 	@Override
 	public void writeData(Bucket data) throws ToadletContextClosedException, IOException {
 		if(closed) throw new ToadletContextClosedException();
-		BucketTools.copyTo(data, sockOutputStream, Long.MAX_VALUE);
+		BucketTools.copyTo(data, sockOutputStream, sockChannel, Long.MAX_VALUE);
 		data.free();
 	}
 	
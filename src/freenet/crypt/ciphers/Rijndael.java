@@ -11,6 +11,8 @@ import javax.crypto.spec.SecretKeySpec;
 import freenet.crypt.BlockCipher;
 import freenet.crypt.JceLoader;
 import freenet.crypt.UnsupportedCipherException;
+import freenet.support.ByteArrayWrapper;
+import freenet.support.LRUMap;
 import freenet.support.Logger;
 
 /*
@@ -24,9 +26,16 @@ import freenet.support.Logger;
  * algorithm
  */
 public class Rijndael implements BlockCipher {
-	private Object sessionKey;
+	/** The expanded key. Never modified once created, so any number of threads can encipher
+	 * and decipher with the same instance at once. */
+	private volatile Object sessionKey;
 	private final int keysize, blocksize;
 
+	/** Recently used expanded keys for initializeCached(), by key followed by block size. */
+	private static final LRUMap<ByteArrayWrapper, Object> recentSessionKeys = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+	/** Each 256-bit key, 256-bit block session key is around 1KB. */
+	static final int MAX_CACHED_SESSION_KEYS = 256;
+
 	public static final Provider AesCtrProvider = getAesCtrProvider();
 	
 	public static String getProviderName() {
@@ -164,15 +173,56 @@ public class Rijndael implements BlockCipher {
 		}
 	}
 
+	/**
+	 * Initialize with a key, reusing the expanded key if the same key has been used recently
+	 * with the same block size. Key expansion costs as much as enciphering a few hundred bytes,
+	 * so this is worthwhile where we create a cipher for each block, e.g. CHK blocks. Only use
+	 * it for keys which are no more secret than the data they protect, since the expanded key
+	 * stays in memory after we have finished with it. In particular, not for the datastore,
+	 * whose routing keys must not be kept in memory.
+	 */
+	public final void initializeCached(byte[] key) {
+		int keyLength = keysize>>3;
+		byte[] cacheKey = new byte[keyLength+1];
+		System.arraycopy(key, 0, cacheKey, 0, keyLength);
+		cacheKey[keyLength] = (byte) (blocksize>>3);
+		ByteArrayWrapper wrapper = new ByteArrayWrapper(cacheKey);
+		Object cached;
+		synchronized(recentSessionKeys) {
+			cached = recentSessionKeys.get(wrapper);
+			// Move it to the top, so the keys we are using now are not evicted.
+			if(cached != null)
+				recentSessionKeys.push(wrapper, cached);
+		}
+		if(cached != null) {
+			sessionKey = cached;
+			return;
+		}
+		try {
+			byte[] nkey=new byte[keyLength];
+			System.arraycopy(key, 0, nkey, 0, nkey.length);
+			cached=Rijndael_Algorithm.makeKey(nkey, blocksize/8);
+		} catch (InvalidKeyException e) {
+			Logger.error(this,"Invalid key", e);
+			return;
+		}
+		sessionKey = cached;
+		synchronized(recentSessionKeys) {
+			recentSessionKeys.push(wrapper, cached);
+			while(recentSessionKeys.size() > MAX_CACHED_SESSION_KEYS)
+				recentSessionKeys.popKey();
+		}
+	}
+
 	@Override
-	public synchronized final void encipher(byte[] block, byte[] result) {
+	public final void encipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
 		Rijndael_Algorithm.blockEncrypt(block, result, 0, sessionKey, blocksize/8);
 	}
 
 	@Override
-	public synchronized final void decipher(byte[] block, byte[] result) {
+	public final void decipher(byte[] block, byte[] result) {
 		if(block.length != blocksize/8)
 			throw new IllegalArgumentException();
 		Rijndael_Algorithm.blockDecrypt(block, result, 0, sessionKey, blocksize/8);
@@ -0,0 +1,62 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.Arrays;
+
+import freenet.support.Executor;
+
+/**
+ * A {@link NetworkInterface} whose accepted sockets have a SocketChannel, so that they can be
+ * switched to non-blocking mode and handled with a Selector. Accepting and filtering by
+ * allowed hosts works exactly as in NetworkInterface.
+ */
+public class ChannelNetworkInterface extends NetworkInterface {
+
+	/**
+	 * If true, servers which use blocking sockets (FCP, and FProxy when not in non-blocking mode)
+	 * also accept through a channel, so that large files can be sent to their sockets with
+	 * FileChannel.transferTo(). Before Java 13 the streams of a channel's socket can't be read
+	 * and written at the same time, so this is ignored on earlier versions.
+	 */
+	public static final boolean FOR_BLOCKING_SOCKETS =
+		"true".equalsIgnoreCase(System.getProperty("freenet.io.socketChannels", "false")) &&
+		javaVersion() >= 13;
+
+	private static int javaVersion() {
+		String version = System.getProperty("java.specification.version", "1.7");
+		// 1.7, 1.8, 9, 10 ...
+		if(version.startsWith("1.")) version = version.substring(2);
+		try {
+			return Integer.parseInt(version);
+		} catch (NumberFormatException e) {
+			return 0;
+		}
+	}
+
+	public static NetworkInterface create(int port, String bindTo, String allowedHosts, Executor executor, boolean ignoreUnbindableIP6) throws IOException {
+		NetworkInterface iface = new ChannelNetworkInterface(port, allowedHosts, executor);
+		String[] failedBind = iface.setBindTo(bindTo, ignoreUnbindableIP6);
+		if(failedBind != null) {
+			System.err.println("Could not bind to some of the interfaces specified for port "+port+" : "+Arrays.toString(failedBind));
+		}
+		return iface;
+	}
+
+	/**
+	 * See {@link NetworkInterface}
+	 */
+	protected ChannelNetworkInterface(int port, String allowedHosts, Executor executor) throws IOException {
+		super(port, allowedHosts, executor);
+	}
+
+	@Override
+	protected ServerSocket createServerSocket() throws IOException {
+		return ServerSocketChannel.open().socket();
+	}
+
+}
@@ -25,7 +25,6 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -33,6 +32,7 @@ import freenet.support.ByteBufferInputStream;
 import freenet.support.Fields;
 import freenet.support.LogThresholdCallback;
 import freenet.support.Logger;
+import freenet.support.Buffer;
 import freenet.support.Serializer;
 import freenet.support.ShortBuffer;
 import freenet.support.Logger.LogLevel;
@@ -70,7 +70,14 @@ public class Message {
 	private final MessageType _spec;
 	private final WeakReference<? extends PeerContext> _sourceRef;
 	private final boolean _internal;
-	private final HashMap<String, Object> _payload = new HashMap<String, Object>(8);
+	private final MessageLayout _layout;
+	/** Primitive fields, unboxed, indexed by MessageLayout.slots. Floating point values are
+	 * stored as their raw bits. */
+	private final long[] _primitives;
+	/** All other fields, indexed by MessageLayout.slots. */
+	private final Object[] _objects;
+	/** Bit i is set if the i'th field in wire order has been set. */
+	private long _setFields;
 	private List<Message> _subMessages;
 	public final long localInstantiationTime;
 	final int _receivedByteCount;
@@ -107,15 +114,7 @@ public class Message {
 		}
 		Message m = new Message(mspec, peer, recvByteCount);
 		try {
-			for (String name : mspec.getOrderedFields()) {
-				Class<?> type = mspec.getFields().get(name);
-				if (type.equals(LinkedList.class)) { // Special handling for LinkedList to deal with element type
-					m.set(name, Serializer
-					      .readListFromDataInputStream(mspec.getLinkedListTypes().get(name), bb));
-				} else {
-					m.set(name, Serializer.readFromDataInputStream(type, bb));
-				}
-			}
+			m.readFields(bb);
 			if (mayHaveSubMessages) {
 				while (bb.remaining() > 2) { // sizeof(unsigned short) == 2
 					ByteBufferInputStream bb2;
@@ -151,6 +150,50 @@ public class Message {
 		return m;
 	}
 
+	/** Read all the fields, in wire order, without boxing the primitive ones. */
+	private void readFields(ByteBufferInputStream bb) throws IOException {
+		final MessageLayout layout = _layout;
+		final byte[] codes = layout.codes;
+		final int[] slots = layout.slots;
+		for (int i = 0; i < codes.length; i++) {
+			long value;
+			switch (codes[i]) {
+			case MessageLayout.BOOLEAN:
+				final byte bool = bb.readByte();
+				// Same checks as Serializer: only 0 and 1 are written.
+				if (bool != 0 && bool != 1)
+					throw new IOException("Boolean is non boolean value: " + bool);
+				value = bool;
+				break;
+			case MessageLayout.BYTE:
+				value = bb.readByte();
+				break;
+			case MessageLayout.SHORT:
+				value = bb.readShort();
+				break;
+			case MessageLayout.INT:
+			case MessageLayout.FLOAT: // Raw bits
+				value = bb.readInt();
+				break;
+			case MessageLayout.LONG:
+			case MessageLayout.DOUBLE: // Raw bits
+				value = bb.readLong();
+				break;
+			default:
+				Object o;
+				if (layout.types[i] == LinkedList.class) { // Special handling for LinkedList to deal with element type
+					o = Serializer.readListFromDataInputStream(layout.listTypes[i], bb);
+				} else {
+					o = Serializer.readFromDataInputStream(layout.types[i], bb);
+				}
+				setObject(i, o);
+				continue;
+			}
+			_primitives[slots[i]] = value;
+			_setFields |= 1L << i;
+		}
+	}
+
 	public Message(MessageType spec) {
 		this(spec, null, 0);
 	}
@@ -158,6 +201,9 @@ public class Message {
 	private Message(MessageType spec, PeerContext source, int recvByteCount) {
 		localInstantiationTime = System.currentTimeMillis();
 		_spec = spec;
+		_layout = spec.getLayout();
+		_primitives = new long[_layout.primitiveCount];
+		_objects = new Object[_layout.objectCount];
 		if (source == null) {
 			_internal = true;
 			_sourceRef = null;
@@ -174,7 +220,10 @@ public class Message {
 		_spec = m._spec;
 		_sourceRef = null;
 		_internal = m._internal;
-		_payload.putAll(m._payload);
+		_layout = m._layout;
+		_primitives = m._primitives.clone();
+		_objects = m._objects.clone();
+		_setFields = m._setFields;
 		_subMessages = null;
 		localInstantiationTime = System.currentTimeMillis();
 		_receivedByteCount = 0;
@@ -183,48 +232,74 @@ public class Message {
 		needsLoadBulk = m.needsLoadBulk;
 	}
 
+	/** Get a primitive field. Throws NullPointerException if it isn't set and ClassCastException
+	 * if it isn't of the given type, as unboxing the field would. */
+	private long getPrimitive(String key, byte code) {
+		final int i = _layout.indexOf(key);
+		if (i < 0 || (_setFields & (1L << i)) == 0) {
+			throw new NullPointerException("Field " + key + " not set in " + _spec.getName());
+		}
+		if (_layout.codes[i] != code) {
+			if (_layout.codes[i] == MessageLayout.OBJECT)
+				return MessageLayout.unbox(code, _objects[_layout.slots[i]]);
+			throw new ClassCastException("Field " + key + " is a " + _layout.types[i].getName());
+		}
+		return _primitives[_layout.slots[i]];
+	}
+
 	public boolean getBoolean(String key) {
-		return (Boolean) _payload.get(key);
+		return getPrimitive(key, MessageLayout.BOOLEAN) != 0;
 	}
 
 	public byte getByte(String key) {
-		return (Byte) _payload.get(key);
+		return (byte) getPrimitive(key, MessageLayout.BYTE);
 	}
 
 	public short getShort(String key) {
-		return (Short) _payload.get(key);
+		return (short) getPrimitive(key, MessageLayout.SHORT);
 	}
 
 	public int getInt(String key) {
-		return (Integer) _payload.get(key);
+		return (int) getPrimitive(key, MessageLayout.INT);
 	}
 
 	public long getLong(String key) {
-		return (Long) _payload.get(key);
+		return getPrimitive(key, MessageLayout.LONG);
 	}
 
 	public double getDouble(String key) {
-		return (Double) _payload.get(key);
+		return Double.longBitsToDouble(getPrimitive(key, MessageLayout.DOUBLE));
 	}
 
 	public float getFloat(String key) {
-		return (Float) _payload.get(key);
+		return Float.intBitsToFloat((int) getPrimitive(key, MessageLayout.FLOAT));
 	}
 
 	public double[] getDoubleArray(String key) {
-		return ((double[]) _payload.get(key));
+		return ((double[]) getObject(key));
 	}
 
 	public float[] getFloatArray(String key) {
-		return (float[]) _payload.get(key);
+		return (float[]) getObject(key);
 	}
 
 	public String getString(String key) {
-		return (String)_payload.get(key);
+		return (String) getObject(key);
 	}
 
+	/** @return The value of the field, boxed if it is a primitive, or null if it isn't set. */
 	public Object getObject(String key) {
-		return _payload.get(key);
+		final int i = _layout.indexOf(key);
+		if (i < 0) return null;
+		return getObject(i);
+	}
+
+	private Object getObject(int i) {
+		if ((_setFields & (1L << i)) == 0) return null;
+		final byte code = _layout.codes[i];
+		if (code == MessageLayout.OBJECT)
+			return _objects[_layout.slots[i]];
+		return MessageLayout.box(code, _primitives[_layout.slots[i]]);
 	}
 	
 	public byte[] getShortBufferBytes(String key) {
@@ -233,41 +308,79 @@ public class Message {
 	}
 
 	public void set(String key, boolean b) {
-		set(key, Boolean.valueOf(b));
+		setPrimitive(key, MessageLayout.BOOLEAN, b ? 1 : 0, Boolean.class);
 	}
 
 	public void set(String key, byte b) {
-		set(key, Byte.valueOf(b));
+		setPrimitive(key, MessageLayout.BYTE, b, Byte.class);
 	}
 
 	public void set(String key, short s) {
-		set(key, Short.valueOf(s));
+		setPrimitive(key, MessageLayout.SHORT, s, Short.class);
 	}
 
 	public void set(String key, int i) {
-		set(key, Integer.valueOf(i));
+		setPrimitive(key, MessageLayout.INT, i, Integer.class);
 	}
 
 	public void set(String key, long l) {
-		set(key, Long.valueOf(l));
+		setPrimitive(key, MessageLayout.LONG, l, Long.class);
 	}
 
 	public void set(String key, double d) {
-		set(key, Double.valueOf(d));
+		setPrimitive(key, MessageLayout.DOUBLE, Double.doubleToRawLongBits(d), Double.class);
 	}
 
 	public void set(String key, float f) {
-		set(key, Float.valueOf(f));
+		setPrimitive(key, MessageLayout.FLOAT, Float.floatToRawIntBits(f), Float.class);
+	}
+
+	/** Set a primitive field, with the same type checks as set(String, Object) on the boxed
+	 * value. */
+	private void setPrimitive(String key, byte code, long value, Class<?> boxedType) {
+		final int i = _layout.checkedIndexOf(key);
+		if (_layout.codes[i] != code) {
+			// Could be declared as e.g. Number, so check it the slow way.
+			set(key, MessageLayout.box(code, value));
+			return;
+		}
+		_primitives[_layout.slots[i]] = value;
+		_setFields |= 1L << i;
 	}
 
 	public void set(String key, Object value) {
-		if (!_spec.checkType(key, value)) {
-			if (value == null) {
-				throw new IncorrectTypeException("Got null for " + key);
-			}
-			throw new IncorrectTypeException("Got " + value.getClass() + ", expected " + _spec.typeOf(key));
+		if (value == null) {
+			throw new IncorrectTypeException("Got null for " + key);
 		}
-		_payload.put(key, value);
+		setObject(_layout.checkedIndexOf(key), value);
+	}
+
+	private void setObject(int i, Object value) {
+		final Class<?> defClass = _layout.types[i];
+		final Class<?> valueClass = value.getClass();
+		if (defClass != valueClass && !defClass.isAssignableFrom(valueClass)) {
+			throw new IncorrectTypeException("Got " + valueClass + ", expected " + defClass);
+		}
+		final byte code = _layout.codes[i];
+		if (code == MessageLayout.OBJECT)
+			_objects[_layout.slots[i]] = value;
+		else
+			_primitives[_layout.slots[i]] = MessageLayout.unbox(code, value);
+		_setFields |= 1L << i;
+	}
+
+	/** Guess the encoded length so we don't need to grow the buffer while encoding. */
+	private int estimateLength() {
+		int length = _layout.fixedLength;
+		for (Object o : _objects) {
+			if (o instanceof Buffer)
+				length += 4 + ((Buffer) o).getLength();
+			else if (o instanceof ShortBuffer)
+				length += 2 + ((ShortBuffer) o).getLength();
+			else
+				length += 32;
+		}
+		return length;
 	}
 
 	public byte[] encodeToPacket() {
@@ -277,12 +390,39 @@ public class Message {
 	private byte[] encodeToPacket(boolean includeSubMessages, boolean isSubMessage) {
 
 		if (logDEBUG) Logger.debug(this, "My spec code: "+_spec.getName().hashCode()+" for "+_spec.getName());
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		final MessageLayout layout = _layout;
+		ByteArrayOutputStream baos = new ByteArrayOutputStream(estimateLength());
 		DataOutputStream dos = new DataOutputStream(baos);
 		try {
 			dos.writeInt(_spec.getName().hashCode());
-			for (String name : _spec.getOrderedFields()) {
-				Serializer.writeToDataOutputStream(_payload.get(name), dos);
+			final byte[] codes = layout.codes;
+			final int[] slots = layout.slots;
+			for (int i = 0; i < codes.length; i++) {
+				if ((_setFields & (1L << i)) == 0) {
+					throw new NullPointerException("Field " + layout.names[i] + " not set in " + _spec.getName());
+				}
+				final long value = codes[i] == MessageLayout.OBJECT ? 0 : _primitives[slots[i]];
+				switch (codes[i]) {
+				case MessageLayout.BOOLEAN:
+					dos.writeBoolean(value != 0);
+					break;
+				case MessageLayout.BYTE:
+					dos.write((byte) value);
+					break;
+				case MessageLayout.SHORT:
+					dos.writeShort((short) value);
+					break;
+				case MessageLayout.INT:
+				case MessageLayout.FLOAT: // Raw bits
+					dos.writeInt((int) value);
+					break;
+				case MessageLayout.LONG:
+				case MessageLayout.DOUBLE: // Raw bits
+					dos.writeLong(value);
+					break;
+				default:
+					Serializer.writeToDataOutputStream(_objects[slots[i]], dos);
+				}
 			}
 			dos.flush();
 		} catch (IOException e) {
@@ -313,9 +453,9 @@ public class Message {
 		StringBuilder ret = new StringBuilder(1000);
 		String comma = "";
 		ret.append(_spec.getName()).append(" {");
-		for (String name : _spec.getFields().keySet()) {
+		for (int i = 0; i < _layout.names.length; i++) {
 			ret.append(comma);
-			ret.append(name).append('=').append(_payload.get(name));
+			ret.append(_layout.names[i]).append('=').append(getObject(i));
 			comma = ", ";
 		}
 		ret.append('}');
@@ -335,11 +475,12 @@ public class Message {
 	}
 
 	public boolean isSet(String fieldName) {
-		return _payload.containsKey(fieldName);
+		final int i = _layout.indexOf(fieldName);
+		return i >= 0 && (_setFields & (1L << i)) != 0;
 	}
 
 	public Object getFromPayload(String fieldName) throws FieldNotSetException {
-		Object r =  _payload.get(fieldName);
+		Object r = getObject(fieldName);
 		if (r == null) {
 			throw new FieldNotSetException(fieldName+" not set");
 		}
@@ -24,12 +24,9 @@ import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.List;
 import java.util.Map;
 
-import freenet.io.comm.MessageFilter.MATCHED;
 import freenet.node.PeerNode;
 import freenet.support.Executor;
 import freenet.support.LogThresholdCallback;
@@ -57,8 +54,8 @@ public class MessageCore {
 	private Dispatcher _dispatcher;
 	private Executor _executor;
 	/** _filters serves as lock for both */
-	private final LinkedList<MessageFilter> _filters = new LinkedList<MessageFilter>();
-	private final LinkedList<Message> _unclaimed = new LinkedList<Message>();
+	private final MessageFilterIndex _filters = new MessageFilterIndex();
+	private final UnclaimedMessageIndex _unclaimed = new UnclaimedMessageIndex();
 	private static final int MAX_UNMATCHED_FIFO_SIZE = 50000;
 	private static final long MAX_UNCLAIMED_FIFO_ITEM_LIFETIME = MINUTES.toMillis(10);  // maybe this should be per message type??
 	// FIXME do we need MIN_FILTER_REMOVE_TIME? Can we make this more efficient?
@@ -123,46 +120,24 @@ public class MessageCore {
 		// Avoids exhaustive and unsuccessful search in waitFor() removal of a timed out filter.
 		if(logMINOR)
 			Logger.minor(this, "Removing timed out filters");
-		HashSet<MessageFilter> timedOutFilters = null;
+		List<MessageFilter> timedOutFilters = new ArrayList<MessageFilter>();
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.timedOut(tStart)) {
-					if(logMINOR)
-						Logger.minor(this, "Removing "+f);
-					i.remove();
-					if(timedOutFilters == null) 
-						timedOutFilters = new HashSet<MessageFilter>();
-					if(!timedOutFilters.add(f))
-						Logger.error(this, "Filter "+f+" is in filter list twice!");
-					if(logMINOR) {
-						for (ListIterator<Message> it = _unclaimed.listIterator(); it.hasNext();) {
-							Message m = it.next();
-							MATCHED status = f.match(m, true, tStart);
-							if (status == MATCHED.MATCHED) {
-								// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
-								Logger.error(this, "Timed out but should have matched in _unclaimed: "+m+" for "+f);
-								break;
-							}
-						}
+			// Only looks at the filters which have timed out, and those with callbacks.
+			nextTimeout = _filters.removeTimedOut(tStart, timedOutFilters, nextTimeout);
+			if(logMINOR) {
+				for(MessageFilter f : timedOutFilters) {
+					Logger.minor(this, "Removing "+f);
+					if(_unclaimed.find(f, tStart, false) != null) {
+						// Don't match it, we timed out; two-level timeouts etc may want it for the next filter.
+						Logger.error(this, "Timed out but should have matched in _unclaimed: "+f);
 					}
-				} else {
-					if(f.hasCallback() && nextTimeout > f.getTimeout())
-						nextTimeout = f.getTimeout();
 				}
-				// Do not break after finding a non-timed-out filter because some filters may 
-				// be timed out because their client callbacks say they should be.
-				// Also simplifies the logic significantly, we've had some major bugs here.
-				
-				// See also the end of waitFor() for another weird case.
 			}
 		}
 		
-		if(timedOutFilters != null) {
-			for(MessageFilter f : timedOutFilters) {
-				f.setMessage(null);
-				f.onTimedOut(_executor);
-			}
+		for(MessageFilter f : timedOutFilters) {
+			f.setMessage(null);
+			f.onTimedOut(_executor);
 		}
 		
 		long tEnd = System.currentTimeMillis();
@@ -197,30 +172,16 @@ public class MessageCore {
 		MessageFilter match = null;
 		ArrayList<MessageFilter> timedOut = null;
 		synchronized (_filters) {
-			for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-				MessageFilter f = i.next();
-				if (f.matched()) {
-					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
-					i.remove();
-					continue;
-				}
-				MATCHED status = f.match(m, tStart);
-				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-					if(timedOut == null)
-						timedOut = new ArrayList<MessageFilter>();
-					timedOut.add(f);
-					i.remove();
-					continue;
-				} else if(status == MATCHED.MATCHED) {
-					matched = true;
-					i.remove();
-					match = f;
-					// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
-					f.setMessage(m);
-					if(logMINOR) Logger.minor(this, "Matched (1): "+f);
-					break; // Only one match permitted per message
-				} else if(logDEBUG) Logger.minor(this, "Did not match "+f);
+			timedOut = new ArrayList<MessageFilter>();
+			match = _filters.match(m, tStart, timedOut);
+			if(match != null) {
+				matched = true;
+				// We must setMessage() inside the lock to ensure that waitFor() sees it even if it times out.
+				match.setMessage(m);
+				if(logMINOR) Logger.minor(this, "Matched (1): "+match);
 			}
+			if(timedOut.isEmpty())
+				timedOut = null;
 		}
 		if(timedOut != null) {
 			for(MessageFilter f : timedOut) {
@@ -268,23 +229,13 @@ public class MessageCore {
 		     */
 			synchronized (_filters) {
 				if(logMINOR) Logger.minor(this, "Rechecking filters and adding message");
-				for (ListIterator<MessageFilter> i = _filters.listIterator(); i.hasNext();) {
-					MessageFilter f = i.next();
-					MATCHED status = f.match(m, tStart);
-					if(status == MATCHED.MATCHED) {
-						matched = true;
-						match = f;
-						i.remove();
-						if(logMINOR) Logger.minor(this, "Matched (2): "+f);
-						match.setMessage(m);
-						break; // Only one match permitted per message
-					} else if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
-						if(timedOut == null)
-							timedOut = new ArrayList<MessageFilter>();
-						timedOut.add(f);
-						i.remove();
-						continue;
-					}
+				if(timedOut == null)
+					timedOut = new ArrayList<MessageFilter>();
+				match = _filters.match(m, tStart, timedOut);
+				if(match != null) {
+					matched = true;
+					if(logMINOR) Logger.minor(this, "Matched (2): "+match);
+					match.setMessage(m);
 				}
 				if(!matched) {
 				    while (_unclaimed.size() > MAX_UNMATCHED_FIFO_SIZE) {
@@ -321,19 +272,17 @@ public class MessageCore {
 	}
 	
 	/** IncomingPacketFilter should call this when a node is disconnected. */
-	public void onDisconnect(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+	public void onDisconnect(final PeerContext ctx) {
+		List<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesDroppedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+			droppedFilters = _filters.removeIf(new MessageFilterIndex.Predicate() {
+
+				@Override
+				public boolean apply(MessageFilter f) {
+					return f.matchesDroppedConnection(ctx);
+				}
+
+			});
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -343,19 +292,17 @@ public class MessageCore {
 	}
 	
 	/** IncomingPacketFilter should call this when a node connects with a new boot ID */
-	public void onRestart(PeerContext ctx) {
-		ArrayList<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
+	public void onRestart(final PeerContext ctx) {
+		List<MessageFilter> droppedFilters = null; // rare operation, we can waste objects for better locking
 	    synchronized(_filters) {
-			ListIterator<MessageFilter> i = _filters.listIterator();
-			while (i.hasNext()) {
-			    MessageFilter f = i.next();
-			    if(f.matchesRestartedConnection(ctx)) {
-			    	if(droppedFilters == null)
-			    		droppedFilters = new ArrayList<MessageFilter>();
-			    	droppedFilters.add(f);
-			    	i.remove();
-			    }
-			}
+			droppedFilters = _filters.removeIf(new MessageFilterIndex.Predicate() {
+
+				@Override
+				public boolean apply(MessageFilter f) {
+					return f.matchesRestartedConnection(ctx);
+				}
+
+			});
 	    }
 	    if(droppedFilters != null) {
 	    	for(MessageFilter mf : droppedFilters) {
@@ -381,7 +328,6 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		long timeout = filter.getTimeout();
 		synchronized (_filters) {
 			//Once in the list, it is up to the callback system to trigger the disconnection, however, we may
@@ -391,44 +337,11 @@ public class MessageCore {
 				//or... filter.onDroppedConnection(filter.droppedConnection());
 				//but we are holding the _filters lock!
 			}
-			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				// These messages have already arrived, so we can match against them even if we are timed out.
-				MATCHED status = filter.match(m, true, now);
-				if (status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = matchUnclaimed(filter, now, messageDropTime);
 			if (ret == null && timeout >= System.currentTimeMillis()) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end");
-						return;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > timeout) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout());
-						return;
-					}
-				}
+				_filters.add(filter);
+				return;
 			}
 		}
 		if(ret != null) {
@@ -440,6 +353,29 @@ public class MessageCore {
 		}
 	}
 
+	/**
+	 * Find and remove the oldest unclaimed message matching a filter, and drop any messages older
+	 * than messageDropTime. Caller must hold the _filters lock.
+	 */
+	private Message matchUnclaimed(MessageFilter filter, long now, long messageDropTime) {
+		if(logMINOR) Logger.minor(this, "Checking _unclaimed");
+		// Match first, so we can still match messages which are about to be dropped.
+		Message ret = _unclaimed.find(filter, now, true);
+		if(ret != null && logMINOR) Logger.minor(this, "Matching from _unclaimed");
+		List<Message> dropped = _unclaimed.removeOlderThan(messageDropTime);
+		if(dropped != null) {
+			for(Message m : dropped) {
+				long messageLifeTime = now - m.localInstantiationTime;
+				if ((m.getSource()) instanceof PeerNode) {
+					Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+				} else {
+					Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
+				}
+			}
+		}
+		return ret;
+	}
+
 	/**
 	 * Wait for a filter to trigger, or timeout. Blocks until either the trigger is activated, or it times
 	 * out, or the peer is disconnected.
@@ -473,45 +409,12 @@ public class MessageCore {
 		// Drop any _unclaimed messages that the filter doesn't match that are also older than MAX_UNCLAIMED_FIFO_ITEM_LIFETIME
 		long now = System.currentTimeMillis();
 		long messageDropTime = now - MAX_UNCLAIMED_FIFO_ITEM_LIFETIME;
-		long messageLifeTime = 0;
 		synchronized (_filters) {
-			if(logMINOR) Logger.minor(this, "Checking _unclaimed");
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
-				MATCHED status = filter.match(m, true, startTime);
-				if(status == MATCHED.MATCHED) {
-					i.remove();
-					ret = m;
-					if(logMINOR) Logger.minor(this, "Matching from _unclaimed");
-					break;
-				} else if (m.localInstantiationTime < messageDropTime) {
-					i.remove();
-					messageLifeTime = now - m.localInstantiationTime;
-					if ((m.getSource()) instanceof PeerNode) {
-						Logger.normal(this, "Dropping unclaimed from "+m.getSource().getPeer()+", lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					} else {
-						Logger.normal(this, "Dropping unclaimed, lived "+TimeUtil.formatTime(messageLifeTime, 2, true)+" (age)"+": "+m);
-					}
-				}
-			}
+			ret = matchUnclaimed(filter, now, messageDropTime);
 			if (ret == null) {
 				if(logMINOR) Logger.minor(this, "Not in _unclaimed");
-			    // Insert filter into filter list in order of timeout
-				ListIterator<MessageFilter> i = _filters.listIterator();
-				while (true) {
-					if (!i.hasNext()) {
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added at end "+filter);
-						break;
-					}
-					MessageFilter mf = i.next();
-					if (mf.getTimeout() > filter.getTimeout()) {
-						i.previous();
-						i.add(filter);
-						if(logMINOR) Logger.minor(this, "Added in middle - mf timeout="+mf.getTimeout()+" - my timeout="+filter.getTimeout()+" filter "+filter);
-						break;
-					}
-				}
+				_filters.add(filter);
+				if(logMINOR) Logger.minor(this, "Added "+filter);
 			}
 		}
 		long tEnd = System.currentTimeMillis();
@@ -612,8 +515,7 @@ public class MessageCore {
 	public Map<String, Integer> getUnclaimedFIFOMessageCounts() {
 		Map<String, Integer> messageCounts = new HashMap<String, Integer>();
 		synchronized(_filters) {
-			for (ListIterator<Message> i = _unclaimed.listIterator(); i.hasNext();) {
-				Message m = i.next();
+			for (Message m : _unclaimed.messages()) {
 				String messageName = m.getSpec().getName();
 				Integer messageCount = messageCounts.get(messageName);
 				if (messageCount == null) {
@@ -131,6 +131,24 @@ public final class MessageFilter {
 		return this;
 	}
 	
+	/** The message type this filter (but not the rest of the chain) matches, or null. */
+	MessageType getType() {
+		return _type;
+	}
+
+	/** The next filter in the or() chain, or null. */
+	MessageFilter getOr() {
+		return _or;
+	}
+
+	/** The value this filter (but not the rest of the chain) requires for a field, or null. */
+	Object getField(String fieldName) {
+		synchronized (_fields) {
+			final int i = _fieldNames.indexOf(fieldName);
+			return i >= 0 ? _fields.get(i) : null;
+		}
+	}
+
 	/**
 	 Returns the source that this filter (or chain) matches
 	 */
@@ -0,0 +1,281 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+import freenet.support.Logger;
+
+/**
+ * The MessageFilter's waiting in MessageCore, indexed so that an incoming message only has to be
+ * matched against the filters which could possibly want it.
+ *
+ * Every filter in an or() chain is indexed by its message type, source and UID (the last two
+ * may be null, meaning any). A message is then only checked against filters in the buckets for
+ * its own type/source/UID, the same with a null source and/or UID, and the (hopefully empty)
+ * bucket of filters which don't specify a type. As before, if more than one filter matches, the
+ * one with the earliest timeout wins, with ties going to the filter added first.
+ *
+ * All filters are also kept in timeout order, so expiring them only needs to look at the ones
+ * which have actually timed out, plus the ones with callbacks, which can ask to be timed out
+ * early.
+ *
+ * Not thread-safe: MessageCore synchronizes on this object.
+ */
+class MessageFilterIndex {
+
+	private static final class Key {
+		final MessageType type;
+		final PeerContext source;
+		final Object uid;
+		private final int hashCode;
+
+		Key(MessageType type, PeerContext source, Object uid) {
+			this.type = type;
+			this.source = source;
+			this.uid = uid;
+			int h = type.hashCode();
+			if(source != null) h = h * 31 + source.hashCode();
+			if(uid != null) h = h * 31 + uid.hashCode();
+			hashCode = h;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			if(hashCode != k.hashCode) return false;
+			if(!type.equals(k.type)) return false;
+			if(source == null ? k.source != null : !source.equals(k.source)) return false;
+			if(uid == null ? k.uid != null : !uid.equals(k.uid)) return false;
+			return true;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+	}
+
+	private static final class Entry implements Comparable<Entry> {
+		final MessageFilter filter;
+		/** The timeout when the filter was added. Doesn't change while it is indexed. */
+		final long timeout;
+		/** Order of addition, to break ties. */
+		final long seq;
+		/** Buckets this filter is in; null elements mean the unindexed bucket. */
+		final Key[] keys;
+		final boolean hasCallback;
+
+		Entry(MessageFilter filter, long seq, Key[] keys) {
+			this.filter = filter;
+			this.timeout = filter.getTimeout();
+			this.seq = seq;
+			this.keys = keys;
+			this.hasCallback = filter.hasCallback();
+		}
+
+		@Override
+		public int compareTo(Entry e) {
+			if(timeout < e.timeout) return -1;
+			if(timeout > e.timeout) return 1;
+			if(seq < e.seq) return -1;
+			if(seq > e.seq) return 1;
+			return 0;
+		}
+	}
+
+	private final Map<MessageFilter, Entry> entries = new IdentityHashMap<MessageFilter, Entry>();
+	/** All filters in timeout order. */
+	private final TreeSet<Entry> byTimeout = new TreeSet<Entry>();
+	/** Filters with callbacks, which can time out at any time. */
+	private final Set<Entry> withCallback = new LinkedHashSet<Entry>();
+	private final Map<Key, TreeSet<Entry>> buckets = new HashMap<Key, TreeSet<Entry>>();
+	/** Filters which don't specify a type, so can match anything. */
+	private final TreeSet<Entry> unindexed = new TreeSet<Entry>();
+	private long nextSeq;
+
+	/** Add a filter. If it is already present, it is re-added with its current timeout. */
+	void add(MessageFilter filter) {
+		if(remove(filter))
+			Logger.error(this, "Filter "+filter+" is in filter list twice!", new Exception("error"));
+		List<Key> keys = new ArrayList<Key>(2);
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			MessageType type = f.getType();
+			Key key = type == null ? null : new Key(type, f.getSource(), f.getField(DMT.UID));
+			if(!keys.contains(key))
+				keys.add(key);
+		}
+		Entry e = new Entry(filter, nextSeq++, keys.toArray(new Key[keys.size()]));
+		entries.put(filter, e);
+		byTimeout.add(e);
+		if(e.hasCallback)
+			withCallback.add(e);
+		for(Key key : e.keys) {
+			if(key == null) {
+				unindexed.add(e);
+			} else {
+				TreeSet<Entry> bucket = buckets.get(key);
+				if(bucket == null) {
+					bucket = new TreeSet<Entry>();
+					buckets.put(key, bucket);
+				}
+				bucket.add(e);
+			}
+		}
+	}
+
+	/** @return True if the filter was present. */
+	boolean remove(MessageFilter filter) {
+		Entry e = entries.remove(filter);
+		if(e == null) return false;
+		byTimeout.remove(e);
+		if(e.hasCallback)
+			withCallback.remove(e);
+		for(Key key : e.keys) {
+			if(key == null) {
+				unindexed.remove(e);
+			} else {
+				TreeSet<Entry> bucket = buckets.get(key);
+				bucket.remove(e);
+				if(bucket.isEmpty())
+					buckets.remove(key);
+			}
+		}
+		return true;
+	}
+
+	int size() {
+		return entries.size();
+	}
+
+	/** @return All the filters, in timeout order. */
+	List<MessageFilter> filters() {
+		List<MessageFilter> list = new ArrayList<MessageFilter>(byTimeout.size());
+		for(Entry e : byTimeout)
+			list.add(e.filter);
+		return list;
+	}
+
+	/**
+	 * Find the filter which should get a message, and remove it. Any timed out filters
+	 * encountered on the way are removed too, and added to timedOut.
+	 * @return The filter, or null if none matched.
+	 */
+	MessageFilter match(Message m, long now, List<MessageFilter> timedOut) {
+		MessageType type = m.getSpec();
+		PeerContext source = m.getSource();
+		Object uid = m.isSet(DMT.UID) ? m.getFromPayload(DMT.UID) : null;
+		List<Entry> remove = null;
+		Entry best = null;
+		for(int i=0;i<5;i++) {
+			TreeSet<Entry> bucket;
+			if(i == 4) {
+				bucket = unindexed;
+			} else {
+				PeerContext s = (i & 1) == 0 ? source : null;
+				Object u = (i & 2) == 0 ? uid : null;
+				// Don't check the same bucket twice.
+				if((i & 1) != 0 && source == null) continue;
+				if((i & 2) != 0 && uid == null) continue;
+				bucket = buckets.get(new Key(type, s, u));
+			}
+			if(bucket == null || bucket.isEmpty()) continue;
+			for(Entry e : bucket) {
+				if(best != null && e.compareTo(best) >= 0)
+					break;
+				MessageFilter f = e.filter;
+				if(f.matched()) {
+					Logger.error(this, "removed pre-matched message filter found in _filters: "+f);
+					if(remove == null) remove = new ArrayList<Entry>();
+					remove.add(e);
+					continue;
+				}
+				MATCHED status = f.match(m, now);
+				if(status == MATCHED.TIMED_OUT || status == MATCHED.TIMED_OUT_AND_MATCHED) {
+					if(remove == null) remove = new ArrayList<Entry>();
+					remove.add(e);
+					if(timedOut != null) timedOut.add(f);
+				} else if(status == MATCHED.MATCHED) {
+					best = e;
+					break; // Only one match permitted per message
+				}
+			}
+		}
+		if(remove != null) {
+			for(Entry e : remove)
+				remove(e.filter);
+		}
+		if(best == null) return null;
+		remove(best.filter);
+		return best.filter;
+	}
+
+	/**
+	 * Remove all filters which have timed out.
+	 * @param timedOut Removed filters are added to this list.
+	 * @param nextTimeout The latest time at which we should check again.
+	 * @return The earliest time at which we should check again, considering filters with
+	 * callbacks.
+	 */
+	long removeTimedOut(long now, List<MessageFilter> timedOut, long nextTimeout) {
+		List<Entry> remove = null;
+		for(Entry e : byTimeout) {
+			if(e.timeout >= now) break;
+			if(e.filter.timedOut(now)) {
+				if(remove == null) remove = new ArrayList<Entry>();
+				remove.add(e);
+			}
+		}
+		// Filters with callbacks can ask to time out early, so we have to check all of them.
+		for(Entry e : withCallback) {
+			if(e.timeout < now) continue; // Already checked.
+			if(e.filter.timedOut(now)) {
+				if(remove == null) remove = new ArrayList<Entry>();
+				remove.add(e);
+			} else if(nextTimeout > e.filter.getTimeout()) {
+				nextTimeout = e.filter.getTimeout();
+			}
+		}
+		if(remove != null) {
+			for(Entry e : remove) {
+				remove(e.filter);
+				timedOut.add(e.filter);
+			}
+		}
+		return nextTimeout;
+	}
+
+	/** Remove all filters for which the predicate is true.
+	 * @return The removed filters, or null. */
+	List<MessageFilter> removeIf(Predicate predicate) {
+		List<MessageFilter> removed = null;
+		for(Iterator<Entry> i = byTimeout.iterator(); i.hasNext();) {
+			Entry e = i.next();
+			if(predicate.apply(e.filter)) {
+				if(removed == null) removed = new ArrayList<MessageFilter>();
+				removed.add(e.filter);
+			}
+		}
+		if(removed != null) {
+			for(MessageFilter f : removed)
+				remove(f);
+		}
+		return removed;
+	}
+
+	interface Predicate {
+		boolean apply(MessageFilter filter);
+	}
+
+}
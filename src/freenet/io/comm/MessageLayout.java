@@ -0,0 +1,171 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The compiled field layout of a MessageType. Each field gets a slot: primitive fields are
+ * stored unboxed in a long[] (floating point values as their raw bits), everything else in an
+ * Object[]. Message uses this so that encoding and decoding can walk the fields in wire order
+ * without boxing or looking up field names, and a message costs two small arrays rather than
+ * a HashMap.
+ *
+ * Built once, the first time a message of the type is created; the type's fields cannot be
+ * changed after that.
+ */
+final class MessageLayout {
+
+	static final byte BOOLEAN = 0;
+	static final byte BYTE = 1;
+	static final byte SHORT = 2;
+	static final byte INT = 3;
+	static final byte LONG = 4;
+	static final byte FLOAT = 5;
+	static final byte DOUBLE = 6;
+	static final byte OBJECT = 7;
+
+	/** We track which fields are set in a single long. */
+	static final int MAX_FIELDS = 64;
+
+	final MessageType spec;
+	/** Field names in wire order. */
+	final String[] names;
+	/** Type code for each field, in wire order. */
+	final byte[] codes;
+	/** Declared type for each field, in wire order. */
+	final Class<?>[] types;
+	/** Element type for LinkedList fields, otherwise null. */
+	final Class<?>[] listTypes;
+	/** Index into the long[] or Object[] for each field, in wire order. */
+	final int[] slots;
+	final int primitiveCount;
+	final int objectCount;
+	/** Encoded length of the primitive fields, plus the message type. */
+	final int fixedLength;
+	private final HashMap<String, Integer> fieldIndex;
+
+	MessageLayout(MessageType spec) {
+		this.spec = spec;
+		List<String> ordered = spec.getOrderedFields();
+		int count = ordered.size();
+		if(count > MAX_FIELDS)
+			throw new IllegalStateException("Too many fields in "+spec.getName()+": "+count);
+		names = ordered.toArray(new String[count]);
+		codes = new byte[count];
+		types = new Class<?>[count];
+		listTypes = new Class<?>[count];
+		slots = new int[count];
+		fieldIndex = new HashMap<String, Integer>(count * 2);
+		int primitives = 0;
+		int objects = 0;
+		int length = 4;
+		for(int i=0;i<count;i++) {
+			Class<?> type = spec.typeOf(names[i]);
+			types[i] = type;
+			byte code = codeFor(type);
+			codes[i] = code;
+			if(code == OBJECT) {
+				slots[i] = objects++;
+				if(type.equals(LinkedList.class))
+					listTypes[i] = spec.getLinkedListTypes().get(names[i]);
+			} else {
+				slots[i] = primitives++;
+				length += encodedLength(code);
+			}
+			fieldIndex.put(names[i], i);
+		}
+		primitiveCount = primitives;
+		objectCount = objects;
+		fixedLength = length;
+	}
+
+	private static byte codeFor(Class<?> type) {
+		if(type == Boolean.class) return BOOLEAN;
+		if(type == Byte.class) return BYTE;
+		if(type == Short.class) return SHORT;
+		if(type == Integer.class) return INT;
+		if(type == Long.class) return LONG;
+		if(type == Float.class) return FLOAT;
+		if(type == Double.class) return DOUBLE;
+		return OBJECT;
+	}
+
+	private static int encodedLength(byte code) {
+		switch(code) {
+		case BOOLEAN:
+		case BYTE:
+			return 1;
+		case SHORT:
+			return 2;
+		case INT:
+		case FLOAT:
+			return 4;
+		default:
+			return 8;
+		}
+	}
+
+	/** @return The index of the field in wire order, or -1 if there is no such field. */
+	int indexOf(String name) {
+		Integer i = fieldIndex.get(name);
+		return i == null ? -1 : i;
+	}
+
+	/** Like indexOf() but throws the same exception MessageType.checkType() does. */
+	int checkedIndexOf(String name) {
+		Integer i = fieldIndex.get(name);
+		if(i == null)
+			throw new IllegalStateException("Cannot set field \"" + name + "\" which is not defined" +
+			                                " in the message type \"" + spec.getName() + "\".");
+		return i;
+	}
+
+	/** Box a primitive slot value, for the Object accessors. */
+	static Object box(byte code, long value) {
+		switch(code) {
+		case BOOLEAN:
+			return Boolean.valueOf(value != 0);
+		case BYTE:
+			return Byte.valueOf((byte) value);
+		case SHORT:
+			return Short.valueOf((short) value);
+		case INT:
+			return Integer.valueOf((int) value);
+		case LONG:
+			return Long.valueOf(value);
+		case FLOAT:
+			return Float.valueOf(Float.intBitsToFloat((int) value));
+		case DOUBLE:
+			return Double.valueOf(Double.longBitsToDouble(value));
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+	/** Unbox a value of the right type for a primitive slot. */
+	static long unbox(byte code, Object value) {
+		switch(code) {
+		case BOOLEAN:
+			return ((Boolean) value) ? 1 : 0;
+		case BYTE:
+			return (Byte) value;
+		case SHORT:
+			return (Short) value;
+		case INT:
+			return (Integer) value;
+		case LONG:
+			return (Long) value;
+		case FLOAT:
+			return Float.floatToRawIntBits((Float) value);
+		case DOUBLE:
+			return Double.doubleToRawLongBits((Double) value);
+		default:
+			throw new IllegalArgumentException();
+		}
+	}
+
+}
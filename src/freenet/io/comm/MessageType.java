@@ -40,6 +40,8 @@ public class MessageType {
 	private final boolean internalOnly;
 	private final short priority;
 	private final boolean isLossyPacketMessage;
+	/** Compiled on first use, after which the fields can't be changed. */
+	private volatile MessageLayout layout;
 
 	public MessageType(String name, short priority) {
 	    this(name, priority, false, false);
@@ -68,6 +70,10 @@ public class MessageType {
 	}
 
 	public void addField(String name, Class<?> type) {
+		if (layout != null) {
+			throw new IllegalStateException("Cannot add field \"" + name + "\" to the message type \"" +
+			                                _name + "\" after it has been used.");
+		}
 		_fields.put(name, type);
 		_orderedFields.addLast(name);
 	}
@@ -94,6 +100,17 @@ public class MessageType {
 		return false;
 	}
 
+	/** @return The compiled layout of the fields, which Message uses to store them. */
+	MessageLayout getLayout() {
+		MessageLayout l = layout;
+		if (l != null) return l;
+		synchronized (this) {
+			if (layout == null)
+				layout = new MessageLayout(this);
+			return layout;
+		}
+	}
+
 	public Class<?> typeOf(String field) {
 		return _fields.get(field);
 	}
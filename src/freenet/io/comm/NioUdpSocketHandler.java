@@ -0,0 +1,225 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import freenet.node.Node;
+import freenet.support.Logger;
+
+/**
+ * UdpSocketHandler using a non-blocking DatagramChannel.
+ *
+ * The receive thread drains up to MAX_RECEIVE_BATCH datagrams each time the selector wakes it
+ * up, into a single direct buffer. Outgoing packets are copied into pooled direct buffers and
+ * queued; whichever thread gets the send lock flushes everything queued so far, so packets
+ * sent by several threads at once go out in one batch. If the socket buffer is full, the
+ * receive thread finishes the flush when the channel becomes writable. The packet format and
+ * the interface to IncomingPacketFilter are unchanged.
+ */
+public class NioUdpSocketHandler extends UdpSocketHandler {
+
+	/** Maximum number of datagrams to read per wakeup. */
+	static final int MAX_RECEIVE_BATCH = 64;
+	/** Maximum number of packets waiting to be sent. If the queue is full we drop the packet,
+	 * just as the kernel would if the socket buffer was full. */
+	static final int MAX_SEND_QUEUE = 1024;
+	/** Maximum number of send buffers to keep for reuse. */
+	static final int MAX_POOLED_BUFFERS = 128;
+	/** Wake up this often even if nothing happens, so we notice when we are closed. */
+	private static final long SELECT_TIMEOUT = 1000;
+
+	private final DatagramChannel channel;
+	private final Selector selector;
+	/** Only used by the receive thread. */
+	private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+	/** Only used by the receive thread. IncomingPacketFilter wants an array. */
+	private final byte[] receiveArray = new byte[MAX_RECEIVE_SIZE];
+	private final ConcurrentLinkedQueue<OutgoingPacket> sendQueue = new ConcurrentLinkedQueue<OutgoingPacket>();
+	private final AtomicInteger sendQueueSize = new AtomicInteger();
+	private final ArrayBlockingQueue<ByteBuffer> bufferPool = new ArrayBlockingQueue<ByteBuffer>(MAX_POOLED_BUFFERS);
+	private final ReentrantLock sendLock = new ReentrantLock();
+	/** True if the socket buffer was full. The receive thread will flush the queue when the
+	 * channel becomes writable. */
+	private volatile boolean writeBlocked;
+
+	private static volatile boolean logMINOR;
+
+	static {
+		Logger.registerClass(NioUdpSocketHandler.class);
+	}
+
+	private static final class OutgoingPacket {
+		final ByteBuffer buffer;
+		final InetSocketAddress target;
+		final Peer destination;
+		final int length;
+
+		OutgoingPacket(ByteBuffer buffer, Peer destination, InetAddress address, int port, int length) {
+			this.buffer = buffer;
+			this.target = new InetSocketAddress(address, port);
+			this.destination = destination;
+			this.length = length;
+		}
+	}
+
+	public NioUdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws IOException {
+		this(openChannel(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+	}
+
+	private NioUdpSocketHandler(DatagramChannel channel, int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws IOException {
+		super(channel.socket(), listenPort, bindto, node, startupTime, title, collector);
+		this.channel = channel;
+		channel.configureBlocking(false);
+		selector = Selector.open();
+	}
+
+	private static DatagramChannel openChannel(int listenPort, InetAddress bindto) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		try {
+			channel.socket().bind(new InetSocketAddress(bindto, listenPort));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel;
+	}
+
+	@Override
+	protected void runLoop() {
+		SelectionKey key;
+		try {
+			key = channel.register(selector, SelectionKey.OP_READ);
+		} catch (IOException e) {
+			if(isActive())
+				Logger.error(this, "Unable to register with selector: "+e, e);
+			return;
+		}
+		while (isActive()) {
+			try {
+				int ops = writeBlocked ? (SelectionKey.OP_READ | SelectionKey.OP_WRITE) : SelectionKey.OP_READ;
+				if(key.interestOps() != ops) key.interestOps(ops);
+				selector.select(SELECT_TIMEOUT);
+				selector.selectedKeys().clear();
+				if(!isActive()) break;
+				if(writeBlocked && key.isWritable()) {
+					writeBlocked = false;
+					flush();
+				}
+				receiveBatch();
+			} catch (Throwable t) {
+				if(!isActive()) break; // Closed.
+				System.err.println("Caught "+t);
+				t.printStackTrace(System.err);
+				Logger.error(this, "Caught " + t, t);
+			}
+		}
+	}
+
+	/** Read and process datagrams until there are none left or we have read a full batch. */
+	private void receiveBatch() throws IOException {
+		for(int i=0;i<MAX_RECEIVE_BATCH;i++) {
+			receiveBuffer.clear();
+			InetSocketAddress from = (InetSocketAddress) channel.receive(receiveBuffer);
+			if(from == null) return;
+			receiveBuffer.flip();
+			int length = receiveBuffer.remaining();
+			receiveBuffer.get(receiveArray, 0, length);
+			handlePacket(from.getAddress(), from.getPort(), receiveArray, 0, length);
+		}
+	}
+
+	@Override
+	protected void sendTo(byte[] blockToSend, Peer destination, InetAddress address, int port) {
+		if(sendQueueSize.incrementAndGet() > MAX_SEND_QUEUE) {
+			sendQueueSize.decrementAndGet();
+			if(logMINOR) Logger.minor(this, "Send queue full, dropping packet to "+destination);
+			return;
+		}
+		ByteBuffer buffer = allocate(blockToSend.length);
+		buffer.put(blockToSend);
+		buffer.flip();
+		sendQueue.add(new OutgoingPacket(buffer, destination, address, port, blockToSend.length));
+		if(!writeBlocked) flush();
+	}
+
+	/** Send as many queued packets as the socket will take. If another thread is already
+	 * flushing, it will send ours too. */
+	private void flush() {
+		while(sendLock.tryLock()) {
+			try {
+				OutgoingPacket packet;
+				while((packet = sendQueue.peek()) != null) {
+					int sent;
+					try {
+						sent = send(packet.buffer, packet.target);
+					} catch (IOException e) {
+						sent = -1;
+						sendFailed(packet.destination, packet.target.getAddress(), e);
+					}
+					if(sent == 0) {
+						// Socket buffer is full. Wait until it is writable.
+						writeBlocked = true;
+						selector.wakeup();
+						return;
+					}
+					sendQueue.poll();
+					sendQueueSize.decrementAndGet();
+					if(sent > 0)
+						sentPacket(packet.destination, packet.target.getAddress(), packet.target.getPort(), packet.length);
+					release(packet.buffer);
+				}
+			} finally {
+				sendLock.unlock();
+			}
+			// Somebody may have queued a packet after we emptied the queue but before we
+			// released the lock; they won't have flushed it, so we must.
+			if(sendQueue.isEmpty() || writeBlocked) return;
+		}
+	}
+
+	/** Send one datagram without blocking. Separate so the tests can simulate a full socket
+	 * buffer.
+	 * @return The number of bytes sent, or 0 if the socket buffer is full. */
+	int send(ByteBuffer buffer, InetSocketAddress target) throws IOException {
+		return channel.send(buffer, target);
+	}
+
+	private ByteBuffer allocate(int length) {
+		if(length > MAX_RECEIVE_SIZE)
+			return ByteBuffer.allocate(length);
+		ByteBuffer buffer = bufferPool.poll();
+		if(buffer == null)
+			buffer = ByteBuffer.allocateDirect(MAX_RECEIVE_SIZE);
+		buffer.clear();
+		return buffer;
+	}
+
+	private void release(ByteBuffer buffer) {
+		if(buffer.isDirect())
+			bufferPool.offer(buffer);
+	}
+
+	@Override
+	public void close() {
+		selector.wakeup();
+		super.close();
+		try {
+			selector.close();
+		} catch (IOException e) {
+			Logger.error(this, "Unable to close selector: "+e, e);
+		}
+	}
+
+}
@@ -46,6 +46,12 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
         }
 
 	public UdpSocketHandler(int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
+		this(new DatagramSocket(listenPort, bindto), listenPort, bindto, node, startupTime, title, collector);
+	}
+
+	/** For subclasses which implement the transport differently.
+	 * @param sock An already bound socket. */
+	protected UdpSocketHandler(DatagramSocket sock, int listenPort, InetAddress bindto, Node node, long startupTime, String title, IOStatisticCollector collector) throws SocketException {
 		this.node = node;
 		this.collector = collector;
 		this.title = title;
@@ -56,7 +62,7 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 //			_sock = (DatagramSocket) Updater.getResource();
 //		} else {
 		this.listenPort = listenPort;
-		_sock = new DatagramSocket(listenPort, bindto);
+		_sock = sock;
 		int sz = _sock.getReceiveBufferSize();
 		if(sz < 65536) {
 			_sock.setReceiveBufferSize(65536);
@@ -135,7 +141,8 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 	}
 
-	private void runLoop() {
+	/** Receive packets and pass them to handlePacket() until we are closed. */
+	protected void runLoop() {
 		byte[] buf = new byte[MAX_RECEIVE_SIZE];
 		DatagramPacket packet = new DatagramPacket(buf, buf.length);
 		while (_active) {
@@ -152,54 +159,56 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 	private void realRun(DatagramPacket packet) {
 		// Single receiving thread
 		boolean gotPacket = getPacket(packet);
-		long now = System.currentTimeMillis();
 		if (gotPacket) {
-			long startTime = System.currentTimeMillis();
-			Peer peer = new Peer(packet.getAddress(), packet.getPort());
-			tracker.receivedPacketFrom(peer);
-			long endTime = System.currentTimeMillis();
+			handlePacket(packet.getAddress(), packet.getPort(), packet.getData(), packet.getOffset(), packet.getLength());
+		} else {
+			if(logDEBUG) Logger.debug(this, "No packet received");
+		}
+	}
+
+	/** Account for a received packet and pass it to the low level filter. The buffer may be
+	 * reused as soon as this returns. */
+	protected final void handlePacket(InetAddress address, int port, byte[] data, int offset, int length) {
+		long now = System.currentTimeMillis();
+		boolean isLocal = !IPUtil.isValidAddress(address, false);
+		collector.addInfo(address, port, getHeadersLength(address) + length, 0, isLocal);
+		if(logMINOR) Logger.minor(this, "Received packet");
+		long startTime = System.currentTimeMillis();
+		Peer peer = new Peer(address, port);
+		tracker.receivedPacketFrom(peer);
+		long endTime = System.currentTimeMillis();
+		if(endTime - startTime > 50) {
+			if(endTime-startTime > 3000) {
+				Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+			} else {
+				if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+			}
+		}
+		try {
+			if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
+			startTime = System.currentTimeMillis();
+			lowLevelFilter.process(data, offset, length, peer, now);
+			endTime = System.currentTimeMillis();
 			if(endTime - startTime > 50) {
 				if(endTime-startTime > 3000) {
-					Logger.error(this, "packet creation took "+(endTime-startTime)+"ms");
+					Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
 				} else {
-					if(logMINOR) Logger.minor(this, "packet creation took "+(endTime-startTime)+"ms");
+					if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
 				}
 			}
-			byte[] data = packet.getData();
-			int offset = packet.getOffset();
-			int length = packet.getLength();
-			try {
-				if(logMINOR) Logger.minor(this, "Processing packet of length "+length+" from "+peer);
-				startTime = System.currentTimeMillis();
-				lowLevelFilter.process(data, offset, length, peer, now);
-				endTime = System.currentTimeMillis();
-				if(endTime - startTime > 50) {
-					if(endTime-startTime > 3000) {
-						Logger.error(this, "processing packet took "+(endTime-startTime)+"ms");
-					} else {
-						if(logMINOR) Logger.minor(this, "processing packet took "+(endTime-startTime)+"ms");
-					}
-				}
-				if(logMINOR) Logger.minor(this,
-						"Successfully handled packet length " + length);
-			} catch (Throwable t) {
-				Logger.error(this, "Caught " + t + " from "
-						+ lowLevelFilter, t);
-			}
-		} else {
-			if(logDEBUG) Logger.debug(this, "No packet received");
+			if(logMINOR) Logger.minor(this,
+					"Successfully handled packet length " + length);
+		} catch (Throwable t) {
+			Logger.error(this, "Caught " + t + " from "
+					+ lowLevelFilter, t);
 		}
 	}
 
-	private static final int MAX_RECEIVE_SIZE = 1500;
+	static final int MAX_RECEIVE_SIZE = 1500;
 
 	private boolean getPacket(DatagramPacket packet) {
 		try {
 			_sock.receive(packet);
-			InetAddress address = packet.getAddress();
-			boolean isLocal = !IPUtil.isValidAddress(address, false);
-			collector.addInfo(address, packet.getPort(),
-					getHeadersLength(address) + packet.getLength(), 0, isLocal);
 		} catch (SocketTimeoutException e1) {
 			return false;
 		} catch (IOException e2) {
@@ -209,7 +218,6 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 				throw new RuntimeException(e2);
 			}
 		}
-		if(logMINOR) Logger.minor(this, "Received packet");
 		return true;
 	}
 
@@ -244,23 +252,36 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		}
 		InetAddress address = destination.getAddress(false, allowLocalAddresses);
 		assert(address != null);
-		int port = destination.getPort();
+		sendTo(blockToSend, destination, address, destination.getPort());
+	}
+
+	/** Actually send a packet, and call sentPacket() or sendFailed(). The caller may reuse the
+	 * buffer as soon as this returns. */
+	protected void sendTo(byte[] blockToSend, Peer destination, InetAddress address, int port) {
 		DatagramPacket packet = new DatagramPacket(blockToSend, blockToSend.length);
 		packet.setAddress(address);
 		packet.setPort(port);
 
 		try {
 			_sock.send(packet);
-			tracker.sentPacketTo(destination);
-			boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
-			collector.addInfo(address, port, 0, getHeadersLength(address) + blockToSend.length, isLocal);
-			if(logMINOR) Logger.minor(this, "Sent packet length "+blockToSend.length+" to "+address+':'+port);
+			sentPacket(destination, address, port, blockToSend.length);
 		} catch (IOException e) {
-			if(packet.getAddress() instanceof Inet6Address) {
-				Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
-			} else {
-				Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
-			}
+			sendFailed(destination, address, e);
+		}
+	}
+
+	protected final void sentPacket(Peer destination, InetAddress address, int port, int length) {
+		tracker.sentPacketTo(destination);
+		boolean isLocal = (!IPUtil.isValidAddress(address, false)) && (IPUtil.isValidAddress(address, true));
+		collector.addInfo(address, port, 0, getHeadersLength(address) + length, isLocal);
+		if(logMINOR) Logger.minor(this, "Sent packet length "+length+" to "+address+':'+port);
+	}
+
+	protected final void sendFailed(Peer destination, InetAddress address, IOException e) {
+		if(address instanceof Inet6Address) {
+			Logger.normal(this, "Error while sending packet to IPv6 address: "+destination+": "+e);
+		} else {
+			Logger.error(this, "Error while sending packet to " + destination+": "+e, e);
 		}
 	}
 
@@ -388,6 +409,10 @@ public class UdpSocketHandler implements PrioRunnable, PacketSocketHandler, Port
 		return NativeThread.MAX_PRIORITY;
 	}
 
+	protected boolean isActive() {
+		return _active;
+	}
+
 	public long getStartTime() {
 		return startTime;
 	}
@@ -0,0 +1,161 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.io.comm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import freenet.io.comm.MessageFilter.MATCHED;
+
+/**
+ * MessageCore's FIFO of recently received messages which nobody has claimed yet, indexed by
+ * message type and UID, so a new filter only has to be checked against the messages it could
+ * possibly match.
+ *
+ * We deliberately don't index by source: the messages only hold weak references to their
+ * sources, and the index shouldn't keep a disconnected peer alive.
+ *
+ * Not thread-safe: MessageCore synchronizes on its filter index.
+ */
+class UnclaimedMessageIndex {
+
+	private static final class Key {
+		final MessageType type;
+		final Object uid;
+
+		Key(MessageType type, Object uid) {
+			this.type = type;
+			this.uid = uid;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Key)) return false;
+			Key k = (Key) o;
+			return type.equals(k.type) && (uid == null ? k.uid == null : uid.equals(k.uid));
+		}
+
+		@Override
+		public int hashCode() {
+			return type.hashCode() * 31 + (uid == null ? 0 : uid.hashCode());
+		}
+	}
+
+	private static final class Item {
+		final Message message;
+		final long seq;
+		/** The type only bucket, and the type and UID bucket if the message has a UID. */
+		final Key[] keys;
+
+		Item(Message message, long seq, Key[] keys) {
+			this.message = message;
+			this.seq = seq;
+			this.keys = keys;
+		}
+	}
+
+	/** All messages in order of arrival. */
+	private final LinkedHashSet<Item> fifo = new LinkedHashSet<Item>();
+	/** Messages by type, and by type and UID, in order of arrival. */
+	private final Map<Key, LinkedHashSet<Item>> buckets = new HashMap<Key, LinkedHashSet<Item>>();
+	private long nextSeq;
+
+	void addLast(Message m) {
+		MessageType type = m.getSpec();
+		Key[] keys;
+		if(m.isSet(DMT.UID))
+			keys = new Key[] { new Key(type, null), new Key(type, m.getFromPayload(DMT.UID)) };
+		else
+			keys = new Key[] { new Key(type, null) };
+		Item item = new Item(m, nextSeq++, keys);
+		fifo.add(item);
+		for(Key key : keys) {
+			LinkedHashSet<Item> bucket = buckets.get(key);
+			if(bucket == null) {
+				bucket = new LinkedHashSet<Item>();
+				buckets.put(key, bucket);
+			}
+			bucket.add(item);
+		}
+	}
+
+	private void remove(Item item) {
+		fifo.remove(item);
+		for(Key key : item.keys) {
+			LinkedHashSet<Item> bucket = buckets.get(key);
+			bucket.remove(item);
+			if(bucket.isEmpty())
+				buckets.remove(key);
+		}
+	}
+
+	/** Remove and return the oldest message. */
+	Message removeFirst() {
+		Iterator<Item> it = fifo.iterator();
+		Item item = it.next();
+		remove(item);
+		return item.message;
+	}
+
+	/** Remove messages from the start of the FIFO which arrived before the given time.
+	 * @return The removed messages, or null. */
+	List<Message> removeOlderThan(long time) {
+		List<Message> removed = null;
+		while(!fifo.isEmpty()) {
+			Item item = fifo.iterator().next();
+			if(item.message.localInstantiationTime >= time) break;
+			remove(item);
+			if(removed == null) removed = new ArrayList<Message>();
+			removed.add(item.message);
+		}
+		return removed;
+	}
+
+	int size() {
+		return fifo.size();
+	}
+
+	/** @return All the messages, oldest first. */
+	List<Message> messages() {
+		List<Message> list = new ArrayList<Message>(fifo.size());
+		for(Item item : fifo)
+			list.add(item.message);
+		return list;
+	}
+
+	/**
+	 * Find the oldest message which matches a filter, ignoring the filter's timeout.
+	 * @param remove If true, remove the message if found.
+	 * @return The message, or null.
+	 */
+	Message find(MessageFilter filter, long now, boolean remove) {
+		Item best = null;
+		for(MessageFilter f = filter; f != null; f = f.getOr()) {
+			MessageType type = f.getType();
+			Iterable<Item> candidates;
+			if(type == null) {
+				candidates = fifo;
+			} else {
+				candidates = buckets.get(new Key(type, f.getField(DMT.UID)));
+				if(candidates == null) continue;
+			}
+			for(Item item : candidates) {
+				if(best != null && item.seq >= best.seq) break;
+				// These messages have already arrived, so we can match against them even if we are timed out.
+				if(filter.match(item.message, true, now) == MATCHED.MATCHED) {
+					best = item;
+					break;
+				}
+			}
+		}
+		if(best == null) return null;
+		if(remove) remove(best);
+		return best.message;
+	}
+
+}
@@ -25,6 +25,7 @@ import freenet.crypt.Util;
 import freenet.crypt.ciphers.Rijndael;
 import freenet.keys.Key.Compressed;
 import freenet.node.Node;
+import freenet.support.HelperThreads;
 import freenet.support.Logger;
 import freenet.support.api.Bucket;
 import freenet.support.api.BucketFactory;
@@ -119,7 +120,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // Overall hash already verified, so first job is to decrypt.
 		if(key.cryptoAlgorithm != Key.ALGO_AES_PCFB_256_SHA256)
             throw new UnsupportedOperationException();
-        BlockCipher cipher;
+        Rijndael cipher;
         try {
             cipher = new Rijndael(256, 256);
         } catch (UnsupportedCipherException e) {
@@ -129,7 +130,8 @@ public class ClientCHKBlock implements ClientKeyBlock {
         byte[] cryptoKey = key.cryptoKey;
         if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
             throw new CHKDecodeException("Crypto key too short");
-        cipher.initialize(key.cryptoKey);
+        // The blocks of a splitfile segment share a crypto key.
+        cipher.initializeCached(key.cryptoKey);
         PCFBMode pcfb = PCFBMode.create(cipher);
         byte[] headers = block.headers;
         byte[] data = block.data;
@@ -188,6 +190,36 @@ public class ClientCHKBlock implements ClientKeyBlock {
 		}
 		return times;
 	}
+	/** Cipher.getInstance() and Mac.getInstance() cost more than encrypting a whole block, so
+	 * each thread keeps one of each. Every user calls init() before using them. */
+	private static final ThreadLocal<JCAObjects> jcaObjects = new ThreadLocal<JCAObjects>() {
+		@Override
+		protected JCAObjects initialValue() {
+			return new JCAObjects();
+		}
+	};
+
+	private static final class JCAObjects {
+		private Cipher aesCTR;
+		private Mac hmac;
+	}
+
+	/** @return This thread's AES/CTR cipher. Must be initialised before use. */
+	private static Cipher getAESCTR() throws GeneralSecurityException {
+		JCAObjects objects = jcaObjects.get();
+		if(objects.aesCTR == null)
+			objects.aesCTR = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+		return objects.aesCTR;
+	}
+
+	/** @return This thread's HMAC-SHA256. Must be initialised before use. */
+	private static Mac getHMAC() throws GeneralSecurityException {
+		JCAObjects objects = jcaObjects.get();
+		if(objects.hmac == null)
+			objects.hmac = Mac.getInstance("HmacSHA256", hmacProvider);
+		return objects.hmac;
+	}
+
 	static {
 		try {
 			final Class<ClientCHKBlock> clazz = ClientCHKBlock.class;
@@ -248,7 +280,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         if(cryptoKey.length < Node.SYMMETRIC_KEY_LENGTH)
             throw new CHKDecodeException("Crypto key too short");
 		try {
-        Cipher cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+        Cipher cipher = getAESCTR();
         cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(cryptoKey, "AES"), new IvParameterSpec(hash, 0, 16));
         byte[] plaintext = new byte[data.length + 2];
 		int moved = cipher.update(data, 0, data.length, plaintext);
@@ -258,7 +290,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
             throw new CHKDecodeException("Invalid size: "+size);
         }
         // Check the hash.
-        Mac hmac = Mac.getInstance("HmacSHA256", hmacProvider);
+        Mac hmac = getHMAC();
         hmac.init(new SecretKeySpec(cryptoKey, "HmacSHA256"));
         hmac.update(plaintext); // plaintext includes lengthBytes
         byte[] hashCheck = hmac.doFinal();
@@ -295,7 +327,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
 			// Impossible.
 			throw new Error(e);
 		}
-		aes.initialize(cryptoKey);
+		aes.initializeCached(cryptoKey);
         CTRBlockCipher cipher = new CTRBlockCipher(aes);
         cipher.init(hash, 0, 16);
         byte[] plaintext = new byte[data.length];
@@ -308,7 +340,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         }
 		try {
         // Check the hash.
-        Mac hmac = Mac.getInstance("HmacSHA256", hmacProvider);
+        Mac hmac = getHMAC();
         hmac.init(new SecretKeySpec(cryptoKey, "HmacSHA256"));
         hmac.update(plaintext);
         hmac.update(lengthBytes);
@@ -348,6 +380,34 @@ public class ClientCHKBlock implements ClientKeyBlock {
 			}
     }
     
+    /**
+     * Encode many splitfile blocks at once, across all cores, e.g. to check all the blocks of a
+     * segment against their keys.
+     * @param data The blocks to encode. Each must be exactly DATA_LENGTH bytes.
+     * @param keys The keys the blocks should have. The crypto key and algorithm are used to
+     * encode the block. If keys[i] is null, data[i] is ignored.
+     * @return The encoded blocks. Null where keys[i] is null or the block could not be encoded.
+     */
+    public static ClientCHKBlock[] encodeSplitfileBlocks(final byte[][] data, final ClientCHK[] keys) {
+        if(data.length != keys.length) throw new IllegalArgumentException();
+        final ClientCHKBlock[] encoded = new ClientCHKBlock[data.length];
+        HelperThreads.run(data.length, true, new HelperThreads.Task() {
+
+            @Override
+            public void run(int i) {
+                ClientCHK key = keys[i];
+                if(key == null) return;
+                try {
+                    encoded[i] = encodeSplitfileBlock(data[i], key.getCryptoKey(), key.getCryptoAlgorithm());
+                } catch (CHKEncodeException e) {
+                    Logger.error(ClientCHKBlock.class, "Unable to encode splitfile block for "+key+" : "+e, e);
+                }
+            }
+
+        });
+        return encoded;
+    }
+
     /**
      * Encode a Bucket of data to a CHKBlock.
      * @param sourceData The bucket of data to encode. Can be arbitrarily large.
@@ -444,7 +504,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // It's okay that this is the same for 2 blocks with the same key and the same content.
         // In fact that's the point; this is still a Content Hash Key.
         // FIXME And yes we should check on insert for multiple identical keys.
-        Mac hmac = Mac.getInstance("HmacSHA256", hmacProvider);
+        Mac hmac = getHMAC();
         hmac.init(new SecretKeySpec(encKey, "HmacSHA256"));
         byte[] tmpLen = new byte[] { 
             	(byte)(dataLength >> 8), (byte)(dataLength & 0xff)
@@ -462,7 +522,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         SecretKey ckey = new SecretKeySpec(encKey, "AES");
         // CTR mode IV is only 16 bytes.
         // That's still plenty though. It will still be unique.
-        Cipher cipher = Cipher.getInstance("AES/CTR/NOPADDING", Rijndael.AesCtrProvider);
+        Cipher cipher = getAESCTR();
         cipher.init(Cipher.ENCRYPT_MODE, ckey, new IvParameterSpec(hash, 0, 16));
         byte[] cdata = new byte[data.length];
 		int moved = cipher.update(data, 0, data.length, cdata);
@@ -518,7 +578,7 @@ public class ClientCHKBlock implements ClientKeyBlock {
         // It's okay that this is the same for 2 blocks with the same key and the same content.
         // In fact that's the point; this is still a Content Hash Key.
         // FIXME And yes we should check on insert for multiple identical keys.
-        Mac hmac = Mac.getInstance("HmacSHA256", hmacProvider);
+        Mac hmac = getHMAC();
         hmac.init(new SecretKeySpec(encKey, "HmacSHA256"));
         byte[] tmpLen = new byte[] { 
             	(byte)(dataLength >> 8), (byte)(dataLength & 0xff)
@@ -38,6 +38,10 @@ public interface BasePeerNode extends PeerContext {
 
 	void wakeUpSender();
 
+	/** Tell the PacketSender that we may have something new to send, without necessarily
+	 * waking it up immediately. */
+	void rescheduleSender();
+
 	int getMaxPacketSize();
 
 	PeerMessageQueue getMessageQueue();
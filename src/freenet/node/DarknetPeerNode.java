@@ -375,6 +375,7 @@ public class DarknetPeerNode extends PeerNode {
 			synchronized(this) {
 				sendHandshakeTime = now;  // don't keep any long handshake delays we might have had under BurstOnly
 			}
+			rescheduleSender();
 		}
 		setPeerNodeStatus(now);
 		node.peers.writePeersDarknetUrgent();
@@ -305,6 +305,8 @@ public class NewPacketFormat implements PacketFormat {
 				}
 				if(wakeUp)
 					pn.wakeUpSender();
+				else
+					pn.rescheduleSender();
 			}
 		}
 
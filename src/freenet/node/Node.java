@@ -137,6 +137,7 @@ import freenet.support.ShortBuffer;
 import freenet.support.SimpleFieldSet;
 import freenet.support.Ticker;
 import freenet.support.TokenBucket;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.api.BooleanCallback;
 import freenet.support.api.IntCallback;
 import freenet.support.api.LongCallback;
@@ -495,6 +496,9 @@ public class Node implements TimeSkewDetectorCallback {
 	/** Datastore properties */
 	private String storeType;
 	private boolean storeUseSlotFilters;
+	private boolean storeMmapMetadata;
+	private boolean storeMmapData;
+	private int storeWriteQueueSize;
 	private boolean storeSaltHashResizeOnStart;
 	
 	/** Minimum total datastore size */
@@ -525,6 +529,8 @@ public class Node implements TimeSkewDetectorCallback {
 	 * we just set the storeSize and do an offline shrink on the next startup. Online shrinks do not
 	 * preserve the most recently used data so are not recommended. */
 	private boolean storeForceBigShrinks;
+	/** If true, RAM stores and caches keep the blocks in direct buffers rather than on the heap. */
+	private boolean ramStoreOffHeap;
 
 	private final SemiOrderedShutdownHook shutdownHook;
 	/** The CHK datastore. Long term storage; data should only be inserted here if
@@ -1494,6 +1500,8 @@ public class Node implements TimeSkewDetectorCallback {
 		ticker = new PrioritizedTicker(executor, getDarknetPortNumber());
 		if(executor instanceof PooledExecutor)
 			((PooledExecutor)executor).setTicker(ticker);
+		else if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).setTicker(ticker);
 
 		Logger.normal(Node.class, "Creating node...");
 
@@ -1881,6 +1889,29 @@ public class Node implements TimeSkewDetectorCallback {
 
 		// Datastore
 
+		nodeConfig.register("ramStoreOffHeap", false, sortOrder++, true, false, "Node.ramStoreOffHeap", "Node.ramStoreOffHeapLong",
+				new BooleanCallback() {
+
+					@Override
+					public Boolean get() {
+						synchronized(Node.this) {
+							return ramStoreOffHeap;
+						}
+					}
+
+					@Override
+					public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+						synchronized(Node.this) {
+							if(ramStoreOffHeap == val) return;
+							ramStoreOffHeap = val;
+						}
+						throw new NodeNeedRestartException(l10n("ramStoreOffHeapNeedRestart"));
+					}
+
+		});
+
+		ramStoreOffHeap = nodeConfig.getBoolean("ramStoreOffHeap");
+
 		nodeConfig.register("storeType", "ram", sortOrder++, true, true, "Node.storeType", "Node.storeTypeLong", new StoreTypeCallback());
 
 		storeType = nodeConfig.getString("storeType");
@@ -1965,6 +1996,75 @@ public class Node implements TimeSkewDetectorCallback {
 		});
 		
 		storeUseSlotFilters = nodeConfig.getBoolean("storeUseSlotFilters");
+
+		nodeConfig.register("storeMmapMetadata", false, sortOrder++, true, false, "Node.storeMmapMetadata", "Node.storeMmapMetadataLong", new BooleanCallback() {
+
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeMmapMetadata;
+				}
+			}
+
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeMmapMetadata = val;
+				}
+
+				throw new NodeNeedRestartException("Need to restart to change storeMmapMetadata");
+			}
+
+		});
+
+		storeMmapMetadata = nodeConfig.getBoolean("storeMmapMetadata");
+
+		nodeConfig.register("storeMmapData", false, sortOrder++, true, false, "Node.storeMmapData", "Node.storeMmapDataLong", new BooleanCallback() {
+
+			public Boolean get() {
+				synchronized(Node.this) {
+					return storeMmapData;
+				}
+			}
+
+			public void set(Boolean val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				synchronized(Node.this) {
+					storeMmapData = val;
+				}
+
+				throw new NodeNeedRestartException("Need to restart to change storeMmapData");
+			}
+
+		});
+
+		storeMmapData = nodeConfig.getBoolean("storeMmapData");
+
+		nodeConfig.register("storeWriteQueueSize", 0, sortOrder++, true, false, "Node.storeWriteQueueSize", "Node.storeWriteQueueSizeLong", new IntCallback() {
+
+			@Override
+			public Integer get() {
+				synchronized(Node.this) {
+					return storeWriteQueueSize;
+				}
+			}
+
+			@Override
+			public void set(Integer val) throws InvalidConfigValueException,
+					NodeNeedRestartException {
+				if(val < 0)
+					throw new InvalidConfigValueException(l10n("mustBePositive"));
+				synchronized(Node.this) {
+					storeWriteQueueSize = val;
+				}
+
+				throw new NodeNeedRestartException("Need to restart to change storeWriteQueueSize");
+			}
+
+		}, false);
+
+		storeWriteQueueSize = nodeConfig.getInt("storeWriteQueueSize");
+		if(storeWriteQueueSize < 0)
+			storeWriteQueueSize = 0;
 		
 		nodeConfig.register("storeSaltHashSlotFilterPersistenceTime", ResizablePersistentIntBuffer.DEFAULT_PERSISTENCE_TIME, sortOrder++, true, false, 
 				"Node.storeSaltHashSlotFilterPersistenceTime", "Node.storeSaltHashSlotFilterPersistenceTimeLong", new IntCallback() {
@@ -2747,11 +2847,11 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void initRAMClientCacheFS() {
 		chkClientcache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new RAMFreenetStore<CHKBlock>(chkClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys), ramStoreOffHeap);
 		pubKeyClientcache = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new RAMFreenetStore<DSAPublicKey>(pubKeyClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys), ramStoreOffHeap);
 		sskClientcache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys));
+		new RAMFreenetStore<SSKBlock>(sskClientcache, (int) Math.min(Integer.MAX_VALUE, maxClientCacheKeys), ramStoreOffHeap);
 	}
 
 	private void initNoClientCacheFS() {
@@ -2779,18 +2879,18 @@ public class Node implements TimeSkewDetectorCallback {
 
 	private void initRAMFS() {
 		chkDatastore = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		new RAMFreenetStore<CHKBlock>(chkDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys), ramStoreOffHeap);
 		chkDatacache = new CHKStore();
-		new RAMFreenetStore<CHKBlock>(chkDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		new RAMFreenetStore<CHKBlock>(chkDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys), ramStoreOffHeap);
 		pubKeyDatastore = new PubkeyStore();
-		new RAMFreenetStore<DSAPublicKey>(pubKeyDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		new RAMFreenetStore<DSAPublicKey>(pubKeyDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys), ramStoreOffHeap);
 		pubKeyDatacache = new PubkeyStore();
 		getPubKey.setDataStore(pubKeyDatastore, pubKeyDatacache);
-		new RAMFreenetStore<DSAPublicKey>(pubKeyDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		new RAMFreenetStore<DSAPublicKey>(pubKeyDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys), ramStoreOffHeap);
 		sskDatastore = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys));
+		new RAMFreenetStore<SSKBlock>(sskDatastore, (int) Math.min(Integer.MAX_VALUE, maxStoreKeys), ramStoreOffHeap);
 		sskDatacache = new SSKStore(getPubKey);
-		new RAMFreenetStore<SSKBlock>(sskDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys));
+		new RAMFreenetStore<SSKBlock>(sskDatacache, (int) Math.min(Integer.MAX_VALUE, maxCacheKeys), ramStoreOffHeap);
 	}
 
 	private long cachingFreenetStoreMaxSize;
@@ -2978,7 +3078,9 @@ public class Node implements TimeSkewDetectorCallback {
 		System.out.println("Initializing "+type+" Data"+store+" (" + maxStoreKeys + " keys)");
 
 		SaltedHashFreenetStore<T> fs = SaltedHashFreenetStore.<T>construct(getStoreDir(), type+"-"+store, cb,
-		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey);
+		        random, maxKeys, storeUseSlotFilters, shutdownHook, storePreallocate, storeSaltHashResizeOnStart && !lateStart, lateStart ? ticker : null, clientCacheMasterKey,
+		        storeMmapMetadata, storeMmapData);
+		fs.setWriteQueueSize(storeWriteQueueSize);
 		cb.setStore(fs);
 		if(cachingFreenetStoreMaxSize > 0)
 			return new CachingFreenetStore<T>(cb, fs, cachingFreenetStoreTracker);
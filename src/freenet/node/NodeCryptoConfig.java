@@ -54,6 +54,9 @@ public class NodeCryptoConfig {
 	/** If false we won't make any effort do disguise the length of packets */
 	private boolean paddDataPackets;
 	
+	/** If true, use NioUdpSocketHandler rather than UdpSocketHandler. */
+	private boolean useNioUdp;
+	
 	NodeCryptoConfig(SubConfig config, int sortOrder, boolean isOpennet, SecurityLevels securityLevels) throws NodeInitException {
 		config.register("listenPort", -1 /* means random */, sortOrder++, true, true,
 				isOpennet ? "Node.opennetPort" : "Node.port", 
@@ -240,6 +243,24 @@ public class NodeCryptoConfig {
 		});
 		
 		paddDataPackets = config.getBoolean("paddDataPackets");
+		
+		config.register("useNioUdp", false, sortOrder++, true, false, "Node.useNioUdp", "Node.useNioUdpLong", new BooleanCallback() {
+
+			@Override
+			public Boolean get() {
+				return useNioUdp;
+			}
+
+			@Override
+			public void set(Boolean val) throws InvalidConfigValueException, NodeNeedRestartException {
+				if (val.equals(get()))
+					return;
+				useNioUdp = val;
+				throw new NodeNeedRestartException("useNioUdp cannot change on the fly");
+			}
+		});
+		
+		useNioUdp = config.getBoolean("useNioUdp");
 		securityLevels.addNetworkThreatLevelListener(new SecurityLevelListener<NETWORK_THREAT_LEVEL>() {
 
 			@Override
@@ -328,4 +349,8 @@ public class NodeCryptoConfig {
 	public boolean paddDataPackets() {
 		return paddDataPackets;
 	}
+	
+	public boolean useNioUdp() {
+		return useNioUdp;
+	}
 }
@@ -29,6 +29,7 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.LoggerHook.InvalidThresholdException;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleFieldSet;
+import freenet.support.WorkStealingExecutor;
 import freenet.support.io.NativeThread;
 
 /**
@@ -137,7 +138,12 @@ public class NodeStarter implements WrapperListener {
 		// First, set up logging. It is global, and may be shared between several nodes.
 		SubConfig loggingConfig = cfg.createSubConfig("logger");
 
-		PooledExecutor executor = new PooledExecutor();
+		Executor executor;
+		// The work-stealing executor is off by default until it has had more testing.
+		if("true".equalsIgnoreCase(System.getProperty("freenet.executor.workStealing", "false")))
+			executor = new WorkStealingExecutor();
+		else
+			executor = new PooledExecutor();
 
 		try {
 			System.out.println("Creating logger...");
@@ -149,7 +155,10 @@ public class NodeStarter implements WrapperListener {
 		}
 
 		System.out.println("Starting executor...");
-		executor.start();
+		if(executor instanceof WorkStealingExecutor)
+			((WorkStealingExecutor)executor).start();
+		else
+			((PooledExecutor)executor).start();
 
 		// Prevent timeouts for a while. The DiffieHellman init for example could take some time on a very slow system.
 		WrapperManager.signalStarting(500000);
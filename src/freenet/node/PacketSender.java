@@ -9,6 +9,7 @@ import static java.util.concurrent.TimeUnit.NANOSECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.util.ArrayList;
+import java.util.List;
 
 import freenet.l10n.NodeL10n;
 import freenet.support.LogThresholdCallback;
@@ -17,6 +18,8 @@ import freenet.support.Logger.LogLevel;
 import freenet.support.TimeUtil;
 import freenet.support.io.NativeThread;
 import freenet.support.math.MersenneTwister;
+import freenet.support.math.RunningAverage;
+import freenet.support.math.SimpleRunningAverage;
 
 /**
  * @author amphibian
@@ -59,12 +62,30 @@ public class PacketSender implements Runnable {
 	/** We send connect attempts to old-opennet-peers no more than once every
 	 * this many milliseconds. */
 	static final long MIN_OLD_OPENNET_CONNECT_DELAY = SECONDS.toMillis(60);
+	/** Check every peer at least this often, even if it has nothing to send, for maintenance
+	 * e.g. disconnecting peers we haven't heard from. This is also the longest we will sleep. */
+	static final long PEER_CHECK_INTERVAL = SECONDS.toMillis(1);
 	final NativeThread myThread;
 	final Node node;
 	NodeStats stats;
 	long lastReportedNoPackets;
 	long lastReceivedPacketFromAnyNode;
 	private MersenneTwister localRandom;
+	/** When each peer next needs to be checked. Peers tell us when something changes. */
+	private final PeerSchedule<PeerNode> schedule = new PeerSchedule<PeerNode>();
+	/** The time we are sleeping until, or 0 if we are not sleeping. */
+	private volatile long sleepingUntil;
+
+	// Loop statistics. Only updated by the PacketSender thread; sampled once a second.
+	private volatile long loops;
+	private volatile long loopNanos;
+	private volatile long peersChecked;
+	private long lastLoops;
+	private long lastLoopNanos;
+	private long lastPeersChecked;
+	private final RunningAverage loopsPerSecond = new SimpleRunningAverage(60, 0.0);
+	private final RunningAverage nanosPerLoop = new SimpleRunningAverage(60, 0.0);
+	private final RunningAverage peersPerLoop = new SimpleRunningAverage(60, 0.0);
 
 	PacketSender(Node node) {
 		this.node = node;
@@ -97,6 +118,7 @@ public class PacketSender implements Runnable {
 					stats.maybeUpdatePeerManagerUserAlertStats(now);
 					stats.maybeUpdateNodeIOStats(now);
 					pm.maybeUpdatePeerNodeRoutableConnectionStats(now);
+					updateLoopStats();
 
 					if (logMINOR)
 						Logger.minor(PacketSender.class,
@@ -120,7 +142,6 @@ public class PacketSender implements Runnable {
 		 * ran out of bandwidth. We start the loop from here next time.
 		 */
 		while(true) {
-			lastReceivedPacketFromAnyNode = lastReportedNoPackets;
 			try {
 				realRun();
 			} catch(Throwable t) {
@@ -146,17 +167,22 @@ public class PacketSender implements Runnable {
 	 * e.g. bulk f2f transfers, so we may need to reconsider this eventually...
 	 */
 	private void realRun() {
+		long startNanos = System.nanoTime();
 		long now = System.currentTimeMillis();
                 PeerManager pm;
-		PeerNode[] nodes;
+		List<PeerNode> nodes;
 
         pm = node.peers;
-        nodes = pm.myPeers();
+        schedule.setPeers(pm.myPeers(), now);
+        // Only look at the peers which need it.
+        nodes = schedule.removeDue(now);
 
 		long nextActionTime = Long.MAX_VALUE;
 		long oldTempNow = now;
 
 		final boolean canSendThrottled;
+		/** When we will next be able to send a throttled packet, if canSendThrottled is false. */
+		long canSendThrottledTime = now;
 
 		int MAX_PACKET_SIZE = node.darknetCrypto.socket.getMaxPacketSize();
 		long count = node.outputThrottle.getCount();
@@ -168,6 +194,7 @@ public class PacketSender implements Runnable {
 			if(logMINOR)
 				Logger.minor(this, "Can send throttled packets in "+canSendAt+"ms");
 			nextActionTime = Math.min(nextActionTime, now + canSendAt);
+			canSendThrottledTime = now + canSendAt;
 			canSendThrottled = false;
 		}
 		
@@ -194,6 +221,8 @@ public class PacketSender implements Runnable {
 
 		for(PeerNode pn: nodes) {
 			now = System.currentTimeMillis();
+			// Every peer must be rescheduled. Later schedule() calls can only bring this forward.
+			schedule.schedule(pn, now + PEER_CHECK_INTERVAL);
 			
 			// Basic peer maintenance.
 			
@@ -213,6 +242,7 @@ public class PacketSender implements Runnable {
 				boolean shouldThrottle = pn.shouldThrottle();
 				
 				pn.checkForLostPackets();
+				schedule.schedule(pn, pn.timeCheckForLostPackets());
 
 				// Is the node dead?
 				// It might be disconnected in terms of FNP but trying to reconnect via JFK's, so we need to use the time when we last got a *data* packet.
@@ -259,6 +289,8 @@ public class PacketSender implements Runnable {
 							if(sendTime <= lowestUrgentSendTime)
 								urgentSendPeers.add(pn);
 						} else if(pn.fullPacketQueued()) {
+							// Can send now, so look at it again next time.
+							schedule.schedule(pn, now);
 							if(sendTime < lowestFullPacketSendTime) {
 								lowestFullPacketSendTime = sendTime;
 								if(urgentFullPacketPeers != null)
@@ -293,8 +325,13 @@ public class PacketSender implements Runnable {
 					if(urgentTime < Long.MAX_VALUE && logMINOR)
 						Logger.minor(this, "Next urgent time: " + urgentTime + "(in "+(urgentTime - now)+") for " + pn);
 					nextActionTime = Math.min(nextActionTime, urgentTime);
+					schedule.schedule(pn, urgentTime);
 				} else {
 					nextActionTime = Math.min(nextActionTime, pn.timeCheckForLostPackets());
+					schedule.schedule(pn, pn.timeSendAcks());
+					// Look again when we have the bandwidth, if there is anything to send.
+					if(pn.getNextUrgentTime(now) != Long.MAX_VALUE)
+						schedule.schedule(pn, canSendThrottledTime);
 				}
 			} else
 				// Not connected
@@ -303,6 +340,7 @@ public class PacketSender implements Runnable {
 					pn.startARKFetcher();
 
 			long handshakeTime = pn.timeSendHandshake(now);
+			schedule.schedule(pn, handshakeTime);
 			if(handshakeTime != Long.MAX_VALUE) {
 				if(handshakeTime < lowestHandshakeTime) {
 					lowestHandshakeTime = handshakeTime;
@@ -354,6 +392,7 @@ public class PacketSender implements Runnable {
 					// Round-robin over the loop to update nextActionTime appropriately
 					nextActionTime = now;
 				}
+				schedule.schedule(toSendPacket, now);
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendPacket+" : "+("(new packet format)")+" (version "+toSendPacket.getVersionNumber()+") - DISCONNECTING!");
 				toSendPacket.forceDisconnect();
@@ -364,6 +403,7 @@ public class PacketSender implements Runnable {
                     // Round-robin over the loop to update nextActionTime appropriately
                     nextActionTime = now;
 				}
+				schedule.schedule(toSendAckOnly, now);
 			} catch (BlockedTooLongException e) {
 				Logger.error(this, "Waited too long: "+TimeUtil.formatTime(e.delta)+" to allocate a packet number to send to "+toSendAckOnly+" : "+("(new packet format)")+" (version "+toSendAckOnly.getVersionNumber()+") - DISCONNECTING!");
 				toSendAckOnly.forceDisconnect();
@@ -392,6 +432,8 @@ public class PacketSender implements Runnable {
 			long afterHandshakeTime = System.currentTimeMillis();
 			if((afterHandshakeTime - beforeHandshakeTime) > SECONDS.toMillis(2))
 				Logger.error(this, "afterHandshakeTime is more than 2 seconds past beforeHandshakeTime (" + (afterHandshakeTime - beforeHandshakeTime) + ") in PacketSender working with " + toSendHandshake.userToString());
+			// The next handshake time has changed.
+			schedule.schedule(toSendHandshake, afterHandshakeTime);
 		}
 		
 		// All of these take into account whether the data can be sent already.
@@ -400,6 +442,7 @@ public class PacketSender implements Runnable {
 		nextActionTime = Math.min(nextActionTime, lowestFullPacketSendTime);
 		nextActionTime = Math.min(nextActionTime, lowestAckTime);
 		nextActionTime = Math.min(nextActionTime, lowestHandshakeTime);
+		nextActionTime = Math.min(nextActionTime, schedule.nextTime());
 
 		// FIXME: If we send something we will have to go around the loop again.
 		// OPTIMISATION: We could track the second best, and check how many are in the array.
@@ -450,26 +493,39 @@ public class PacketSender implements Runnable {
 
 		long sleepTime = nextActionTime - now;
 		
-		// MAX_COALESCING_DELAYms maximum sleep time - same as the maximum coalescing delay
-		sleepTime = Math.min(sleepTime, MAX_COALESCING_DELAY);
+		// Connected peers are always rescheduled within MAX_COALESCING_DELAY, because
+		// PacketFormat.timeNextUrgent() is. Anything else which makes a peer need a check
+		// sooner (a queued message or ack, a new peer, rekeying, disconnecting, a change to
+		// the handshake settings, unblocking the message window) wakes us or reschedules it.
+		sleepTime = Math.min(sleepTime, PEER_CHECK_INTERVAL);
 
 		if(now - node.startupTime > MINUTES.toMillis(5))
-			if(now - lastReceivedPacketFromAnyNode > Node.ALARM_TIME) {
+			if(now - Math.max(lastReceivedPacketFromAnyNode, lastReportedNoPackets) > Node.ALARM_TIME) {
 				Logger.error(this, "Have not received any packets from any node in last " + SECONDS.convert(Node.ALARM_TIME, MILLISECONDS) + " seconds");
 				lastReportedNoPackets = now;
 			}
 
+		loops++;
+		loopNanos += System.nanoTime() - startNanos;
+		peersChecked += nodes.size();
+
 		if(sleepTime > 0) {
 			// Update logging only when have time to do so
 			try {
 				if(logMINOR)
 					Logger.minor(this, "Sleeping for " + sleepTime);
 				synchronized(this) {
-					wait(sleepTime);
+					sleepingUntil = now + sleepTime;
+					// A peer may have been rescheduled before it could see sleepingUntil.
+					sleepTime = Math.min(sleepTime, schedule.nextTime() - now);
+					if(sleepTime > 0)
+						wait(sleepTime);
 				}
 			} catch(InterruptedException e) {
 			// Ignore, just wake up. Probably we got interrupt()ed
 			// because a new packet came in.
+			} finally {
+				sleepingUntil = 0;
 			}
 		} else {
 			if(logDEBUG)
@@ -485,6 +541,55 @@ public class PacketSender implements Runnable {
 		}
 	}
 
+	/** Wake up, and check this peer. */
+	void wakeUp(PeerNode pn) {
+		schedule.schedule(pn, System.currentTimeMillis());
+		wakeUp();
+	}
+
+	/** Check this peer soon, because it may have something new to send. We only wake up
+	 * immediately if we would otherwise sleep for longer than the maximum coalescing delay;
+	 * anything sent sooner than that would have woken us up itself. */
+	void reschedule(PeerNode pn) {
+		long now = System.currentTimeMillis();
+		schedule.schedule(pn, now);
+		long until = sleepingUntil;
+		if(until != 0 && until > now + MAX_COALESCING_DELAY)
+			wakeUp();
+	}
+
+	/** Called once a second. */
+	private void updateLoopStats() {
+		long l = loops;
+		long n = loopNanos;
+		long p = peersChecked;
+		long dl = l - lastLoops;
+		loopsPerSecond.report(dl);
+		if(dl > 0) {
+			nanosPerLoop.report((double)(n - lastLoopNanos) / dl);
+			peersPerLoop.report((double)(p - lastPeersChecked) / dl);
+		}
+		lastLoops = l;
+		lastLoopNanos = n;
+		lastPeersChecked = p;
+	}
+
+	/** @return The average number of times we went around the loop per second, over the last
+	 * minute. */
+	public double getLoopsPerSecond() {
+		return loopsPerSecond.currentValue();
+	}
+
+	/** @return The average time spent per loop, excluding sleeping, in nanoseconds. */
+	public double getAverageLoopTime() {
+		return nanosPerLoop.currentValue();
+	}
+
+	/** @return The average number of peers checked per loop. */
+	public double getAveragePeersPerLoop() {
+		return peersPerLoop.currentValue();
+	}
+
 	protected String l10n(String key, String[] patterns, String[] values) {
 		return NodeL10n.getBase().getString("PacketSender."+key, patterns, values);
 	}
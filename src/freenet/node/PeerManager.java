@@ -19,6 +19,7 @@ import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 
 import freenet.io.comm.AsyncMessageCallback;
@@ -66,12 +67,18 @@ public class PeerManager {
         static {
             Logger.registerClass(PeerManager.class);
         }
+	/** If true, check every routing decision made using the routing index against a full scan
+	 * of the peers. This is slow, so is only for debugging. */
+	static final boolean CHECK_ROUTING_INDEX =
+		"true".equalsIgnoreCase(System.getProperty("freenet.node.checkRoutingIndex", "false"));
 	/** Our Node */
 	final Node node;
 	/** All the peers we want to connect to */
 	private PeerNode[] myPeers;
 	/** All the peers we are actually connected to */
 	private PeerNode[] connectedPeers;
+	/** The connected peers and their peers sorted by location, for closerPeer(). */
+	private final RoutingIndex routingIndex = new RoutingIndex();
 	private String darkFilename;
         private String openFilename;
         private String oldOpennetPeersFilename;
@@ -376,6 +383,8 @@ public class PeerManager {
 			}
 		}
 		notifyPeerStatusChangeListeners();
+		// The PacketSender only picks up new peers when it wakes up.
+		node.ps.wakeUp();
 		if(!pn.isSeed()) {
 			// LOCKING: addPeer() can be called inside PM lock, so must do this on a separate thread.
 			node.executor.execute(new Runnable() {
@@ -913,6 +922,13 @@ public class PeerManager {
 	public PeerNode closerPeer(PeerNode pn, Set<PeerNode> routedTo, double target, boolean ignoreSelf,
 	        boolean calculateMisrouting, int minVersion, List<Double> addUnpickedLocsTo, double maxDistance, Key key, short outgoingHTL, long ignoreBackoffUnder, boolean isLocal, boolean realTime,
 	        RecentlyFailedReturn recentlyFailed, boolean ignoreTimeout, long now, boolean newLoadManagement) {
+		return closerPeer(pn, routedTo, target, ignoreSelf, calculateMisrouting, minVersion, addUnpickedLocsTo, maxDistance, key, outgoingHTL, ignoreBackoffUnder, isLocal, realTime, recentlyFailed, ignoreTimeout, now, newLoadManagement, true);
+	}
+
+	/** @param useIndex If false, don't use the routing index, always check every peer. */
+	PeerNode closerPeer(PeerNode pn, Set<PeerNode> routedTo, double target, boolean ignoreSelf,
+	        boolean calculateMisrouting, int minVersion, List<Double> addUnpickedLocsTo, double maxDistance, Key key, short outgoingHTL, long ignoreBackoffUnder, boolean isLocal, boolean realTime,
+	        RecentlyFailedReturn recentlyFailed, boolean ignoreTimeout, long now, boolean newLoadManagement, boolean useIndex) {
 		
 		int countWaiting = 0;
 		long soonestTimeoutWakeup = Long.MAX_VALUE;
@@ -982,51 +998,27 @@ public class PeerManager {
 			excludeLocations.add(routedToNode.getLocation());
 		}
 
-		for(int i = 0; i < peers.length; i++) {
-			PeerNode p = peers[i];
-			if(routedTo.contains(p)) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
-				continue;
-			}
-			if(p == pn) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (req came from): " + p.getPeer());
-				continue;
-			}
-			if(!p.isRoutable()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (not connected): " + p.getPeer());
-				continue;
-			}
-			if(p.isDisconnecting()) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
-				continue;
-			}
-			if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
-				continue;
-			}
-			if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
-				if(logMINOR)
-					Logger.minor(this, "Skipping old version: " + p.getPeer());
-				continue;
-			}
-			if(enableFOAFMitigationHack) {
-				double selectionRate = selectionRates[i];
-				double selectionSamplesPercentage = selectionRate / totalSelectionRate;
-				if(PeerNode.SELECTION_PERCENTAGE_WARNING < selectionSamplesPercentage) {
-					if(logMINOR)
-						Logger.minor(this, "Skipping over-selectionned peer(" + selectionSamplesPercentage + "%): " + p.getPeer());
-					continue;
+		// The index can find the closest non-backed-off, non-timed-out peer without looking at
+		// all of them. If there isn't one, or we need data about the other peers, do a full scan.
+		if(useIndex && addUnpickedLocsTo == null && (recentlyFailed == null || entry == null)) {
+			RoutingIndex.Snapshot index = routingIndex.get(peers);
+			PeerNode best = closerPeerFromIndex(index, pn, routedTo, target, ignoreSelf, maxDiff, minVersion, maxDistance, entry, outgoingHTL, ignoreBackoffUnder, realTime, ignoreTimeout, now, newLoadManagement, excludeLocations, enableFOAFMitigationHack ? selectionRates : null, totalSelectionRate);
+			if(best != null) {
+				if(CHECK_ROUTING_INDEX) {
+					PeerNode scanned = closerPeer(pn, routedTo, target, ignoreSelf, false, minVersion, null, maxDistance, key, outgoingHTL, ignoreBackoffUnder, isLocal, realTime, recentlyFailed, ignoreTimeout, now, newLoadManagement, false);
+					if(scanned != best)
+						Logger.error(this, "Routing index chose "+best+" but scanning all peers chose "+scanned+" for "+target);
 				}
+				if(calculateMisrouting)
+					reportBackedOffPercent();
+				return best;
 			}
-			if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
-				if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
+		}
+
+		for(int i = 0; i < peers.length; i++) {
+			PeerNode p = peers[i];
+			if(!canRouteTo(p, pn, routedTo, minVersion, realTime, now, newLoadManagement, enableFOAFMitigationHack ? selectionRates[i] : -1.0, totalSelectionRate))
 				continue;
-			}
 			
 			/** For RecentlyFailed i.e. request quenching */
 			long timeoutRF = -1;
@@ -1231,12 +1223,8 @@ public class PeerManager {
 		// DO NOT PUT A ELSE HERE: we need to re-check the value!
 		if(best != null) {
 			//racy... getLocation() could have changed
-			if(calculateMisrouting) {
-				int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
-				int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
-				if(numberOfRoutingBackedOff + numberOfConnected > 0)
-					node.nodeStats.backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
-			}
+			if(calculateMisrouting)
+				reportBackedOffPercent();
 			//racy... getLocation() could have changed
 			if(addUnpickedLocsTo != null)
 				//Add the location which we did not pick, if it exists.
@@ -1248,6 +1236,148 @@ public class PeerManager {
 		return best;
 	}
 
+	private void reportBackedOffPercent() {
+		int numberOfConnected = getPeerNodeStatusSize(PEER_NODE_STATUS_CONNECTED, false);
+		int numberOfRoutingBackedOff = getPeerNodeStatusSize(PEER_NODE_STATUS_ROUTING_BACKED_OFF, false);
+		if(numberOfRoutingBackedOff + numberOfConnected > 0)
+			node.nodeStats.backedOffPercent.report((double) numberOfRoutingBackedOff / (double) (numberOfRoutingBackedOff + numberOfConnected));
+	}
+
+	/** Can we route this request to the peer at all, ignoring backoff and failure table timeouts?
+	 * @param selectionRate The peer's selection rate, or negative if we are not avoiding peers 
+	 * which have been selected too often. */
+	private boolean canRouteTo(PeerNode p, PeerNode pn, Set<PeerNode> routedTo, int minVersion, boolean realTime, long now, boolean newLoadManagement, double selectionRate, double totalSelectionRate) {
+		if(routedTo.contains(p)) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (already routed to): " + p.getPeer());
+			return false;
+		}
+		if(p == pn) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (req came from): " + p.getPeer());
+			return false;
+		}
+		if(!p.isRoutable()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (not connected): " + p.getPeer());
+			return false;
+		}
+		if(p.isDisconnecting()) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (disconnecting): "+p.getPeer());
+			return false;
+		}
+		if(newLoadManagement && p.outputLoadTracker(realTime).getLastIncomingLoadStats() == null) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping (no load stats): "+p.getPeer());
+			return false;
+		}
+		if(minVersion > 0 && Version.getArbitraryBuildNumber(p.getVersion(), -1) < minVersion) {
+			if(logMINOR)
+				Logger.minor(this, "Skipping old version: " + p.getPeer());
+			return false;
+		}
+		if(selectionRate >= 0.0) {
+			double selectionSamplesPercentage = selectionRate / totalSelectionRate;
+			if(PeerNode.SELECTION_PERCENTAGE_WARNING < selectionSamplesPercentage) {
+				if(logMINOR)
+					Logger.minor(this, "Skipping over-selectionned peer(" + selectionSamplesPercentage + "%): " + p.getPeer());
+				return false;
+			}
+		}
+		if(newLoadManagement && p.isInMandatoryBackoff(now, realTime)) {
+			if(logMINOR) Logger.minor(this, "Skipping (mandatory backoff): "+p.getPeer());
+			return false;
+		}
+		return true;
+	}
+
+	private static class Candidate {
+		final PeerNode peer;
+		/** Distance to the target, possibly via one of the peer's peers. */
+		final double diff;
+		/** Distance from the peer's own location to the target. */
+		final double realDiff;
+		/** True if diff is the distance from the peer's own location. */
+		final boolean direct;
+
+		Candidate(PeerNode peer, double diff, double realDiff, boolean direct) {
+			this.peer = peer;
+			this.diff = diff;
+			this.realDiff = realDiff;
+			this.direct = direct;
+		}
+	}
+
+	/**
+	 * Find the closest peer to the target which is neither backed off nor in a failure table
+	 * timeout, by walking outwards from the target through the routing index. Chooses the same
+	 * peer as the full scan in closerPeer() would.
+	 * @param selectionRates The selection rate of each peer, if we are avoiding peers which have
+	 * been selected too often, otherwise null.
+	 * @return The peer, or null if there isn't one, in which case the caller must fall back to
+	 * looking at all the peers.
+	 */
+	PeerNode closerPeerFromIndex(RoutingIndex.Snapshot index, PeerNode pn, Set<PeerNode> routedTo, double target, boolean ignoreSelf, double maxDiff, int minVersion, double maxDistance, TimedOutNodesList entry, short outgoingHTL, long ignoreBackoffUnder, boolean realTime, boolean ignoreTimeout, long now, boolean newLoadManagement, Set<Double> excludeLocations, double[] selectionRates, double totalSelectionRate) {
+		double limit = maxDistance;
+		if(!ignoreSelf)
+			limit = Math.min(limit, maxDiff);
+		boolean[] seen = new boolean[index.peers.length];
+		// Peers at the closest distance, by their position in the peers array.
+		TreeMap<Integer, Candidate> closest = new TreeMap<Integer, Candidate>();
+		double closestDistance = Double.MAX_VALUE;
+		RoutingIndex.Snapshot.Walk walk = index.walk(target);
+		while(walk.next()) {
+			if(walk.distance() > limit || walk.distance() > closestDistance) break;
+			int i = walk.peer();
+			if(seen[i]) continue;
+			PeerNode p = index.peers[i];
+			// A peer's distance is that of its closest location which we are allowed to use.
+			if(walk.isFOAF() && (excludeLocations.contains(walk.location()) || 
+					!p.shallWeRouteAccordingToOurPeersLocation(outgoingHTL)))
+				continue;
+			seen[i] = true;
+			if(!canRouteTo(p, pn, routedTo, minVersion, realTime, now, newLoadManagement, selectionRates == null ? -1.0 : selectionRates[i], totalSelectionRate))
+				continue;
+			if(entry != null && !ignoreTimeout && entry.getTimeoutTime(p, outgoingHTL, now, true) > now)
+				continue;
+			// Recompute the distance as the full scan does, in case the location has changed.
+			double realDiff = Location.distance(p.getLocation(), target);
+			double diff = realDiff;
+			boolean direct = true;
+			if (p.shallWeRouteAccordingToOurPeersLocation(outgoingHTL)) {
+				double l = p.getClosestPeerLocation(target, excludeLocations);
+				if (!Double.isNaN(l)) {
+					double newDiff = Location.distance(l, target);
+					if(newDiff < diff) {
+						diff = newDiff;
+						direct = false;
+					}
+				}
+			}
+			if(diff > limit)
+				continue;
+			if(p.isRoutingBackedOff(ignoreBackoffUnder, realTime))
+				continue;
+			closest.put(i, new Candidate(p, diff, realDiff, direct));
+			closestDistance = Math.min(closestDistance, diff);
+		}
+		// Break ties in the same way as the full scan.
+		PeerNode best = null;
+		double bestDistance = Double.MAX_VALUE;
+		double bestRealDistance = Double.MAX_VALUE;
+		for(Candidate c : closest.values()) {
+			if(c.diff < bestDistance || (Math.abs(c.diff - bestDistance) < Double.MIN_VALUE*2 && (c.direct || c.realDiff < bestRealDistance))) {
+				best = c.peer;
+				bestDistance = c.diff;
+				bestRealDistance = c.realDiff;
+			}
+		}
+		if(best != null && logMINOR)
+			Logger.minor(this, "Routing index chose "+best.getPeer()+" at "+bestDistance+" from "+target);
+		return best;
+	}
+
 	static final int MIN_DELTA = 2000;
 	
 	/** Check whether the routing situation will change soon because of a node coming out of backoff or of
@@ -2281,6 +2411,11 @@ public class PeerManager {
 		return connectedPeers;
 	}
 
+	/** Called when a peer's location, or the locations of its peers, may have changed. */
+	void onPeerLocationChanged() {
+		routingIndex.invalidate();
+	}
+
 	/** Count the number of PeerNode's with a given status (right now, not 
 	 * based on a snapshot). Note you should not call this if holding lots 
 	 * of locks! */
@@ -1092,17 +1092,23 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(x > maxSize || !node.enablePacketCoalescing) {
 			// If there is a packet's worth to send, wake up the packetsender.
 			wakeUpSender();
+		} else {
+			// Otherwise we do not need to wake up the PacketSender immediately, but it must
+			// look at us before the maximum coalescing delay (100ms).
+			rescheduleSender();
 		}
-		// Otherwise we do not need to wake up the PacketSender
-		// It will wake up before the maximum coalescing delay (100ms) because
-		// it wakes up every 100ms *anyway*.
 		return item;
 	}
 	
 	@Override
 	public void wakeUpSender() {
 		if(logMINOR) Logger.minor(this, "Waking up PacketSender");
-		node.ps.wakeUp();
+		node.ps.wakeUp(this);
+	}
+
+	@Override
+	public void rescheduleSender() {
+		node.ps.reschedule(this);
 	}
 
 	@Override
@@ -1190,6 +1196,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			ctx = null;
 		}
 		Logger.normal(this, "We are asking for the key to be renewed (" + this.detectedPeer + ')');
+		// The handshake time has changed.
+		rescheduleSender();
 	}
 
 	/**
@@ -1292,6 +1300,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 		if(cur != null) cur.disconnected();
 		if(prev != null) prev.disconnected();
 		if(unv != null) unv.disconnected();
+		// We want to handshake immediately.
+		rescheduleSender();
 		if(_lastThrottle != null)
 			_lastThrottle.maybeDisconnected();
 		node.lm.lostOrRestartedNode(this);
@@ -1743,6 +1753,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 
 	public void updateLocation(double newLoc, double[] newLocs) {
 		boolean anythingChanged = location.updateLocation(newLoc, newLocs);
+		if(anythingChanged)
+			node.peers.onPeerLocationChanged();
 		node.peers.updatePMUserAlert();
 		if(anythingChanged)
 		    writePeers();
@@ -2163,6 +2175,8 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			" old: " + previousTracker + " unverified: " + unverifiedTracker + " bootID: " + thisBootID + (bootIDChanged ? "(changed) " : "") + " for " + shortToString());
 
 		setPeerNodeStatus(now);
+		// We may be able to send again, e.g. after rekeying.
+		rescheduleSender();
 
 		if(newer || older || !isConnected())
 			node.peers.disconnected(this);
@@ -2524,6 +2538,7 @@ public abstract class PeerNode implements USKRetrieverCallback, BasePeerNode, Pe
 			} else {
 				double oldLoc = location.setLocation(newLoc);
 				if(!Location.equals(oldLoc, newLoc)) {
+					node.peers.onPeerLocationChanged();
 					if(!Location.isValid(oldLoc))
 						shouldUpdatePeerCounts = true;
 					changedAnything = true;
@@ -0,0 +1,124 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The times at which PacketSender next needs to look at each peer, so that it doesn't have to
+ * check every peer on every loop. A peer may be scheduled more than once before it is next
+ * checked; the earliest time wins.
+ *
+ * Peers are identified by identity. Only peers in the last array passed to setPeers() can be
+ * scheduled, so a peer which has been removed won't come back.
+ *
+ * Thread-safe.
+ * @param <T> The peer type. Only generic so it can be tested.
+ */
+class PeerSchedule<T> {
+
+	private static final class Entry<T> implements Comparable<Entry<T>> {
+		final T peer;
+		final long time;
+		/** Order of scheduling, to break ties. */
+		final long seq;
+
+		Entry(T peer, long time, long seq) {
+			this.peer = peer;
+			this.time = time;
+			this.seq = seq;
+		}
+
+		@Override
+		public int compareTo(Entry<T> e) {
+			if(time < e.time) return -1;
+			if(time > e.time) return 1;
+			if(seq < e.seq) return -1;
+			if(seq > e.seq) return 1;
+			return 0;
+		}
+	}
+
+	private final Map<T, Entry<T>> entries = new IdentityHashMap<T, Entry<T>>();
+	private final TreeSet<Entry<T>> byTime = new TreeSet<Entry<T>>();
+	private Set<T> known = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+	private T[] lastPeers;
+	private long nextSeq;
+
+	/**
+	 * Set the peers which can be scheduled. Peers we haven't seen before are due immediately;
+	 * peers which are no longer present are forgotten. Cheap if the array is the same one
+	 * as last time, as PeerManager only replaces it when the peers change.
+	 */
+	synchronized void setPeers(T[] peers, long now) {
+		if(peers == lastPeers) return;
+		lastPeers = peers;
+		Set<T> oldKnown = known;
+		known = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+		for(T peer : peers)
+			known.add(peer);
+		for(T peer : oldKnown) {
+			if(!known.contains(peer)) {
+				Entry<T> e = entries.remove(peer);
+				if(e != null) byTime.remove(e);
+			}
+		}
+		for(T peer : peers) {
+			if(!oldKnown.contains(peer))
+				schedule(peer, now);
+		}
+	}
+
+	/**
+	 * Schedule a peer, unless it is already scheduled at or before the given time.
+	 * @param time The time to check the peer at. Long.MAX_VALUE is ignored.
+	 * @return True if the peer's time changed.
+	 */
+	synchronized boolean schedule(T peer, long time) {
+		if(time == Long.MAX_VALUE) return false;
+		if(!known.contains(peer)) return false;
+		Entry<T> old = entries.get(peer);
+		if(old != null) {
+			if(old.time <= time) return false;
+			byTime.remove(old);
+		}
+		Entry<T> e = new Entry<T>(peer, time, nextSeq++);
+		entries.put(peer, e);
+		byTime.add(e);
+		return true;
+	}
+
+	/** Remove and return all the peers which are due at or before the given time, earliest
+	 * first. The caller must schedule them again. */
+	synchronized List<T> removeDue(long now) {
+		List<T> due = new ArrayList<T>();
+		for(Iterator<Entry<T>> i = byTime.iterator(); i.hasNext();) {
+			Entry<T> e = i.next();
+			if(e.time > now) break;
+			i.remove();
+			entries.remove(e.peer);
+			due.add(e.peer);
+		}
+		return due;
+	}
+
+	/** @return The earliest time any peer is scheduled for, or Long.MAX_VALUE. */
+	synchronized long nextTime() {
+		if(byTime.isEmpty()) return Long.MAX_VALUE;
+		return byTime.first().time;
+	}
+
+	/** @return The number of peers which are scheduled. */
+	synchronized int size() {
+		return entries.size();
+	}
+
+}
@@ -194,6 +194,7 @@ public class RequestTag extends UIDTag {
 
 	public synchronized void completedDownstreamTransfers() {
 		this.completedDownstreamTransfers = true;
+		updateCounted();
 	}
 
 	@Override
@@ -3,7 +3,9 @@ package freenet.node;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
@@ -22,6 +24,11 @@ public class RequestTracker {
 		Logger.registerClass(RequestTracker.class);
 	}
 	
+	/** If true, check the counters against a full scan of the running requests every time they
+	 * are used. This is slow, so is only for debugging. */
+	static final boolean CHECK_COUNTERS =
+		"true".equalsIgnoreCase(System.getProperty("freenet.node.checkRequestCounters", "false"));
+	
 	// The runningLocal* are secondary. That is, we take the lock on the
 	// corresponding running* when accessing runningLocal*. Local requests
 	// have a tag in *both*.
@@ -57,6 +64,16 @@ public class RequestTracker {
 	/** UIDs of RequestHandler's currently transferring */
 	private final HashSet<Long> transferringRequestHandlers;
 	
+	/** Totals of what every running request counts towards load limiting, so that we don't have
+	 * to scan all the tags for every incoming request. LOCKING: Synchronize on counters. This is
+	 * taken inside the tag lock (see UIDTag.updateCounted()), so nothing must be locked inside 
+	 * it. */
+	private final Counters counters = new Counters();
+	/** The same totals by effective source, null for local and reassigned requests. Keyed by the
+	 * source's PeerNode.myRef, so we don't keep removed peers in memory. An entry is removed when
+	 * it no longer counts any requests. LOCKING: Synchronize on counters. */
+	private final HashMap<WeakReference<PeerNode>, Counters> countersBySource = new HashMap<WeakReference<PeerNode>, Counters>();
+	
 	RequestTracker(PeerManager peers, Ticker ticker) {
 		this.peers = peers;
 		this.ticker = ticker;
@@ -137,6 +154,7 @@ public class RequestTracker {
 				localMap.put(uid, tag);
 				if(logMINOR) Logger.minor(this, "Locked (local) "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+localMap.size());
 			}
+			tag.setCounted(true);
 		}
 		return true;
 	}
@@ -189,8 +207,10 @@ public class RequestTracker {
 				} else {
 					Logger.error(this, "Removing "+tag+" for "+uid+" returned "+overallMap.get(uid));
 				}
-			} else
+			} else {
 				overallMap.remove(uid);
+				tag.setCounted(false);
+			}
 			if(logMINOR) Logger.minor(this, "Unlocked "+uid+" ssk="+ssk+" insert="+insert+" offerReply="+offerReply+" local="+local+" size="+overallMap.size());
 			if(local) {
 				if(localMap.get(uid) != tag) {
@@ -280,10 +300,9 @@ public class RequestTracker {
 	/**
 	 * Count requests routed to a peer, or accepted from a peer, that match the specified criteria.
 	 * PERFORMANCE: There is a map for all requests of a given type (local, ssk, etc). However this
-	 * is not divided up by node. FIXME ideally we would countRequests for all PeerNode's
-	 * simultaneously when we need data on more than one. FIXME it would be even better if we could
-	 * just store the status on the PeerNode's, but the memory usage might be an issue and 
-	 * synchronization would likely be problematic.
+	 * is not divided up by node. Requests from a node are also kept in counters, so use 
+	 * countRequestsFrom() for those. FIXME ideally we would count requests routed to all 
+	 * PeerNode's simultaneously when we need data on more than one.
 	 * @param source The peer the requests were accepted from or routed to.
 	 * @param requestsToNode If true, count requests sent to the node and currently 
 	 * running. If false, count requests originated by the node.
@@ -420,6 +439,212 @@ public class RequestTracker {
 		}
 	}
 	
+	/** What a single tag counts towards load limiting, i.e. its expected transfers when deciding
+	 * whether to accept a request, for both values of ignoreLocalVsRemote. An insert's outward
+	 * transfers depend on the average transfers per insert, which varies, so they are kept
+	 * separately and multiplied when counting. Immutable. */
+	static final class CountedTag {
+		
+		private final boolean ssk;
+		private final boolean realTimeFlag;
+		/** The effective source's PeerNode.myRef when the tag was counted. */
+		private final WeakReference<PeerNode> sourceRef;
+		private final boolean sourceRestarted;
+		/** Indexed by ignoreLocalVsRemote ? 1 : 0. */
+		private final int[] in = new int[2];
+		private final int[] out = new int[2];
+		private final int[] outPerInsert = new int[2];
+		
+		/** LOCKING: Caller must hold the tag lock. */
+		private CountedTag(UIDTag tag) {
+			ssk = tag.isSSK();
+			realTimeFlag = tag.realTimeFlag;
+			sourceRef = tag.getSourceRef();
+			sourceRestarted = tag.countAsSourceRestarted();
+			for(int i=0;i<2;i++) {
+				boolean ignoreLocalVsRemote = i == 1;
+				in[i] = tag.expectedTransfersIn(ignoreLocalVsRemote, 0, true);
+				out[i] = tag.expectedTransfersOut(ignoreLocalVsRemote, 0, true);
+				outPerInsert[i] = tag.expectedTransfersOut(ignoreLocalVsRemote, 1, true) - out[i];
+			}
+		}
+		
+		private boolean sameAs(CountedTag c) {
+			return ssk == c.ssk && realTimeFlag == c.realTimeFlag && sourceRef == c.sourceRef &&
+				sourceRestarted == c.sourceRestarted && Arrays.equals(in, c.in) &&
+				Arrays.equals(out, c.out) && Arrays.equals(outPerInsert, c.outPerInsert);
+		}
+		
+	}
+	
+	/** Sum of the CountedTag's for one kind of request. */
+	private static final class Totals {
+		
+		private int total;
+		private final int[] in = new int[2];
+		private final int[] out = new int[2];
+		private final int[] outPerInsert = new int[2];
+		
+		private void add(CountedTag c, int sign) {
+			total += sign;
+			for(int i=0;i<2;i++) {
+				in[i] += sign * c.in[i];
+				out[i] += sign * c.out[i];
+				outPerInsert[i] += sign * c.outPerInsert[i];
+			}
+		}
+		
+		private void addTo(CountedRequests counter, int transfersPerInsert, boolean ignoreLocalVsRemote) {
+			int i = ignoreLocalVsRemote ? 1 : 0;
+			counter.total += total;
+			counter.expectedTransfersIn += in[i];
+			counter.expectedTransfersOut += out[i] + outPerInsert[i] * transfersPerInsert;
+		}
+		
+	}
+	
+	/** Totals for a group of requests, by real-time vs bulk, SSK vs CHK, and whether the request
+	 * counts as source restarted (such requests are in both). */
+	private static final class Counters {
+		
+		private final Totals[] totals = new Totals[8];
+		private int tags;
+		
+		Counters() {
+			for(int i=0;i<totals.length;i++)
+				totals[i] = new Totals();
+		}
+		
+		private Totals get(boolean realTimeFlag, boolean ssk, boolean sourceRestarted) {
+			return totals[(realTimeFlag ? 4 : 0) + (ssk ? 2 : 0) + (sourceRestarted ? 1 : 0)];
+		}
+		
+		private void add(CountedTag c, int sign) {
+			tags += sign;
+			get(c.realTimeFlag, c.ssk, false).add(c, sign);
+			if(c.sourceRestarted)
+				get(c.realTimeFlag, c.ssk, true).add(c, sign);
+		}
+		
+		private void addTo(boolean ssk, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
+			get(realTimeFlag, ssk, false).addTo(counter, transfersPerInsert, ignoreLocalVsRemote);
+			if(counterSR != null)
+				get(realTimeFlag, ssk, true).addTo(counterSR, transfersPerInsert, ignoreLocalVsRemote);
+		}
+		
+	}
+	
+	/** Start counting a tag, update what it counts, or stop counting it. Only used by UIDTag.
+	 * LOCKING: Caller must hold the tag lock.
+	 * @param old What the tag counts at the moment, or null if it is not counted.
+	 * @param count If false, stop counting the tag.
+	 * @return What the tag counts now, or null if it is not counted. */
+	CountedTag updateCounters(UIDTag tag, CountedTag old, boolean count) {
+		CountedTag c = count ? new CountedTag(tag) : null;
+		if(c != null && old != null && c.sameAs(old)) return old;
+		synchronized(counters) {
+			if(old != null) addCounters(old, -1);
+			if(c != null) addCounters(c, 1);
+		}
+		return c;
+	}
+	
+	private void addCounters(CountedTag c, int sign) {
+		counters.add(c, sign);
+		Counters bySource = countersBySource.get(c.sourceRef);
+		if(bySource == null) {
+			bySource = new Counters();
+			countersBySource.put(c.sourceRef, bySource);
+		}
+		bySource.add(c, sign);
+		if(bySource.tags == 0)
+			countersBySource.remove(c.sourceRef);
+	}
+	
+	/** Count all running requests of one kind, local and remote, requests, inserts and offer 
+	 * replies. Gives the same answer as calling countRequests() on each of the maps, but in 
+	 * constant time, as it uses the counters.
+	 * @param ssk If true, count SSK requests, if false, count CHK requests.
+	 * @param realTimeFlag If true, count real-time requests, if false, count bulk requests.
+	 * @param transfersPerInsert Assume that any insert will cause this many outgoing transfers.
+	 * @param ignoreLocalVsRemote If true, pretend that the request is remote even if it's local.
+	 * @param counter Transfer counts for all requests will be added to this counter object.
+	 * @param counterSR Transfer counts for requests whose source restarted will be added to this
+	 * counter object, if it is not null. */
+	public void countAllRequests(boolean ssk, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
+		if(CHECK_COUNTERS) {
+			CountedRequests scanned = new CountedRequests();
+			CountedRequests scannedSR = new CountedRequests();
+			countRequests(true, ssk, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			countRequests(true, ssk, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			countRequests(false, ssk, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			countRequests(false, ssk, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			countRequests(false, ssk, false, true, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			CountedRequests c = new CountedRequests();
+			CountedRequests cSR = new CountedRequests();
+			synchronized(counters) {
+				counters.addTo(ssk, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, c, cSR);
+			}
+			checkCounters("all "+(ssk?"SSK":"CHK")+(realTimeFlag?" real-time":" bulk"), c, scanned);
+			checkCounters("all source restarted "+(ssk?"SSK":"CHK")+(realTimeFlag?" real-time":" bulk"), cSR, scannedSR);
+		}
+		synchronized(counters) {
+			counters.addTo(ssk, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, counter, counterSR);
+		}
+	}
+	
+	/** Count the running requests of one kind accepted from a peer. Gives the same answer as 
+	 * calling countRequests(source, false, ...) on each of the maps, but in constant time.
+	 * @param source The peer the requests were accepted from, or null to count local requests 
+	 * and those we have reassigned to ourselves. As in countRequests(), this includes requests
+	 * from peers which have since been garbage collected.
+	 * @see #countAllRequests(boolean, boolean, int, boolean, CountedRequests, CountedRequests) */
+	public void countRequestsFrom(PeerNode source, boolean ssk, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
+		if(CHECK_COUNTERS) {
+			CountedRequests scanned = new CountedRequests();
+			CountedRequests scannedSR = new CountedRequests();
+			countRequests(source, false, true, ssk, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			countRequests(source, false, true, ssk, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			countRequests(source, false, false, ssk, false, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			countRequests(source, false, false, ssk, true, false, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			countRequests(source, false, false, ssk, false, true, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+			CountedRequests c = new CountedRequests();
+			CountedRequests cSR = new CountedRequests();
+			addCountersFrom(source, ssk, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, c, cSR);
+			checkCounters(source+" "+(ssk?"SSK":"CHK")+(realTimeFlag?" real-time":" bulk"), c, scanned);
+			checkCounters(source+" source restarted "+(ssk?"SSK":"CHK")+(realTimeFlag?" real-time":" bulk"), cSR, scannedSR);
+		}
+		addCountersFrom(source, ssk, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, counter, counterSR);
+	}
+	
+	private void addCountersFrom(PeerNode source, boolean ssk, boolean realTimeFlag, int transfersPerInsert, boolean ignoreLocalVsRemote, CountedRequests counter, CountedRequests counterSR) {
+		synchronized(counters) {
+			if(source != null) {
+				Counters bySource = countersBySource.get(source.myRef);
+				if(bySource != null)
+					bySource.addTo(ssk, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, counter, counterSR);
+				return;
+			}
+			// There are only as many entries as peers with requests running.
+			for(Map.Entry<WeakReference<PeerNode>, Counters> entry : countersBySource.entrySet()) {
+				WeakReference<PeerNode> ref = entry.getKey();
+				if(ref == null || ref.get() == null)
+					entry.getValue().addTo(ssk, realTimeFlag, transfersPerInsert, ignoreLocalVsRemote, counter, counterSR);
+			}
+		}
+	}
+	
+	/** The scan and the counters are not taken atomically, so a request changing state in 
+	 * between can cause an occasional mismatch. A persistent one is a bug. */
+	private void checkCounters(String what, CountedRequests counted, CountedRequests scanned) {
+		if(counted.total != scanned.total || counted.expectedTransfersIn != scanned.expectedTransfersIn ||
+				counted.expectedTransfersOut != scanned.expectedTransfersOut)
+			Logger.error(this, "Request counters for "+what+" are wrong: total "+counted.total+
+					" in "+counted.expectedTransfersIn+" out "+counted.expectedTransfersOut+
+					" but scanning gives total "+scanned.total+" in "+scanned.expectedTransfersIn+
+					" out "+scanned.expectedTransfersOut);
+	}
+	
 	public class WaitingForSlots {
 		int local;
 		int remote;
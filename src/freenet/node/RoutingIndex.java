@@ -0,0 +1,187 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The locations of the connected peers, and of their peers (for FOAF routing), sorted around
+ * the keyspace circle. PeerManager.closerPeer() walks outwards from the target through this, so
+ * it usually only has to look at the few peers closest to the target, rather than working out
+ * the distance to every peer and every one of their peers.
+ *
+ * The index is rebuilt lazily: when the connected peers array has been replaced (a peer
+ * connected or disconnected), or after invalidate() (a peer's location, or its peers'
+ * locations, changed).
+ */
+final class RoutingIndex {
+
+	private volatile boolean valid;
+	/** LOCKING: Synchronize on this. */
+	private Snapshot snapshot;
+
+	/** A peer's location or its peers' locations have changed. Does not take any locks. */
+	void invalidate() {
+		valid = false;
+	}
+
+	/** @param peers The current connectedPeers() array.
+	 * @return An index of exactly these peers. */
+	synchronized Snapshot get(PeerNode[] peers) {
+		if(valid && snapshot != null && snapshot.peers == peers)
+			return snapshot;
+		// Set before reading the locations, so a change while we are building causes another
+		// rebuild.
+		valid = true;
+		double[] locations = new double[peers.length];
+		double[][] peersLocations = new double[peers.length][];
+		for(int i=0;i<peers.length;i++) {
+			locations[i] = peers[i].getLocation();
+			peersLocations[i] = peers[i].getPeersLocationArray();
+		}
+		snapshot = new Snapshot(peers, locations, peersLocations);
+		return snapshot;
+	}
+
+	/** An immutable index of a set of peers. */
+	static final class Snapshot {
+
+		/** The peers, in the same order as connectedPeers(). */
+		final PeerNode[] peers;
+		/** All the valid locations, sorted. */
+		private final double[] locations;
+		/** The index in peers of the peer each location belongs to. */
+		private final int[] owners;
+		/** True if the location is one of the peer's peers' locations rather than its own. */
+		private final boolean[] foaf;
+
+		/** @param peers The peers. Not used other than to return them.
+		 * @param locations The location of each peer.
+		 * @param peersLocations The locations of each peer's peers, or null if not known. */
+		Snapshot(PeerNode[] peers, double[] locations, double[][] peersLocations) {
+			this.peers = peers;
+			int count = 0;
+			for(int i=0;i<peers.length;i++) {
+				count++;
+				if(peersLocations[i] != null) count += peersLocations[i].length;
+			}
+			// Sort by location, and then by position, so the owners stay in step.
+			double[] locs = new double[count];
+			int[] owner = new int[count];
+			boolean[] isFOAF = new boolean[count];
+			int x = 0;
+			for(int i=0;i<peers.length;i++) {
+				if(Location.isValid(locations[i])) {
+					locs[x] = locations[i];
+					owner[x] = i;
+					x++;
+				}
+				if(peersLocations[i] == null) continue;
+				for(double l : peersLocations[i]) {
+					if(!Location.isValid(l)) continue;
+					locs[x] = l;
+					owner[x] = i;
+					isFOAF[x] = true;
+					x++;
+				}
+			}
+			count = x;
+			Integer[] order = new Integer[count];
+			for(int i=0;i<count;i++) order[i] = i;
+			final double[] sortLocs = locs;
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					int cmp = Double.compare(sortLocs[a], sortLocs[b]);
+					if(cmp != 0) return cmp;
+					return a - b;
+				}
+			});
+			this.locations = new double[count];
+			this.owners = new int[count];
+			this.foaf = new boolean[count];
+			for(int i=0;i<count;i++) {
+				int j = order[i];
+				this.locations[i] = locs[j];
+				this.owners[i] = owner[j];
+				this.foaf[i] = isFOAF[j];
+			}
+		}
+
+		/** @return The number of locations in the index. */
+		int size() {
+			return locations.length;
+		}
+
+		/** Start walking the index outwards from a location. */
+		Walk walk(double target) {
+			return new Walk(target);
+		}
+
+		/** Visits every location in the index, in order of increasing distance from the
+		 * target. Ties are broken towards lower locations. */
+		final class Walk {
+
+			private final double target;
+			private int left;
+			private int right;
+			private int remaining;
+			private int current = -1;
+			private double distance;
+
+			private Walk(double target) {
+				this.target = target;
+				remaining = locations.length;
+				if(remaining == 0) return;
+				int firstNotLess = Arrays.binarySearch(locations, target);
+				if(firstNotLess < 0) firstNotLess = -firstNotLess - 1;
+				else while(firstNotLess > 0 && locations[firstNotLess-1] == target) firstNotLess--;
+				right = firstNotLess % locations.length;
+				left = (right == 0) ? locations.length - 1 : right - 1;
+			}
+
+			/** Move to the next closest location.
+			 * @return False if we have visited them all. */
+			boolean next() {
+				if(remaining == 0) return false;
+				remaining--;
+				double leftDistance = Location.distance(target, locations[left]);
+				double rightDistance = Location.distance(target, locations[right]);
+				if(left == right || leftDistance <= rightDistance) {
+					current = left;
+					distance = leftDistance;
+					left = (left == 0) ? locations.length - 1 : left - 1;
+				} else {
+					current = right;
+					distance = rightDistance;
+					right = (right == locations.length - 1) ? 0 : right + 1;
+				}
+				return true;
+			}
+
+			/** @return The distance from the target to the current location. */
+			double distance() {
+				return distance;
+			}
+
+			double location() {
+				return locations[current];
+			}
+
+			/** @return The index of the peer the current location belongs to. */
+			int peer() {
+				return owners[current];
+			}
+
+			/** @return True if the current location is one of the peer's peers. */
+			boolean isFOAF() {
+				return foaf[current];
+			}
+
+		}
+
+	}
+
+}
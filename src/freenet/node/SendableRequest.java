@@ -134,7 +134,9 @@ public abstract class SendableRequest implements RandomGrabArrayItem, Serializab
 		RandomGrabArray arr = grabParentGrabArray();
 		if(arr != null) {
 			synchronized(getScheduler(context)) {
-				arr.remove(this, context);
+				// Follow it if it has been moved to another priority.
+				while(arr != null)
+					arr = arr.remove(this, context);
 			}
 		} else {
 			// Should this be a higher priority?
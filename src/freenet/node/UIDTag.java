@@ -57,6 +57,10 @@ public abstract class UIDTag {
 	
 	private boolean waitingForSlot;
 	
+	/** What we currently count towards load limiting in the tracker's counters, or null if we
+	 * are not in its maps. */
+	private RequestTracker.CountedTag counted;
+	
 	UIDTag(PeerNode source, boolean realTimeFlag, long uid, Node node) {
 		createdTime = System.currentTimeMillis();
 		this.sourceRef = source == null ? null : source.myRef;
@@ -215,6 +219,7 @@ public abstract class UIDTag {
 	
 	public synchronized void setNotRoutedOnwards() {
 		this.notRoutedOnwards = true;
+		updateCounted();
 	}
 
 	private boolean reassigned;
@@ -227,10 +232,17 @@ public abstract class UIDTag {
 		return sourceRef.get();
 	}
 
+	/** The PeerNode.myRef of the effective source, or null if getSource() is always null. */
+	synchronized WeakReference<PeerNode> getSourceRef() {
+		if(reassigned) return null;
+		return sourceRef;
+	}
+
 	/** Reassign the tag to us rather than its original sender. */
 	public synchronized void reassignToSelf() {
 		if(wasLocal) return;
 		reassigned = true;
+		updateCounted();
 	}
 	
 	/** Was the request originated locally? This returns the original answer: It is not
@@ -324,6 +336,7 @@ public abstract class UIDTag {
 			if(unlockedHandler) return;
 			noRecordUnlock = noRecord;
 			unlockedHandler = true;
+			updateCounted();
 			canUnlock = mustUnlock();
 		}
 		if(canUnlock)
@@ -396,6 +409,7 @@ public abstract class UIDTag {
 
 	public synchronized void setAccepted() {
 		accepted = true;
+		updateCounted();
 	}
 	
 	private boolean timedOutButContinued;
@@ -406,11 +420,27 @@ public abstract class UIDTag {
 	 * messages to the request source. */
 	public synchronized void timedOutToHandlerButContinued() {
 		timedOutButContinued = true;
+		updateCounted();
 	}
 	
 	/** The handler disconnected or restarted. */
 	public synchronized void onRestartOrDisconnectSource() {
 		sourceRestarted = true;
+		updateCounted();
+	}
+	
+	/** Called by the tracker when we are added to or removed from its maps. */
+	synchronized void setCounted(boolean count) {
+		if(count == (counted != null)) return;
+		counted = tracker.updateCounters(this, counted, count);
+	}
+	
+	/** Must be called, with the lock held, after changing anything which affects what we count
+	 * towards load limiting: expectedTransfersIn(), expectedTransfersOut(), 
+	 * countAsSourceRestarted() or getSource(). */
+	protected final void updateCounted() {
+		if(counted != null)
+			counted = tracker.updateCounters(this, counted, true);
 	}
 	
 	// The third option is reassignToSelf(). We only use that when we actually
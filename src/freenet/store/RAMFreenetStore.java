@@ -1,8 +1,12 @@
 package freenet.store;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import freenet.keys.KeyVerifyException;
 import freenet.node.stats.StoreAccessStats;
@@ -15,143 +19,263 @@ import freenet.support.Ticker;
 /**
  * LRU in memory store.
  * 
- * For debugging / simulation only
+ * The keys are split across a number of shards, each with its own lock and its own LRU, so
+ * that threads fetching different keys don't contend. Eviction is per shard, so it is only
+ * approximately LRU across the whole store; small stores use a single shard and so are exact.
+ * Key verification in fetch() happens outside the lock.
+ * 
+ * Optionally, the block payloads can be kept in direct (off-heap) buffers, so a large cache
+ * doesn't make garbage collection slower. This costs a copy on every fetch.
+ * 
+ * Used for the client cache, and for debugging / simulation.
  */
 public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T> {
 
+	/** Never use more shards than this. Must be a power of two. */
+	static final int MAX_SHARDS = 16;
+	/** Only add another shard if each will hold at least this many keys. */
+	static final int MIN_KEYS_PER_SHARD = 1024;
+
+	/** The contents of a block. Immutable, so fetch() can read it without holding the lock. */
+	private final static class Payload {
+		/** Header followed by data, if off-heap. */
+		private final ByteBuffer buffer;
+		private final int headerLength;
+		private final byte[] header;
+		private final byte[] data;
+		final byte[] fullKey;
+
+		Payload(byte[] header, byte[] data, byte[] fullKey, boolean offHeap) {
+			if(offHeap) {
+				buffer = ByteBuffer.allocateDirect(header.length + data.length);
+				buffer.put(header);
+				buffer.put(data);
+				this.header = null;
+				this.data = null;
+			} else {
+				buffer = null;
+				this.header = header;
+				this.data = data;
+			}
+			headerLength = header.length;
+			this.fullKey = fullKey;
+		}
+
+		byte[] getHeader() {
+			if(buffer == null) return header;
+			ByteBuffer b = buffer.duplicate();
+			b.position(0);
+			byte[] buf = new byte[headerLength];
+			b.get(buf);
+			return buf;
+		}
+
+		byte[] getData() {
+			if(buffer == null) return data;
+			ByteBuffer b = buffer.duplicate();
+			b.position(headerLength);
+			byte[] buf = new byte[b.remaining()];
+			b.get(buf);
+			return buf;
+		}
+	}
+
 	private final static class Block {
-		byte[] header;
-		byte[] data;
-		byte[] fullKey;
-		boolean oldBlock;
+		volatile Payload payload;
+		volatile boolean oldBlock;
 	}
-	
-	private final LRUMap<ByteArrayWrapper, Block> blocksByRoutingKey;
+
+	/** A slice of the store. Protected by its own lock. */
+	private final static class Shard {
+		final LRUMap<ByteArrayWrapper, Block> blocksByRoutingKey =
+			LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
+		int maxKeys;
+
+		/** Caller must hold the lock. */
+		void shrink() {
+			while(blocksByRoutingKey.size() > maxKeys)
+				blocksByRoutingKey.popKey();
+		}
+	}
+
+	private final Shard[] shards;
 	
 	private final StoreCallback<T> callback;
 	
-	private int maxKeys;
+	private final boolean offHeap;
 	
-	private long hits;
-	private long misses;
-	private long writes;
+	private volatile int maxKeys;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong writes = new AtomicLong();
 	
 	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys) {
+		this(callback, maxKeys, false);
+	}
+	
+	/**
+	 * @param offHeap If true, keep the block payloads in direct buffers. Note that this counts
+	 * against -XX:MaxDirectMemorySize.
+	 */
+	public RAMFreenetStore(StoreCallback<T> callback, int maxKeys, boolean offHeap) {
 		this.callback = callback;
-		this.blocksByRoutingKey = LRUMap.createSafeMap(ByteArrayWrapper.FAST_COMPARATOR);
-		this.maxKeys = maxKeys;
+		this.offHeap = offHeap;
+		int shardCount = 1;
+		while(shardCount < MAX_SHARDS && maxKeys / (shardCount * 2) >= MIN_KEYS_PER_SHARD)
+			shardCount *= 2;
+		shards = new Shard[shardCount];
+		for(int i=0;i<shardCount;i++)
+			shards[i] = new Shard();
+		setShardMaxKeys(maxKeys);
 		callback.setStore(this);
 	}
 	
+	private Shard shardFor(ByteArrayWrapper key) {
+		int h = key.hashCode();
+		h ^= (h >>> 16);
+		return shards[h & (shards.length - 1)];
+	}
+
+	/** Split maxKeys between the shards. Caller must shrink them afterwards if necessary. */
+	private void setShardMaxKeys(int maxKeys) {
+		this.maxKeys = maxKeys;
+		int perShard = maxKeys / shards.length;
+		int extra = maxKeys % shards.length;
+		for(int i=0;i<shards.length;i++) {
+			synchronized(shards[i]) {
+				shards[i].maxKeys = perShard + (i < extra ? 1 : 0);
+			}
+		}
+	}
+
 	@Override
-	public synchronized T fetch(byte[] routingKey, byte[] fullKey,
+	public T fetch(byte[] routingKey, byte[] fullKey,
 			boolean dontPromote, boolean canReadClientCache, boolean canReadSlashdotCache, boolean ignoreOldBlocks, BlockMetadata meta) throws IOException {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		Block block = blocksByRoutingKey.get(key);
+		Shard shard = shardFor(key);
+		Block block;
+		synchronized(shard) {
+			block = shard.blocksByRoutingKey.get(key);
+		}
 		if(block == null) {
-			misses++;
+			misses.incrementAndGet();
 			return null;
 		}
-		if(ignoreOldBlocks && block.oldBlock) {
+		Payload payload = block.payload;
+		boolean oldBlock = block.oldBlock;
+		if(ignoreOldBlocks && oldBlock) {
 			Logger.normal(this, "Ignoring old block");
 			return null;
 		}
 		try {
 			T ret =
-				callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
-			hits++;
-			if(!dontPromote)
-				blocksByRoutingKey.push(key, block);
-			if(meta != null && block.oldBlock)
+				callback.construct(payload.getData(), payload.getHeader(), routingKey, payload.fullKey, canReadClientCache, canReadSlashdotCache, meta, null);
+			hits.incrementAndGet();
+			if(!dontPromote) {
+				synchronized(shard) {
+					// Don't resurrect it if it has been evicted meanwhile.
+					if(shard.blocksByRoutingKey.get(key) == block)
+						shard.blocksByRoutingKey.push(key, block);
+				}
+			}
+			if(meta != null && oldBlock)
 				meta.setOldBlock();
 			return ret;
 		} catch (KeyVerifyException e) {
-			blocksByRoutingKey.removeKey(key);
-			misses++;
+			synchronized(shard) {
+				if(shard.blocksByRoutingKey.get(key) == block)
+					shard.blocksByRoutingKey.removeKey(key);
+			}
+			misses.incrementAndGet();
 			return null;
 		}
 	}
 
 	@Override
-	public synchronized long getMaxKeys() {
+	public long getMaxKeys() {
 		return maxKeys;
 	}
 
 	@Override
-	public synchronized long hits() {
-		return hits;
+	public long hits() {
+		return hits.get();
 	}
 
 	@Override
-	public synchronized long keyCount() {
-		return blocksByRoutingKey.size();
+	public long keyCount() {
+		long count = 0;
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				count += shard.blocksByRoutingKey.size();
+			}
+		}
+		return count;
 	}
 
 	@Override
-	public synchronized long misses() {
-		return misses;
+	public long misses() {
+		return misses.get();
 	}
 
 	@Override
-	public synchronized void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
+	public void put(T block, byte[] data, byte[] header, boolean overwrite, boolean isOldBlock) throws KeyCollisionException {
 		byte[] routingkey = block.getRoutingKey();
 		byte[] fullKey = block.getFullKey();
 		
-		writes++;
+		writes.incrementAndGet();
 		ByteArrayWrapper key = new ByteArrayWrapper(routingkey);
-		Block oldBlock = blocksByRoutingKey.get(key);
 		boolean storeFullKeys = callback.storeFullKeys();
-		if(oldBlock != null) {
-			if(callback.collisionPossible()) {
-				boolean equals = Arrays.equals(oldBlock.data, data) &&
-					Arrays.equals(oldBlock.header, header) &&
-					(storeFullKeys ? Arrays.equals(oldBlock.fullKey, fullKey) : true);
-				if(equals) {
+		Shard shard = shardFor(key);
+		synchronized(shard) {
+			Block oldBlock = shard.blocksByRoutingKey.get(key);
+			if(oldBlock != null) {
+				if(callback.collisionPossible()) {
+					Payload oldPayload = oldBlock.payload;
+					boolean equals = Arrays.equals(oldPayload.getData(), data) &&
+						Arrays.equals(oldPayload.getHeader(), header) &&
+						(storeFullKeys ? Arrays.equals(oldPayload.fullKey, fullKey) : true);
+					if(equals) {
+						if(!isOldBlock)
+							oldBlock.oldBlock = false;
+						return;
+					}
+					if(overwrite) {
+						oldBlock.payload = new Payload(header, data, storeFullKeys ? fullKey : oldPayload.fullKey, offHeap);
+						oldBlock.oldBlock = isOldBlock;
+					} else {
+						throw new KeyCollisionException();
+					}
+					return;
+				} else {
 					if(!isOldBlock)
 						oldBlock.oldBlock = false;
 					return;
 				}
-				if(overwrite) {
-					oldBlock.data = data;
-					oldBlock.header = header;
-					if(storeFullKeys)
-						oldBlock.fullKey = fullKey;
-					oldBlock.oldBlock = isOldBlock;
-				} else {
-					throw new KeyCollisionException();
-				}
-				return;
-			} else {
-				if(!isOldBlock)
-					oldBlock.oldBlock = false;
-				return;
 			}
-		}
-		Block storeBlock = new Block();
-		storeBlock.data = data;
-		storeBlock.header = header;
-		if(storeFullKeys)
-			storeBlock.fullKey = fullKey;
-		storeBlock.oldBlock = isOldBlock;
-		blocksByRoutingKey.push(key, storeBlock);
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
+			Block storeBlock = new Block();
+			storeBlock.payload = new Payload(header, data, storeFullKeys ? fullKey : null, offHeap);
+			storeBlock.oldBlock = isOldBlock;
+			shard.blocksByRoutingKey.push(key, storeBlock);
+			shard.shrink();
 		}
 	}
 
 	@Override
-	public synchronized void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
+	public void setMaxKeys(long maxStoreKeys, boolean shrinkNow)
 			throws IOException {
-		this.maxKeys = (int)Math.min(Integer.MAX_VALUE, maxStoreKeys);
+		setShardMaxKeys((int)Math.min(Integer.MAX_VALUE, maxStoreKeys));
 		// Always shrink now regardless of parameter as we will shrink on the next put() anyway.
-		while(blocksByRoutingKey.size() > maxKeys) {
-			blocksByRoutingKey.popKey();
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				shard.shrink();
+			}
 		}
 	}
 
 	@Override
 	public long writes() {
-		return writes;
+		return writes.get();
 	}
 
 	@Override
@@ -162,31 +286,53 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 	@Override
 	public boolean probablyInStore(byte[] routingKey) {
 		ByteArrayWrapper key = new ByteArrayWrapper(routingKey);
-		return blocksByRoutingKey.get(key) != null;
+		Shard shard = shardFor(key);
+		synchronized(shard) {
+			return shard.blocksByRoutingKey.get(key) != null;
+		}
 	}
 
 	public void clear() {
-		blocksByRoutingKey.clear();
+		for(Shard shard : shards) {
+			synchronized(shard) {
+				shard.blocksByRoutingKey.clear();
+			}
+		}
 	}
 
 	public void migrateTo(StoreCallback<T> target, boolean canReadClientCache) throws IOException {
-		Enumeration<ByteArrayWrapper> keys = blocksByRoutingKey.keys();
-		while(keys.hasMoreElements()) {
-			ByteArrayWrapper routingKeyWrapped = keys.nextElement();
-			byte[] routingKey = routingKeyWrapped.get();
-			Block block = blocksByRoutingKey.get(routingKeyWrapped);
-			
-			T ret;
-			try {
-				ret = callback.construct(block.data, block.header, routingKey, block.fullKey, canReadClientCache, false, null, null);
-			} catch (KeyVerifyException e) {
-				Logger.error(this, "Caught while migrating: "+e, e);
-				continue;
+		List<ByteArrayWrapper> keys = new ArrayList<ByteArrayWrapper>();
+		List<Block> blocks = new ArrayList<Block>();
+		for(Shard shard : shards) {
+			keys.clear();
+			blocks.clear();
+			synchronized(shard) {
+				Enumeration<ByteArrayWrapper> e = shard.blocksByRoutingKey.keys();
+				while(e.hasMoreElements()) {
+					ByteArrayWrapper routingKeyWrapped = e.nextElement();
+					keys.add(routingKeyWrapped);
+					blocks.add(shard.blocksByRoutingKey.get(routingKeyWrapped));
+				}
 			}
-			try {
-				target.getStore().put(ret, block.data, block.header, false, block.oldBlock);
-			} catch (KeyCollisionException e) {
-				// Ignore
+			for(int i=0;i<keys.size();i++) {
+				byte[] routingKey = keys.get(i).get();
+				Block block = blocks.get(i);
+				Payload payload = block.payload;
+				byte[] data = payload.getData();
+				byte[] header = payload.getHeader();
+				
+				T ret;
+				try {
+					ret = callback.construct(data, header, routingKey, payload.fullKey, canReadClientCache, false, null, null);
+				} catch (KeyVerifyException e) {
+					Logger.error(this, "Caught while migrating: "+e, e);
+					continue;
+				}
+				try {
+					target.getStore().put(ret, data, header, false, block.oldBlock);
+				} catch (KeyCollisionException e) {
+					// Ignore
+				}
 			}
 		}
 	}
@@ -197,12 +343,12 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long hits() {
-				return hits;
+				return hits.get();
 			}
 
 			@Override
 			public long misses() {
-				return misses;
+				return misses.get();
 			}
 
 			@Override
@@ -212,7 +358,7 @@ public class RAMFreenetStore<T extends StorableBlock> implements FreenetStore<T>
 
 			@Override
 			public long writes() {
-				return writes;
+				return writes.get();
 			}
 			
 		};
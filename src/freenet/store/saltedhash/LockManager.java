@@ -3,11 +3,8 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package freenet.store.saltedhash;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Condition;
-import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import freenet.support.Logger;
@@ -15,74 +12,122 @@ import freenet.support.Logger.LogLevel;
 
 /**
  * Lock Manager
- * 
+ *
  * Handle locking/unlocking of individual offsets.
- * 
+ *
+ * Offsets are spread over a fixed number of stripes, each with its own lock and a small array
+ * of the offsets currently held, so threads locking unrelated slots do not contend on a single
+ * monitor, and we don't box a Long for every operation.
+ *
  * @author sdiz
  */
 public class LockManager {
 	private static boolean logDEBUG;
+	/** Number of stripes. Must be a power of two. */
+	static final int STRIPES = 256;
 	private volatile boolean shutdown;
-	private Lock entryLock = new ReentrantLock();
-	private Map<Long, Condition> lockMap = new HashMap<Long, Condition>();
+	private final Stripe[] stripes;
+
+	/** A set of locked offsets sharing one lock. Usually holds zero or one offset. */
+	private static class Stripe {
+		final ReentrantLock lock = new ReentrantLock();
+		/** Signalled whenever an offset in this stripe is unlocked. */
+		final Condition unlocked = lock.newCondition();
+		/** Locked offsets, in the first count elements. Protected by lock. */
+		long[] held = new long[2];
+		int count;
+
+		boolean isHeld(long offset) {
+			for(int i=0;i<count;i++)
+				if(held[i] == offset) return true;
+			return false;
+		}
+
+		void add(long offset) {
+			if(count == held.length) {
+				long[] newHeld = new long[held.length*2];
+				System.arraycopy(held, 0, newHeld, 0, count);
+				held = newHeld;
+			}
+			held[count++] = offset;
+		}
+
+		boolean remove(long offset) {
+			for(int i=0;i<count;i++) {
+				if(held[i] == offset) {
+					held[i] = held[--count];
+					return true;
+				}
+			}
+			return false;
+		}
+	}
 
 	LockManager() {
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
+		stripes = new Stripe[STRIPES];
+		for(int i=0;i<STRIPES;i++)
+			stripes[i] = new Stripe();
+	}
+
+	private Stripe stripeFor(long offset) {
+		// Adjacent offsets (as locked by the Cleaner) go to different stripes.
+		int h = (int)(offset ^ (offset >>> 32));
+		return stripes[h & (STRIPES - 1)];
 	}
 
 	/**
 	 * Lock the entry
-	 * 
+	 *
 	 * This lock is <strong>not</strong> re-entrance. No threads except Cleaner should hold more
 	 * then one lock at a time (or deadlock may occur).
+	 * @return False if we are shutting down or were interrupted, in which case the entry is not
+	 * locked.
 	 */
-	Condition lockEntry(long offset) {
+	boolean lockEntry(long offset) {
 		if (logDEBUG)
 			Logger.debug(this, "try locking " + offset, new Exception());
 
-		Condition condition;
+		Stripe stripe = stripeFor(offset);
 		try {
-			entryLock.lock();
+			stripe.lock.lock();
 			try {
-				do {
+				while (stripe.isHeld(offset)) {
 					if (shutdown)
-						return null;
-
-					Condition lockCond = lockMap.get(offset);
-					if (lockCond != null)
-						lockCond.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
-					else
-						break;
-				} while (true);
-				condition = entryLock.newCondition();
-				lockMap.put(offset, condition);
+						return false;
+					stripe.unlocked.await(10, TimeUnit.SECONDS); // 10s for checking shutdown
+				}
+				if (shutdown)
+					return false;
+				stripe.add(offset);
 			} finally {
-				entryLock.unlock();
+				stripe.lock.unlock();
 			}
 		} catch (InterruptedException e) {
 			Logger.error(this, "lock interrupted", e);
-			return null;
+			return false;
 		}
 
 		if (logDEBUG)
 			Logger.debug(this, "locked " + offset, new Exception());
-		return condition;
+		return true;
 	}
 
 	/**
 	 * Unlock the entry
 	 */
-	void unlockEntry(long offset, Condition condition) {
+	void unlockEntry(long offset) {
 		if (logDEBUG)
 			Logger.debug(this, "unlocking " + offset, new Exception("debug"));
 
-		entryLock.lock();
+		Stripe stripe = stripeFor(offset);
+		stripe.lock.lock();
 		try {
-			Condition cond = lockMap.remove(offset);
-			assert cond == condition;
-			cond.signal();
+			boolean removed = stripe.remove(offset);
+			assert removed;
+			stripe.unlocked.signalAll();
 		} finally {
-			entryLock.unlock();
+			stripe.lock.unlock();
 		}
 	}
 
@@ -91,14 +136,16 @@ public class LockManager {
 	 */
 	void shutdown() {
 		shutdown = true;
-		entryLock.lock();
-		try {
-			while (!lockMap.isEmpty()) {
-				Condition cond = lockMap.values().iterator().next();
-				cond.awaitUninterruptibly();
+		for (Stripe stripe : stripes) {
+			stripe.lock.lock();
+			try {
+				// Wake up anyone waiting so they can see the shutdown flag.
+				stripe.unlocked.signalAll();
+				while (stripe.count != 0)
+					stripe.unlocked.awaitUninterruptibly();
+			} finally {
+				stripe.lock.unlock();
 			}
-		} finally {
-			entryLock.unlock();
 		}
 	}
 }
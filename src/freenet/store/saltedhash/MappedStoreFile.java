@@ -0,0 +1,200 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import freenet.support.Logger;
+
+/**
+ * Memory-mapped view of one of the salted hash store's fixed-size-entry files (the .metadata
+ * or the .hd file). The file is mapped in segments, each holding a whole number of entries, so
+ * an entry never straddles two mappings. Segments are mapped lazily on first access, so a huge
+ * .hd file only costs address space for the windows that are actually used.
+ *
+ * Callers get a slice of the mapping with acquire() and must call release() when they are done
+ * with it. If the entry is not (yet) mapped, acquire() returns null and the caller should fall
+ * back to the FileChannel. Channel I/O and the mapping see the same page cache, so mixing them
+ * is safe.
+ *
+ * There is no way to unmap a MappedByteBuffer, so before the file is truncated the segments
+ * beyond the new length are dropped (under the write lock, so nobody can be reading them),
+ * and we rely on the garbage collector to actually unmap them. Note that on Windows this means
+ * the truncation itself may fail until the GC has run; SaltedHashFreenetStore will retry on
+ * the next resize batch.
+ */
+class MappedStoreFile {
+
+	/** Maximum size of a single mapping. Must be well under 2GB. */
+	static final int SEGMENT_BYTES = 256 * 1024 * 1024;
+
+	private final FileChannel channel;
+	private final String name;
+	private final int entryLength;
+	private final int entriesPerSegment;
+	private final long segmentLength;
+	/** Segments mapped so far. Elements are null if not mapped yet. The array itself is only
+	 * replaced under the write lock; elements are filled in lazily under the read lock. */
+	private AtomicReferenceArray<MappedByteBuffer> segments;
+	/** Number of whole entries covered by the file the last time we looked at its length. */
+	private long mappableEntries;
+	/** Readers hold the read lock while they access a slice; structural changes take the write
+	 * lock. An uncontended read lock is a CAS, much cheaper than a positional read syscall. */
+	private final ReadWriteLock lock;
+	/** Set if mapping failed, e.g. we ran out of address space on a 32-bit JVM. We then stay on
+	 * the FileChannel path. */
+	private volatile boolean disabled;
+	private boolean closed;
+
+	MappedStoreFile(FileChannel channel, int entryLength, String name) throws IOException {
+		this.channel = channel;
+		this.entryLength = entryLength;
+		this.name = name;
+		entriesPerSegment = Math.max(1, SEGMENT_BYTES / entryLength);
+		segmentLength = ((long)entriesPerSegment) * entryLength;
+		segments = new AtomicReferenceArray<MappedByteBuffer>(0);
+		lock = new ReentrantReadWriteLock();
+		remap();
+	}
+
+	/** Re-read the file length and make any new entries mappable. Must be called after the file
+	 * has grown. */
+	void remap() throws IOException {
+		lock.writeLock().lock();
+		try {
+			if(closed) return;
+			mappableEntries = channel.size() / entryLength;
+			int segmentCount = (int)((mappableEntries + entriesPerSegment - 1) / entriesPerSegment);
+			segments = copySegments(segmentCount);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Drop every mapping which covers any entry at or beyond maxEntries. Must be called
+	 * before the file is shrunk, otherwise a reader could touch a page which no longer exists,
+	 * which crashes the JVM on some platforms. */
+	void truncate(long maxEntries) {
+		lock.writeLock().lock();
+		try {
+			if(maxEntries >= mappableEntries) return;
+			mappableEntries = maxEntries;
+			int segmentCount = (int)((mappableEntries + entriesPerSegment - 1) / entriesPerSegment);
+			segments = copySegments(segmentCount);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/** Keep the old mappings which are still complete given the new mappableEntries. Caller
+	 * must hold the write lock. */
+	private AtomicReferenceArray<MappedByteBuffer> copySegments(int segmentCount) {
+		AtomicReferenceArray<MappedByteBuffer> newSegments =
+			new AtomicReferenceArray<MappedByteBuffer>(segmentCount);
+		for(int i=0;i<Math.min(segmentCount, segments.length());i++) {
+			MappedByteBuffer buf = segments.get(i);
+			if(buf != null && buf.capacity() == segmentCapacity(i))
+				newSegments.set(i, buf);
+		}
+		return newSegments;
+	}
+
+	private long segmentCapacity(int segment) {
+		long start = segment * (long)entriesPerSegment;
+		return Math.min(entriesPerSegment, mappableEntries - start) * entryLength;
+	}
+
+	/**
+	 * Get a view of a single entry. If this returns non-null, the caller must call release()
+	 * when it has finished with the buffer, and must not keep any reference to it afterwards.
+	 * @param offset The entry number.
+	 * @return A buffer whose position 0 is the start of the entry, limited to its length, or null
+	 * if the caller should use the FileChannel instead.
+	 */
+	ByteBuffer acquire(long offset) {
+		if(disabled) return null;
+		lock.readLock().lock();
+		boolean success = false;
+		try {
+			if(closed || offset >= mappableEntries) return null;
+			int segment = (int)(offset / entriesPerSegment);
+			MappedByteBuffer buf = segments.get(segment);
+			if(buf == null) {
+				buf = mapSegment(segment);
+				if(buf == null) return null;
+			}
+			ByteBuffer view = buf.duplicate();
+			int pos = (int)(offset % entriesPerSegment) * entryLength;
+			view.limit(pos + entryLength);
+			view.position(pos);
+			success = true;
+			return view.slice();
+		} finally {
+			if(!success) lock.readLock().unlock();
+		}
+	}
+
+	void release() {
+		lock.readLock().unlock();
+	}
+
+	/** Map a segment. Called with the read lock held; segments is only ever replaced under the
+	 * write lock, so we just need to serialise against other readers mapping the same segment. */
+	private synchronized MappedByteBuffer mapSegment(int segment) {
+		MappedByteBuffer buf = segments.get(segment);
+		if(buf != null) return buf;
+		try {
+			buf = channel.map(FileChannel.MapMode.READ_WRITE, segment * segmentLength, segmentCapacity(segment));
+		} catch (IOException e) {
+			Logger.error(this, "Unable to map "+name+" segment "+segment+", falling back to normal I/O: "+e, e);
+			disabled = true;
+			return null;
+		} catch (OutOfMemoryError e) {
+			// Out of address space, typically on a 32-bit JVM.
+			Logger.error(this, "Unable to map "+name+" segment "+segment+", falling back to normal I/O: "+e, e);
+			disabled = true;
+			return null;
+		}
+		segments.set(segment, buf);
+		return buf;
+	}
+
+	/** Write all dirty pages to disk. */
+	void force() {
+		lock.readLock().lock();
+		try {
+			for(int i=0;i<segments.length();i++) {
+				MappedByteBuffer buf = segments.get(i);
+				if(buf != null) buf.force();
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/** Flush and drop all mappings. Further calls to acquire() will return null. */
+	void close() {
+		force();
+		lock.writeLock().lock();
+		try {
+			closed = true;
+			segments = new AtomicReferenceArray<MappedByteBuffer>(0);
+			mappableEntries = 0;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return super.toString()+":"+name;
+	}
+
+}
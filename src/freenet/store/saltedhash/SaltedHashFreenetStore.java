@@ -16,11 +16,7 @@ import java.util.Arrays;
 import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
-import java.util.Map;
 import java.util.Random;
-import java.util.SortedSet;
-import java.util.TreeMap;
-import java.util.TreeSet;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
@@ -144,12 +140,27 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
 	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey)
 	        throws IOException {
+		return construct(baseDir, name, callback, random, maxKeys, useSlotFilter, shutdownHook, preallocate,
+		        resizeOnStart, exec, masterKey, false, false);
+	}
+
+	/**
+	 * @param mmapMetadata If true, memory-map the .metadata file, so probing a slot does not
+	 * need a syscall. Costs address space of 128 bytes per slot.
+	 * @param mmapData If true, also memory-map the .hd file, in windows, so fetching a block does
+	 * not need a syscall either. Needs a 64-bit JVM for any reasonably sized store.
+	 */
+	public static <T extends StorableBlock> SaltedHashFreenetStore<T> construct(File baseDir, String name, StoreCallback<T> callback, Random random,
+	        long maxKeys, boolean useSlotFilter, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, Ticker exec, byte[] masterKey,
+	        boolean mmapMetadata, boolean mmapData)
+	        throws IOException {
 		return new SaltedHashFreenetStore<T>(baseDir, name, callback, random, maxKeys, useSlotFilter,
-		        shutdownHook, preallocate, resizeOnStart, masterKey);
+		        shutdownHook, preallocate, resizeOnStart, masterKey, mmapMetadata, mmapData);
 	}
 
 	private SaltedHashFreenetStore(File baseDir, String name, StoreCallback<T> callback, Random random, long maxKeys,
-	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey) throws IOException {
+	        boolean enableSlotFilters, SemiOrderedShutdownHook shutdownHook, boolean preallocate, boolean resizeOnStart, byte[] masterKey,
+	        boolean mmapMetadata, boolean mmapData) throws IOException {
 		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
 		logDEBUG = Logger.shouldLog(LogLevel.DEBUG, this);
 
@@ -169,6 +180,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.random = random;
 		storeSize = maxKeys;
 		this.preallocate = preallocate;
+		this.mmapMetadata = mmapMetadata;
+		this.mmapData = mmapData;
 
 		lockManager = new LockManager();
 
@@ -286,6 +299,16 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 
 		storeFileOffsetReady = Math.min(curStoreFileSize / (headerBlockLength + dataBlockLength + hdPadding), curMetaFileSize / Entry.METADATA_LENGTH);
 
+		if(mmapMetadata)
+			metaMap = new MappedStoreFile(metaFC, Entry.METADATA_LENGTH, name + ".metadata");
+		if(mmapData)
+			hdMap = new MappedStoreFile(hdFC, headerBlockLength + dataBlockLength + hdPadding, name + ".hd");
+		if(writeQueueSize > 0) {
+			writeQueue = new WriteQueue(name, metaFC, Entry.METADATA_LENGTH,
+					hdFC, headerBlockLength + dataBlockLength + hdPadding, writeQueueSize);
+			writeQueue.start();
+		}
+
 		if(ticker == null) {
 			cleanerThread.start();
 		} else
@@ -321,8 +344,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, true);
-			if (lockMap == null) {
+			long[] lockedOffsets = lockDigestedKey(digestedKey, true);
+			if (lockedOffsets == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return null;
@@ -357,7 +380,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 					return null;
 				}
 			} finally {
-				unlockDigestedKey(digestedKey, true, lockMap);
+				unlockDigestedKey(lockedOffsets);
 			}
 		} finally {
 			configLock.readLock().unlock();
@@ -431,8 +454,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		}
 		byte[] digestedKey = cipherManager.getDigestedKey(routingKey);
 		try {
-			Map<Long, Condition> lockMap = lockDigestedKey(digestedKey, false);
-			if (lockMap == null) {
+			long[] lockedOffsets = lockDigestedKey(digestedKey, false);
+			if (lockedOffsets == null) {
 				if (logDEBUG)
 					Logger.debug(this, "cannot lock key: " + HexUtil.bytesToHex(routingKey) + ", shutting down?");
 				return false;
@@ -458,7 +481,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 							}
 							return true;
 						}
-						oldEntry.setHD(readHD(oldOffset)); // read from disk
+						readHD(oldEntry, oldOffset); // read from disk
 						T oldBlock = oldEntry.getStorableBlock(routingKey, fullKey, false, false, null, (block instanceof SSKBlock) ? ((SSKBlock)block).getPubKey() : null);
 						if (block.equals(oldBlock)) {
 							if(logDEBUG) Logger.debug(this, "Block already stored");
@@ -548,7 +571,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				onWrite();
 				return true;
 			} finally {
-				unlockDigestedKey(digestedKey, false, lockMap);
+				unlockDigestedKey(lockedOffsets);
 			}
 		} finally {
 			configLock.readLock().unlock();
@@ -569,6 +592,14 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	private RandomAccessFile hdRAF;
 	private FileChannel hdFC;
 	private final int hdPadding;
+	// optional memory-mapped views of the above, set up in start()
+	private final boolean mmapMetadata;
+	private final boolean mmapData;
+	private volatile MappedStoreFile metaMap;
+	private volatile MappedStoreFile hdMap;
+	// optional write-behind queue, set up in start()
+	private int writeQueueSize;
+	private volatile WriteQueue writeQueue;
 
 	/**
 	 * Data entry
@@ -865,18 +896,36 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			else
 				Logger.minor(this, "Unlikely match");
 		}
-		ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
-
-		do {
-			int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
-			if (status == -1) {
-				Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
-				throw new EOFException();
+		Entry entry = null;
+		WriteQueue queue = writeQueue;
+		WriteQueue.PendingWrite queued = queue == null ? null : queue.get(offset);
+		MappedStoreFile map = metaMap;
+		if(queued != null) {
+			entry = new Entry(queued.meta.duplicate(), null);
+		} else if(map != null) {
+			ByteBuffer mbf = map.acquire(offset);
+			if(mbf != null) {
+				try {
+					entry = new Entry(mbf, null);
+				} finally {
+					map.release();
+				}
 			}
-		} while (mbf.hasRemaining());
-		mbf.flip();
+		}
+		if(entry == null) {
+			ByteBuffer mbf = ByteBuffer.allocate(Entry.METADATA_LENGTH);
+
+			do {
+				int status = metaFC.read(mbf, Entry.METADATA_LENGTH * offset + mbf.position());
+				if (status == -1) {
+					Logger.error(this, "Failed to access offset "+offset, new Exception("error"));
+					throw new EOFException();
+				}
+			} while (mbf.hasRemaining());
+			mbf.flip();
 
-		Entry entry = new Entry(mbf, null);
+			entry = new Entry(mbf, null);
+		}
 		entry.curOffset = offset;
 
 		byte[] slotDigestedRoutingKey = entry.digestedRoutingKey;
@@ -911,8 +960,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 
 			if (withData) {
-				ByteBuffer hdBuf = readHD(offset);
-				entry.setHD(hdBuf);
+				readHD(entry, offset);
 				boolean decrypted = cipherManager.decrypt(entry, routingKey);
 				if (!decrypted) {
 					if(logMINOR && validCache && likelyMatch)
@@ -928,6 +976,37 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		return entry;
 	}
 
+	/**
+	 * Read header + data from disk into the entry
+	 *
+	 * @param entry
+	 * @param offset
+	 * @throws IOException
+	 */
+	private void readHD(Entry entry, long offset) throws IOException {
+		WriteQueue queue = writeQueue;
+		if(queue != null) {
+			WriteQueue.PendingWrite queued = queue.get(offset);
+			if(queued != null && queued.hd != null) {
+				entry.setHD(queued.hd.duplicate());
+				return;
+			}
+		}
+		MappedStoreFile map = hdMap;
+		if(map != null) {
+			ByteBuffer buf = map.acquire(offset);
+			if(buf != null) {
+				try {
+					entry.setHD(buf);
+				} finally {
+					map.release();
+				}
+				return;
+			}
+		}
+		entry.setHD(readHD(offset));
+	}
+
 	/**
 	 * Read header + data from disk
 	 *
@@ -1001,14 +1080,22 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		cipherManager.encrypt(entry, random);
 
 		ByteBuffer bf = entry.toMetaDataBuffer();
-		do {
-			int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
-			if (status == -1)
-				throw new EOFException();
-		} while (bf.hasRemaining());
+		WriteQueue queue = writeQueue;
+		if(queue != null) {
+			queue.add(offset, bf, entry.toHDBuffer());
+			entry.curOffset = offset;
+			return;
+		}
+		if(!writeMapped(metaMap, bf, offset)) {
+			do {
+				int status = metaFC.write(bf, Entry.METADATA_LENGTH * offset + bf.position());
+				if (status == -1)
+					throw new EOFException();
+			} while (bf.hasRemaining());
+		}
 
 		bf = entry.toHDBuffer();
-		if (bf != null) {
+		if (bf != null && !writeMapped(hdMap, bf, offset)) {
 			long pos = (headerBlockLength + dataBlockLength + hdPadding) * offset;
 			do {
 				int status = hdFC.write(bf, pos + bf.position());
@@ -1020,8 +1107,33 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		entry.curOffset = offset;
 	}
 
+	/** Write a buffer to a slot through the memory mapping, if there is one.
+	 * @return False if the caller must write it through the FileChannel instead. */
+	private boolean writeMapped(MappedStoreFile map, ByteBuffer bf, long offset) {
+		if(map == null) return false;
+		ByteBuffer out = map.acquire(offset);
+		if(out == null) return false;
+		try {
+			out.put(bf);
+		} finally {
+			map.release();
+		}
+		return true;
+	}
+
 	private void flushAndClose(boolean abort) {
 		Logger.normal(this, "Flush and closing this store: " + name);
+		if(writeQueue != null) {
+			try {
+				writeQueue.close();
+			} catch (IOException e) {
+				Logger.error(this, "error writing queued entries", e);
+			}
+		}
+		if(metaMap != null)
+			metaMap.close();
+		if(hdMap != null)
+			hdMap.close();
 		try {
 			metaFC.force(true);
 			metaFC.close();
@@ -1050,6 +1162,17 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		this.preallocate = preallocate;
 	}
 
+	/**
+	 * Queue up to this many writes in memory and write them out in the background, in offset
+	 * order, instead of writing each entry as it is stored. Must be called before start().
+	 * @param maxEntries Maximum number of queued entries, or 0 to write synchronously.
+	 */
+	public void setWriteQueueSize(int maxEntries) {
+		if(started) throw new IllegalStateException("Already started");
+		if(maxEntries < 0) throw new IllegalArgumentException();
+		this.writeQueueSize = maxEntries;
+	}
+
 	/**
 	 * Change on disk store file size
 	 *
@@ -1057,6 +1180,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 */
 	private void setStoreFileSize(long storeMaxEntries, boolean starting) {
 		try {
+			if(writeQueue != null)
+				writeQueue.flush();
 			long oldMetaLen = metaRAF.length();
 			long currentHdLen = hdRAF.length();
 
@@ -1115,10 +1240,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 			}
 			storeFileOffsetReady = 1 + storeMaxEntries;
 
+			// Drop any mappings beyond the new end of file before truncating.
+			if(metaMap != null)
+				metaMap.truncate(storeMaxEntries);
+			if(hdMap != null)
+				hdMap.truncate(storeMaxEntries);
 			metaRAF.setLength(newMetaLen);
 			hdRAF.setLength(newHdLen);
 		} catch (IOException e) {
 			Logger.error(this, "error resizing store file", e);
+		} finally {
+			try {
+				if(metaMap != null)
+					metaMap.remap();
+				if(hdMap != null)
+					hdMap.remap();
+			} catch (IOException e) {
+				Logger.error(this, "error remapping store file", e);
+			}
 		}
 	}
 
@@ -1456,7 +1595,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 						                + ", Offset=" + entry.curOffset);
 					}
 					try {
-						entry.setHD(readHD(entry.curOffset));
+						readHD(entry, entry.curOffset);
 						oldEntryList.add(entry);
 						if (oldEntryList.size() > RESIZE_MEMORY_ENTRIES)
 							oldEntryList.poll();
@@ -1674,13 +1813,24 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 */
 		private boolean batchProcessEntries(long offset, int length, BatchProcessor<T> processor) {
 			boolean wantFreeEntries = processor.wantFreeEntries();
-			Condition[] locked = new Condition[length];
+			int locked = 0;
 			try {
 				// acquire all locks in the region, will unlock in the finally block
 				for (int i = 0; i < length; i++) {
-					locked[i] = lockManager.lockEntry(offset + i);
-					if (locked[i] == null)
+					if (!lockManager.lockEntry(offset + i))
+						return false;
+					locked++;
+				}
+
+				// we read and write the metadata directly, so queued writes must hit the disk first
+				WriteQueue queue = writeQueue;
+				if (queue != null) {
+					try {
+						queue.flush();
+					} catch (IOException ioe) {
+						Logger.error(this, "unable to write queued entries", ioe);
 						return false;
+					}
 				}
 
 				long startFileOffset = offset * Entry.METADATA_LENGTH;
@@ -1771,9 +1921,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				return true;
 			} finally {
 				// unlock
-				for (int i = 0; i < length; i++)
-					if (locked[i] != null)
-						lockManager.unlockEntry(offset + i, locked[i]);
+				for (int i = 0; i < locked; i++)
+					lockManager.unlockEntry(offset + i);
 			}
 		}
 
@@ -1784,8 +1933,8 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 		 * @return <code>true</code> if the entry have put back successfully.
 		 */
 		private boolean resolveOldEntry(Entry entry) {
-			Map<Long, Condition> lockMap = lockDigestedKey(entry.getDigestedRoutingKey(), false);
-			if (lockMap == null)
+			long[] lockedOffsets = lockDigestedKey(entry.getDigestedRoutingKey(), false);
+			if (lockedOffsets == null)
 				return false;
 			try {
 				entry.storeSize = storeSize;
@@ -1819,7 +1968,7 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 				}
 				return false;
 			} finally {
-				unlockDigestedKey(entry.getDigestedRoutingKey(), false, lockMap);
+				unlockDigestedKey(lockedOffsets);
 			}
 		}
 	}
@@ -1980,55 +2129,42 @@ public class SaltedHashFreenetStore<T extends StorableBlock> implements FreenetS
 	 * operation failed.
 	 *
 	 * @param digestedKey
-	 * @return <code>true</code> if all the offsets are locked.
+	 * @return The offsets locked, to be passed to unlockDigestedKey(), or <code>null</code> if
+	 * we could not lock them all.
 	 */
-	private Map<Long, Condition> lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
-		// use a set to prevent duplicated offsets,
-		// a sorted set to prevent deadlocks
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
+	private long[] lockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize) {
+		long[] offsets = getOffsetFromDigestedKey(digestedKey, storeSize);
 		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		Map<Long, Condition> locked = new TreeMap<Long, Condition>();
-		for (long offset : offsets) {
-			Condition condition = lockManager.lockEntry(offset);
-			if (condition == null)
-				break;
-			locked.put(offset, condition);
-		}
-
-		if (locked.size() == offsets.size()) {
-			return locked;
-		} else {
-			// failed, remove the locks
-			for (Map.Entry<Long, Condition> e : locked.entrySet())
-				lockManager.unlockEntry(e.getKey(), e.getValue());
-			return null;
+			long[] prevOffsets = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
+			long[] all = new long[offsets.length + prevOffsets.length];
+			System.arraycopy(offsets, 0, all, 0, offsets.length);
+			System.arraycopy(prevOffsets, 0, all, offsets.length, prevOffsets.length);
+			offsets = all;
+		}
+		// sort to prevent deadlocks, and remove duplicated offsets
+		Arrays.sort(offsets);
+		int count = 0;
+		for (int i = 0; i < offsets.length; i++) {
+			if (i == 0 || offsets[i] != offsets[i-1])
+				offsets[count++] = offsets[i];
+		}
+		if (count != offsets.length)
+			offsets = Arrays.copyOf(offsets, count);
+
+		for (int i = 0; i < offsets.length; i++) {
+			if (!lockManager.lockEntry(offsets[i])) {
+				// failed, remove the locks
+				for (int j = 0; j < i; j++)
+					lockManager.unlockEntry(offsets[j]);
+				return null;
+			}
 		}
+		return offsets;
 	}
 
-	private void unlockDigestedKey(byte[] digestedKey, boolean usePrevStoreSize, Map<Long, Condition> lockMap) {
-		// use a set to prevent duplicated offsets
-		SortedSet<Long> offsets = new TreeSet<Long>();
-		long[] offsetArray = getOffsetFromDigestedKey(digestedKey, storeSize);
-		for (long offset : offsetArray)
-			offsets.add(offset);
-		if (usePrevStoreSize && prevStoreSize != 0) {
-			offsetArray = getOffsetFromDigestedKey(digestedKey, prevStoreSize);
-			for (long offset : offsetArray)
-				offsets.add(offset);
-		}
-
-		for (long offset : offsets) {
-			lockManager.unlockEntry(offset, lockMap.get(offset));
-			lockMap.remove(offset);
-		}
+	private void unlockDigestedKey(long[] lockedOffsets) {
+		for (long offset : lockedOffsets)
+			lockManager.unlockEntry(offset);
 	}
 
 	public class ShutdownDB implements Runnable {
@@ -0,0 +1,234 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.store.saltedhash;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import freenet.support.Logger;
+import freenet.support.io.NativeThread;
+
+/**
+ * Write-behind queue for the salted hash store. Encrypted entries are queued by slot offset
+ * instead of being written immediately; a later write to the same slot replaces the earlier one,
+ * and a writer thread periodically writes the queue out in offset order, using a single
+ * gathering write for each run of adjacent slots. Reads of a queued slot must be served from
+ * the queue (see get()).
+ *
+ * Unlike CachingFreenetStore, this does not delay the slot selection or the encryption, so
+ * it needs no extra collision handling, costs only the size of the encrypted entries, and
+ * the slot filter stays exact.
+ *
+ * Queued entries are lost if the node crashes, which is acceptable for a lossy store; they
+ * are written out on close().
+ */
+class WriteQueue {
+
+	/** How long a write can sit in the queue before the writer thread picks it up. */
+	static final long FLUSH_DELAY = TimeUnit.SECONDS.toMillis(2);
+
+	/** A queued write to one slot. Buffers are never modified once queued; use duplicate(). */
+	static final class PendingWrite {
+		final long offset;
+		final ByteBuffer meta;
+		/** May be null if only the metadata needs writing. */
+		final ByteBuffer hd;
+
+		PendingWrite(long offset, ByteBuffer meta, ByteBuffer hd) {
+			this.offset = offset;
+			this.meta = meta;
+			this.hd = hd;
+		}
+	}
+
+	private final String name;
+	private final FileChannel metaFC;
+	private final FileChannel hdFC;
+	private final int metaLength;
+	private final int hdLength;
+	private final int maxEntries;
+	private final ConcurrentSkipListMap<Long, PendingWrite> pending;
+	/** Number of entries in pending. ConcurrentSkipListMap.size() has to count them. */
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	/** Only one thread may be flushing at a time, because we use the channel position for
+	 * gathering writes. Also protects closed and signals the writer thread. */
+	private final Lock flushLock = new ReentrantLock();
+	private final Condition wakeWriter = flushLock.newCondition();
+	private boolean closed;
+	private final Writer writer;
+
+	private long flushedEntries;
+	private long replacedEntries;
+
+	private static volatile boolean logMINOR;
+
+	static { Logger.registerClass(WriteQueue.class); }
+
+	WriteQueue(String name, FileChannel metaFC, int metaLength, FileChannel hdFC, int hdLength, int maxEntries) {
+		if(maxEntries <= 0) throw new IllegalArgumentException();
+		this.name = name;
+		this.metaFC = metaFC;
+		this.metaLength = metaLength;
+		this.hdFC = hdFC;
+		this.hdLength = hdLength;
+		this.maxEntries = maxEntries;
+		pending = new ConcurrentSkipListMap<Long, PendingWrite>();
+		writer = new Writer();
+	}
+
+	void start() {
+		writer.start();
+	}
+
+	/**
+	 * Queue a write. If the queue is full, flush it first, on the caller's thread.
+	 * @param meta The encrypted metadata, positioned at 0. Must not be modified afterwards.
+	 * @param hd The encrypted header and data, positioned at 0, or null.
+	 * @throws IOException If we had to flush and the flush failed.
+	 */
+	void add(long offset, ByteBuffer meta, ByteBuffer hd) throws IOException {
+		if(pendingCount.get() >= maxEntries)
+			flush();
+		Long key = offset;
+		PendingWrite old = pending.get(key);
+		if(hd == null && old != null)
+			hd = old.hd; // Don't lose a queued header/data write.
+		int count;
+		if(pending.put(key, new PendingWrite(offset, meta, hd)) != null) {
+			count = pendingCount.get();
+			synchronized(this) {
+				replacedEntries++;
+			}
+		} else
+			count = pendingCount.incrementAndGet();
+		if(count >= maxEntries / 2) {
+			flushLock.lock();
+			try {
+				wakeWriter.signal();
+			} finally {
+				flushLock.unlock();
+			}
+		}
+	}
+
+	/** Get the queued write for a slot, if any. The caller must hold the slot lock. */
+	PendingWrite get(long offset) {
+		if(pending.isEmpty()) return null;
+		return pending.get(offset);
+	}
+
+	/** Write everything queued so far to disk, in offset order. */
+	void flush() throws IOException {
+		flushLock.lock();
+		try {
+			innerFlush();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	private void innerFlush() throws IOException {
+		if(pending.isEmpty()) return;
+		List<PendingWrite> batch = new ArrayList<PendingWrite>(pending.values());
+		writeRuns(batch, false);
+		writeRuns(batch, true);
+		// Only remove what we have written; a slot may have been written again meanwhile.
+		for(PendingWrite w : batch) {
+			if(pending.remove(w.offset, w))
+				pendingCount.decrementAndGet();
+		}
+		synchronized(this) {
+			flushedEntries += batch.size();
+		}
+		if(logMINOR) Logger.minor(this, "Flushed "+batch.size()+" entries for "+name);
+	}
+
+	/** Write the batch, which is sorted by offset, with one gathering write per run of
+	 * adjacent slots. Caller must hold flushLock. */
+	private void writeRuns(List<PendingWrite> batch, boolean hd) throws IOException {
+		FileChannel fc = hd ? hdFC : metaFC;
+		long length = hd ? hdLength : metaLength;
+		int i = 0;
+		while(i < batch.size()) {
+			if(hd && batch.get(i).hd == null) {
+				i++;
+				continue;
+			}
+			int j = i + 1;
+			while(j < batch.size() && batch.get(j).offset == batch.get(j-1).offset + 1 &&
+					(!hd || batch.get(j).hd != null))
+				j++;
+			ByteBuffer[] bufs = new ByteBuffer[j - i];
+			long remaining = 0;
+			for(int k=i;k<j;k++) {
+				bufs[k-i] = (hd ? batch.get(k).hd : batch.get(k).meta).duplicate();
+				remaining += bufs[k-i].remaining();
+			}
+			fc.position(batch.get(i).offset * length);
+			while(remaining > 0)
+				remaining -= fc.write(bufs);
+			i = j;
+		}
+	}
+
+	/** Flush and stop the writer thread. */
+	void close() throws IOException {
+		flushLock.lock();
+		try {
+			closed = true;
+			wakeWriter.signal();
+			innerFlush();
+		} finally {
+			flushLock.unlock();
+		}
+		if(logMINOR) Logger.minor(this, "Closed "+this);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return super.toString()+":"+name+": flushed "+flushedEntries+" replaced "+replacedEntries;
+	}
+
+	private class Writer extends NativeThread {
+
+		Writer() {
+			super("Store-" + name + "-Writer", NativeThread.HIGH_PRIORITY, false);
+			setDaemon(true);
+		}
+
+		@Override
+		public void realRun() {
+			flushLock.lock();
+			try {
+				while(!closed) {
+					try {
+						wakeWriter.await(FLUSH_DELAY, TimeUnit.MILLISECONDS);
+					} catch (InterruptedException e) {
+						// Ignore.
+					}
+					if(closed) return;
+					try {
+						innerFlush();
+					} catch (IOException e) {
+						// Leave them queued, we will retry.
+						Logger.error(this, "Unable to write queued entries for "+name+": "+e, e);
+					}
+				}
+			} finally {
+				flushLock.unlock();
+			}
+		}
+
+	}
+
+}
@@ -5,6 +5,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
@@ -128,7 +129,82 @@ public abstract class BloomFilter {
 	}
 
 	protected Random getHashes(byte[] key) {
-		return new MersenneTwister(key);
+		return recentHashes.get().get(key);
+	}
+
+	/** Hashes for the keys most recently used on each thread. The same key is often checked
+	 * against many filters: KeyListenerTracker checks every block against every download's
+	 * filter. Seeding a MersenneTwister costs far more than checking a filter, so we only do it
+	 * once per key. */
+	private static final ThreadLocal<RecentHashes> recentHashes = new ThreadLocal<RecentHashes>() {
+		@Override
+		protected RecentHashes initialValue() {
+			return new RecentHashes();
+		}
+	};
+
+	/** A few KeyHashes, reused least recently used first. Not thread-safe. */
+	static final class RecentHashes {
+		private static final int SIZE = 4;
+		private final KeyHashes[] hashes = new KeyHashes[SIZE];
+		private final long[] lastUsed = new long[SIZE];
+		private long counter;
+
+		RecentHashes() {
+			for(int i=0;i<SIZE;i++)
+				hashes[i] = new KeyHashes();
+		}
+
+		/** @return A Random which produces the same sequence as new MersenneTwister(key).
+		 * Only valid until the next call. */
+		KeyHashes get(byte[] key) {
+			int lru = 0;
+			for(int i=0;i<SIZE;i++) {
+				if(hashes[i].matches(key)) {
+					lru = i;
+					break;
+				}
+				if(lastUsed[i] < lastUsed[lru]) lru = i;
+			}
+			lastUsed[lru] = ++counter;
+			return hashes[lru].reset(key);
+		}
+	}
+
+	/** Replays the output of a MersenneTwister seeded with a key, generating it as needed. */
+	static final class KeyHashes extends Random {
+		private static final long serialVersionUID = 1L;
+		private byte[] key;
+		private MersenneTwister source;
+		private int[] values = new int[64];
+		private int count;
+		private int pos;
+
+		boolean matches(byte[] k) {
+			return key != null && Arrays.equals(key, k);
+		}
+
+		KeyHashes reset(byte[] newKey) {
+			if(!matches(newKey)) {
+				if(key == null || key.length != newKey.length)
+					key = new byte[newKey.length];
+				System.arraycopy(newKey, 0, key, 0, newKey.length);
+				source = null;
+				count = 0;
+			}
+			pos = 0;
+			return this;
+		}
+
+		@Override
+		protected int next(int bits) {
+			if(pos == count) {
+				if(source == null) source = new MersenneTwister(key);
+				if(count == values.length) values = Arrays.copyOf(values, count * 2);
+				values[count++] = source.nextInt();
+			}
+			return values[pos++] >>> (32 - bits);
+		}
 	}
 
 	//-- Fork & Merge
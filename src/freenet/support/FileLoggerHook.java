@@ -1,5 +1,6 @@
 package freenet.support;
 
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 
 import java.io.BufferedOutputStream;
@@ -14,10 +15,16 @@ import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.UnsupportedEncodingException;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.Deque;
@@ -25,7 +32,9 @@ import java.util.GregorianCalendar;
 import java.util.Locale;
 import java.util.StringTokenizer;
 import java.util.TimeZone;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.zip.GZIPOutputStream;
 
 import freenet.node.SemiOrderedShutdownHook;
@@ -55,6 +64,10 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected int INTERVAL_MULTIPLIER = 5;
 	
 	private static final String ENCODING = "UTF-8";
+	private static final Charset CHARSET = Charset.forName(ENCODING);
+	/** WriterThread copies lines into a buffer this big before writing them. Matches the buffer
+	 * in front of the gzipper. */
+	private static final int BATCH_SIZE = 65536;
 
         private static volatile boolean logMINOR;
 	static {
@@ -109,23 +122,24 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected boolean redirectStdErr = false;
 
 	protected final int MAX_LIST_SIZE;
-	protected long MAX_LIST_BYTES = 10 * (1 << 20);
-	protected long LIST_WRITE_THRESHOLD;
+	protected volatile long MAX_LIST_BYTES = 10 * (1 << 20);
+	protected volatile long LIST_WRITE_THRESHOLD;
 
 	/**
 	 * Something weird happens when the disk gets full, also we don't want to
 	 * block So run the actual write on another thread
 	 * 
-	 * Unfortunately, we can't use ConcurrentBlockingQueue because we need to dump stuff when the queue gets
-	 * too big.
-	 * 
-	 * FIXME PERFORMANCE: Using an ArrayBlockingQueue avoids some unnecessary memory allocations, but it 
-	 * means we have to take two locks. 
-	 * Seriously consider reverting 88268b99856919df0d42c2787d9ea3674a9f6f0d..e359b4005ef728a159fdee988c483de8ce8f3f6b
-	 * to go back to one lock and a LinkedList.
+	 * Logging threads don't take any locks to queue a line. If the queue is full, either in
+	 * lines or in bytes, the new line is dropped and counted, and the writer thread says how
+	 * many were lost when it next writes.
 	 */
-	protected final ArrayBlockingQueue<byte[]> list;
-	protected long listBytes = 0;
+	protected final LineQueue list;
+	private final AtomicLong listBytes = new AtomicLong();
+	private final AtomicLong droppedLines = new AtomicLong();
+	/** The writer thread, once started. */
+	private volatile Thread writerThread;
+	/** True if the writer thread is, or is about to be, parked waiting for more lines. */
+	private volatile boolean writerWaiting;
 
 	long maxOldLogfilesDiskUsage;
 	protected final Deque<OldLogFile> logFiles = new ArrayDeque<OldLogFile>();
@@ -238,9 +252,13 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	}
 	
 	// Unless we are writing flat out, everything will hit disk within this period.
-	private long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
+	private volatile long flushTime = 1000; // Default is 1 second. Will be set by setMaxBacklogNotBusy().
 
 	class WriterThread extends Thread {
+		private final byte[] batch = new byte[BATCH_SIZE];
+		/** The value of droppedLines when we last logged that lines had been dropped. */
+		private long reportedDropped;
+
 		WriterThread() {
 			super("Log File Writer Thread");
 		}
@@ -249,7 +267,6 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		@SuppressWarnings("fallthrough")
 		public void run() {
 			File currentFilename = null;
-			byte[] o = null;
 			long thisTime;
 			long lastTime = -1;
 			long startTime;
@@ -298,11 +315,9 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 				gc.add(INTERVAL, INTERVAL_MULTIPLIER);
 				nextHour = gc.getTimeInMillis();
 			}
+			// When the oldest line which is queued, or written but not flushed, was first seen.
 			long timeWaitingForSync = -1;
-			long flush;
-			synchronized(this) {
-				flush = flushTime;
-			}
+			boolean unflushed = false;
 			while (true) {
 				try {
 					thisTime = System.currentTimeMillis();
@@ -321,66 +336,24 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 							}
 						}
 					}
-					boolean died = false;
-					boolean timeoutFlush = false;
-					synchronized (list) {
-						flush = flushTime;
-						long maxWait;
-						if(timeWaitingForSync == -1)
-							maxWait = Long.MAX_VALUE;
-						else
-							maxWait = timeWaitingForSync + flush;
-						o = list.poll();
-						while(o == null) {
-							if (closed) {
-								died = true;
-								break;
-							}
-							try {
-								if(thisTime < maxWait) {
-									// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
-									list.wait(Math.min(500L, maxWait - thisTime));
-									thisTime = System.currentTimeMillis();
-									if(listBytes < LIST_WRITE_THRESHOLD) {
-										// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
-										assert((listBytes == 0) == (list.peek() == null));
-										if(listBytes != 0 && maxWait == Long.MAX_VALUE)
-											maxWait = thisTime + flush;
-										if(closed) // If closing, write stuff ASAP.
-											o = list.poll();
-										else if(maxWait != Long.MAX_VALUE) {
-											continue;
-										}
-									} else {
-										// Do NOT use list.poll(timeout) because it uses a separate lock.
-										o = list.poll();
-									}
-								}
-							} catch (InterruptedException e) {
-								// Ignored.
-							}
-							if(o == null) {
-								if(timeWaitingForSync == -1) {
-									timeWaitingForSync = thisTime;
-									maxWait = thisTime + flush;
-								}
-								if(thisTime >= maxWait) {
-									timeoutFlush = true;
-									timeWaitingForSync = -1; // We have stuff to write, we are no longer waiting.
-									break;
-								}
-							} else break;
-						}
-						if(o != null) {
-							listBytes -= o.length + LINE_OVERHEAD;
-						}
+					// Read before writing, so everything logged before close() is written.
+					boolean died = closed;
+					long flush = flushTime;
+					boolean timeoutFlush = timeWaitingForSync != -1 && thisTime >= timeWaitingForSync + flush;
+					long bytes = listBytes.get();
+					// Don't write at all until the lower bytes threshold is exceeded, or the time threshold is.
+					if(died || timeoutFlush || shouldWrite(bytes)) {
+						if(writeQueued()) unflushed = true;
 					}
-					if(timeoutFlush || died) {
+					if((timeoutFlush || died) && unflushed) {
 						// Flush to disk 
-						myWrite(logStream, null);
+						myWrite(logStream, null, 0, 0);
 				        if(altLogStream != null)
-				        	myWrite(altLogStream, null);
+				        	myWrite(altLogStream, null, 0, 0);
+						unflushed = false;
 					}
+					if(timeoutFlush)
+						timeWaitingForSync = -1;
 					if(died) {
 						try {
 							logStream.close();
@@ -400,10 +373,20 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 						}
 						return;
 					}
-					if(o == null) continue;
-					myWrite(logStream,  o);
-			        if(altLogStream != null)
-			        	myWrite(altLogStream, o);
+					if(timeWaitingForSync == -1 && (unflushed || !list.isEmpty()))
+						timeWaitingForSync = thisTime;
+					// Wait no more than 500ms since the CloserThread might be waiting for closedFinished.
+					long wait = 500;
+					if(timeWaitingForSync != -1)
+						wait = Math.min(wait, timeWaitingForSync + flush - thisTime);
+					if(wait > 0) {
+						// logString() reads writerWaiting after queueing, so either it wakes us or we see its line.
+						writerWaiting = true;
+						bytes = listBytes.get();
+						if(!closed && !shouldWrite(bytes))
+							LockSupport.parkNanos(this, MILLISECONDS.toNanos(wait));
+						writerWaiting = false;
+					}
 				} catch (OutOfMemoryError e) {
 					System.err.println(e.getClass());
 					System.err.println(e.getMessage());
@@ -417,6 +400,59 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			}
 		}
 
+		/**
+		 * Write everything in the queue, copying the lines into a buffer so the streams see a few
+		 * big writes rather than one per line.
+		 * @return True if anything was written.
+		 */
+		private boolean writeQueued() {
+			int length = 0;
+			// Taken off listBytes once per batch, as logging threads are adding to it too.
+			long freed = 0;
+			boolean written = false;
+			while(true) {
+				byte[] b;
+				long dropped = droppedLines.get();
+				if(dropped != reportedDropped) {
+					String err =
+						"GRRR: ERROR: Logging too fast, dropped "
+							+ (dropped - reportedDropped)
+							+ " entries, "
+							+ listBytes.get()
+							+ " bytes in memory\n";
+					b = err.getBytes(CHARSET);
+					reportedDropped = dropped;
+				} else {
+					b = list.poll();
+					if(b == null) break;
+					freed += b.length + LINE_OVERHEAD;
+				}
+				written = true;
+				if(length + b.length > batch.length) {
+					listBytes.addAndGet(-freed);
+					freed = 0;
+					writeBatch(batch, length);
+					length = 0;
+				}
+				if(b.length > batch.length) {
+					writeBatch(b, b.length);
+				} else {
+					System.arraycopy(b, 0, batch, length, b.length);
+					length += b.length;
+				}
+			}
+			listBytes.addAndGet(-freed);
+			if(length > 0)
+				writeBatch(batch, length);
+			return written;
+		}
+
+		private void writeBatch(byte[] b, int length) {
+			myWrite(logStream, b, 0, length);
+	        if(altLogStream != null)
+	        	myWrite(altLogStream, b, 0, length);
+		}
+
 		private File rotateLog(File currentFilename, long lastTime, long nextHour, GregorianCalendar gc) {
 	        // Switch logs
 	        try {
@@ -463,13 +499,13 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		 * @param b
 		 *            the bytes to write, null to flush
 		 */
-		protected void myWrite(OutputStream os, byte[] b) {
+		protected void myWrite(OutputStream os, byte[] b, int offset, int length) {
 			long sleepTime = 1000;
 			while (true) {
 				boolean thrown = false;
 				try {
 					if (b != null)
-						os.write(b);
+						os.write(b, offset, length);
 					else
 						os.flush();
 				} catch (IOException e) {
@@ -539,6 +575,78 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	protected Object runningCompressorsSync = new Object();
 
 	private Date myDate = new Date();
+	/** The last date formatted by log(). Many lines are logged in the same millisecond. */
+	private volatile FormattedDate lastDate;
+
+	private static final class FormattedDate {
+		final long time;
+		final String formatted;
+
+		FormattedDate(long time, String formatted) {
+			this.time = time;
+			this.formatted = formatted;
+		}
+	}
+
+	private String formatDate(long now) {
+		FormattedDate d = lastDate;
+		if(d != null && d.time == now) return d.formatted;
+		String formatted;
+		synchronized (this) {
+			myDate.setTime(now);
+			formatted = df.format(myDate);
+		}
+		lastDate = new FormattedDate(now, formatted);
+		return formatted;
+	}
+
+	/** Per thread buffers to format and encode a line, so log() only allocates the byte[] which
+	 * is queued. */
+	private static final class LineEncoder {
+		/** Don't keep buffers for huge lines (e.g. long stack traces) around. */
+		private static final int MAX_KEPT_CHARS = 16384;
+
+		final StringBuilder sb = new StringBuilder(1024);
+		/** In case formatting a line logs something. */
+		boolean inUse;
+		private final CharsetEncoder encoder = CHARSET.newEncoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		private char[] chars = new char[1024];
+		private ByteBuffer bytes = ByteBuffer.allocate(4096);
+
+		/** @return The contents of sb, encoded. */
+		byte[] encode() {
+			int length = sb.length();
+			char[] c = chars;
+			if(c.length < length) c = new char[length];
+			sb.getChars(0, length, c, 0);
+			int maxBytes = (int) Math.ceil(length * (double) encoder.maxBytesPerChar());
+			ByteBuffer buf = bytes;
+			if(buf.capacity() < maxBytes) buf = ByteBuffer.allocate(maxBytes);
+			buf.clear();
+			encoder.reset();
+			encoder.encode(CharBuffer.wrap(c, 0, length), buf, true);
+			encoder.flush(buf);
+			byte[] b = Arrays.copyOf(buf.array(), buf.position());
+			if(length <= MAX_KEPT_CHARS) {
+				chars = c;
+				bytes = buf;
+			} else {
+				sb.setLength(0);
+				sb.trimToSize();
+				sb.ensureCapacity(1024);
+			}
+			return b;
+		}
+	}
+
+	private static final ThreadLocal<LineEncoder> lineEncoder = new ThreadLocal<LineEncoder>() {
+		@Override
+		protected LineEncoder initialValue() {
+			return new LineEncoder();
+		}
+	};
 
 	/**
 	 * Create a Logger to append to the given file. If the file does not exist
@@ -806,6 +914,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		}
 		WriterThread wt = new WriterThread();
 		wt.setDaemon(true);
+		writerThread = wt;
 		CloserThread ct = new CloserThread();
 		SemiOrderedShutdownHook.get().addLateJob(ct);
 		wt.start();
@@ -854,7 +963,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		setInterval(logRotateInterval);
 		
 		MAX_LIST_SIZE = maxListSize;
-		list = new ArrayBlockingQueue<byte[]>(MAX_LIST_SIZE);
+		list = new LineQueue(MAX_LIST_SIZE);
 		
 		setDateFormat(dfmt);
 		setLogFormat(fmt);
@@ -924,7 +1033,22 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 		if (closed)
 			return;
 		
-		StringBuilder sb = new StringBuilder( e == null ? 512 : 1024 );
+		LineEncoder encoder = lineEncoder.get();
+		if(encoder.inUse)
+			encoder = new LineEncoder();
+		encoder.inUse = true;
+		byte[] b;
+		try {
+			format(encoder.sb, o, c, msg, e, priority);
+			b = encoder.encode();
+		} finally {
+			encoder.sb.setLength(0);
+			encoder.inUse = false;
+		}
+		logString(b);
+	}
+
+	private void format(StringBuilder sb, Object o, Class<?> c, String msg, Throwable e, LogLevel priority) {
 		int sctr = 0;
 
 		for (int f: fmt) {
@@ -933,11 +1057,7 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 					sb.append(str[sctr++]);
 					break;
 				case DATE :
-					long now = System.currentTimeMillis();
-					synchronized (this) {
-						myDate.setTime(now);
-						sb.append(df.format(myDate));
-					}
+					sb.append(formatDate(System.currentTimeMillis()));
 					break;
 				case CLASS :
 					sb.append(c == null ? "<none>" : c.getName());
@@ -987,71 +1107,128 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 			if(cause != e) e = cause;
 			else break;
 		}
-
-		try {
-			logString(sb.toString().getBytes(ENCODING));
-		} catch (UnsupportedEncodingException e1) {
-			throw new Error(e1);
-		}
 	}
 
 	/** Memory allocation overhead (estimated through experimentation with bsh) */
 	private static final int LINE_OVERHEAD = 60;
 	
-	public void logString(byte[] b) throws UnsupportedEncodingException {
-		synchronized (list) {
-			int sz = list.size();
-			if(!list.offer(b)) {
-				byte[] ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				ss = list.poll();
-				if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ 2
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(list.offer(buf))
-					listBytes += (buf.length + LINE_OVERHEAD);
-				if(list.offer(b))
-					listBytes += (b.length + LINE_OVERHEAD);
-			} else
-				listBytes += (b.length + LINE_OVERHEAD);
-			int x = 0;
-			if (listBytes > MAX_LIST_BYTES) {
-				while ((list.size() > (MAX_LIST_SIZE * 0.9F))
-					|| (listBytes > (MAX_LIST_BYTES * 0.9F))) {
-					byte[] ss;
-					ss = list.poll();
-					listBytes -= (ss.length + LINE_OVERHEAD);
-					x++;
-				}
-				String err =
-					"GRRR: ERROR: Logging too fast, chopped "
-						+ x
-						+ " entries, "
-						+ listBytes
-						+ " bytes in memory\n";
-				byte[] buf = err.getBytes(ENCODING);
-				if(!list.offer(buf)) {
-					byte[] ss = list.poll();
-					if(ss != null) listBytes -= ss.length + LINE_OVERHEAD;
-					if(list.offer(buf))
-						listBytes += (buf.length + LINE_OVERHEAD);
-				} else
-					listBytes += (buf.length + LINE_OVERHEAD);
-			}
-			if (sz == 0)
-				list.notifyAll();
+	/** Queue a line for writing. Does not take any locks. If there are already too many lines
+	 * or bytes queued, the line is dropped. */
+	public void logString(byte[] b) {
+		long size = b.length + LINE_OVERHEAD;
+		long bytes = listBytes.addAndGet(size);
+		// Always accept a single line, however big.
+		if((bytes > MAX_LIST_BYTES && bytes != size) || !list.offer(b)) {
+			listBytes.addAndGet(-size);
+			droppedLines.incrementAndGet();
+			return;
 		}
+		if(writerWaiting && shouldWrite(bytes))
+			wakeWriter();
+	}
+
+	/** @return True if the writer thread should write what is queued now rather than waiting for
+	 * more lines.
+	 * @param bytes The current value of listBytes. */
+	private boolean shouldWrite(long bytes) {
+		return bytes != 0 && (bytes >= LIST_WRITE_THRESHOLD || list.size() >= list.capacity() / 4);
 	}
 
 	public long listBytes() {
-		synchronized (list) {
-			return listBytes;
+		return listBytes.get();
+	}
+
+	/** @return The number of lines dropped because they were logged faster than we could write
+	 * them. */
+	public long droppedLines() {
+		return droppedLines.get();
+	}
+
+	/**
+	 * Bounded queue of lines, which any number of threads can add to without locking, and only
+	 * the writer thread takes from. Each slot has a sequence number saying whether it is free for
+	 * the producer on the current lap of the ring, or holds a line for the consumer.
+	 */
+	static final class LineQueue {
+
+		private final byte[][] lines;
+		private final AtomicLongArray sequences;
+		private final int mask;
+		/** The maximum number of lines queued. The ring itself is rounded up to a power of 2. */
+		private final int limit;
+		/** The next position a producer will claim. */
+		private final AtomicLong tail = new AtomicLong();
+		/** The next position to take from. Only changed by the consumer. */
+		private volatile long head;
+
+		/** @param limit The maximum number of lines to hold. */
+		LineQueue(int limit) {
+			if(limit < 1) throw new IllegalArgumentException();
+			this.limit = limit;
+			int size = 2;
+			while(size < limit) size <<= 1;
+			lines = new byte[size][];
+			sequences = new AtomicLongArray(size);
+			for(int i=0;i<size;i++)
+				sequences.set(i, i);
+			mask = size - 1;
+		}
+
+		/** @return False if the queue is full. */
+		boolean offer(byte[] b) {
+			long pos = tail.get();
+			while(true) {
+				// head only moves forward, so this can't let more than limit lines in.
+				if(pos - head >= limit) return false;
+				int slot = (int) pos & mask;
+				long diff = sequences.get(slot) - pos;
+				if(diff == 0) {
+					if(tail.compareAndSet(pos, pos + 1)) {
+						lines[slot] = b;
+						// Publishes the line.
+						sequences.set(slot, pos + 1);
+						return true;
+					}
+					pos = tail.get();
+				} else if(diff < 0) {
+					// Still holds a line from the last lap.
+					return false;
+				} else {
+					// Another producer got there first.
+					pos = tail.get();
+				}
+			}
+		}
+
+		/** Consumer only.
+		 * @return The oldest line, or null if there is none (or the oldest hasn't been published
+		 * yet). */
+		byte[] poll() {
+			long pos = head;
+			int slot = (int) pos & mask;
+			if(sequences.get(slot) != pos + 1) return null;
+			byte[] b = lines[slot];
+			lines[slot] = null;
+			// Free the slot for the next lap.
+			sequences.set(slot, pos + lines.length);
+			head = pos + 1;
+			return b;
 		}
+
+		/** Consumer only. */
+		boolean isEmpty() {
+			return sequences.get((int) head & mask) != head + 1;
+		}
+
+		int capacity() {
+			return limit;
+		}
+
+		/** @return The number of lines queued, or about to be. */
+		int size() {
+			return (int) (tail.get() - head);
+		}
+
 	}
 
 	public static int numberOf(char c) {
@@ -1078,13 +1255,20 @@ public class FileLoggerHook extends LoggerHook implements Closeable {
 	@Override
 	public void close() {
 		closed = true;
+		wakeWriter();
+	}
+
+	private void wakeWriter() {
+		Thread wt = writerThread;
+		if(wt != null) LockSupport.unpark(wt);
 	}
 
 	class CloserThread extends Thread {
 		@Override
 		public void run() {
+			closed = true;
+			wakeWriter();
 			synchronized(list) {
-				closed = true;
 				long deadline = System.currentTimeMillis() + SECONDS.toMillis(10);
 				while(!closedFinished) {
 					int wait = (int) (deadline - System.currentTimeMillis());
@@ -21,9 +21,13 @@ public class HTMLDecoder {
 		Character ch;
 		int tmpPos, i;
 
+		// Only entities are changed.
+		int curPos = s.indexOf('&');
+		if (curPos == -1)
+			return s;
 		int maxPos = s.length();
 		StringBuilder sb = new StringBuilder(maxPos);
-		int curPos = 0;
+		sb.append(s, 0, curPos);
 		while (curPos < maxPos) {
 			char c = s.charAt(curPos++);
 			if (c == '&') {
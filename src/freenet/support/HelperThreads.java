@@ -0,0 +1,133 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.support.io.NativeThread;
+
+/**
+ * Runs CPU-bound work which has been split into independent pieces on the calling thread and a
+ * shared pool of helper threads, one less than the number of cores. This is used to spread a
+ * single FEC job (decoding, encoding, checking the blocks' keys) across cores. The number of
+ * such jobs and the memory they use is already limited by MemoryLimitedJobRunner, and the helpers
+ * only work on memory the job has already allocated.
+ *
+ * The caller takes pieces too, and only waits for pieces which have been started by a helper,
+ * so it never waits for a helper which is busy with another job, and there is no deadlock if a
+ * piece itself calls run().
+ */
+public final class HelperThreads {
+
+    /** One piece of work. */
+    public interface Task {
+        /** Do piece number index. Must be safe to call from any thread, in any order. */
+        void run(int index);
+    }
+
+    static final int HELPER_THREADS = Runtime.getRuntime().availableProcessors() - 1;
+    private static ExecutorService helpers;
+
+    private HelperThreads() {
+        // Static only.
+    }
+
+    /**
+     * Call task.run(i) for each i from 0 to count-1, and return when they have all finished. If
+     * any of them throws a RuntimeException or Error, the first one is rethrown after the rest
+     * have finished.
+     * @param parallel If false, just run them in order on this thread. Use for small jobs where
+     * the overhead of waking the helpers isn't worth it.
+     */
+    public static void run(int count, boolean parallel, Task task) {
+        if(count <= 0) return;
+        Job job = new Job(task, count);
+        ExecutorService helpers = parallel && count > 1 ? getHelpers() : null;
+        if(helpers != null) {
+            int wanted = Math.min(count, HELPER_THREADS+1) - 1;
+            try {
+                for(int i=0;i<wanted;i++)
+                    helpers.execute(job);
+            } catch (RejectedExecutionException e) {
+                // Do it ourselves.
+            }
+        }
+        job.run();
+        job.waitForCompletion();
+    }
+
+    /** Runs pieces until there are none left. Any number of threads may run() the same job; a
+     * helper which starts after all the pieces have been taken does nothing. */
+    private static class Job implements Runnable {
+
+        private final Task task;
+        private final int count;
+        private final AtomicInteger next = new AtomicInteger();
+        /** Protected by this. */
+        private int completed;
+        /** Protected by this. */
+        private Throwable failure;
+
+        Job(Task task, int count) {
+            this.task = task;
+            this.count = count;
+        }
+
+        @Override
+        public void run() {
+            int index;
+            while((index = next.getAndIncrement()) < count) {
+                Throwable t = null;
+                try {
+                    task.run(index);
+                } catch (Throwable e) {
+                    t = e;
+                }
+                synchronized(this) {
+                    if(t != null && failure == null) failure = t;
+                    if(++completed == count) notifyAll();
+                }
+            }
+        }
+
+        synchronized void waitForCompletion() {
+            boolean interrupted = false;
+            while(completed < count) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // The helpers may still be using the caller's buffers, so we must wait.
+                    interrupted = true;
+                }
+            }
+            if(interrupted) Thread.currentThread().interrupt();
+            if(failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if(failure instanceof Error) throw (Error) failure;
+        }
+
+    }
+
+    /** @return The shared pool of helper threads, or null if there is only one core. */
+    private static synchronized ExecutorService getHelpers() {
+        if(HELPER_THREADS <= 0) return null;
+        if(helpers == null) {
+            helpers = Executors.newFixedThreadPool(HELPER_THREADS, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new NativeThread(r, "Helper thread", MemoryLimitedJobRunner.THREAD_PRIORITY, true);
+                    t.setDaemon(true);
+                    return t;
+                }
+
+            });
+        }
+        return helpers;
+    }
+
+}
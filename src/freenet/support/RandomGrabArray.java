@@ -16,8 +16,9 @@ import freenet.client.async.RequestSelectionTreeNode;
  * This is *NOT* persistent. The request selection structures are reconstructed on restart. However
  * it used to be, and probably has a lot of cruft and inefficiency as a result. 
  * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * LOCKING: Each priority's subtree has a single lock, chosen by the ClientRequestSelector and
+ * passed in when the node is created. This must be taken before calling any methods on RGA or 
+ * SRGA. See the javadocs there for deeper explanation.
  * 
  * FIXME Simplify and improve performance. A lot of this is O(n), and this should probably be fixed. 
  * Memory usage was an issue but probably isn't now given that the individual items are now quite 
@@ -46,15 +47,18 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	private final int hashCode;
 	private RemoveRandomParent parent;
 	protected ClientRequestSelector root;
+	/** The lock for the subtree this array is in. */
+	protected final Object lock;
 	private long wakeupTime;
 
-	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
+	public RandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
 		this.blocks = new Block[] { new Block() };
 		blocks[0].reqs = new RandomGrabArrayItem[MIN_SIZE];
 		index = 0;
 		this.hashCode = super.hashCode();
 		this.parent = parent;
 		this.root = root;
+		this.lock = lock;
 	}
 	
 	@Override
@@ -68,7 +72,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 			return;
 		}
 		req.setParentGrabArray(this); // will store() self
-		synchronized(root) {
+		synchronized(lock) {
 			if(context != null) {
 			    clearWakeupTime(context);
 			}
@@ -126,7 +130,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
 		if(logMINOR) Logger.minor(this, "removeRandom() on "+this+" index="+index);
-		synchronized(root) {
+		synchronized(lock) {
 			if(index == 0) {
 				if(logMINOR) Logger.minor(this, "All null on "+this);
 				return null;
@@ -345,13 +349,20 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		}
 	}
 
-	public void remove(RandomGrabArrayItem it, ClientContext context) {
+	/**
+	 * Remove an item.
+	 * @return If the item was moved to another array by ClientRequestSelector.reregisterAll()
+	 * while we were waiting for the lock, that array, and it has not been removed. The caller
+	 * must remove it from there, after releasing any priority lock it holds, since the other
+	 * array belongs to a different priority's lock. Otherwise null.
+	 */
+	public RandomGrabArray remove(RandomGrabArrayItem it, ClientContext context) {
 		if(logMINOR)
 			Logger.minor(this, "Removing "+it+" from "+this);
 		
 		boolean matched = false;
 		boolean empty = false;
-		synchronized(root) {
+		synchronized(lock) {
 			if(blocks.length == 1) {
 				Block block = blocks[0];
 				for(int i=0;i<index;i++) {
@@ -394,25 +405,33 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 		RandomGrabArray oldArray = it.getParentGrabArray();
 		if(oldArray == this)
 			it.setParentGrabArray(null);
-		else if(oldArray != null)
+		else if(oldArray != null) {
+			if(!matched) {
+				// Moved to another priority by ClientRequestSelector.reregisterAll() while we
+				// were waiting for the lock.
+				if(logMINOR) Logger.minor(this, "Not found: "+it+" on "+this+" moved to "+oldArray);
+				return oldArray;
+			}
 			Logger.error(this, "Removing item "+it+" from "+this+" but RGA is "+it.getParentGrabArray(), new Exception("debug"));
+		}
 		if(!matched) {
 			if(logMINOR) Logger.minor(this, "Not found: "+it+" on "+this);
-			return;
+			return null;
 		}
 		if(empty && parent != null) {
 			parent.maybeRemove(this, context);
 		}
+		return null;
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return index == 0;
 	    }
 	}
 	
 	public boolean contains(RandomGrabArrayItem item) {
-		synchronized(root) {
+		synchronized(lock) {
 			if(blocks.length == 1) {
 				Block block = blocks[0];
 				for(int i=0;i<index;i++) {
@@ -438,19 +457,29 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 	}
 	
 	public int size() {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        return index;
 	    }
 	}
 
 	public RandomGrabArrayItem get(int idx) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        int blockNo = idx / BLOCK_SIZE;
 	        RandomGrabArrayItem item = blocks[blockNo].reqs[idx % BLOCK_SIZE];
 	        return item;
 	    }
 	}
 	
+	/** Drop all the items without changing their parents, after they have been moved to 
+	 * another array. */
+	public void clear() {
+		synchronized(lock) {
+			blocks = new Block[] { new Block() };
+			blocks[0].reqs = new RandomGrabArrayItem[MIN_SIZE];
+			index = 0;
+		}
+	}
+	
 	// REDFLAG this method does not move cooldown items.
 	// At present it is only called on startup so this is okay.
 	public void moveElementsTo(RandomGrabArray existingGrabber,
@@ -470,21 +499,21 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
+	    synchronized(lock) {
 	        this.parent = newParent;
 	    }
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
+        synchronized(lock) {
             return parent;
         }
     }
 
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
+        synchronized(lock) {
             if(wakeupTime < now) wakeupTime = 0;
             return wakeupTime;
         }
@@ -499,7 +528,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
      */
     private void setWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "setCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime; // Set before calling parent.
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -512,7 +541,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
     @Override
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -525,7 +554,7 @@ public class RandomGrabArray implements RemoveRandom, RequestSelectionTreeNode {
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             wakeupTime = 0;
             if(parent != null) parent.clearWakeupTime(context);
         }
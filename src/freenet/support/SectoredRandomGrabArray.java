@@ -10,8 +10,9 @@ import freenet.client.async.RequestSelectionTreeNode;
  * Like RandomGrabArray, but there is an equal chance of any given client's requests being
  * returned. Again, not persistent; this is reconstructed on restart.
  * 
- * LOCKING: There is a single lock for the entire tree, the ClientRequestSelector. This must be 
- * taken before calling any methods on RGA or SRGA. See the javadocs there for deeper explanation.
+ * LOCKING: Each priority's subtree has a single lock, chosen by the ClientRequestSelector and
+ * passed in when the node is created. This must be taken before calling any methods on RGA or 
+ * SRGA. See the javadocs there for deeper explanation.
  * 
  * A lot of this is over-complicated and over-expensive because of db4o. A lot of it is O(n).
  * This is all kept in RAM now so we can change it at will, plus there is only one object 
@@ -29,17 +30,20 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private T[] grabClients;
 	private RemoveRandomParent parent;
 	protected final ClientRequestSelector root;
+	/** The lock for the subtree this array is in. */
+	protected final Object lock;
 	private long wakeupTime;
 
-	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root) {
+	public SectoredRandomGrabArray(RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
 		grabClients = newClientArray(0);
 		grabArrays = newGrabberArray(0);
 		this.parent = parent;
 		this.root = root;
+		this.lock = lock;
 	}
 
 	protected void addElement(T client, C rga) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		final int len = grabArrays.length;
 
 		grabArrays = Arrays.copyOf(grabArrays, len+1);
@@ -51,7 +55,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	}
 
 	protected int haveClient(T client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		for(int i=0;i<grabClients.length;i++) {
 			if(grabClients[i] == client) return i;
 		}
@@ -64,7 +68,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	 */
 	@SuppressWarnings("unchecked")
 	public C getGrabber(T client) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		int idx = haveClient(client);
 		if(idx == -1) return null;
 		else return (C)grabArrays[idx];
@@ -72,7 +76,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	}
 	
 	public T getClient(int x) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		return grabClients[x];
 	    }
 	}
@@ -81,7 +85,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	 * Put a grabber.
 	 */
 	public void addGrabber(T client, C requestGrabber, ClientContext context) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		if(requestGrabber.getObject() != client)
 			throw new IllegalArgumentException("Client not equal to RemoveRandomWithObject's client: client="+client+" rr="+requestGrabber+" his object="+requestGrabber.getObject());
 		addElement(client, requestGrabber);
@@ -93,7 +97,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 
 	@Override
 	public RemoveRandomReturn removeRandom(RandomGrabArrayItemExclusionList excluding, ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		while(true) {
 			if(grabArrays.length == 0) return null;
 			if(grabArrays.length == 1) {
@@ -116,7 +120,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RemoveRandomReturn removeRandomExhaustive(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		long wakeupTime = Long.MAX_VALUE;
 		if(grabArrays.length == 0) return null;
 		int x = context.fastWeakRandom.nextInt(grabArrays.length);
@@ -160,7 +164,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RandomGrabArrayItem removeRandomLimited(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		/** Count of arrays that have items but didn't return anything because of exclusions */
 		final int MAX_EXCLUDED = 10;
 		int excluded = 0;
@@ -221,7 +225,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RemoveRandomReturn removeRandomTwoOnly(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		long wakeupTime = Long.MAX_VALUE;
 		// Another simple common case
 		int x = context.fastWeakRandom.nextBoolean() ? 1 : 0;
@@ -311,7 +315,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	private RemoveRandomReturn removeRandomOneOnly(
 			RandomGrabArrayItemExclusionList excluding,
 			ClientContext context, long now) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		long wakeupTime = Long.MAX_VALUE;
 		// Optimise the common case
 		RemoveRandomWithObject<T> rga = grabArrays[0];
@@ -355,7 +359,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	}
 
 	private void removeElement(int x) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		final int grabArraysLength = grabArrays.length;
 		int newLen = grabArraysLength > 1 ? grabArraysLength-1 : 0;
 		RemoveRandomWithObject<T>[] newArray = newGrabberArray(newLen);
@@ -375,13 +379,13 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	}
 
 	public boolean isEmpty() {
-	    synchronized(root) {
+	    synchronized(lock) {
 		return grabArrays.length == 0;
 	    }
 	}
 	
 	public int size() {
-	    synchronized(root) {
+	    synchronized(lock) {
 		return grabArrays.length;
 	    }
 	}
@@ -390,7 +394,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 	public void maybeRemove(RemoveRandom r, ClientContext context) {
 		int count = 0;
 		int finalSize;
-		synchronized(root) {
+		synchronized(lock) {
 			while(true) {
 				int found = -1;
 				for(int i=0;i<grabArrays.length;i++) {
@@ -421,21 +425,21 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
 
 	@Override
 	public void setParent(RemoveRandomParent newParent) {
-	    synchronized(root) {
+	    synchronized(lock) {
 		this.parent = newParent;
 	    }
 	}
 
     @Override
     public RequestSelectionTreeNode getParentGrabArray() {
-        synchronized(root) {
+        synchronized(lock) {
             return parent;
         }
     }
 	
     @Override
     public long getWakeupTime(ClientContext context, long now) {
-        synchronized(root) {
+        synchronized(lock) {
             if(wakeupTime < now) wakeupTime = 0;
             return wakeupTime;
         }
@@ -445,7 +449,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
     public boolean reduceWakeupTime(long wakeupTime, ClientContext context) {
         if(logMINOR) Logger.minor(this, "reduceCooldownTime("+(wakeupTime-System.currentTimeMillis())+") on "+this);
         boolean reachedRoot = false;
-        synchronized(root) {
+        synchronized(lock) {
             if(this.wakeupTime > wakeupTime) {
                 this.wakeupTime = wakeupTime;
                 if(parent != null) parent.reduceWakeupTime(wakeupTime, context);
@@ -460,7 +464,7 @@ public class SectoredRandomGrabArray<T, C extends RemoveRandomWithObject<T>> imp
     @Override
     public void clearWakeupTime(ClientContext context) {
         if(logMINOR) Logger.minor(this, "clearCooldownTime() on "+this);
-        synchronized(root) {
+        synchronized(lock) {
             wakeupTime = 0;
             if(parent != null) parent.clearWakeupTime(context);
         }
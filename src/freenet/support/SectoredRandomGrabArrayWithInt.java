@@ -7,8 +7,8 @@ public class SectoredRandomGrabArrayWithInt<T, C extends RemoveRandomWithObject<
 
 	private final int number;
 
-	public SectoredRandomGrabArrayWithInt(int number, RemoveRandomParent parent, ClientRequestSelector root) {
-		super(parent, root);
+	public SectoredRandomGrabArrayWithInt(int number, RemoveRandomParent parent, ClientRequestSelector root, Object lock) {
+		super(parent, root, lock);
 		this.number = number;
 	}
 
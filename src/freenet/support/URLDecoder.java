@@ -41,6 +41,16 @@ public class URLDecoder
 		if (s.length() == 0)
 			return "";
 		int len = s.length();
+		// Nothing to decode, which is usual for links in HTML. Surrogates don't survive the
+		// per-character encoding below, so they still go through it.
+		int plain;
+		for (plain = 0; plain < len; plain++) {
+			char c = s.charAt(plain);
+			if (c == '%' || Character.isSurrogate(c))
+				break;
+		}
+		if (plain == len)
+			return s;
 		ByteArrayOutputStream decodedBytes = new ByteArrayOutputStream();
 		boolean hasDecodedSomething = false;
 
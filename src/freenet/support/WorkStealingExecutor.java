@@ -0,0 +1,459 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+import freenet.node.PrioRunnable;
+import freenet.support.Logger.LogLevel;
+import freenet.support.io.NativeThread;
+
+/**
+ * Executor with a bounded pool of threads for each priority, which doesn't take a lock to
+ * start a job.
+ *
+ * As with PooledExecutor, each thread runs at a fixed priority, and a job runs on a thread of
+ * the priority given by its PrioRunnable. A job is handed directly to an idle thread of that
+ * priority if there is one, otherwise a new thread is started, up to maxPooledThreads per
+ * priority. Beyond that, jobs are queued: on the submitting thread's own deque if it is one
+ * of our threads, otherwise on the priority's shared queue. A thread which runs out of work
+ * takes the newest job on its own deque, then the oldest job on the shared queue, then steals
+ * the oldest job from another thread's deque.
+ *
+ * Jobs are allowed to block, even on other jobs, so a queued job must never wait forever for
+ * a thread. If the oldest queued job at a priority has waited more than MAX_QUEUE_WAIT, the
+ * watchdog starts an extra thread, which exits as soon as it runs out of work.
+ *
+ * We keep the time each job waited before it started, per priority, for the stats page.
+ */
+public class WorkStealingExecutor implements Executor {
+
+	/** Maximum time a pooled thread will wait for a job */
+	static final long TIMEOUT = MINUTES.toNanos(1);
+	/** Start an extra thread if a job has been queued for this long. */
+	static final long MAX_QUEUE_WAIT = MILLISECONDS.toNanos(50);
+	/** Default maximum number of pooled threads for each priority. */
+	public static final int DEFAULT_MAX_POOLED_THREADS = Math.max(16, Runtime.getRuntime().availableProcessors() * 4);
+
+	private static final Job STEAL = new Job(null, "steal", 0);
+	private static final Job EXITING = new Job(null, "exiting", 0);
+
+	private final int maxPooledThreads;
+	private final Level[] levels = new Level[NativeThread.JAVA_PRIORITY_RANGE + 1];
+	private final AtomicInteger waitingThreadsCount = new AtomicInteger();
+	private final Watchdog watchdog = new Watchdog();
+	private volatile boolean watchdogStarted;
+	private volatile boolean watchdogIdle;
+	private static volatile boolean logMINOR;
+	// Ticker thread that runs at maximum priority.
+	private volatile Ticker ticker;
+
+	public WorkStealingExecutor() {
+		this(DEFAULT_MAX_POOLED_THREADS);
+	}
+
+	public WorkStealingExecutor(int maxPooledThreads) {
+		if(maxPooledThreads < 1) throw new IllegalArgumentException();
+		this.maxPooledThreads = maxPooledThreads;
+		for(int i = 0; i < levels.length; i++)
+			levels[i] = new Level(i + 1);
+	}
+
+	public void setTicker(Ticker ticker) {
+		this.ticker = ticker;
+	}
+
+	public void start() {
+		logMINOR = Logger.shouldLog(LogLevel.MINOR, this);
+	}
+
+	private static class Job {
+		final Runnable runnable;
+		final String name;
+		/** System.nanoTime() when submitted. */
+		final long submitted;
+
+		Job(Runnable runnable, String name, long submitted) {
+			this.runnable = runnable;
+			this.name = name;
+			this.submitted = submitted;
+		}
+	}
+
+	/** The threads and queued jobs for one priority. */
+	private static class Level {
+		final int prio;
+		/** All threads, so we can steal from them. */
+		final CopyOnWriteArrayList<Worker> workers = new CopyOnWriteArrayList<Worker>();
+		/** Threads waiting for a job, most recently idle first. */
+		final ConcurrentLinkedDeque<Worker> idle = new ConcurrentLinkedDeque<Worker>();
+		final AtomicInteger idleCount = new AtomicInteger();
+		/** Jobs submitted by threads which aren't ours. */
+		final ConcurrentLinkedQueue<Job> queue = new ConcurrentLinkedQueue<Job>();
+		/** Number of jobs on the shared queue and threads' deques. */
+		final AtomicInteger queued = new AtomicInteger();
+		/** Number of threads, running or idle. */
+		final AtomicInteger threads = new AtomicInteger();
+		final AtomicLong threadCounter = new AtomicLong();
+		final AtomicLong jobsStarted = new AtomicLong();
+		final AtomicLong totalWait = new AtomicLong();
+		/** Only used by the watchdog. */
+		long lastExtraThread;
+
+		Level(int prio) {
+			this.prio = prio;
+		}
+
+		/** @return The submission time of the oldest queued job, or Long.MAX_VALUE. */
+		long oldestQueued() {
+			long oldest = Long.MAX_VALUE;
+			Job job = queue.peek();
+			if(job != null) oldest = job.submitted;
+			for(Worker w : workers) {
+				job = w.local.peekLast();
+				if(job != null && job.submitted - oldest < 0) oldest = job.submitted;
+			}
+			return oldest;
+		}
+	}
+
+	@Override
+	public void execute(Runnable job) {
+		execute(job, "<noname>");
+	}
+
+	@Override
+	public void execute(Runnable job, String jobName) {
+		execute(job, jobName, false);
+	}
+
+	@Override
+	public void execute(Runnable runnable, String jobName, boolean fromTicker) {
+		int prio = NativeThread.NORM_PRIORITY;
+		if(runnable instanceof PrioRunnable)
+			prio = ((PrioRunnable) runnable).getPriority();
+
+		if(logMINOR)
+			Logger.minor(this, "Executing " + runnable + " as " + jobName + " at prio " + prio);
+		if(prio < NativeThread.MIN_PRIORITY || prio > NativeThread.MAX_PRIORITY)
+			throw new IllegalArgumentException("Unreconized priority level : " + prio + '!');
+
+		Level level = levels[prio - 1];
+		Job job = new Job(runnable, jobName, System.nanoTime());
+		// Hand it to an idle thread.
+		if(offerToIdle(level, job)) return;
+		// Start a new thread.
+		Ticker t = ticker;
+		if(t != null && (!fromTicker) && NativeThread.usingNativeCode() && prio > Thread.currentThread().getPriority()) {
+			// Get the ticker to create a thread for it with the right priority, since we can't.
+			t.queueTimedJob(runnable, jobName, 0, true, false);
+			return;
+		}
+		while(true) {
+			int threads = level.threads.get();
+			if(threads >= maxPooledThreads) break;
+			if(level.threads.compareAndSet(threads, threads + 1)) {
+				startThread(level, job, !fromTicker);
+				return;
+			}
+		}
+		// Queue it.
+		Thread current = Thread.currentThread();
+		if(current instanceof Worker && ((Worker) current).level == level && ((Worker) current).executor() == this)
+			((Worker) current).local.addFirst(job);
+		else
+			level.queue.add(job);
+		level.queued.incrementAndGet();
+		// A thread may have become idle since we looked.
+		offerToIdle(level, STEAL);
+		if(!watchdogStarted)
+			startWatchdog();
+		else if(watchdogIdle)
+			LockSupport.unpark(watchdog);
+	}
+
+	private boolean offerToIdle(Level level, Job job) {
+		Worker w;
+		while((w = level.idle.pollFirst()) != null) {
+			level.idleCount.decrementAndGet();
+			waitingThreadsCount.decrementAndGet();
+			if(w.offer(job)) return true;
+		}
+		return false;
+	}
+
+	private void startThread(Level level, Job job, boolean dontCheckRenice) {
+		long threadNo = level.threadCounter.getAndIncrement();
+		// Will be coalesced by thread count listings if we use "@" or "for"
+		Worker t = new Worker("Pooled thread awaiting work @" + threadNo + " for prio " + level.prio, level, job, threadNo, dontCheckRenice);
+		t.setDaemon(true);
+		level.workers.add(t);
+		t.start();
+	}
+
+	private synchronized void startWatchdog() {
+		if(watchdogStarted) return;
+		watchdog.setDaemon(true);
+		watchdog.start();
+		watchdogStarted = true;
+	}
+
+	@Override
+	public int[] runningThreads() {
+		int[] result = new int[levels.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = Math.max(0, levels[i].threads.get() - levels[i].idleCount.get());
+		return result;
+	}
+
+	@Override
+	public int[] waitingThreads() {
+		int[] result = new int[levels.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = levels[i].idleCount.get();
+		return result;
+	}
+
+	@Override
+	public int getWaitingThreadsCount() {
+		return waitingThreadsCount.get();
+	}
+
+	/** @return The number of jobs waiting for a thread at each priority. */
+	public int[] queuedJobs() {
+		int[] result = new int[levels.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = levels[i].queued.get();
+		return result;
+	}
+
+	/** @return The number of jobs started at each priority. */
+	public long[] jobsStarted() {
+		long[] result = new long[levels.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = levels[i].jobsStarted.get();
+		return result;
+	}
+
+	/** @return The total time in nanoseconds that jobs waited before starting, at each priority. */
+	public long[] totalQueueWait() {
+		long[] result = new long[levels.length];
+		for(int i = 0; i < result.length; i++)
+			result[i] = levels[i].totalWait.get();
+		return result;
+	}
+
+	private class Worker extends NativeThread {
+		final String defaultName;
+		final Level level;
+		final long threadNo;
+		/** Jobs queued by this thread. We take from the front, others steal from the back. */
+		final ConcurrentLinkedDeque<Job> local = new ConcurrentLinkedDeque<Job>();
+		/** A job handed to us while idle, or EXITING. */
+		final AtomicReference<Job> handoff = new AtomicReference<Job>();
+		private Job firstJob;
+
+		Worker(String defaultName, Level level, Job firstJob, long threadNo, boolean dontCheckRenice) {
+			super(defaultName, level.prio, dontCheckRenice);
+			this.defaultName = defaultName;
+			this.level = level;
+			this.firstJob = firstJob;
+			this.threadNo = threadNo;
+		}
+
+		WorkStealingExecutor executor() {
+			return WorkStealingExecutor.this;
+		}
+
+		/** Give a job to an idle thread.
+		 * @return False if the thread has timed out and is exiting. */
+		boolean offer(Job job) {
+			if(!handoff.compareAndSet(null, job)) return false;
+			LockSupport.unpark(this);
+			return true;
+		}
+
+		@Override
+		public void realRun() {
+			try {
+				innerRun();
+			} finally {
+				level.workers.remove(this);
+				// Anything left here would only be found by stealing.
+				Job job;
+				while((job = local.pollLast()) != null) {
+					level.queue.add(job);
+				}
+			}
+		}
+
+		private void innerRun() {
+			long ranJobs = 0;
+			Job job = firstJob;
+			firstJob = null;
+			while(true) {
+				if(job == null)
+					job = findJob();
+				if(job == null) {
+					job = waitForJob();
+					if(job == null) {
+						if(logMINOR)
+							Logger.minor(this, "Exiting having executed " + ranJobs + " jobs : " + this);
+						return;
+					}
+					if(job == STEAL) {
+						job = null;
+						continue;
+					}
+				}
+
+				level.jobsStarted.incrementAndGet();
+				level.totalWait.addAndGet(System.nanoTime() - job.submitted);
+				// Run the job
+				try {
+					setName(job.name + "(" + threadNo + ")");
+					job.runnable.run();
+				} catch(Throwable t) {
+					Logger.error(this, "Caught " + t + " running job " + job, t);
+				}
+				ranJobs++;
+				job = null;
+			}
+		}
+
+		private Job findJob() {
+			Job job = local.pollFirst();
+			if(job == null)
+				job = level.queue.poll();
+			if(job == null) {
+				for(Worker w : level.workers) {
+					if(w == this) continue;
+					job = w.local.pollLast();
+					if(job != null) break;
+				}
+			}
+			if(job != null)
+				level.queued.decrementAndGet();
+			return job;
+		}
+
+		/** Wait for a job to be handed to us.
+		 * @return The job, STEAL if something has been queued, or null if we should exit. */
+		private Job waitForJob() {
+			// Extra threads exit as soon as they run out of work.
+			while(true) {
+				int threads = level.threads.get();
+				if(threads <= maxPooledThreads) break;
+				if(level.threads.compareAndSet(threads, threads - 1))
+					return null;
+			}
+			level.idle.addFirst(this);
+			level.idleCount.incrementAndGet();
+			waitingThreadsCount.incrementAndGet();
+			// Something may have been queued before we were on the idle list.
+			if(level.queued.get() > 0 && removeFromIdle())
+				return STEAL;
+			setName(defaultName);
+			long deadline = System.nanoTime() + TIMEOUT;
+			while(true) {
+				Job job = handoff.get();
+				if(job != null) {
+					handoff.set(null);
+					return job;
+				}
+				long remaining = deadline - System.nanoTime();
+				if(remaining <= 0) {
+					if(handoff.compareAndSet(null, EXITING)) {
+						removeFromIdle();
+						level.threads.decrementAndGet();
+						return null;
+					}
+					// Just got a job.
+					continue;
+				}
+				LockSupport.parkNanos(this, remaining);
+			}
+		}
+
+		private boolean removeFromIdle() {
+			if(!level.idle.remove(this)) return false;
+			level.idleCount.decrementAndGet();
+			waitingThreadsCount.decrementAndGet();
+			return true;
+		}
+	}
+
+	private void startExtraThread(final Level level) {
+		level.threads.incrementAndGet();
+		Ticker t = ticker;
+		if(t != null && NativeThread.usingNativeCode()) {
+			// Get the ticker to create it with the right priority, since we may not be able to.
+			t.queueTimedJob(new Runnable() {
+				@Override
+				public void run() {
+					startThread(level, null, false);
+				}
+			}, "Start extra thread for prio " + level.prio, 0, true, false);
+		} else {
+			startThread(level, null, true);
+		}
+	}
+
+	/** Starts extra threads when queued jobs have waited too long, e.g. because all the
+	 * threads at that priority are blocked. Runs at the highest priority so that busy
+	 * workers cannot starve it. */
+	private class Watchdog extends NativeThread {
+
+		Watchdog() {
+			super("Executor watchdog", NativeThread.MAX_PRIORITY, true);
+		}
+
+		@Override
+		public void realRun() {
+			while(true) {
+				boolean anyQueued = false;
+				long now = System.nanoTime();
+				for(Level level : levels) {
+					if(level.queued.get() == 0) continue;
+					anyQueued = true;
+					long oldest = level.oldestQueued();
+					if(oldest == Long.MAX_VALUE) continue;
+					if(now - oldest < MAX_QUEUE_WAIT) continue;
+					// Give the last extra thread a chance to take it.
+					if(level.lastExtraThread != 0 && now - level.lastExtraThread < MAX_QUEUE_WAIT) continue;
+					level.lastExtraThread = now;
+					if(logMINOR)
+						Logger.minor(this, "Starting extra thread at prio " + level.prio + " : " + level.queued.get() + " jobs queued");
+					startExtraThread(level);
+				}
+				if(anyQueued) {
+					LockSupport.parkNanos(this, MAX_QUEUE_WAIT / 2);
+				} else {
+					watchdogIdle = true;
+					boolean empty = true;
+					for(Level level : levels) {
+						if(level.queued.get() > 0) {
+							empty = false;
+							break;
+						}
+					}
+					if(empty)
+						LockSupport.parkNanos(this, TIMEOUT);
+					watchdogIdle = false;
+				}
+			}
+		}
+
+	}
+
+}
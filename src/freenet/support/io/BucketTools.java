@@ -2,11 +2,14 @@ package freenet.support.io;
 
 import java.io.DataInputStream;
 import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
@@ -337,6 +340,53 @@ public class BucketTools {
 		}
 	}
 
+	/** Copy the given quantity of data from the given bucket to a socket. If the data is stored 
+	 * unencrypted in a file, and the socket has a channel, we use FileChannel.transferTo(), so
+	 * the data goes straight from the page cache to the socket without being copied through the
+	 * JVM. Otherwise, e.g. for encrypted temp files, this is the same as copyTo(Bucket, 
+	 * OutputStream, long).
+	 * @param os The socket's OutputStream, which is flushed before writing to the channel.
+	 * @param channel The socket's channel, or null.
+	 * @throws IOException If there was an error reading from the bucket or writing to the socket. */
+	public static long copyTo(Bucket data, OutputStream os, WritableByteChannel channel, long truncateLength) throws IOException {
+		if(truncateLength == 0) return 0;
+		File file = channel == null ? null : getPlainFile(data);
+		if(file == null) return copyTo(data, os, truncateLength);
+		if(truncateLength < 0) truncateLength = Long.MAX_VALUE;
+		long length = Math.min(truncateLength, data.size());
+		FileInputStream fis = new FileInputStream(file);
+		try {
+			FileChannel fc = fis.getChannel();
+			os.flush();
+			long moved = 0;
+			while(moved < length) {
+				long sent = fc.transferTo(moved, length - moved, channel);
+				if(sent <= 0) break;
+				moved += sent;
+			}
+			if(moved < length)
+				throw new IOException("Could not move required quantity of data in copyTo: moved "+moved+" of "+length+" from "+file);
+			if(truncateLength != Long.MAX_VALUE && moved < truncateLength)
+				throw new IOException("Could not move required quantity of data in copyTo: moved "+moved+" of "+truncateLength+" from "+file);
+			if(logMINOR) Logger.minor(BucketTools.class, "Transferred "+moved+" bytes from "+file);
+			return moved;
+		} finally {
+			fis.close();
+		}
+	}
+	
+	/** @return The file a bucket's data is kept in, if it is stored as is, from the start of the
+	 * file. Null if the data is in memory, encrypted, padded etc. */
+	static File getPlainFile(Bucket bucket) {
+		if(bucket instanceof NoFreeBucket)
+			bucket = ((NoFreeBucket) bucket).proxy;
+		if(bucket instanceof TempBucketFactory.TempBucket)
+			bucket = ((TempBucketFactory.TempBucket) bucket).getUnderlying();
+		if(bucket instanceof BaseFileBucket)
+			return ((BaseFileBucket) bucket).getFile();
+		return null;
+	}
+
 	/** Copy data from an InputStream into a Bucket. */
 	public static void copyFrom(Bucket bucket, InputStream is, long truncateLength) throws IOException {
 		OutputStream os = bucket.getOutputStreamUnbuffered();
@@ -533,7 +533,7 @@ public class TempBucketFactory implements BucketFactory, LockableRandomAccessBuf
             }
         }
 
-        /** Only for testing */
+        /** For testing, and for BucketTools to send a temp file directly. */
         synchronized Bucket getUnderlying() {
             return currentBucket;
         }
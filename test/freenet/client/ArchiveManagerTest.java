@@ -0,0 +1,209 @@
+package freenet.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import junit.framework.TestCase;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+
+import freenet.client.ArchiveManager.ARCHIVE_TYPE;
+import freenet.client.async.ClientContext;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.BucketTools;
+
+public class ArchiveManagerTest extends TestCase {
+
+	private static final int MAX_FILE_SIZE = 4096;
+
+	private final Random random = new Random(1234);
+	private final String[] names = new String[] { "index.html", "style.css", "images/a.png", "images/b.png", "empty" };
+	private final byte[][] contents = new byte[][] { randomBytes(1000), randomBytes(MAX_FILE_SIZE), randomBytes(1),
+			randomBytes(2000), new byte[0] };
+	private final byte[] tooBig = randomBytes(MAX_FILE_SIZE + 1);
+
+	private ArchiveManager manager;
+	private FreenetURI key;
+
+	@Override
+	protected void setUp() throws MalformedURLException {
+		manager = new ArchiveManager(10, 1024 * 1024, MAX_FILE_SIZE, 1000, new ArrayBucketFactory());
+		key = new FreenetURI("KSK@archive-manager-test");
+	}
+
+	private byte[] randomBytes(int length) {
+		byte[] buf = new byte[length];
+		random.nextBytes(buf);
+		return buf;
+	}
+
+	private byte[] makeZip() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ZipOutputStream zos = new ZipOutputStream(baos);
+		for(int i=0;i<names.length;i++) {
+			zos.putNextEntry(new ZipEntry(names[i]));
+			zos.write(contents[i]);
+			zos.closeEntry();
+		}
+		zos.putNextEntry(new ZipEntry("toobig"));
+		zos.write(tooBig);
+		zos.closeEntry();
+		zos.close();
+		return baos.toByteArray();
+	}
+
+	private byte[] makeTar() throws IOException {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		TarArchiveOutputStream tos = new TarArchiveOutputStream(baos);
+		for(int i=0;i<names.length;i++) {
+			TarArchiveEntry entry = new TarArchiveEntry(names[i]);
+			entry.setSize(contents[i].length);
+			tos.putArchiveEntry(entry);
+			tos.write(contents[i]);
+			tos.closeArchiveEntry();
+		}
+		TarArchiveEntry entry = new TarArchiveEntry("toobig");
+		entry.setSize(tooBig.length);
+		tos.putArchiveEntry(entry);
+		tos.write(tooBig);
+		tos.closeArchiveEntry();
+		tos.close();
+		return baos.toByteArray();
+	}
+
+	private void extract(ARCHIVE_TYPE type, byte[] archive, String element, ArchiveExtractCallback callback) throws ArchiveFailureException, ArchiveRestartException {
+		ArchiveStoreContext ctx = manager.makeContext(key, type, null, false);
+		manager.extractToCache(key, type, null, new ArrayBucket(archive), new ArchiveContext(1024 * 1024, 1), ctx, element, callback, null);
+	}
+
+	public void testExtractZip() throws Exception {
+		checkExtract(ARCHIVE_TYPE.ZIP, makeZip());
+	}
+
+	public void testExtractTar() throws Exception {
+		checkExtract(ARCHIVE_TYPE.TAR, makeTar());
+	}
+
+	private void checkExtract(ARCHIVE_TYPE type, byte[] archive) throws Exception {
+		Callback callback = new Callback();
+		extract(type, archive, names[3], callback);
+		assertTrue(Arrays.equals(contents[3], BucketTools.toByteArray(callback.data)));
+		callback.data.free();
+		for(int i=0;i<names.length;i++) {
+			Bucket data = manager.getCached(key, names[i]);
+			assertEquals(contents[i].length, data.size());
+			assertTrue(Arrays.equals(contents[i], BucketTools.toByteArray(data)));
+			data.free();
+		}
+		assertNotNull(manager.getCached(key, ArchiveManager.METADATA_NAME));
+		assertNull(manager.getCached(key, "toobig"));
+		assertNull(manager.getCached(key, "missing"));
+	}
+
+	/** A file we have already handed out can still be read after the cache drops it. */
+	public void testReaderOutlivesCache() throws Exception {
+		byte[] zip = makeZip();
+		extract(ARCHIVE_TYPE.ZIP, zip, names[4], new Callback());
+		Bucket data = manager.getCached(key, names[0]);
+		InputStream is = data.getInputStream();
+		assertEquals(contents[0][0] & 0xff, is.read());
+		// Extracting again flushes the old files for this key.
+		extract(ARCHIVE_TYPE.ZIP, zip, names[4], new Callback());
+		byte[] rest = new byte[contents[0].length - 1];
+		assertEquals(rest.length, is.read(rest));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(contents[0], 1, contents[0].length), rest));
+		assertEquals(-1, is.read());
+		is.close();
+		data.free();
+		try {
+			data.getInputStream();
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testNotInArchive() throws Exception {
+		Callback callback = new Callback();
+		extract(ARCHIVE_TYPE.TAR, makeTar(), "missing", callback);
+		assertTrue(callback.notInArchive);
+		assertNull(callback.data);
+	}
+
+	/** A file over the size limit is still returned if it is the one the caller asked for. */
+	public void testTooBigElement() throws Exception {
+		Callback callback = new Callback();
+		extract(ARCHIVE_TYPE.TAR, makeTar(), "toobig", callback);
+		assertTrue(Arrays.equals(tooBig, BucketTools.toByteArray(callback.data)));
+		assertNull(manager.getCached(key, "toobig"));
+		// The size of a zip entry isn't known until we have read it.
+		callback = new Callback();
+		extract(ARCHIVE_TYPE.ZIP, makeZip(), "toobig", callback);
+		assertTrue(Arrays.equals(tooBig, BucketTools.toByteArray(callback.data)));
+	}
+
+	/** The whole packed buffer is charged to the cache until its last file has been dropped,
+	 * and it doesn't include files which were too big. */
+	public void testSpaceUsed() throws Exception {
+		long packed = 0;
+		for(byte[] content : contents)
+			packed += content.length;
+		for(byte[] archive : new byte[][] { makeZip(), makeTar() }) {
+			ARCHIVE_TYPE type = archive[0] == 'P' ? ARCHIVE_TYPE.ZIP : ARCHIVE_TYPE.TAR;
+			for(int i=0;i<2;i++) {
+				// Extracting again replaces the old files.
+				extract(type, archive, names[0], new Callback());
+				Bucket metadata = manager.getCached(key, ArchiveManager.METADATA_NAME);
+				assertEquals(packed + metadata.size(), manager.getCachedData());
+				metadata.free();
+			}
+		}
+		// Too small for anything, so everything is dropped once it has been added.
+		manager = new ArchiveManager(10, 1, MAX_FILE_SIZE, 1000, new ArrayBucketFactory());
+		Callback callback = new Callback();
+		extract(ARCHIVE_TYPE.ZIP, makeZip(), names[0], callback);
+		assertTrue(Arrays.equals(contents[0], BucketTools.toByteArray(callback.data)));
+		assertNull(manager.getCached(key, names[1]));
+		assertEquals(0, manager.getCachedData());
+	}
+
+	private static class Callback implements ArchiveExtractCallback {
+
+		private static final long serialVersionUID = 1L;
+		Bucket data;
+		boolean notInArchive;
+
+		@Override
+		public void gotBucket(Bucket data, ClientContext context) {
+			assertNull(this.data);
+			this.data = data;
+		}
+
+		@Override
+		public void notInArchive(ClientContext context) {
+			notInArchive = true;
+		}
+
+		@Override
+		public void onFailed(ArchiveRestartException e, ClientContext context) {
+			fail();
+		}
+
+		@Override
+		public void onFailed(ArchiveFailureException e, ClientContext context) {
+			fail();
+		}
+
+	}
+
+}
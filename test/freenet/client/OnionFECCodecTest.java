@@ -11,10 +11,10 @@ import junit.framework.TestCase;
 /** Test the new (post db4o) high level FEC API */
 public class OnionFECCodecTest extends TestCase {
     
-    private static final int BLOCK_SIZE = 4096;
+    protected static final int BLOCK_SIZE = 4096;
     private static final int MAX_SEGMENT_SIZE = 255;
     
-    private final OnionFECCodec codec = new OnionFECCodec();
+    protected final FECCodec codec = createCodec();
     private byte[][] originalDataBlocks;
     private byte[][] dataBlocks;
     private byte[][] originalCheckBlocks;
@@ -22,6 +22,11 @@ public class OnionFECCodecTest extends TestCase {
     private boolean[] checkBlocksPresent;
     private boolean[] dataBlocksPresent;
     
+    /** Overridden to run the same tests against other codecs. */
+    protected FECCodec createCodec() {
+        return new OnionFECCodec();
+    }
+    
     public void testDecodeRandomSubset() {
         Random r = new Random(19412106);
         int iterations = TestProperty.EXTENSIVE ? 100 : 10;
@@ -144,7 +149,7 @@ public class OnionFECCodecTest extends TestCase {
         assertTrue(Arrays.equals(oldCheckBlocksPresent, checkBlocksPresent));
     }
     
-    private void deleteRandomBlocks(Random r) {
+    protected void deleteRandomBlocks(Random r) {
         int dropped = 0;
         int data = dataBlocks.length;
         int check = checkBlocks.length;
@@ -193,7 +198,7 @@ public class OnionFECCodecTest extends TestCase {
         return ret;
     }
     
-    private void assertEquals(byte[][] blocks1, byte[][] blocks2) {
+    protected void assertEquals(byte[][] blocks1, byte[][] blocks2) {
         assertEquals(blocks1.length, blocks2.length);
         for(int i=0;i<blocks1.length;i++) {
             assertTrue(Arrays.equals(blocks1[i], blocks2[i]));
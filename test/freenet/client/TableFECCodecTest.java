@@ -0,0 +1,117 @@
+package freenet.client;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import freenet.support.TestProperty;
+
+/** Runs all of OnionFECCodecTest against TableFECCodec, and checks that the two codecs are
+ * interchangeable. */
+public class TableFECCodecTest extends OnionFECCodecTest {
+
+    private final OnionFECCodec onion = new OnionFECCodec();
+
+    @Override
+    protected FECCodec createCodec() {
+        return new TableFECCodec();
+    }
+
+    public void testSameCheckBlocks() {
+        Random r = new Random(21652106);
+        checkSameCheckBlocks(r, 1, 1, BLOCK_SIZE);
+        checkSameCheckBlocks(r, 1, 255, BLOCK_SIZE);
+        checkSameCheckBlocks(r, 255, 1, BLOCK_SIZE);
+        checkSameCheckBlocks(r, 128, 128, BLOCK_SIZE);
+        // Not a multiple of the stride or the stripe size.
+        checkSameCheckBlocks(r, 3, 4, TableFECCodec.STRIPE_SIZE*2+13);
+        int iterations = TestProperty.EXTENSIVE ? 100 : 10;
+        for(int i=0;i<iterations;i++) {
+            int data = r.nextInt(254)+1;
+            int check = r.nextInt(256 - data)+1;
+            checkSameCheckBlocks(r, data, check, r.nextInt(BLOCK_SIZE)+1);
+        }
+    }
+
+    private void checkSameCheckBlocks(Random r, int data, int check, int blockLength) {
+        byte[][] dataBlocks = new byte[data][blockLength];
+        for(byte[] block : dataBlocks) r.nextBytes(block);
+        byte[][] onionCheckBlocks = new byte[check][blockLength];
+        byte[][] tableCheckBlocks = new byte[check][blockLength];
+        onion.encode(dataBlocks, onionCheckBlocks, new boolean[check], blockLength);
+        codec.encode(dataBlocks, tableCheckBlocks, new boolean[check], blockLength);
+        assertEquals(onionCheckBlocks, tableCheckBlocks);
+        assertEquals(onion.getCheckBlocks(data, InsertContext.CompatibilityMode.COMPAT_CURRENT),
+                codec.getCheckBlocks(data, InsertContext.CompatibilityMode.COMPAT_CURRENT));
+    }
+
+    /** Decode with each codec what the other one encoded. */
+    public void testCrossCodecDecode() {
+        Random r = new Random(21662106);
+        crossDecode(r, onion, codec, 128, 128);
+        crossDecode(r, codec, onion, 128, 128);
+        crossDecode(r, onion, codec, 100, 30);
+        crossDecode(r, codec, onion, 30, 100);
+    }
+
+    private void crossDecode(Random r, FECCodec encoder, FECCodec decoder, int data, int check) {
+        byte[][] originalDataBlocks = createOriginalDataBlocks(r, data);
+        byte[][] checkBlocks = setupCheckBlocks(check);
+        encoder.encode(originalDataBlocks, checkBlocks, new boolean[check], BLOCK_SIZE);
+        byte[][] dataBlocks = copy(originalDataBlocks);
+        boolean[] dataBlocksPresent = new boolean[data];
+        boolean[] checkBlocksPresent = new boolean[check];
+        Arrays.fill(dataBlocksPresent, true);
+        Arrays.fill(checkBlocksPresent, true);
+        for(int dropped=0;dropped<check;) {
+            int blockNo = r.nextInt(data+check);
+            if(blockNo < data) {
+                if(!dataBlocksPresent[blockNo]) continue;
+                Arrays.fill(dataBlocks[blockNo], (byte)0);
+                dataBlocksPresent[blockNo] = false;
+            } else {
+                if(!checkBlocksPresent[blockNo-data]) continue;
+                Arrays.fill(checkBlocks[blockNo-data], (byte)0);
+                checkBlocksPresent[blockNo-data] = false;
+            }
+            dropped++;
+        }
+        decoder.decode(dataBlocks, checkBlocks, dataBlocksPresent, checkBlocksPresent, BLOCK_SIZE);
+        assertEquals(originalDataBlocks, dataBlocks);
+    }
+
+    public void testBenchmark() {
+        if(!TestProperty.BENCHMARK) return;
+        for(int i=0;i<3;i++) {
+            benchmark(onion, "OnionFECCodec");
+            benchmark(codec, "TableFECCodec");
+        }
+    }
+
+    /** Encode and decode a full 128+128 segment of 32KB blocks, as when healing a big splitfile. */
+    private void benchmark(FECCodec c, String name) {
+        Random r = new Random(21672106);
+        int blockLength = 32768;
+        int data = 128;
+        int check = 128;
+        byte[][] dataBlocks = new byte[data][blockLength];
+        for(byte[] block : dataBlocks) r.nextBytes(block);
+        byte[][] checkBlocks = new byte[check][blockLength];
+        long start = System.nanoTime();
+        c.encode(dataBlocks, checkBlocks, new boolean[check], blockLength);
+        long encodeTime = System.nanoTime() - start;
+        // Worst case: Decode all the data from the check blocks.
+        boolean[] dataBlocksPresent = new boolean[data];
+        boolean[] checkBlocksPresent = new boolean[check];
+        Arrays.fill(checkBlocksPresent, true);
+        byte[][] decoded = new byte[data][blockLength];
+        start = System.nanoTime();
+        c.decode(decoded, checkBlocks, dataBlocksPresent, checkBlocksPresent, blockLength);
+        long decodeTime = System.nanoTime() - start;
+        assertEquals(dataBlocks, decoded);
+        long megabytes = (long)data * blockLength / (1024 * 1024);
+        System.out.println(name+": encode "+(encodeTime / 1000000)+"ms, decode "+(decodeTime / 1000000)+
+                "ms for "+data+"+"+check+" blocks of "+blockLength+" bytes ("+
+                (megabytes * 1000000000L / decodeTime)+"MB/s decode)");
+    }
+
+}
@@ -0,0 +1,169 @@
+package freenet.client.async;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.crypt.CRCChecksumChecker;
+import freenet.crypt.ChecksumChecker;
+import freenet.support.TestProperty;
+import freenet.support.io.ArrayBucketFactory;
+import freenet.support.io.FileUtil;
+import freenet.support.io.PrependLengthOutputStream;
+
+public class ClientLayerJournalTest extends TestCase {
+
+    private final File base = new File("tmp.client-layer-journal-test");
+    private final ChecksumChecker checker = new CRCChecksumChecker();
+    private final ArrayBucketFactory bf = new ArrayBucketFactory();
+    private File file;
+
+    @Override
+    public void setUp() {
+        base.mkdir();
+        file = new File(base, "client.dat.journal");
+    }
+
+    @Override
+    public void tearDown() {
+        FileUtil.removeAll(base);
+    }
+
+    private static byte[] record(int i, int length) {
+        byte[] buf = new byte[length];
+        new Random(i).nextBytes(buf);
+        return buf;
+    }
+
+    private void writeCommit(ClientLayerJournal journal, byte[] data) throws IOException {
+        PrependLengthOutputStream os = journal.startCommit();
+        os.write(data);
+        os.close();
+        journal.finishCommit();
+    }
+
+    private byte[] readCommit(InputStream is, int length) throws IOException {
+        byte[] buf = new byte[length];
+        new DataInputStream(is).readFully(buf);
+        assertEquals(-1, is.read());
+        is.close();
+        return buf;
+    }
+
+    public void testReplay() throws IOException {
+        ClientLayerJournal journal = new ClientLayerJournal(file, checker, bf);
+        assertFalse(journal.isOpen());
+        assertNull(journal.open(1));
+        journal.create(1);
+        assertTrue(journal.isOpen());
+        for(int i=0;i<10;i++)
+            writeCommit(journal, record(i, 100 * i + 1));
+        assertEquals(10, journal.commits());
+        assertEquals(file.length(), journal.length());
+        journal.close();
+        assertNull(journal.open(2));
+        ClientLayerJournal.Reader reader = journal.open(1);
+        for(int i=0;i<10;i++)
+            assertTrue(Arrays.equals(record(i, 100 * i + 1), readCommit(reader.nextCommit(), 100 * i + 1)));
+        assertNull(reader.nextCommit());
+        reader.close();
+        // A new snapshot discards the old commits.
+        journal.create(3);
+        writeCommit(journal, record(20, 10));
+        journal.close();
+        assertNull(journal.open(1));
+        reader = journal.open(3);
+        assertTrue(Arrays.equals(record(20, 10), readCommit(reader.nextCommit(), 10)));
+        assertNull(reader.nextCommit());
+        reader.close();
+    }
+
+    /** A commit which was only partly written is ignored. */
+    public void testTruncated() throws IOException {
+        ClientLayerJournal journal = new ClientLayerJournal(file, checker, bf);
+        journal.create(1);
+        writeCommit(journal, record(1, 1000));
+        long good = journal.length();
+        writeCommit(journal, record(2, 1000));
+        journal.close();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(good + 500);
+        raf.close();
+        ClientLayerJournal.Reader reader = journal.open(1);
+        assertTrue(Arrays.equals(record(1, 1000), readCommit(reader.nextCommit(), 1000)));
+        assertNull(reader.nextCommit());
+        reader.close();
+        // Corrupt the first commit too.
+        raf = new RandomAccessFile(file, "rw");
+        raf.seek(good - 10);
+        raf.write(0xff ^ raf.read());
+        raf.close();
+        reader = journal.open(1);
+        assertNull(reader.nextCommit());
+        reader.close();
+    }
+
+    /** Compare rewriting every request at each checkpoint with appending the 1% which have
+     * changed to the journal. The requests are just random bytes of a typical size. */
+    public void testBenchmark() throws IOException {
+        if(!TestProperty.BENCHMARK) return;
+        benchmark(1000);
+        benchmark(10000);
+    }
+
+    private void benchmark(int requests) throws IOException {
+        final int checkpoints = 20;
+        final int recordSize = 2048;
+        byte[][] records = new byte[requests][];
+        for(int i=0;i<requests;i++)
+            records[i] = record(i, recordSize);
+        File full = new File(base, "client.dat");
+        long fullBytes = 0;
+        long start = System.nanoTime();
+        for(int c=0;c<checkpoints;c++) {
+            OutputStream os = new BufferedOutputStream(new FileOutputStream(full));
+            DataOutputStream dos = new DataOutputStream(os);
+            dos.writeInt(requests);
+            for(byte[] record : records) {
+                PrependLengthOutputStream plos = checker.checksumWriterWithLength(dos, bf);
+                plos.write(record);
+                plos.close();
+            }
+            dos.close();
+            fullBytes += full.length();
+        }
+        long fullTime = System.nanoTime() - start;
+        ClientLayerJournal journal = new ClientLayerJournal(file, checker, bf);
+        journal.create(1);
+        Random random = new Random(requests);
+        int changed = Math.max(1, requests / 100);
+        start = System.nanoTime();
+        for(int c=0;c<checkpoints;c++) {
+            PrependLengthOutputStream commit = journal.startCommit();
+            DataOutputStream dos = new DataOutputStream(commit);
+            for(int i=0;i<changed;i++) {
+                PrependLengthOutputStream plos = checker.checksumWriterWithLength(dos, bf);
+                plos.write(records[random.nextInt(requests)]);
+                plos.close();
+            }
+            dos.close();
+            journal.finishCommit();
+        }
+        long journalTime = System.nanoTime() - start;
+        long journalBytes = journal.length();
+        journal.close();
+        System.out.println(requests+" requests, "+checkpoints+" checkpoints: full rewrite "+
+                (fullTime / 1000000)+"ms, "+fullBytes+" bytes; journal "+(journalTime / 1000000)+
+                "ms, "+journalBytes+" bytes");
+    }
+
+}
@@ -0,0 +1,134 @@
+package freenet.client.async;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Field;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import freenet.clients.fcp.ClientRequest;
+import freenet.node.Node;
+import freenet.node.NodeClientCore;
+import freenet.node.RequestStarterGroup;
+import freenet.support.Executor;
+import freenet.support.Ticker;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.FileUtil;
+import freenet.support.io.PersistentTempBucketFactory;
+import freenet.support.io.TempBucketFactory;
+
+public class ClientLayerPersisterTest extends TestCase {
+
+    private final File dir = new File("tmp.client-layer-persister-test");
+    private final Random random = new Random(1234);
+
+    /** Counts the checkpoints it is written in, so we can tell which one we loaded. */
+    static class CountingStatsPutter extends PersistentStatsPutter {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        public void updateData(Node n) {
+            getLatestBWData().totalBytesOut++;
+        }
+    }
+
+    @Override
+    public void setUp() {
+        dir.mkdir();
+    }
+
+    @Override
+    public void tearDown() {
+        FileUtil.removeAll(dir);
+    }
+
+    private ClientLayerPersister makePersister(PersistentStatsPutter stats) throws Exception {
+        NodeClientCore core = mock(NodeClientCore.class);
+        when(core.getPersistentRequests()).thenReturn(new ClientRequest[0]);
+        TempBucketFactory tbf = mock(TempBucketFactory.class);
+        when(tbf.makeBucket(anyLong())).thenAnswer(new Answer<RandomAccessBucket>() {
+            @Override
+            public RandomAccessBucket answer(InvocationOnMock invocation) {
+                return new ArrayBucket();
+            }
+        });
+        ClientLayerPersister persister = new ClientLayerPersister(mock(Executor.class),
+                mock(Ticker.class), null, core, mock(PersistentTempBucketFactory.class), tbf, stats);
+        ClientContext context = mock(ClientContext.class);
+        setField(ClientContext.class, context, "fastWeakRandom", random);
+        persister.start(context);
+        persister.setFilesAndLoad(dir, "client.dat", false, false, null, context,
+                mock(RequestStarterGroup.class), random);
+        // Normally set by a system property.
+        setField(ClientLayerPersister.class, persister, "useJournal", true);
+        return persister;
+    }
+
+    private static void setField(Class<?> clazz, Object o, String name, Object value) throws Exception {
+        Field f = clazz.getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(o, value);
+    }
+
+    private static void copy(File from, File to) throws IOException {
+        assertTrue(FileUtil.copyFile(from, to));
+    }
+
+    /** If the node crashes while rewriting client.dat, we load client.dat.bak, and must still
+     * replay the journal written since it, even though the broken client.dat has a new ID. */
+    public void testCrashDuringRewrite() throws Exception {
+        PersistentStatsPutter stats = new CountingStatsPutter();
+        ClientLayerPersister persister = makePersister(stats);
+        File clientDat = new File(dir, "client.dat");
+        File journal = new File(dir, "client.dat.journal");
+        persister.save(false);
+        assertTrue(journal.exists());
+        // Appended to the journal.
+        persister.save(false);
+        persister.save(false);
+        assertEquals(3, stats.getLatestBWData().totalBytesOut);
+        File oldJournal = new File(dir, "journal.old");
+        copy(journal, oldJournal);
+        // Rewritten in full.
+        persister.save(true);
+        assertTrue(new File(dir, "client.dat.bak").exists());
+        // Crash before the end of client.dat, so the new journal was never created.
+        RandomAccessFile raf = new RandomAccessFile(clientDat, "rw");
+        raf.setLength(40);
+        raf.close();
+        assertTrue(journal.delete());
+        assertTrue(oldJournal.renameTo(journal));
+        PersistentStatsPutter loaded = new PersistentStatsPutter();
+        makePersister(loaded);
+        assertEquals(3, loaded.getLatestBWData().totalBytesOut);
+    }
+
+    /** If client.dat was written but the node crashed before creating the new journal, the
+     * old journal must not be replayed, but client.dat already has everything in it. */
+    public void testCrashBeforeNewJournal() throws Exception {
+        PersistentStatsPutter stats = new CountingStatsPutter();
+        ClientLayerPersister persister = makePersister(stats);
+        File journal = new File(dir, "client.dat.journal");
+        persister.save(false);
+        persister.save(false);
+        File oldJournal = new File(dir, "journal.old");
+        copy(journal, oldJournal);
+        persister.save(true);
+        assertTrue(journal.delete());
+        assertTrue(oldJournal.renameTo(journal));
+        PersistentStatsPutter loaded = new PersistentStatsPutter();
+        makePersister(loaded);
+        assertEquals(3, loaded.getLatestBWData().totalBytesOut);
+    }
+
+}
@@ -1,9 +1,17 @@
 package freenet.client.async;
 
+import static org.mockito.Mockito.mock;
+
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import junit.framework.TestCase;
 
@@ -29,23 +37,31 @@ import freenet.crypt.RandomSource;
 import freenet.keys.ClientKey;
 import freenet.keys.FreenetURI;
 import freenet.keys.Key;
+import freenet.node.BaseSendableGet;
 import freenet.node.KeysFetchingLocally;
 import freenet.node.LowLevelPutException;
 import freenet.node.RequestClient;
+import freenet.node.RequestClientBuilder;
+import freenet.node.RequestScheduler;
+import freenet.node.RequestStarter;
 import freenet.node.SendableInsert;
+import freenet.node.SendableRequest;
 import freenet.node.SendableRequestItem;
 import freenet.node.SendableRequestSender;
 import freenet.support.CheatingTicker;
 import freenet.support.DummyJobRunner;
 import freenet.support.MemoryLimitedJobRunner;
 import freenet.support.PooledExecutor;
+import freenet.support.RandomGrabArray;
+import freenet.support.RandomGrabArrayItem;
+import freenet.support.RandomGrabArrayItemExclusionList;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.WaitableExecutor;
 import freenet.support.api.BucketFactory;
 import freenet.support.api.LockableRandomAccessBuffer;
 import freenet.support.api.LockableRandomAccessBufferFactory;
 import freenet.support.io.ArrayBucketFactory;
-import freenet.support.io.BucketTools;
 import freenet.support.io.ByteArrayRandomAccessBufferFactory;
 import freenet.support.io.FileUtil;
 import freenet.support.io.FilenameGenerator;
@@ -224,12 +240,16 @@ public class ClientRequestSelectorTest extends TestCase {
     private LockableRandomAccessBuffer generateData(Random random, long size,
             LockableRandomAccessBufferFactory smallRAFFactory) throws IOException {
         LockableRandomAccessBuffer thing = smallRAFFactory.makeRAF(size);
-        BucketTools.fill(thing, random, 0, size);
+        byte[] buf = new byte[(int) size];
+        random.nextBytes(buf);
+        thing.pwrite(0, buf, 0, buf.length);
         return new ReadOnlyRandomAccessBuffer(thing);
     }
     
     class NullSendableInsert extends SendableInsert {
 
+        private static final long serialVersionUID = 1L;
+
         public NullSendableInsert(boolean persistent, boolean realTimeFlag) {
             super(persistent, realTimeFlag);
         }
@@ -373,6 +393,304 @@ public class ClientRequestSelectorTest extends TestCase {
         assertEquals(storage.getStatus(), Status.SUCCEEDED);
     }
 
+    private static final RandomGrabArrayItemExclusionList NOT_EXCLUDED = new RandomGrabArrayItemExclusionList() {
+
+        @Override
+        public long exclude(RandomGrabArrayItem item, ClientContext context, long now) {
+            return 0;
+        }
+        
+    };
+    
+    private ClientContext makeSelectionContext(Random random) {
+        return new ClientContext(0, null, null, null, null, null, null, null, null, null, random, ticker, 
+                null, null, null, null, null, null, null, null, null, null, null, null, null, null);
+    }
+    
+    /** A request for a single file, which only sets the priority and client for its gets. */
+    static class NullRequester extends ClientRequester {
+
+        private static final long serialVersionUID = 1L;
+
+        NullRequester(short priorityClass, final RequestClient client) {
+            super(priorityClass, new ClientBaseCallback() {
+
+                @Override
+                public void onResume(ClientContext context) {
+                    // Ignore.
+                }
+
+                @Override
+                public RequestClient getRequestClient() {
+                    return client;
+                }
+                
+            });
+        }
+        
+        void setPriorityClass(short priorityClass) {
+            this.priorityClass = priorityClass;
+        }
+
+        @Override
+        public void onTransition(ClientGetState oldState, ClientGetState newState, ClientContext context) {
+            // Ignore.
+        }
+
+        @Override
+        public void cancel(ClientContext context) {
+            // Ignore.
+        }
+
+        @Override
+        public FreenetURI getURI() {
+            return null;
+        }
+
+        @Override
+        public boolean isFinished() {
+            return false;
+        }
+
+        @Override
+        protected void innerNotifyClients(ClientContext context) {
+            // Ignore.
+        }
+
+        @Override
+        protected void innerToNetwork(ClientContext context) {
+            // Ignore.
+        }
+
+        @Override
+        protected ClientBaseCallback getCallback() {
+            return null;
+        }
+        
+    }
+    
+    /** A get which always has a block to send. */
+    static class NullSendableGet extends BaseSendableGet {
+        
+        private static final long serialVersionUID = 1L;
+        final NullRequester parent;
+
+        NullSendableGet(NullRequester parent) {
+            super(false, false);
+            this.parent = parent;
+        }
+
+        @Override
+        public Key getNodeKey(SendableRequestItem token) {
+            return null;
+        }
+
+        @Override
+        public boolean preRegister(ClientContext context, boolean toNetwork) {
+            return false;
+        }
+
+        @Override
+        public short getPriorityClass() {
+            return parent.getPriorityClass();
+        }
+
+        @Override
+        public SendableRequestItem chooseKey(KeysFetchingLocally keys, ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public long countAllKeys(ClientContext context) {
+            return 1;
+        }
+
+        @Override
+        public long countSendableKeys(ClientContext context) {
+            return 1;
+        }
+
+        @Override
+        public SendableRequestSender getSender(ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public RequestClient getClient() {
+            return parent.getClient();
+        }
+
+        @Override
+        public ClientRequester getClientRequest() {
+            return parent;
+        }
+
+        @Override
+        public ClientRequestScheduler getScheduler(ClientContext context) {
+            return null;
+        }
+
+        @Override
+        public boolean isSSK() {
+            return false;
+        }
+
+        @Override
+        public boolean isInsert() {
+            return false;
+        }
+
+        @Override
+        public void internalError(Throwable t, RequestScheduler sched, ClientContext context,
+                boolean persistent) {
+            // Ignore.
+        }
+
+        @Override
+        public long getWakeupTime(ClientContext context, long now) {
+            return 0;
+        }
+        
+    }
+    
+    private SendableRequest choose(ClientRequestSelector selector, RandomSource random, ClientContext context) {
+        return selector.chooseRequestInner(0, random, null, NOT_EXCLUDED, false, context, System.currentTimeMillis()).req;
+    }
+    
+    /** Each RequestClient gets an equal share, however many requests it has queued. */
+    public void testFairnessBetweenClients() {
+        RandomSource random = new DummyRandomSource(1234);
+        ClientContext context = makeSelectionContext(random);
+        ClientRequestSelector selector = new ClientRequestSelector(false, false, false, mock(ClientRequestScheduler.class));
+        RequestClient small = new RequestClientBuilder().build();
+        RequestClient big = new RequestClientBuilder().build();
+        NullRequester smallRequester = new NullRequester(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, small);
+        selector.innerRegister(new NullSendableGet(smallRequester), context, null);
+        for(int i=0;i<20;i++) {
+            NullRequester requester = new NullRequester(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, big);
+            for(int j=0;j<10;j++)
+                selector.innerRegister(new NullSendableGet(requester), context, null);
+        }
+        int chosenSmall = 0;
+        for(int i=0;i<2000;i++) {
+            SendableRequest req = choose(selector, random, context);
+            assertNotNull(req);
+            if(req.getClient() == small) chosenSmall++;
+        }
+        assertTrue("Small client chosen "+chosenSmall+" times", chosenSmall > 800 && chosenSmall < 1200);
+    }
+    
+    public void testReregisterAll() {
+        RandomSource random = new DummyRandomSource(1234);
+        ClientContext context = makeSelectionContext(random);
+        ClientRequestSelector selector = new ClientRequestSelector(false, false, false, mock(ClientRequestScheduler.class));
+        RequestClient client = new RequestClientBuilder().build();
+        NullRequester requester = new NullRequester(RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS, client);
+        NullSendableGet[] gets = new NullSendableGet[10];
+        for(int i=0;i<gets.length;i++) {
+            gets[i] = new NullSendableGet(requester);
+            selector.innerRegister(gets[i], context, null);
+        }
+        RandomGrabArray oldRGA = gets[0].getParentGrabArray();
+        assertNotNull(oldRGA);
+        requester.setPriorityClass(RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+        selector.reregisterAll(requester, null, context, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS);
+        assertTrue(selector.priorities[RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS].isEmpty());
+        assertFalse(selector.priorities[RequestStarter.INTERACTIVE_PRIORITY_CLASS].isEmpty());
+        RandomGrabArray newRGA = gets[0].getParentGrabArray();
+        assertNotSame(oldRGA, newRGA);
+        assertEquals(gets.length, newRGA.size());
+        for(NullSendableGet get : gets)
+            assertSame(newRGA, get.getParentGrabArray());
+        assertEquals(RequestStarter.INTERACTIVE_PRIORITY_CLASS, choose(selector, random, context).getPriorityClass());
+        // Removing from the old RGA, e.g. by an unregister() that started before the priority 
+        // changed, returns the new one for the caller to remove it from, without holding the 
+        // old priority's lock.
+        assertSame(newRGA, oldRGA.remove(gets[0], context));
+        assertSame(newRGA, gets[0].getParentGrabArray());
+        assertNull(newRGA.remove(gets[0], context));
+        assertNull(gets[0].getParentGrabArray());
+        assertEquals(gets.length - 1, newRGA.size());
+        assertFalse(newRGA.contains(gets[0]));
+    }
+    
+    private static final int BENCHMARK_CLIENTS = 100;
+    private static final int BENCHMARK_REQUESTERS_PER_CLIENT = 10;
+    private static final int BENCHMARK_GETS_PER_REQUESTER = 50;
+    private static final short[] BENCHMARK_PRIORITIES = new short[] {
+        RequestStarter.INTERACTIVE_PRIORITY_CLASS, RequestStarter.IMMEDIATE_SPLITFILE_PRIORITY_CLASS,
+        RequestStarter.UPDATE_PRIORITY_CLASS, RequestStarter.BULK_SPLITFILE_PRIORITY_CLASS
+    };
+    
+    /** Register 50,000 gets from 100 clients on several threads, while another thread chooses
+     * requests as fast as it can. */
+    public void testBenchmark() throws InterruptedException {
+        if(!TestProperty.BENCHMARK) return;
+        final RandomSource random = new DummyRandomSource(1234);
+        final ClientContext context = makeSelectionContext(new Random(1234));
+        for(int i=0;i<3;i++) {
+            final ClientRequestSelector selector = new ClientRequestSelector(false, false, false, mock(ClientRequestScheduler.class));
+            final List<NullSendableGet> gets = new ArrayList<NullSendableGet>();
+            for(int j=0;j<BENCHMARK_CLIENTS;j++) {
+                RequestClient client = new RequestClientBuilder().build();
+                for(int k=0;k<BENCHMARK_REQUESTERS_PER_CLIENT;k++) {
+                    NullRequester requester = new NullRequester(BENCHMARK_PRIORITIES[k % BENCHMARK_PRIORITIES.length], client);
+                    for(int l=0;l<BENCHMARK_GETS_PER_REQUESTER;l++)
+                        gets.add(new NullSendableGet(requester));
+                }
+            }
+            final int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            final AtomicBoolean registering = new AtomicBoolean(true);
+            final AtomicInteger chosen = new AtomicInteger();
+            final Map<RequestClient, Integer> chosenByClient = new HashMap<RequestClient, Integer>();
+            Thread chooser = new Thread() {
+                @Override
+                public void run() {
+                    while(registering.get()) {
+                        SendableRequest req = choose(selector, random, context);
+                        if(req == null) continue;
+                        chosen.incrementAndGet();
+                        Integer count = chosenByClient.get(req.getClient());
+                        chosenByClient.put(req.getClient(), count == null ? 1 : count + 1);
+                    }
+                }
+            };
+            final Thread[] registerers = new Thread[threads - 1];
+            long start = System.nanoTime();
+            chooser.start();
+            for(int j=0;j<registerers.length;j++) {
+                final int offset = j;
+                registerers[j] = new Thread() {
+                    @Override
+                    public void run() {
+                        for(int k=offset;k<gets.size();k+=registerers.length)
+                            selector.innerRegister(gets.get(k), context, null);
+                    }
+                };
+                registerers[j].start();
+            }
+            for(Thread t : registerers)
+                t.join();
+            long registered = System.nanoTime() - start;
+            registering.set(false);
+            chooser.join();
+            for(NullSendableGet get : gets)
+                assertNotNull(get.getParentGrabArray());
+            start = System.nanoTime();
+            for(int j=0;j<10000;j++)
+                assertNotNull(choose(selector, random, context));
+            long chooseTime = System.nanoTime() - start;
+            System.out.println("Registered "+gets.size()+" gets from "+BENCHMARK_CLIENTS+" clients on "+
+                    registerers.length+" threads in "+registered/1000000+"ms, chose "+chosen.get()+
+                    " meanwhile from "+chosenByClient.size()+" clients, then "+(chooseTime/10000)+"ns per choice");
+        }
+    }
+
 
     
 }
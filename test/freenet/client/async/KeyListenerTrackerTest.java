@@ -0,0 +1,91 @@
+package freenet.client.async;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.client.FetchException;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.support.TestProperty;
+
+public class KeyListenerTrackerTest extends TestCase {
+
+    private static final int KEYS_PER_LISTENER = 64;
+
+    private final Random random = new Random(1234);
+
+    private KeyListenerTracker makeTracker() {
+        byte[] salt = new byte[32];
+        random.nextBytes(salt);
+        return new KeyListenerTracker(false, false, false, null, null, salt, false);
+    }
+
+    private NodeCHK randomKey() {
+        byte[] routingKey = new byte[32];
+        random.nextBytes(routingKey);
+        return new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256);
+    }
+
+    private NodeCHK[] addListener(KeyListenerTracker tracker, int keys) throws FetchException {
+        byte[] localSalt = new byte[32];
+        random.nextBytes(localSalt);
+        SplitFileFetcherKeyListener listener =
+            new SplitFileFetcherKeyListener(null, null, false, localSalt, keys, keys, 1);
+        NodeCHK[] added = new NodeCHK[keys];
+        for (int i = 0; i < keys; i++) {
+            added[i] = randomKey();
+            listener.addKey(added[i], 0, tracker);
+        }
+        listener.finishedSetup();
+        tracker.addPendingKeys(listener);
+        return added;
+    }
+
+    public void testProbablyWantKey() throws FetchException {
+        KeyListenerTracker tracker = makeTracker();
+        NodeCHK[][] keys = new NodeCHK[20][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = addListener(tracker, KEYS_PER_LISTENER);
+        }
+        for (NodeCHK[] listenerKeys : keys) {
+            for (NodeCHK key : listenerKeys) {
+                assertTrue(tracker.anyProbablyWantKey(key, null));
+            }
+        }
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (tracker.anyProbablyWantKey(randomKey(), null)) {
+                falsePositives++;
+            }
+        }
+        assertTrue(falsePositives < 10);
+    }
+
+    public void testBenchmark() throws FetchException {
+        if (!TestProperty.BENCHMARK) return;
+        KeyListenerTracker tracker = makeTracker();
+        int listeners = 10000;
+        NodeCHK[] wanted = new NodeCHK[listeners];
+        for (int i = 0; i < listeners; i++) {
+            wanted[i] = addListener(tracker, KEYS_PER_LISTENER)[0];
+        }
+        NodeCHK[] unwanted = new NodeCHK[1000];
+        for (int i = 0; i < unwanted.length; i++) {
+            unwanted[i] = randomKey();
+        }
+        for (int round = 0; round < 3; round++) {
+            long start = System.nanoTime();
+            int found = 0;
+            for (NodeCHK key : unwanted) {
+                if (tracker.anyProbablyWantKey(key, null)) found++;
+            }
+            for (int i = 0; i < unwanted.length; i++) {
+                if (tracker.anyProbablyWantKey(wanted[i * (listeners / unwanted.length)], null)) found++;
+            }
+            long time = System.nanoTime() - start;
+            assertTrue(found >= unwanted.length);
+            System.out.println(listeners + " listeners: " + (time / (2 * unwanted.length * 1000)) + "us per key");
+        }
+    }
+
+}
@@ -0,0 +1,134 @@
+package freenet.client.async;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.util.Map;
+
+import junit.framework.TestCase;
+import freenet.keys.FreenetURI;
+import freenet.keys.USK;
+import freenet.support.io.FileUtil;
+
+public class USKEditionIndexTest extends TestCase {
+
+    private static final String WOT = "USK@sdFxM0Z4zx4-gXhGwzXAVYvOUi6NRfdGbyJa797bNAg,ZP4aASnyZax8nYOvCOlUebegsmbGQIXfVzw7iyOsXEc,AQACAAE/WebOfTrust/5";
+    private static final String INDEX = "USK@0I8gctpUE32CM0iQhXaYpCMvtPPGfT4pjXm01oid5Zc,3dAcn4fX2LyxO6uCnWFTx-2HKZ89uruurcKwLSCxbZ4,AQACAAE/Ultimate-Freenet-Index/55/";
+
+    private final File base = new File("tmp.usk-edition-index-test");
+    private File file;
+
+    @Override
+    public void setUp() {
+        base.mkdir();
+        file = new File(base, "usk-editions.dat");
+    }
+
+    @Override
+    public void tearDown() {
+        FileUtil.removeAll(base);
+    }
+
+    private static USK clear(String uri) throws MalformedURLException {
+        return USK.create(new FreenetURI(uri)).clearCopy();
+    }
+
+    public void testReload() throws IOException {
+        USKEditionIndex index = new USKEditionIndex(file, true);
+        assertTrue(index.load().isEmpty());
+        index.update(clear(WOT), 10, 12);
+        index.update(clear(INDEX), -1, 60);
+        index.update(clear(WOT), 11, 12);
+        assertEquals(2, index.size());
+        USKEditionIndex.Entry entry = index.get(clear(WOT));
+        assertEquals(11, entry.knownGood);
+        assertEquals(12, entry.latestSlot);
+        assertFalse(entry.loaded);
+        index.close();
+
+        index = new USKEditionIndex(file, true);
+        Map<USK, USKEditionIndex.Entry> loaded = index.load();
+        assertEquals(2, loaded.size());
+        entry = loaded.get(clear(WOT));
+        assertEquals(11, entry.knownGood);
+        assertEquals(12, entry.latestSlot);
+        assertTrue(entry.loaded);
+        entry = loaded.get(clear(INDEX));
+        assertEquals(-1, entry.knownGood);
+        assertEquals(60, entry.latestSlot);
+        // The edition in the URI doesn't matter.
+        assertSame(entry, loaded.get(USK.create(new FreenetURI(INDEX)).copy(100).clearCopy()));
+        index.close();
+    }
+
+    /** Editions never go backwards, whatever order they were written in. */
+    public void testMax() throws IOException {
+        USKEditionIndex index = new USKEditionIndex(file, true);
+        index.load();
+        index.update(clear(WOT), 20, 25);
+        index.update(clear(WOT), 22, 21);
+        USKEditionIndex.Entry entry = index.get(clear(WOT));
+        assertEquals(22, entry.knownGood);
+        assertEquals(25, entry.latestSlot);
+        index.close();
+        // Append an older line by hand, as if two nodes had shared the file.
+        long now = System.currentTimeMillis();
+        FileOutputStream fos = new FileOutputStream(file, true);
+        fos.write((1+" "+30+" "+now+" "+clear(WOT).getURI().toString(false, false)+"\nnot a line\n").getBytes("UTF-8"));
+        fos.close();
+        entry = new USKEditionIndex(file, true).load().get(clear(WOT));
+        assertEquals(22, entry.knownGood);
+        assertEquals(30, entry.latestSlot);
+    }
+
+    /** The log is rewritten when it has too many stale lines, and old entries are dropped. */
+    public void testCompact() throws IOException {
+        USKEditionIndex index = new USKEditionIndex(file, true);
+        index.load();
+        for(int i=0;i<USKEditionIndex.MAX_WASTED_LINES * 2;i++)
+            index.update(clear(WOT), i, i);
+        index.close();
+        assertTrue(FileUtil.readUTF(file).toString().split("\n").length <= USKEditionIndex.MAX_WASTED_LINES + 1);
+        long old = System.currentTimeMillis() - USKEditionIndex.MAX_AGE - 1;
+        FileOutputStream fos = new FileOutputStream(file, true);
+        fos.write((5+" "+5+" "+old+" "+clear(INDEX).getURI().toString(false, false)+"\n").getBytes("UTF-8"));
+        fos.close();
+        index = new USKEditionIndex(file, true);
+        Map<USK, USKEditionIndex.Entry> loaded = index.load();
+        assertEquals(1, loaded.size());
+        assertEquals(USKEditionIndex.MAX_WASTED_LINES * 2 - 1, loaded.get(clear(WOT)).latestSlot);
+        index.close();
+        assertEquals(1, new USKEditionIndex(file, true).load().size());
+        // Rewritten on load, so only one line left.
+        assertEquals(1, FileUtil.readUTF(file).toString().split("\n").length);
+    }
+
+    /** Nothing is kept on disk when not persistent, e.g. at high physical security. */
+    public void testNotPersistent() throws IOException {
+        USKEditionIndex index = new USKEditionIndex(file, true);
+        index.load();
+        index.update(clear(WOT), 10, 12);
+        index.close();
+        assertTrue(file.exists());
+        // Loading deletes an old file.
+        index = new USKEditionIndex(file, false);
+        assertTrue(index.load().isEmpty());
+        assertFalse(file.exists());
+        index.update(clear(WOT), 11, 13);
+        assertEquals(11, index.get(clear(WOT)).knownGood);
+        assertFalse(file.exists());
+        // Lowering the security level writes what we know.
+        index.setPersistent(true);
+        index.update(clear(INDEX), 60, 60);
+        index.close();
+        Map<USK, USKEditionIndex.Entry> loaded = new USKEditionIndex(file, true).load();
+        assertEquals(2, loaded.size());
+        assertEquals(11, loaded.get(clear(WOT)).knownGood);
+        // And raising it deletes the file.
+        index.setPersistent(false);
+        assertFalse(file.exists());
+        index.close();
+    }
+
+}
@@ -187,6 +187,35 @@ public class ContentFilterTest extends TestCase {
 		assertEquals(DELETED_BASE_HREF, HTMLFilter(BAD_BASE_HREF5));
 	}
 	
+	/** Attributes which can't simply be copied through must still go through sanitizeHash(). The
+	 * expected output is what the filter gave before it had the shortcut. */
+	public void testPassThroughAttributes() throws Exception {
+		// A repeated attribute replaces the earlier one, and moves to the end.
+		assertEquals("<div title=\"b\">x</div>", HTMLFilter("<div title=\"a\" title=\"b\">x</div>"));
+		assertEquals("<p id=\"x\" class=\"b\">x</p>", HTMLFilter("<p class=\"a\" id=\"x\" class=\"b\">x</p>"));
+		// Blank values are kept in HTML but removed in XHTML.
+		assertEquals("<div title=\"\">x</div>", HTMLFilter("<div title=\"\">x</div>"));
+		assertEquals("<div title=\"\">x</div>", HTMLFilter("<div title=''>x</div>"));
+		assertEquals("<html xmlns=\"http://www.w3.org/1999/xhtml\"><div>x</div></html>",
+				HTMLFilter("<html xmlns=\"http://www.w3.org/1999/xhtml\"><div title=\"\">x</div></html>"));
+		assertEquals("<html xmlns=\"http://www.w3.org/1999/xhtml\"><div title=\"a\">x</div></html>",
+				HTMLFilter("<html xmlns=\"http://www.w3.org/1999/xhtml\"><div title=\"a\" lang=\"\">x</div></html>"));
+		// Names are lower-cased.
+		assertEquals("<DIV id=\"x\" title=\"a\">x</DIV>", HTMLFilter("<DIV TITLE=\"a\" ID=\"x\">x</DIV>"));
+		assertEquals("<p class=\"c\" title=\"t\">x</p>", HTMLFilter("<p Class=\"c\" Title='t'>x</p>"));
+		// id and class on a BaseCoreTagVerifier tag.
+		assertEquals("<br id=\"x\" class=\"y z\">", HTMLFilter("<br id=\"x\" class=\"y z\">"));
+		assertEquals("<iframe id=\"x\" class=\"y\"></iframe>", HTMLFilter("<iframe id=\"x\" class=\"y\"></iframe>"));
+		// Closing tags lose their attributes.
+		assertEquals("<div title=\"a\">x</div>", HTMLFilter("<div title=\"a\">x</div title=\"a\">"));
+		assertEquals("<p>x</p>", HTMLFilter("<p>x</p class=\"x\" id=\"y\">"));
+		assertEquals("<html xmlns=\"http://www.w3.org/1999/xhtml\"><p>x</p></html>",
+				HTMLFilter("<html xmlns=\"http://www.w3.org/1999/xhtml\"><p>x</p class=\"x\"></html>"));
+		// Unquoted values and entities.
+		assertEquals("<div lang=\"en\" title=\"a&amp;b\">x</div>", HTMLFilter("<div title=\"a&amp;b\" lang=en>x</div>"));
+		assertEquals("<div title=\"a&lt;b\">x</div>", HTMLFilter("<div title=\"a<b\">x</div>"));
+	}
+	
 	private static final String META_TIME_ONLY = "<meta http-equiv=\"refresh\" content=\"5\">";
 	private static final String META_TIME_ONLY_WRONG_CASE = "<meta http-equiv=\"RefResH\" content=\"5\">";
 	private static final String META_TIME_ONLY_TOO_SHORT = "<meta http-equiv=\"refresh\" content=\"0\">";
@@ -349,6 +378,38 @@ public class ContentFilterTest extends TestCase {
 		return returnValue;
 	}
 
+	/** Fragments from the tests above which are valid in a body. */
+	private static final String[] BENCHMARK_FRAGMENTS = new String[] {
+		INTERNAL_RELATIVE_LINK, INTERNAL_RELATIVE_LINK1, EXTERNAL_LINK_CHECK2, ANCHOR_TEST, ANCHOR_TEST_SPECIAL2,
+		ANCHOR_RELATIVE1, ANCHOR_FALSE_POS2, ANCHOR_MIXED, POUNT_CHARACTER_ENCODING_TEST, WHITELIST_STATIC_CONTENT,
+		SPAN_WITH_STYLE + "styled</span>", FRAME_SRC_CHARSET_BAD,
+		"<p>Johann Sebastian Bach was a prolific composer.</p>\n",
+		"<table class=\"index\"><tr><td><a href=\"/USK@site/index/3/\" title=\"A site\">A site</a></td>" +
+			"<td id=\"d1\">Description with &amp; entities &lt;and&gt; <b>bold</b> text.</td></tr></table>\n",
+		"<!-- a comment -->\n",
+		"<div align='center'><img src=\"image.png\" alt=\"An image\" width=\"10\" height=\"10\"><br></div>\n"
+	};
+
+	/** Filter a large page, such as an index, made up of the fragments above. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		StringBuilder sb = new StringBuilder(CSS_SPEC_EXAMPLE1.substring(0, CSS_SPEC_EXAMPLE1.indexOf("</BODY>")));
+		for(int i=0;sb.length()<4*1024*1024;i++)
+			sb.append(BENCHMARK_FRAGMENTS[i % BENCHMARK_FRAGMENTS.length]);
+		sb.append("</BODY>\n</HTML>");
+		byte[] page = sb.toString().getBytes("UTF-8");
+		URI baseURI = new URI(ALT_BASE_URI);
+		for(int run=0;run<5;run++) {
+			ArrayBucket output = new ArrayBucket();
+			OutputStream os = output.getOutputStream();
+			long start = System.nanoTime();
+			ContentFilter.filter(new ArrayBucket(page).getInputStream(), os, "text/html", baseURI, null, null, null);
+			long time = System.nanoTime() - start;
+			os.close();
+			System.out.println("Filtered "+page.length+" bytes to "+output.size()+" bytes in "+(time / 1000000)+"ms");
+		}
+	}
+
 	static public class TagVerifierTest extends TestCase {
 		static String tagname;
 		LinkedHashMap<String, String> attributes;
@@ -0,0 +1,160 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.clients.http;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+import freenet.support.io.LineReadingInputStream;
+
+/**
+ * Load test for the web interface of a running node. Each client thread repeatedly fetches a
+ * static file and the queue page, reusing its connection if the node allows persistent
+ * connections, and we report requests per second and latency.
+ *
+ * Usage: FProxyLoadGenerator [host] [port] [clients] [seconds] [pipeline depth]
+ *
+ * For the queue page to be served, the host must have full access, so run this on the same
+ * machine as the node. Enable persistent connections in the web interface settings to test
+ * keep-alive and pipelining, and the non-blocking option to test with more clients than
+ * fproxy threads.
+ */
+public class FProxyLoadGenerator {
+
+	static final String[] PATHS = new String[] { "/static/themes/clean/theme.css", "/queue/" };
+
+	private final String host;
+	private final int port;
+	private final int pipeline;
+	private volatile boolean stop;
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong errors = new AtomicLong();
+	private final AtomicLong connections = new AtomicLong();
+	private final AtomicLong totalLatency = new AtomicLong();
+	private final AtomicLong maxLatency = new AtomicLong();
+
+	FProxyLoadGenerator(String host, int port, int pipeline) {
+		this.host = host;
+		this.port = port;
+		this.pipeline = pipeline;
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+		String host = args.length > 0 ? args[0] : "127.0.0.1";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 8888;
+		int clients = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 30;
+		int pipeline = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+		System.out.println("Testing http://"+host+":"+port+"/ with "+clients+" clients for "+seconds+" seconds, pipeline depth "+pipeline);
+		final FProxyLoadGenerator test = new FProxyLoadGenerator(host, port, pipeline);
+		Thread[] threads = new Thread[clients];
+		for(int i=0;i<clients;i++) {
+			threads[i] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					test.runClient();
+				}
+			}, "Load test client "+i);
+			threads[i].setDaemon(true);
+		}
+		long start = System.currentTimeMillis();
+		for(Thread t : threads) t.start();
+		Thread.sleep(seconds * 1000L);
+		test.stop = true;
+		for(Thread t : threads) t.join(10000);
+		long elapsed = System.currentTimeMillis() - start;
+		long count = test.requests.get();
+		System.out.println("Requests: "+count+" in "+elapsed+"ms = "+(count * 1000.0 / elapsed)+" per second");
+		System.out.println("Connections opened: "+test.connections.get()+" errors: "+test.errors.get());
+		if(count > 0)
+			System.out.println("Latency: average "+(test.totalLatency.get() / count)+"ms max "+test.maxLatency.get()+"ms");
+	}
+
+	private void runClient() {
+		int next = 0;
+		while(!stop) {
+			Socket sock = null;
+			try {
+				sock = new Socket(host, port);
+				connections.incrementAndGet();
+				InputStream is = new BufferedInputStream(sock.getInputStream(), 4096);
+				LineReadingInputStream lis = new LineReadingInputStream(is);
+				OutputStream os = sock.getOutputStream();
+				boolean open = true;
+				while(open && !stop) {
+					long sent = System.currentTimeMillis();
+					StringBuilder sb = new StringBuilder();
+					for(int i=0;i<pipeline;i++) {
+						sb.append("GET ").append(PATHS[next++ % PATHS.length]).append(" HTTP/1.1\r\n");
+						sb.append("Host: ").append(host).append(':').append(port).append("\r\n\r\n");
+					}
+					os.write(sb.toString().getBytes("ISO-8859-1"));
+					os.flush();
+					for(int i=0;i<pipeline && open;i++) {
+						open = readResponse(lis, is);
+						long latency = System.currentTimeMillis() - sent;
+						requests.incrementAndGet();
+						totalLatency.addAndGet(latency);
+						long max;
+						while(latency > (max = maxLatency.get()) && !maxLatency.compareAndSet(max, latency));
+					}
+				}
+			} catch (IOException e) {
+				if(!stop) errors.incrementAndGet();
+			} finally {
+				if(sock != null) {
+					try {
+						sock.close();
+					} catch (IOException e) {
+						// Ignore
+					}
+				}
+			}
+		}
+	}
+
+	/** Read a response.
+	 * @return True if the connection can be reused. */
+	private boolean readResponse(LineReadingInputStream lis, InputStream is) throws IOException {
+		String status = lis.readLine(32768, 128, false);
+		if(status == null) throw new IOException("Connection closed");
+		if(!status.startsWith("HTTP/1.") || !status.contains(" 200 ")) {
+			// Redirects etc are fine, but count anything else.
+			if(!status.contains(" 30")) errors.incrementAndGet();
+		}
+		long length = -1;
+		boolean keepAlive = status.startsWith("HTTP/1.1");
+		while(true) {
+			String line = lis.readLine(32768, 128, false);
+			if(line == null) throw new IOException("Connection closed");
+			if(line.length() == 0) break;
+			int colon = line.indexOf(':');
+			if(colon < 0) continue;
+			String name = line.substring(0, colon).trim().toLowerCase();
+			String value = line.substring(colon+1).trim();
+			if(name.equals("content-length"))
+				length = Long.parseLong(value);
+			else if(name.equals("connection"))
+				keepAlive = !value.equalsIgnoreCase("close");
+		}
+		if(length < 0) {
+			// Read until closed.
+			byte[] buf = new byte[4096];
+			while(is.read(buf) > 0);
+			return false;
+		}
+		byte[] buf = new byte[4096];
+		while(length > 0) {
+			int read = is.read(buf, 0, (int) Math.min(buf.length, length));
+			if(read < 0) throw new IOException("Connection closed");
+			length -= read;
+		}
+		return keepAlive;
+	}
+
+}
@@ -0,0 +1,178 @@
+package freenet.clients.http;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+import freenet.client.FetchResult;
+import freenet.client.filter.ContentFilter;
+import freenet.client.filter.LinkFilterExceptionProvider;
+import freenet.keys.FreenetURI;
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+
+public class FilteredContentCacheTest extends TestCase {
+
+	private static final LinkFilterExceptionProvider noExceptions = new LinkFilterExceptionProvider() {
+		@Override
+		public boolean isLinkExcepted(URI link) {
+			return false;
+		}
+	};
+
+	/** Remembers whether it has been freed. */
+	private static class TestBucket extends ArrayBucket {
+
+		private static final long serialVersionUID = 1L;
+		boolean freed;
+
+		TestBucket(int size) {
+			super(new byte[size]);
+		}
+
+		@Override
+		public void free() {
+			assertFalse(freed);
+			freed = true;
+			super.free();
+		}
+
+	}
+
+	private static FilteredContentCache.Key key(String uri) throws MalformedURLException {
+		return new FilteredContentCache.Key(new FreenetURI(uri), null, null, noExceptions);
+	}
+
+	public void testGetPut() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(8000, 10);
+		assertNull(cache.get(key("KSK@a"), 1000));
+		Bucket used = cache.put(key("KSK@a"), "text/html; charset=UTF-8", new TestBucket(100));
+		assertEquals(100, used.size());
+		FetchResult result = cache.get(key("KSK@a"), 1000);
+		assertEquals("text/html; charset=UTF-8", result.getMimeType());
+		assertEquals(100, result.size());
+		assertNull(cache.get(key("KSK@a"), 99));
+		// Anything which changes the filter's output is part of the key.
+		assertNull(cache.get(new FilteredContentCache.Key(new FreenetURI("KSK@a"), "text/plain", null, noExceptions), 1000));
+		assertNull(cache.get(new FilteredContentCache.Key(new FreenetURI("KSK@a"), null, "ISO-8859-1", noExceptions), 1000));
+		assertNull(cache.get(new FilteredContentCache.Key(new FreenetURI("KSK@a"), null, null, null), 1000));
+		assertEquals(1, cache.hits());
+		assertEquals(5, cache.misses());
+		assertEquals(1, cache.entries());
+		assertEquals(100, cache.size());
+		// Too big.
+		TestBucket big = new TestBucket(1001);
+		assertSame(big, cache.put(key("KSK@b"), "text/html", big));
+		assertNull(cache.get(key("KSK@b"), 10000));
+		used.free();
+		result.asBucket().free();
+	}
+
+	public void testEviction() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(8000, 10);
+		TestBucket[] data = new TestBucket[20];
+		for(int i=0;i<10;i++) {
+			data[i] = new TestBucket(100);
+			cache.put(key("KSK@"+i), "text/html", data[i]).free();
+		}
+		assertEquals(10, cache.entries());
+		// Use the oldest, so the second oldest goes first.
+		FetchResult inUse = cache.get(key("KSK@0"), 1000);
+		cache.put(key("KSK@10"), "text/html", new TestBucket(100)).free();
+		cache.get(key("KSK@0"), 1000).asBucket().free();
+		assertNull(cache.get(key("KSK@1"), 1000));
+		assertTrue(data[1].freed);
+		assertFalse(data[2].freed);
+		// Evict by size. An entry which is in use is freed when it has been sent.
+		for(int i=11;i<20;i++) {
+			data[i] = new TestBucket(900);
+			cache.put(key("KSK@"+i), "text/html", data[i]).free();
+		}
+		assertTrue(cache.size() <= 8000);
+		assertNull(cache.get(key("KSK@0"), 1000));
+		assertFalse(data[0].freed);
+		assertTrue(Arrays.equals(new byte[100], BucketTools.toByteArray(inUse.asBucket())));
+		inUse.asBucket().free();
+		assertTrue(data[0].freed);
+	}
+
+	/** Replacing an entry frees the old data once it is not being used. */
+	public void testReplace() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(8000, 10);
+		TestBucket first = new TestBucket(100);
+		Bucket used = cache.put(key("KSK@a"), "text/html", first);
+		TestBucket second = new TestBucket(200);
+		cache.put(key("KSK@a"), "text/html", second).free();
+		assertEquals(200, cache.size());
+		assertEquals(200, cache.get(key("KSK@a"), 1000).size());
+		assertFalse(first.freed);
+		used.free();
+		assertTrue(first.freed);
+		// Freeing twice doesn't count twice.
+		used.free();
+		assertFalse(second.freed);
+	}
+
+	/** Clearing drops every entry, and frees data which is still being sent once it has been. */
+	public void testClear() throws IOException {
+		FilteredContentCache cache = new FilteredContentCache(8000, 10);
+		TestBucket a = new TestBucket(100);
+		TestBucket b = new TestBucket(100);
+		cache.put(key("KSK@a"), "text/html", a).free();
+		Bucket inUse = cache.put(key("KSK@b"), "text/html", b);
+		cache.clear();
+		assertEquals(0, cache.entries());
+		assertEquals(0, cache.size());
+		assertNull(cache.get(key("KSK@a"), 1000));
+		assertTrue(a.freed);
+		assertFalse(b.freed);
+		inUse.free();
+		assertTrue(b.freed);
+	}
+
+	/** Filter a typical HTML page, and compare that with reading it from the cache. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		StringBuilder sb = new StringBuilder("<!DOCTYPE html>\n<html><head><title>Test</title>" +
+				"<link rel=\"stylesheet\" type=\"text/css\" href=\"style.css\"></head><body>\n");
+		for(int i=0;i<500;i++)
+			sb.append("<p class=\"para\">Paragraph ").append(i).append(" with <a href=\"page").append(i).
+				append(".html\">a link</a> and <img src=\"image").append(i).append(".png\" alt=\"image\"></p>\n");
+		sb.append("</body></html>\n");
+		byte[] page = sb.toString().getBytes("UTF-8");
+		FreenetURI uri = new FreenetURI("KSK@benchmark");
+		URI baseURI = uri.toURI("/");
+		FilteredContentCache cache = new FilteredContentCache();
+		ByteArrayOutputStream filtered = new ByteArrayOutputStream();
+		ContentFilter.filter(new ArrayBucket(page).getInputStream(), filtered, "text/html", baseURI, null, null, null, noExceptions);
+		cache.put(key("KSK@benchmark"), "text/html; charset=UTF-8", new ArrayBucket(filtered.toByteArray())).free();
+		final int views = 200;
+		byte[] buf = new byte[4096];
+		for(int run=0;run<3;run++) {
+			long start = System.nanoTime();
+			for(int i=0;i<views;i++) {
+				ByteArrayOutputStream os = new ByteArrayOutputStream();
+				ContentFilter.filter(new ArrayBucket(page).getInputStream(), os, "text/html", baseURI, null, null, null, noExceptions);
+			}
+			long filterTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			for(int i=0;i<views;i++) {
+				FetchResult result = cache.get(key("KSK@benchmark"), Long.MAX_VALUE);
+				InputStream is = result.asBucket().getInputStream();
+				while(is.read(buf) > 0);
+				is.close();
+				result.asBucket().free();
+			}
+			long cacheTime = System.nanoTime() - start;
+			System.out.println(page.length+" byte page: filter "+(filterTime / views / 1000)+"us per view, cache "+
+					(cacheTime / views / 1000)+"us per view");
+		}
+	}
+
+}
@@ -0,0 +1,132 @@
+package freenet.clients.http;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.support.Executor;
+import freenet.support.PooledExecutor;
+import freenet.support.io.LineReadingInputStream;
+
+public class ToadletConnectionSelectorTest extends TestCase {
+
+	private static boolean ready(String s) {
+		byte[] buf = s.getBytes();
+		return ToadletConnectionSelector.requestReady(buf, buf.length);
+	}
+
+	public void testRequestReady() {
+		assertFalse(ready(""));
+		assertFalse(ready("\r\n"));
+		assertFalse(ready("GET / HTTP/1.1\r\n"));
+		assertFalse(ready("GET / HTTP/1.1\r\nHost: a\r\n"));
+		assertTrue(ready("GET / HTTP/1.1\r\nHost: a\r\n\r\n"));
+		assertTrue(ready("GET / HTTP/1.1\n\n"));
+		assertTrue(ready("\r\nGET / HTTP/1.1\r\n\r\n"));
+		assertFalse(ready("POST / HTTP/1.1\r\nContent-Length: 4\r\n\r\nabc"));
+		assertTrue(ready("POST / HTTP/1.1\r\ncontent-length: 4\r\n\r\nabcd"));
+		// Invalid length is left to ToadletContextImpl.
+		assertTrue(ready("POST / HTTP/1.1\r\nContent-Length: x\r\n\r\n"));
+	}
+
+	public void testLongRequests() {
+		byte[] buf = new byte[ToadletConnectionSelector.MAX_HEADERS_LENGTH];
+		for(int i=0;i<buf.length;i++) buf[i] = 'a';
+		assertFalse(ToadletConnectionSelector.requestReady(buf, buf.length-1));
+		assertTrue(ToadletConnectionSelector.requestReady(buf, buf.length));
+		// Only buffer the start of a big body.
+		String head = "POST / HTTP/1.1\r\nContent-Length: 1000000\r\n\r\n";
+		buf = new byte[head.length() + ToadletConnectionSelector.MAX_BUFFERED_BODY];
+		System.arraycopy(head.getBytes(), 0, buf, 0, head.length());
+		assertFalse(ToadletConnectionSelector.requestReady(buf, buf.length-1));
+		assertTrue(ToadletConnectionSelector.requestReady(buf, buf.length));
+	}
+
+	/** Answers each request line with "OK <line>" and keeps the connection open. */
+	private static class EchoHandler implements ToadletConnectionSelector.Handler {
+
+		final AtomicInteger closed = new AtomicInteger();
+
+		@Override
+		public boolean handle(Socket sock, InputStream is) {
+			try {
+				LineReadingInputStream lis = new LineReadingInputStream(is);
+				OutputStream os = sock.getOutputStream();
+				do {
+					String line = lis.readLine(1024, 128, false);
+					if(line == null) return false;
+					if(lis.readLine(1024, 128, false).length() != 0) return false;
+					if(line.equals("CLOSE")) return false;
+					os.write(("OK "+line+"\n").getBytes());
+				} while(is.available() > 0);
+				return true;
+			} catch (IOException e) {
+				return false;
+			}
+		}
+
+		@Override
+		public void closed(Socket sock) {
+			closed.incrementAndGet();
+		}
+
+	}
+
+	public void testKeepAliveAndPipelining() throws Exception {
+		EchoHandler handler = new EchoHandler();
+		Executor executor = new PooledExecutor();
+		ToadletConnectionSelector selector = new ToadletConnectionSelector(handler, executor, 1);
+		selector.start();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		try {
+			Socket client = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+			selector.add(server.accept().socket());
+			client.setSoTimeout(10000);
+			LineReadingInputStream lis = new LineReadingInputStream(client.getInputStream());
+			OutputStream os = client.getOutputStream();
+			// Two requests one after the other on the same connection.
+			os.write("a\n\n".getBytes());
+			assertEquals("OK a", lis.readLine(1024, 128, false));
+			os.write("b\r\n\r\n".getBytes());
+			assertEquals("OK b", lis.readLine(1024, 128, false));
+			// Pipelined, sent in pieces.
+			os.write("c\n\nd\n".getBytes());
+			os.flush();
+			Thread.sleep(100);
+			os.write("\ne\n\n".getBytes());
+			assertEquals("OK c", lis.readLine(1024, 128, false));
+			assertEquals("OK d", lis.readLine(1024, 128, false));
+			assertEquals("OK e", lis.readLine(1024, 128, false));
+			// Several connections with only one worker.
+			Socket[] clients = new Socket[5];
+			for(int i=0;i<clients.length;i++) {
+				clients[i] = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+				clients[i].setSoTimeout(10000);
+				selector.add(server.accept().socket());
+				clients[i].getOutputStream().write(("x"+i+"\n\n").getBytes());
+			}
+			for(int i=0;i<clients.length;i++)
+				assertEquals("OK x"+i, new LineReadingInputStream(clients[i].getInputStream()).readLine(1024, 128, false));
+			// Handler closes the connection.
+			os.write("CLOSE\n\n".getBytes());
+			assertEquals(-1, client.getInputStream().read());
+			// Client closes the connection.
+			for(Socket s : clients) s.close();
+			long deadline = System.currentTimeMillis() + 10000;
+			while(handler.closed.get() < 6 && System.currentTimeMillis() < deadline)
+				Thread.sleep(10);
+			assertEquals(6, handler.closed.get());
+		} finally {
+			selector.close();
+			server.close();
+		}
+	}
+
+}
@@ -11,6 +11,7 @@ import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
@@ -20,8 +21,10 @@ import javax.crypto.spec.SecretKeySpec;
 
 import junit.framework.TestCase;
 import freenet.crypt.CTRBlockCipherTest;
+import freenet.crypt.PCFBMode;
 import freenet.crypt.UnsupportedCipherException;
 import freenet.support.HexUtil;
+import freenet.support.TestProperty;
 import freenet.support.io.Closer;
 
 /**
@@ -1124,6 +1127,107 @@ public class RijndaelTest extends TestCase {
 		}
 	}
 
+	public void testInitializeCached() throws UnsupportedCipherException {
+		for (int i = 0; i < Rijndael.MAX_CACHED_SESSION_KEYS * 2; i++) {
+			byte[] key = new byte[32];
+			rand.nextBytes(key);
+			// Same key bytes, different block sizes, must not share a session key.
+			for (int blockSize : new int[] { 128, 256 }) {
+				Rijndael plain = new Rijndael(256, blockSize);
+				plain.initialize(key);
+				for (int j = 0; j < 2; j++) {
+					Rijndael cached = new Rijndael(256, blockSize);
+					cached.initializeCached(key);
+					byte[] block = new byte[blockSize / 8];
+					rand.nextBytes(block);
+					byte[] expected = new byte[block.length];
+					byte[] output = new byte[block.length];
+					plain.encipher(block, expected);
+					cached.encipher(block, output);
+					assertTrue(Arrays.equals(expected, output));
+					cached.decipher(output, output);
+					assertTrue(Arrays.equals(block, output));
+				}
+			}
+		}
+	}
+
+	/** Many threads can use the same instance at once. */
+	public void testConcurrent() throws UnsupportedCipherException, InterruptedException {
+		final Rijndael aes = new Rijndael(256, 256);
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		aes.initialize(key);
+		final byte[][] plain = new byte[1024][32];
+		final byte[][] expected = new byte[plain.length][32];
+		for (int i = 0; i < plain.length; i++) {
+			rand.nextBytes(plain[i]);
+			aes.encipher(plain[i], expected[i]);
+		}
+		final AtomicInteger failures = new AtomicInteger();
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					byte[] output = new byte[32];
+					for (int j = 0; j < 20; j++) {
+						for (int i = 0; i < plain.length; i++) {
+							aes.encipher(plain[i], output);
+							if (!Arrays.equals(output, expected[i])) failures.incrementAndGet();
+							aes.decipher(output, output);
+							if (!Arrays.equals(output, plain[i])) failures.incrementAndGet();
+						}
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread t : threads)
+			t.join();
+		assertEquals(0, failures.get());
+	}
+
+	/** Decrypting 32KB blocks with PCFBMode, as for old-style CHKs and the datastore, with a new
+	 * cipher for each block. */
+	public void testBenchmark() throws UnsupportedCipherException {
+		if (!TestProperty.BENCHMARK) return;
+		byte[] key = new byte[32];
+		rand.nextBytes(key);
+		byte[] iv = new byte[32];
+		byte[] buf = new byte[32768];
+		int blocks = 1000;
+		for (int round = 0; round < 3; round++) {
+			for (boolean cached : new boolean[] { false, true }) {
+				long start = System.nanoTime();
+				for (int i = 0; i < blocks; i++) {
+					Rijndael aes = new Rijndael(256, 256);
+					if (cached)
+						aes.initializeCached(key);
+					else
+						aes.initialize(key);
+					PCFBMode.create(aes, iv).blockDecipher(buf, 0, buf.length);
+				}
+				long time = System.nanoTime() - start;
+				System.out.println("PCFBMode " + (cached ? "cached key" : "new key") + ": " + (time / blocks / 1000) + "us per 32KB block, " + 
+						((long) blocks * buf.length * 1000 / time) + "MB/s");
+			}
+			// Key expansion alone.
+			for (boolean cached : new boolean[] { false, true }) {
+				long start = System.nanoTime();
+				for (int i = 0; i < blocks * 10; i++) {
+					Rijndael aes = new Rijndael(256, 256);
+					if (cached)
+						aes.initializeCached(key);
+					else
+						aes.initialize(key);
+				}
+				long time = System.nanoTime() - start;
+				System.out.println("Initialize " + (cached ? "cached key" : "new key") + ": " + (time / (blocks * 10)) + "ns");
+			}
+		}
+	}
+
 	private byte[] TEST_VK_PTx256 = HexUtil.hexToBytes("0000000000000000000000000000000000000000000000000000000000000000");
 	/* This test vector for Rijndael(256,256) was generated with generic implementation */
 	private final static byte[][][] TEST_VK256x256 = { //
@@ -1,8 +1,15 @@
 package freenet.io;
 
 import freenet.io.comm.DMT;
+import freenet.io.comm.IncorrectTypeException;
 import freenet.io.comm.Message;
 import freenet.io.comm.MessageType;
+import freenet.keys.Key;
+import freenet.keys.NodeCHK;
+import freenet.node.NullBasePeerNode;
+import freenet.support.BitArray;
+import freenet.support.Buffer;
+import freenet.support.TestProperty;
 import junit.framework.TestCase;
 
 import java.util.Arrays;
@@ -73,4 +80,87 @@ public class MessageTest extends TestCase {
 		assertTrue(Arrays.equals(doubleArrayVal, msg.getDoubleArray(DOUBLE_ARRAY)));
 		assertTrue(Arrays.equals(floatArrayVal, msg.getFloatArray(FLOAT_ARRAY)));
 	}
+
+	/** The most common messages on the wire. */
+	private static Message[] commonMessages() {
+		byte[] routingKey = new byte[32];
+		Arrays.fill(routingKey, (byte)7);
+		byte[] data = new byte[1024];
+		Arrays.fill(data, (byte)3);
+		return new Message[] {
+			DMT.createFNPCHKDataRequest(1234567890123L, (short)18, new NodeCHK(routingKey, Key.ALGO_AES_CTR_256_SHA256)),
+			DMT.createFNPAccepted(1234567890123L),
+			DMT.createPacketTransmit(1234567890123L, 5, new BitArray(32), new Buffer(data), false),
+			DMT.createFNPBulkPacketSend(1234567890123L, 5, data, false)
+		};
+	}
+
+	/**
+	 * Test that messages are the same after encoding and decoding.
+	 */
+	public void testEncodeDecode() {
+		NullBasePeerNode peer = new NullBasePeerNode();
+		for (Message msg : commonMessages()) {
+			byte[] buf = msg.encodeToPacket();
+			Message decoded = Message.decodeMessageFromPacket(buf, 0, buf.length, peer, 0);
+			assertNotNull(decoded);
+			assertEquals(msg.getSpec(), decoded.getSpec());
+			assertSame(peer, decoded.getSource());
+			assertEquals(msg.getLong(DMT.UID), decoded.getLong(DMT.UID));
+			assertTrue(Arrays.equals(buf, decoded.encodeToPacket()));
+			assertEquals(msg.toString(), decoded.toString());
+		}
+		Message decoded = commonMessages()[0];
+		assertEquals((short)18, decoded.getShort(DMT.HTL));
+		assertTrue(decoded.isSet(DMT.FREENET_ROUTING_KEY));
+		assertEquals(Long.valueOf(1234567890123L), decoded.getObject(DMT.UID));
+	}
+
+	/**
+	 * Test that the old behaviour for type mismatches is kept.
+	 */
+	public void testTypeChecks() {
+		Message msg = new Message(test);
+		try {
+			msg.set(LONG, 1); // int, not long
+			fail();
+		} catch (IncorrectTypeException e) {
+			// Expected.
+		}
+		try {
+			msg.set("nonexistent", 1L);
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		assertFalse(msg.isSet(LONG));
+		assertNull(msg.getObject(LONG));
+		msg.set(LONG, (Object) Long.valueOf(5));
+		assertTrue(msg.isSet(LONG));
+		assertEquals(5L, msg.getFromPayload(LONG));
+	}
+
+	// ant -Dtest.skip=false -Dtest.class=freenet.io.MessageTest -Dtest.benchmark=true unit
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+
+		NullBasePeerNode peer = new NullBasePeerNode();
+		Message[] messages = commonMessages();
+		final int iterations = 1000000;
+		for (int round = 0; round < 5; round++) {
+			for (Message msg : messages) {
+				byte[] buf = null;
+				long t1 = System.nanoTime();
+				for (int i = 0; i < iterations; i++)
+					buf = msg.encodeToPacket();
+				long t2 = System.nanoTime();
+				int total = 0;
+				for (int i = 0; i < iterations; i++)
+					total += Message.decodeMessageFromPacket(buf, 0, buf.length, peer, 0).getSpec().getName().length();
+				long t3 = System.nanoTime();
+				assertTrue(total > 0);
+				System.out.println(msg.getSpec().getName() + ": encode " + (t2 - t1) / iterations + "ns, decode " + (t3 - t2) / iterations + "ns");
+			}
+		}
+	}
 }
@@ -0,0 +1,125 @@
+package freenet.io.comm;
+
+import junit.framework.TestCase;
+
+import freenet.support.PooledExecutor;
+
+public class MessageCoreTest extends TestCase {
+
+	private MessageCore core;
+
+	@Override
+	protected void setUp() {
+		core = new MessageCore(new PooledExecutor());
+	}
+
+	private static class Callback implements AsyncMessageFilterCallback {
+		Message matched;
+		boolean timedOut;
+		boolean shouldTimeout;
+
+		@Override
+		public void onMatched(Message m) {
+			matched = m;
+		}
+
+		@Override
+		public boolean shouldTimeout() {
+			return shouldTimeout;
+		}
+
+		@Override
+		public void onTimeout() {
+			timedOut = true;
+		}
+
+		@Override
+		public void onDisconnect(PeerContext ctx) {
+		}
+
+		@Override
+		public void onRestarted(PeerContext ctx) {
+		}
+	}
+
+	private Callback addFilter(MessageFilter filter) throws DisconnectedException {
+		Callback cb = new Callback();
+		core.addAsyncFilter(filter, cb, null);
+		return cb;
+	}
+
+	public void testMatchByUID() throws DisconnectedException {
+		Callback cb1 = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(60000));
+		Callback cb2 = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 2L).setTimeout(60000));
+		Message m = DMT.createFNPAccepted(2);
+		core.checkFilters(m, null);
+		assertNull(cb1.matched);
+		assertSame(m, cb2.matched);
+		// Only one match per filter.
+		core.checkFilters(DMT.createFNPAccepted(2), null);
+		assertSame(m, cb2.matched);
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+	public void testEarliestTimeoutWins() throws DisconnectedException {
+		// A filter without a UID is in a different bucket, but must still win if it times out first.
+		Callback late = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(60000));
+		Callback early = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(30000));
+		Message m = DMT.createFNPAccepted(1);
+		core.checkFilters(m, null);
+		assertSame(m, early.matched);
+		assertNull(late.matched);
+		Message m2 = DMT.createFNPAccepted(1);
+		core.checkFilters(m2, null);
+		assertSame(m2, late.matched);
+	}
+
+	public void testOr() throws DisconnectedException {
+		MessageFilter accepted = MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(60000);
+		MessageFilter rejected = MessageFilter.create().setType(DMT.FNPRejectedLoop).setField(DMT.UID, 1L).setTimeout(60000);
+		Callback cb = addFilter(accepted.or(rejected));
+		core.checkFilters(DMT.createFNPRejectedLoop(2), null);
+		assertNull(cb.matched);
+		Message m = DMT.createFNPRejectedLoop(1);
+		core.checkFilters(m, null);
+		assertSame(m, cb.matched);
+	}
+
+	public void testUnclaimed() throws DisconnectedException {
+		Message other = DMT.createFNPAccepted(1);
+		Message first = DMT.createFNPAccepted(2);
+		Message second = DMT.createFNPAccepted(2);
+		core.checkFilters(other, null);
+		core.checkFilters(first, null);
+		core.checkFilters(second, null);
+		assertEquals(3, core.getUnclaimedFIFOSize());
+		// Oldest matching message first.
+		Callback cb = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 2L).setTimeout(60000));
+		assertSame(first, cb.matched);
+		assertEquals(2, core.getUnclaimedFIFOSize());
+		Message m = core.waitFor(MessageFilter.create().setType(DMT.FNPAccepted).setTimeout(60000), null);
+		assertSame(other, m);
+		m = core.waitFor(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 2L).setTimeout(60000), null);
+		assertSame(second, m);
+		assertEquals(0, core.getUnclaimedFIFOSize());
+	}
+
+	public void testRemoveTimedOutFilters() throws DisconnectedException {
+		Callback cb1 = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 1L).setTimeout(60000));
+		Callback cb2 = addFilter(MessageFilter.create().setType(DMT.FNPAccepted).setField(DMT.UID, 2L).setTimeout(120000));
+		long now = System.currentTimeMillis();
+		long next = core.removeTimedOutFilters(now + 1000000);
+		assertTrue(next <= now + 60000);
+		assertFalse(cb1.timedOut);
+		// The callback can time the filter out early.
+		cb2.shouldTimeout = true;
+		core.removeTimedOutFilters(now + 1000000);
+		assertFalse(cb1.timedOut);
+		assertTrue(cb2.timedOut);
+		core.checkFilters(DMT.createFNPAccepted(2), null);
+		assertNull(cb2.matched);
+		// Nobody wanted it.
+		assertEquals(1, core.getUnclaimedFIFOSize());
+	}
+
+}
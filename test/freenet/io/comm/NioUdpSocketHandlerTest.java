@@ -0,0 +1,144 @@
+package freenet.io.comm;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+import freenet.node.Node;
+import freenet.node.ProgramDirectory;
+import freenet.support.io.FileUtil;
+
+public class NioUdpSocketHandlerTest extends TestCase {
+
+	private static final int PACKETS = NioUdpSocketHandler.MAX_RECEIVE_BATCH * 3 / 2;
+
+	private File dir;
+	private Node node;
+	private InetAddress loopback;
+	private TestHandler sender;
+	private TestHandler receiver;
+	private final LinkedBlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+
+	/** Pretends the socket buffer is full for the next few sends. */
+	private static class TestHandler extends NioUdpSocketHandler {
+
+		final AtomicInteger blockSends = new AtomicInteger();
+		final AtomicInteger blockedSends = new AtomicInteger();
+
+		TestHandler(InetAddress bindto, Node node) throws IOException {
+			super(0, bindto, node, System.currentTimeMillis(), "test", new IOStatisticCollector());
+		}
+
+		@Override
+		int send(ByteBuffer buffer, InetSocketAddress target) throws IOException {
+			if(blockSends.getAndDecrement() > 0) {
+				blockedSends.incrementAndGet();
+				return 0;
+			}
+			blockSends.set(0);
+			return super.send(buffer, target);
+		}
+
+	}
+
+	@Override
+	protected void setUp() throws IOException {
+		dir = new File("tmp.niousockethandler-test");
+		dir.mkdir();
+		ProgramDirectory runDir = new ProgramDirectory();
+		runDir.move(dir.getPath());
+		node = mock(Node.class);
+		when(node.getTrafficClass()).thenReturn(TrafficClass.BEST_EFFORT);
+		when(node.runDir()).thenReturn(runDir);
+		loopback = InetAddress.getByName("127.0.0.1");
+		sender = new TestHandler(loopback, node);
+		receiver = new TestHandler(loopback, node);
+		receiver.setLowLevelFilter(new IncomingPacketFilter() {
+
+			@Override
+			public DECODED process(byte[] buf, int offset, int length, Peer peer, long now) {
+				received.add(Arrays.copyOfRange(buf, offset, offset + length));
+				return DECODED.DECODED;
+			}
+
+			@Override
+			public boolean isDisconnected(PeerContext context) {
+				return false;
+			}
+
+		});
+	}
+
+	@Override
+	protected void tearDown() {
+		sender.close();
+		receiver.close();
+		FileUtil.removeAll(dir);
+	}
+
+	private void start(NioUdpSocketHandler handler) {
+		// The mock node has no executor.
+		Thread t = new Thread(handler, "test receiver");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	private void send(int i) throws Exception {
+		byte[] data = new byte[100];
+		Arrays.fill(data, (byte) i);
+		sender.sendPacket(data, new Peer(loopback, receiver.getPortNumber()), true);
+	}
+
+	private void checkReceived(int from, int to) throws InterruptedException {
+		for(int i=from;i<to;i++) {
+			byte[] data = received.poll(10, TimeUnit.SECONDS);
+			assertNotNull("Packet "+i+" not received", data);
+			assertEquals(100, data.length);
+			assertEquals((byte) i, data[0]);
+			assertEquals((byte) i, data[99]);
+		}
+	}
+
+	/** More packets than are read in one batch, all queued before the receiver starts. */
+	public void testBatch() throws Exception {
+		for(int i=0;i<PACKETS;i++)
+			send(i);
+		start(receiver);
+		checkReceived(0, PACKETS);
+		// And some more, now that it is running.
+		for(int i=0;i<10;i++)
+			send(i);
+		checkReceived(0, 10);
+		assertTrue(received.isEmpty());
+	}
+
+	/** If the socket buffer is full, packets are queued, and sent in order when it becomes
+	 * writable. */
+	public void testBlockedWrite() throws Exception {
+		start(receiver);
+		sender.blockSends.set(2);
+		for(int i=0;i<10;i++)
+			send(i);
+		// Nothing gets through until the sender's thread notices it is writable.
+		assertNull(received.poll(200, TimeUnit.MILLISECONDS));
+		assertEquals(1, sender.blockedSends.get());
+		start(sender);
+		checkReceived(0, 10);
+		// The first attempt after becoming writable was blocked too, and retried.
+		assertEquals(2, sender.blockedSends.get());
+		send(10);
+		checkReceived(10, 11);
+		assertTrue(received.isEmpty());
+	}
+
+}
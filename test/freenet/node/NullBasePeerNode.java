@@ -164,6 +164,11 @@ public class NullBasePeerNode implements BasePeerNode {
 		// Do nothing
 	}
 
+	@Override
+	public void rescheduleSender() {
+		// Do nothing
+	}
+
 	@Override
 	public int getMaxPacketSize() {
 		return 1280;
@@ -0,0 +1,66 @@
+package freenet.node;
+
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class PeerScheduleTest extends TestCase {
+
+	public void testNewPeersDueImmediately() {
+		PeerSchedule<String> schedule = new PeerSchedule<String>();
+		String[] peers = new String[] { "a", "b" };
+		schedule.setPeers(peers, 100);
+		assertEquals(100, schedule.nextTime());
+		assertEquals(Arrays.asList("a", "b"), schedule.removeDue(100));
+		assertEquals(Long.MAX_VALUE, schedule.nextTime());
+		// Same array, nothing changes.
+		schedule.setPeers(peers, 200);
+		assertEquals(0, schedule.size());
+	}
+
+	public void testEarliestTimeWins() {
+		PeerSchedule<String> schedule = new PeerSchedule<String>();
+		schedule.setPeers(new String[] { "a", "b" }, 0);
+		schedule.removeDue(0);
+		assertTrue(schedule.schedule("a", 1000));
+		assertTrue(schedule.schedule("a", 500));
+		assertFalse(schedule.schedule("a", 700));
+		assertFalse(schedule.schedule("a", Long.MAX_VALUE));
+		assertTrue(schedule.schedule("b", 600));
+		assertEquals(500, schedule.nextTime());
+		assertTrue(schedule.removeDue(499).isEmpty());
+		assertEquals(Arrays.asList("a"), schedule.removeDue(500));
+		assertEquals(Arrays.asList("b"), schedule.removeDue(1000));
+	}
+
+	public void testOrderAndTies() {
+		PeerSchedule<String> schedule = new PeerSchedule<String>();
+		schedule.setPeers(new String[] { "a", "b", "c" }, 0);
+		schedule.removeDue(0);
+		schedule.schedule("c", 10);
+		schedule.schedule("b", 5);
+		schedule.schedule("a", 10);
+		List<String> due = schedule.removeDue(10);
+		assertEquals(Arrays.asList("b", "c", "a"), due);
+	}
+
+	public void testRemovedPeers() {
+		PeerSchedule<String> schedule = new PeerSchedule<String>();
+		String a = "a";
+		String b = "b";
+		schedule.setPeers(new String[] { a, b }, 0);
+		schedule.removeDue(0);
+		schedule.schedule(a, 10);
+		schedule.schedule(b, 10);
+		schedule.setPeers(new String[] { a }, 20);
+		assertEquals(1, schedule.size());
+		// A removed peer can't be scheduled.
+		assertFalse(schedule.schedule(b, 5));
+		assertEquals(Arrays.asList(a), schedule.removeDue(100));
+		// A peer which isn't new isn't rescheduled just because the array changed.
+		schedule.setPeers(new String[] { a, b }, 200);
+		assertEquals(Arrays.asList(b), schedule.removeDue(200));
+	}
+
+}
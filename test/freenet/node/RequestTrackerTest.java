@@ -0,0 +1,146 @@
+package freenet.node;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.ref.WeakReference;
+import java.lang.reflect.Field;
+
+import junit.framework.TestCase;
+import freenet.node.RequestTracker.CountedRequests;
+
+/** The running totals kept by RequestTracker must always agree with scanning the tags. */
+public class RequestTrackerTest extends TestCase {
+
+	private RequestTracker tracker;
+	private Node node;
+	private PeerNode a;
+	private PeerNode b;
+	private long uid;
+
+	@Override
+	protected void setUp() throws Exception {
+		PeerManager peers = mock(PeerManager.class);
+		when(peers.myPeers()).thenReturn(new PeerNode[0]);
+		tracker = new RequestTracker(peers, null);
+		node = mock(Node.class);
+		setField(Node.class, node, "tracker", tracker);
+		a = makePeer();
+		b = makePeer();
+	}
+
+	private PeerNode makePeer() throws Exception {
+		PeerNode pn = mock(PeerNode.class);
+		setField(PeerNode.class, pn, "myRef", new WeakReference<PeerNode>(pn));
+		return pn;
+	}
+
+	private static void setField(Class<?> clazz, Object o, String name, Object value) throws Exception {
+		Field f = clazz.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(o, value);
+	}
+
+	public void testCountersMatchScan() {
+		RequestTag fromA = new RequestTag(false, RequestTag.START.REMOTE, a, false, uid++, node);
+		RequestTag sskFromA = new RequestTag(true, RequestTag.START.REMOTE, a, true, uid++, node);
+		RequestTag local = new RequestTag(false, RequestTag.START.LOCAL, null, false, uid++, node);
+		InsertTag insertFromB = new InsertTag(false, InsertTag.START.REMOTE, b, false, uid++, node);
+		InsertTag localInsert = new InsertTag(true, InsertTag.START.LOCAL, null, true, uid++, node);
+		OfferReplyTag offerFromB = new OfferReplyTag(false, b, false, uid++, node);
+		UIDTag[] tags = new UIDTag[] { fromA, sskFromA, local, insertFromB, localInsert, offerFromB };
+		checkCounters(true);
+		for(UIDTag tag : tags) {
+			assertTrue(tracker.lockUID(tag));
+			checkCounters(true);
+		}
+		assertCount(null, false, false, 1);
+		assertCount(a, false, false, 1);
+		assertCount(b, false, false, 2);
+		for(UIDTag tag : tags) {
+			tag.setAccepted();
+			checkCounters(true);
+		}
+		fromA.addRoutedTo(b, false);
+		fromA.handlingTimeout(b);
+		fromA.reassignToSelf();
+		checkCounters(true);
+		assertCount(null, false, false, 2);
+		assertCount(a, false, false, 0);
+		sskFromA.onRestartOrDisconnectSource();
+		checkCounters(true);
+		insertFromB.timedOutToHandlerButContinued();
+		checkCounters(true);
+		insertFromB.setNotRoutedOnwards();
+		checkCounters(true);
+		local.completedDownstreamTransfers();
+		checkCounters(true);
+		sskFromA.unlockHandler();
+		checkCounters(true);
+		assertCount(a, true, true, 0);
+		fromA.unlockHandler();
+		checkCounters(true);
+		fromA.removeRoutingTo(b);
+		checkCounters(true);
+		assertCount(null, false, false, 1);
+		// The source is garbage collected: its requests are counted under null, as in the scan.
+		b.myRef.clear();
+		checkCounters(false);
+		assertCount(null, false, false, 3);
+		for(UIDTag tag : tags) {
+			tag.unlockHandler();
+			checkCounters(false);
+		}
+		for(boolean ssk : new boolean[] { false, true })
+			for(boolean realTime : new boolean[] { false, true }) {
+				assertCount(null, ssk, realTime, 0);
+				CountedRequests counter = new CountedRequests();
+				tracker.countAllRequests(ssk, realTime, 3, true, counter, null);
+				assertEquals(0, counter.total());
+			}
+	}
+
+	private void assertCount(PeerNode source, boolean ssk, boolean realTime, int total) {
+		CountedRequests counter = new CountedRequests();
+		tracker.countRequestsFrom(source, ssk, realTime, 0, false, counter, null);
+		assertEquals(total, counter.total());
+	}
+
+	/** Compare every total with a scan.
+	 * @param bySource If false, b's PeerNode has been "garbage collected", so only count
+	 * requests from a and from null. */
+	private void checkCounters(boolean bySource) {
+		for(boolean ssk : new boolean[] { false, true })
+			for(boolean realTime : new boolean[] { false, true })
+				for(int transfersPerInsert : new int[] { 0, 3 })
+					for(boolean ignoreLocalVsRemote : new boolean[] { false, true }) {
+						CountedRequests counted = new CountedRequests();
+						CountedRequests countedSR = new CountedRequests();
+						tracker.countAllRequests(ssk, realTime, transfersPerInsert, ignoreLocalVsRemote, counted, countedSR);
+						CountedRequests scanned = new CountedRequests();
+						CountedRequests scannedSR = new CountedRequests();
+						for(int i=0;i<5;i++)
+							tracker.countRequests(i < 2, ssk, i % 2 == 1, i == 4, realTime, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+						assertCounted(scanned, counted);
+						assertCounted(scannedSR, countedSR);
+						for(PeerNode source : bySource ? new PeerNode[] { null, a, b } : new PeerNode[] { null, a }) {
+							counted = new CountedRequests();
+							countedSR = new CountedRequests();
+							tracker.countRequestsFrom(source, ssk, realTime, transfersPerInsert, ignoreLocalVsRemote, counted, countedSR);
+							scanned = new CountedRequests();
+							scannedSR = new CountedRequests();
+							for(int i=0;i<5;i++)
+								tracker.countRequests(source, false, i < 2, ssk, i % 2 == 1, i == 4, realTime, transfersPerInsert, ignoreLocalVsRemote, scanned, scannedSR);
+							assertCounted(scanned, counted);
+							assertCounted(scannedSR, countedSR);
+						}
+					}
+	}
+
+	private static void assertCounted(CountedRequests expected, CountedRequests actual) {
+		assertEquals(expected.total(), actual.total());
+		assertEquals(expected.expectedTransfersIn(), actual.expectedTransfersIn());
+		assertEquals(expected.expectedTransfersOut(), actual.expectedTransfersOut());
+	}
+
+}
@@ -0,0 +1,264 @@
+package freenet.node;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyDouble;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anySetOf;
+import static org.mockito.Matchers.anyShort;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import junit.framework.TestCase;
+import freenet.keys.Key;
+import freenet.support.TestProperty;
+
+public class RoutingIndexTest extends TestCase {
+
+	private static final int PEERS = 100;
+	private static final int FOAF = 50;
+
+	private final Random random = new Random(1234);
+	private double[] locations;
+	private double[][] peersLocations;
+	private PeerLocation[] peerLocations;
+	private RoutingIndex.Snapshot index;
+
+	@Override
+	public void setUp() {
+		locations = new double[PEERS];
+		peersLocations = new double[PEERS][];
+		peerLocations = new PeerLocation[PEERS];
+		for(int i=0;i<PEERS;i++) {
+			locations[i] = random.nextDouble();
+			// Some peers don't send their peers' locations.
+			if(i % 10 == 0) continue;
+			peersLocations[i] = new double[FOAF];
+			for(int j=0;j<FOAF;j++)
+				peersLocations[i][j] = random.nextDouble();
+		}
+		// Duplicate locations are possible.
+		locations[1] = locations[2];
+		peersLocations[3][0] = locations[4];
+		for(int i=0;i<PEERS;i++) {
+			if(peersLocations[i] == null) continue;
+			peerLocations[i] = new PeerLocation(Double.toString(locations[i]));
+			peerLocations[i].updateLocation(locations[i], peersLocations[i]);
+		}
+		index = new RoutingIndex.Snapshot(new PeerNode[PEERS], locations, peersLocations);
+	}
+
+	/** Every location is visited once, in order of distance from the target. */
+	public void testWalk() {
+		assertEquals(PEERS + (PEERS - PEERS / 10) * FOAF, index.size());
+		double[] targets = new double[] { 0.0, 1.0 - 1e-12, locations[5], peersLocations[6][7], 0.5 };
+		for(double target : targets) {
+			RoutingIndex.Snapshot.Walk walk = index.walk(target);
+			int count = 0;
+			double last = 0.0;
+			int[] own = new int[PEERS];
+			while(walk.next()) {
+				count++;
+				assertTrue(walk.distance() >= last);
+				assertEquals(Location.distance(target, walk.location()), walk.distance());
+				last = walk.distance();
+				if(!walk.isFOAF()) {
+					assertEquals(locations[walk.peer()], walk.location());
+					own[walk.peer()]++;
+				}
+			}
+			assertEquals(index.size(), count);
+			for(int i=0;i<PEERS;i++)
+				assertEquals(1, own[i]);
+			assertFalse(walk.next());
+		}
+		RoutingIndex.Snapshot empty = new RoutingIndex.Snapshot(new PeerNode[0], new double[0], new double[0][]);
+		assertFalse(empty.walk(0.5).next());
+	}
+
+	/** The first time a peer is seen in the walk, at a location which isn't excluded, is at its
+	 * distance as computed by closerPeer()'s full scan. */
+	public void testClosestMatchesScan() {
+		for(int t=0;t<100;t++) {
+			double target = random.nextDouble();
+			Set<Double> exclude = new HashSet<Double>();
+			for(int i=0;i<3;i++)
+				exclude.add(peersLocations[11][random.nextInt(FOAF)]);
+			double[] walked = new double[PEERS];
+			boolean[] seen = new boolean[PEERS];
+			RoutingIndex.Snapshot.Walk walk = index.walk(target);
+			while(walk.next()) {
+				int i = walk.peer();
+				if(seen[i]) continue;
+				if(walk.isFOAF() && exclude.contains(walk.location())) continue;
+				seen[i] = true;
+				walked[i] = walk.distance();
+			}
+			for(int i=0;i<PEERS;i++)
+				assertEquals(scanDistance(i, target, exclude), walked[i]);
+		}
+	}
+
+	private double scanDistance(int i, double target, Set<Double> exclude) {
+		double diff = Location.distance(locations[i], target);
+		if(peerLocations[i] != null) {
+			double l = peerLocations[i].getClosestPeerLocation(target, exclude);
+			if(!Double.isNaN(l))
+				diff = Math.min(diff, Location.distance(l, target));
+		}
+		return diff;
+	}
+
+	/** closerPeerFromIndex() chooses the same peer as closerPeer()'s full scan, or returns null if
+	 * the scan would choose a peer which is backed off or timed out, or none at all. */
+	public void testCloserPeerFromIndexMatchesScan() throws Exception {
+		final int peers = 30;
+		final long now = System.currentTimeMillis();
+		Node node = mock(Node.class);
+		when(node.getLocation()).thenReturn(0.5);
+		setField(Node.class, node, "enablePerNodeFailureTables", true);
+		FailureTable failureTable = mock(FailureTable.class);
+		setField(Node.class, node, "failureTable", failureTable);
+		PeerManager pm = new PeerManager(node, mock(SemiOrderedShutdownHook.class));
+		Key key = mock(Key.class);
+		int chosen = 0;
+		for(int t=0;t<300;t++) {
+			double[] locs = new double[peers];
+			PeerLocation[] peerLocs = new PeerLocation[peers];
+			final boolean[] timedOut = new boolean[peers];
+			final PeerNode[] connected = new PeerNode[peers];
+			for(int i=0;i<peers;i++) {
+				locs[i] = random.nextDouble();
+				peerLocs[i] = new PeerLocation(Double.toString(locs[i]));
+			}
+			// Ties between two peers, and between a peer and another peer's peer.
+			locs[1] = locs[2];
+			double[][] foaf = new double[peers][FOAF];
+			for(int i=0;i<peers;i++)
+				for(int j=0;j<FOAF;j++)
+					foaf[i][j] = random.nextDouble();
+			foaf[3][0] = locs[4];
+			// A peer of peer 6 is at the location of peer 5, which we have routed to.
+			foaf[6][0] = locs[5];
+			for(int i=0;i<peers;i++) {
+				if(i % 7 != 0) peerLocs[i].updateLocation(locs[i], foaf[i]);
+				connected[i] = mockPeer(peerLocs[i], random.nextInt(4) != 0, random.nextInt(4) == 0);
+				timedOut[i] = random.nextInt(5) == 0;
+			}
+			setField(PeerManager.class, pm, "connectedPeers", connected);
+			TimedOutNodesList entry = mock(TimedOutNodesList.class);
+			when(entry.getTimeoutTime(any(PeerNode.class), anyShort(), anyLong(), anyBoolean())).thenAnswer(new Answer<Long>() {
+				@Override
+				public Long answer(InvocationOnMock invocation) {
+					PeerNode p = (PeerNode) invocation.getArguments()[0];
+					for(int i=0;i<peers;i++)
+						if(connected[i] == p) return timedOut[i] ? now + 1000 : -1L;
+					return -1L;
+				}
+			});
+			when(failureTable.getTimedOutNodesList(key)).thenReturn(t % 2 == 0 ? entry : null);
+			PeerNode source = connected[random.nextInt(peers)];
+			Set<PeerNode> routedTo = new HashSet<PeerNode>();
+			routedTo.add(connected[random.nextInt(peers)]);
+			routedTo.add(connected[5]);
+			double[] targets = new double[] { random.nextDouble(), locs[1], locs[4], locs[5], foaf[8][3] };
+			for(double target : targets) {
+				boolean ignoreSelf = random.nextBoolean();
+				double maxDistance = random.nextBoolean() ? 2.0 : 0.1;
+				Set<Double> exclude = new HashSet<Double>();
+				exclude.add(0.5);
+				exclude.add(source.getLocation());
+				for(PeerNode p : routedTo)
+					exclude.add(p.getLocation());
+				double maxDiff = ignoreSelf ? Double.MAX_VALUE : Location.distance(0.5, target);
+				RoutingIndex.Snapshot snapshot = new RoutingIndex().get(connected);
+				PeerNode fromIndex = pm.closerPeerFromIndex(snapshot, source, routedTo, target, ignoreSelf, maxDiff, 0, maxDistance, t % 2 == 0 ? entry : null, (short)10, 0, false, false, now, false, exclude, null, 0.0);
+				PeerNode scanned = pm.closerPeer(source, routedTo, target, ignoreSelf, false, 0, null, maxDistance, key, (short)10, 0, false, false, null, false, now, false, false);
+				if(fromIndex != null) {
+					assertSame(scanned, fromIndex);
+					chosen++;
+				} else if(scanned != null) {
+					int i = Arrays.asList(connected).indexOf(scanned);
+					assertTrue(scanned.isRoutingBackedOff(0, false) || (t % 2 == 0 && timedOut[i]));
+				}
+				assertSame(scanned, pm.closerPeer(source, routedTo, target, ignoreSelf, false, 0, null, maxDistance, key, (short)10, 0, false, false, null, false, now, false));
+			}
+		}
+		// Most of the time the index finds the peer.
+		assertTrue(chosen > 300);
+	}
+
+	private PeerNode mockPeer(final PeerLocation location, boolean useFOAF, boolean backedOff) {
+		PeerNode p = mock(PeerNode.class);
+		when(p.getLocation()).thenReturn(location.getLocation());
+		when(p.getPeersLocationArray()).thenReturn(location.getPeersLocationArray());
+		when(p.getClosestPeerLocation(anyDouble(), anySetOf(Double.class))).thenAnswer(new Answer<Double>() {
+			@Override
+			public Double answer(InvocationOnMock invocation) {
+				Object[] args = invocation.getArguments();
+				@SuppressWarnings("unchecked")
+				Set<Double> exclude = (Set<Double>) args[1];
+				return location.getClosestPeerLocation((Double) args[0], exclude);
+			}
+		});
+		when(p.shallWeRouteAccordingToOurPeersLocation(anyInt())).thenReturn(useFOAF);
+		when(p.isRoutable()).thenReturn(true);
+		when(p.isRoutingBackedOff(anyLong(), anyBoolean())).thenReturn(backedOff);
+		return p;
+	}
+
+	private static void setField(Class<?> clazz, Object o, String name, Object value) throws Exception {
+		Field f = clazz.getDeclaredField(name);
+		f.setAccessible(true);
+		f.set(o, value);
+	}
+
+	/** Find the closest peer to random targets, by scanning every peer as closerPeer() used to,
+	 * and by walking the index. */
+	public void testBenchmark() {
+		if(!TestProperty.BENCHMARK) return;
+		final int lookups = 200000;
+		double[] targets = new double[lookups];
+		for(int i=0;i<lookups;i++)
+			targets[i] = random.nextDouble();
+		Set<Double> exclude = new HashSet<Double>();
+		exclude.add(random.nextDouble());
+		for(int run=0;run<3;run++) {
+			long start = System.nanoTime();
+			double scanSum = 0.0;
+			for(double target : targets) {
+				double bestDistance = Double.MAX_VALUE;
+				for(int i=0;i<PEERS;i++)
+					bestDistance = Math.min(bestDistance, scanDistance(i, target, exclude));
+				scanSum += bestDistance;
+			}
+			long scanTime = System.nanoTime() - start;
+			start = System.nanoTime();
+			double indexSum = 0.0;
+			for(double target : targets) {
+				RoutingIndex.Snapshot.Walk walk = index.walk(target);
+				while(walk.next()) {
+					if(walk.isFOAF() && exclude.contains(walk.location())) continue;
+					indexSum += walk.distance();
+					break;
+				}
+			}
+			long indexTime = System.nanoTime() - start;
+			// Both add up the distance to the closest peer for each target.
+			assertEquals(scanSum, indexSum);
+			System.out.println(PEERS+" peers with "+FOAF+" peers each: scan "+(scanTime / lookups)+
+					"ns per lookup, index "+(indexTime / lookups)+"ns per lookup");
+		}
+	}
+
+}
@@ -97,6 +97,61 @@ public class RAMSaltMigrationTest extends TestCase {
 		assertEquals(test, data);
 	}
 
+	public void testRAMStoreOffHeap() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		CHKStore store = new CHKStore();
+		new RAMFreenetStore<CHKBlock>(store, 10, true);
+
+		String test = "test";
+		ClientCHKBlock block = encodeBlock(test, true);
+		store.put(block.getBlock(), false);
+		// Same data, no collision.
+		store.put(block.getBlock(), false);
+
+		ClientCHK key = block.getClientKey();
+
+		CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+		String data = decodeBlock(verify, key);
+		assertEquals(test, data);
+	}
+
+	public void testRAMStoreSharded() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		final int maxKeys = RAMFreenetStore.MIN_KEYS_PER_SHARD * 2;
+		final int keycount = maxKeys + maxKeys / 4;
+		CHKStore store = new CHKStore();
+		RAMFreenetStore<CHKBlock> ramStore = new RAMFreenetStore<CHKBlock>(store, maxKeys, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[keycount];
+		for(int i=0;i<keycount;i++) {
+			blocks[i] = encodeBlock("test" + i, true);
+			store.put(blocks[i].getBlock(), false);
+		}
+		assertEquals(keycount, ramStore.writes());
+		assertTrue(ramStore.keyCount() <= maxKeys);
+		// Eviction is per shard, but the keys are random, so the shards fill evenly.
+		assertTrue(ramStore.keyCount() > maxKeys * 3 / 4);
+
+		// The most recent keys must still be there.
+		int found = 0;
+		for(int i=0;i<keycount;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			if(verify == null) {
+				assertTrue(i < keycount - maxKeys / 4);
+				continue;
+			}
+			assertEquals("test" + i, decodeBlock(verify, key));
+			found++;
+		}
+		assertEquals(ramStore.keyCount(), found);
+		assertEquals(found, ramStore.getSessionAccessStats().hits());
+		assertEquals(keycount - found, ramStore.getSessionAccessStats().misses());
+
+		ramStore.setMaxKeys(10, false);
+		assertTrue(ramStore.keyCount() <= 10);
+		ramStore.clear();
+		assertEquals(0, ramStore.keyCount());
+	}
+
 	public void testSaltedStore() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
 		checkSaltedStore(false);
 		checkSaltedStore(true);
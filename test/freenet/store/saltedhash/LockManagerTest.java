@@ -0,0 +1,108 @@
+package freenet.store.saltedhash;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class LockManagerTest extends TestCase {
+
+	public void testLockUnlock() {
+		LockManager lm = new LockManager();
+		assertTrue(lm.lockEntry(1));
+		// Offsets in the same stripe are still independent.
+		assertTrue(lm.lockEntry(1 + LockManager.STRIPES));
+		assertTrue(lm.lockEntry(2));
+		lm.unlockEntry(1);
+		lm.unlockEntry(2);
+		assertTrue(lm.lockEntry(1));
+		lm.unlockEntry(1);
+		lm.unlockEntry(1 + LockManager.STRIPES);
+		lm.shutdown();
+	}
+
+	public void testMutualExclusion() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		final int threads = 16;
+		final int iterations = 2000;
+		final AtomicInteger[] holders = new AtomicInteger[4];
+		for(int i=0;i<holders.length;i++) holders[i] = new AtomicInteger();
+		final AtomicBoolean failed = new AtomicBoolean();
+		Thread[] t = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			t[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<iterations;j++) {
+						int offset = j % holders.length;
+						// Offsets 0 and STRIPES share a stripe.
+						long realOffset = offset == 3 ? LockManager.STRIPES : offset;
+						if(!lm.lockEntry(realOffset)) {
+							failed.set(true);
+							return;
+						}
+						if(holders[offset].incrementAndGet() != 1)
+							failed.set(true);
+						Thread.yield();
+						holders[offset].decrementAndGet();
+						lm.unlockEntry(realOffset);
+					}
+				}
+			};
+			t[i].start();
+		}
+		for(Thread thread : t) thread.join();
+		assertFalse(failed.get());
+		lm.shutdown();
+	}
+
+	public void testShutdownWaitsForUnlock() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		assertTrue(lm.lockEntry(5));
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				lm.shutdown();
+				done.countDown();
+			}
+		};
+		t.start();
+		assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+		lm.unlockEntry(5);
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		// No new locks after shutdown.
+		assertFalse(lm.lockEntry(6));
+	}
+
+	public void testShutdownReleasesWaiters() throws InterruptedException {
+		final LockManager lm = new LockManager();
+		assertTrue(lm.lockEntry(7));
+		final AtomicBoolean result = new AtomicBoolean(true);
+		final CountDownLatch done = new CountDownLatch(1);
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				result.set(lm.lockEntry(7));
+				done.countDown();
+			}
+		};
+		waiter.start();
+		Thread.sleep(100);
+		Thread shutdown = new Thread() {
+			@Override
+			public void run() {
+				lm.shutdown();
+			}
+		};
+		shutdown.start();
+		// The waiter gives up as soon as it sees the shutdown flag.
+		assertTrue(done.await(10, TimeUnit.SECONDS));
+		assertFalse(result.get());
+		lm.unlockEntry(7);
+		shutdown.join();
+	}
+
+}
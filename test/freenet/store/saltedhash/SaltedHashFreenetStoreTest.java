@@ -2,7 +2,9 @@ package freenet.store.saltedhash;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
 
 import junit.framework.TestCase;
 import freenet.crypt.DSAGroup;
@@ -37,6 +39,7 @@ import freenet.store.SSKStore;
 import freenet.store.SimpleGetPubkey;
 import freenet.support.PooledExecutor;
 import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.TestProperty;
 import freenet.support.Ticker;
 import freenet.support.TrivialTicker;
 import freenet.support.api.Bucket;
@@ -95,6 +98,181 @@ public class SaltedHashFreenetStoreTest extends TestCase {
 		saltStore.close();
 	}
 	
+	/* Test with CHK for SaltedHashFreenetStore with memory-mapped metadata and data files */
+	public void testMappedCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final int keycount = 10;
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMappedCHK", store, weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, true, true);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[keycount];
+		for(int i=0;i<keycount;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+		}
+		checkFetchCHK(store, blocks);
+
+		// Shrink, which relocates the blocks and truncates the mapped files.
+		saltStore.setMaxKeys(15, true);
+		checkFetchCHK(store, blocks);
+		saltStore.close();
+
+		// What was written through the mapping must be readable through the channel.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMappedCHK", store, weakPRNG, 15, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		checkFetchCHK(store, blocks);
+		saltStore.close();
+
+		// And the other way round, after growing.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreMappedCHK", store, weakPRNG, 30, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, true, false);
+		saltStore.start(null, true);
+		checkFetchCHK(store, blocks);
+		saltStore.close();
+	}
+
+	public void testWriteQueueCHK() throws IOException, CHKEncodeException, CHKVerifyException, CHKDecodeException {
+		File f = new File(tempDir, "saltstore");
+		FileUtil.removeAll(f);
+
+		final int keycount = 10;
+		SaltedHashFreenetStore.NO_CLEANER_SLEEP = true;
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreWriteQueueCHK", store, weakPRNG, 20, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		// Small enough that put() has to flush synchronously some of the time.
+		saltStore.setWriteQueueSize(4);
+		saltStore.start(null, true);
+
+		ClientCHKBlock[] blocks = new ClientCHKBlock[keycount];
+		for(int i=0;i<keycount;i++) {
+			blocks[i] = encodeBlockCHK("test" + i);
+			store.put(blocks[i].getBlock(), false);
+			// Queued or not, it must be fetchable at once.
+			checkFetchCHK(store, Arrays.copyOf(blocks, i+1));
+		}
+
+		// Shrink, which relocates the blocks; the queue must be written first.
+		saltStore.setMaxKeys(15, true);
+		checkFetchCHK(store, blocks);
+		saltStore.close();
+
+		// Everything queued must have been written on close.
+		store = new CHKStore();
+		saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreWriteQueueCHK", store, weakPRNG, 15, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		checkFetchCHK(store, blocks);
+		saltStore.close();
+	}
+
+	private void checkFetchCHK(CHKStore store, ClientCHKBlock[] blocks) throws IOException, CHKVerifyException, CHKDecodeException {
+		for(int i=0;i<blocks.length;i++) {
+			ClientCHK key = blocks[i].getClientKey();
+			CHKBlock verify = store.fetch(key.getNodeCHK(), false, false, null);
+			assertNotNull(verify);
+			assertEquals("test" + i, decodeBlockCHK(verify, key));
+		}
+	}
+
+	// ant -Dtest.skip=false -Dtest.class=freenet.store.saltedhash.SaltedHashFreenetStoreTest -Dtest.benchmark=true unit
+	public void testBenchmark() throws IOException, CHKEncodeException {
+		if(!TestProperty.BENCHMARK) return;
+
+		final int keycount = 2000;
+		ClientCHKBlock[] blocks = new ClientCHKBlock[keycount];
+		for(int i=0;i<keycount;i++)
+			blocks[i] = encodeBlockCHK("test" + i);
+
+		for(int round=0;round<3;round++) {
+			benchmarkStore(blocks, false, false);
+			benchmarkStore(blocks, true, false);
+			benchmarkStore(blocks, true, true);
+		}
+	}
+
+	private void benchmarkStore(ClientCHKBlock[] blocks, boolean mmapMetadata, boolean mmapData) throws IOException {
+		File f = new File(tempDir, "saltstore-benchmark");
+		FileUtil.removeAll(f);
+
+		CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreBenchmark", store, weakPRNG, blocks.length * 2, true, SemiOrderedShutdownHook.get(), true, true, ticker, null, mmapMetadata, mmapData);
+		saltStore.start(null, true);
+
+		long t1 = System.currentTimeMillis();
+		for(ClientCHKBlock block : blocks)
+			store.put(block.getBlock(), false);
+		long t2 = System.currentTimeMillis();
+		int found = 0;
+		for(int i=0;i<10;i++) {
+			for(ClientCHKBlock block : blocks) {
+				if(store.fetch(block.getClientKey().getNodeCHK(), false, false, null) != null)
+					found++;
+			}
+		}
+		long t3 = System.currentTimeMillis();
+		saltStore.close();
+
+		System.out.println("mmapMetadata="+mmapMetadata+" mmapData="+mmapData+": "+blocks.length+" puts in "+(t2-t1)+"ms, "+(blocks.length*10)+" fetches ("+found+" found) in "+(t3-t2)+"ms");
+	}
+
+	// ant -Dtest.skip=false -Dtest.class=freenet.store.saltedhash.SaltedHashFreenetStoreTest -Dtest.benchmark=true unit
+	public void testBenchmarkContention() throws IOException, CHKEncodeException, InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+
+		// Use a RAM-backed filesystem if there is one, so we measure locking rather than disk.
+		File shm = new File("/dev/shm");
+		File f = shm.isDirectory() && shm.canWrite() ?
+				new File(shm, "saltstore-contention-" + System.nanoTime()) : new File(tempDir, "saltstore-contention");
+		FileUtil.removeAll(f);
+
+		final int threads = 32;
+		final int keycount = 4096;
+		final ClientCHKBlock[] blocks = new ClientCHKBlock[keycount];
+		for(int i=0;i<keycount;i++)
+			blocks[i] = encodeBlockCHK("test" + i);
+
+		final CHKStore store = new CHKStore();
+		SaltedHashFreenetStore<CHKBlock> saltStore = SaltedHashFreenetStore.construct(f, "testSaltedHashFreenetStoreContention", store, weakPRNG, keycount * 2, true, SemiOrderedShutdownHook.get(), true, true, ticker, null);
+		saltStore.start(null, true);
+		try {
+			final AtomicLong ops = new AtomicLong();
+			Thread[] t = new Thread[threads];
+			long start = System.currentTimeMillis();
+			for(int i=0;i<threads;i++) {
+				final int seed = i;
+				t[i] = new Thread() {
+					@Override
+					public void run() {
+						Random r = new Random(seed);
+						try {
+							for(int j=0;j<2000;j++) {
+								ClientCHKBlock block = blocks[r.nextInt(keycount)];
+								if(r.nextInt(4) == 0)
+									store.put(block.getBlock(), false);
+								else
+									store.fetch(block.getClientKey().getNodeCHK(), false, false, null);
+								ops.incrementAndGet();
+							}
+						} catch (IOException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				};
+				t[i].start();
+			}
+			for(Thread thread : t) thread.join();
+			long time = System.currentTimeMillis() - start;
+			System.out.println(threads+" threads: "+ops.get()+" fetch/put operations in "+time+"ms ("+(ops.get()*1000/Math.max(1, time))+" ops/sec)");
+		} finally {
+			saltStore.close();
+			FileUtil.removeAll(f);
+		}
+	}
+
 	/* Simple test with SSK for SaltedHashFreenetStore without slotFilter */
 	public void testSimpleSSK() throws IOException, KeyCollisionException, SSKVerifyException, KeyDecodeException, SSKEncodeException, InvalidCompressionCodecException {
 		File f = new File(tempDir, "saltstore");
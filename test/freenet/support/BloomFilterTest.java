@@ -149,4 +149,29 @@ public class BloomFilterTest extends TestCase {
 		BloomFilter filter = BloomFilter.createFilter(FILTER_SIZE, K, false);
 		_testFilterFalsePositive(filter);
 	}
+
+	/** The cached hashes must give exactly the same bits as a fresh MersenneTwister, or filters
+	 * written before would stop matching. */
+	public void testRecentHashesMatchMersenneTwister() {
+		BloomFilter.RecentHashes recent = new BloomFilter.RecentHashes();
+		byte[][] keys = new byte[6][];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = new byte[32];
+			rand.nextBytes(keys[i]);
+		}
+		int[] bounds = new int[] { 1024, 1000, 7, 1 << 20, 123457, Integer.MAX_VALUE };
+		for (int round = 0; round < 3; round++) {
+			for (int i = 0; i < keys.length; i++) {
+				for (int bound : bounds) {
+					Random expected = new freenet.support.math.MersenneTwister(keys[i]);
+					// A copy, as callers may reuse their buffers.
+					Random actual = recent.get(keys[i].clone());
+					for (int j = 0; j < 100; j++)
+						assertEquals(expected.nextInt(bound), actual.nextInt(bound));
+				}
+				// Interleave keys, as SplitFileFetcherKeyListener does.
+				recent.get(keys[(i + 1) % keys.length]).nextInt(10);
+			}
+		}
+	}
 }
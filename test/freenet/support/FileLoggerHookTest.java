@@ -0,0 +1,159 @@
+package freenet.support;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+
+import junit.framework.TestCase;
+import freenet.support.FileLoggerHook.LineQueue;
+import freenet.support.Logger.LogLevel;
+
+public class FileLoggerHookTest extends TestCase {
+
+	private static final String FORMAT = "d t: m";
+	private static final String DATE_FORMAT = "MMM dd, yyyy HH:mm:ss:SSS";
+
+	public void testLineQueue() {
+		LineQueue queue = new LineQueue(5);
+		assertEquals(5, queue.capacity());
+		assertTrue(queue.isEmpty());
+		assertNull(queue.poll());
+		// Go round the ring a few times. It has 8 slots, but only 5 may be used at once.
+		int next = 0;
+		int added = 0;
+		for(int lap=0;lap<6;lap++) {
+			while(queue.offer(new byte[] { (byte) added })) added++;
+			assertEquals(5, added - next);
+			assertEquals(5, queue.size());
+			for(int i=0;i<3;i++)
+				assertEquals((byte) next++, queue.poll()[0]);
+		}
+		while(!queue.isEmpty())
+			assertEquals((byte) next++, queue.poll()[0]);
+		assertEquals(added, next);
+	}
+
+	/** Lines which don't fit are dropped and counted, and the writer says so. */
+	public void testDropped() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, FORMAT, DATE_FORMAT, LogLevel.MINOR);
+		// Not started yet, so nothing is taken from the queue.
+		int capacity = hook.list.capacity();
+		for(int i=0;i<capacity+100;i++)
+			hook.log(this, getClass(), "line "+i, null, LogLevel.NORMAL);
+		assertEquals(100, hook.droppedLines());
+		// Below the threshold.
+		hook.log(this, getClass(), "debug", null, LogLevel.DEBUG);
+		assertEquals(100, hook.droppedLines());
+		hook.start();
+		close(hook);
+		String[] lines = os.toString("UTF-8").split("\n");
+		assertEquals(capacity + 1, lines.length);
+		assertTrue(lines[0].startsWith("GRRR: ERROR: Logging too fast, dropped 100 entries"));
+		for(int i=0;i<capacity;i++)
+			assertEquals("line "+i, message(lines[i+1]));
+		assertEquals(0, hook.listBytes());
+		// The byte limit.
+		hook = new FileLoggerHook(os, FORMAT, DATE_FORMAT, LogLevel.MINOR);
+		hook.setMaxListBytes(10000);
+		for(int i=0;i<1000;i++)
+			hook.log(this, getClass(), "line "+i, null, LogLevel.NORMAL);
+		assertTrue(hook.droppedLines() > 500);
+		assertTrue(hook.listBytes() <= 10000);
+		// One line is always accepted.
+		hook = new FileLoggerHook(os, FORMAT, DATE_FORMAT, LogLevel.MINOR);
+		hook.setMaxListBytes(100);
+		hook.log(this, getClass(), new String(new char[1000]), null, LogLevel.NORMAL);
+		assertEquals(0, hook.droppedLines());
+	}
+
+	/** Every line logged by several threads at once is written exactly once, whole, and in the
+	 * order each thread logged them, unless it was dropped. */
+	public void testConcurrentLogging() throws Exception {
+		ByteArrayOutputStream os = new ByteArrayOutputStream();
+		FileLoggerHook hook = new FileLoggerHook(os, FORMAT, DATE_FORMAT, LogLevel.MINOR);
+		hook.start();
+		final int threads = 4;
+		final int lines = 20000;
+		Throwable t = new Exception("test é€");
+		log(hook, threads, lines, t);
+		close(hook);
+		int[] next = new int[threads];
+		int written = 0;
+		int traces = 0;
+		int expectedTraces = 0;
+		for(String line : os.toString("UTF-8").split("\n")) {
+			if(line.startsWith("GRRR") || line.startsWith("\tat ")) continue;
+			if(line.equals(t.toString())) {
+				traces++;
+				continue;
+			}
+			String[] s = message(line).split(" ");
+			int thread = Integer.parseInt(s[0]);
+			int i = Integer.parseInt(s[1]);
+			assertTrue(i >= next[thread]);
+			next[thread] = i + 1;
+			written++;
+			if(i % 100 == 0) expectedTraces++;
+		}
+		assertEquals(threads * lines, written + hook.droppedLines());
+		assertEquals(expectedTraces, traces);
+	}
+
+	/** Log from several threads as fast as possible, to a stream which throws it away. */
+	public void testBenchmark() throws Exception {
+		if(!TestProperty.BENCHMARK) return;
+		for(int threads : new int[] { 1, 4, 16 }) {
+			for(int run=0;run<3;run++) {
+				OutputStream os = new OutputStream() {
+					@Override
+					public void write(int b) {
+						// Discard.
+					}
+					@Override
+					public void write(byte[] buf, int offset, int length) {
+						// Discard.
+					}
+				};
+				FileLoggerHook hook = new FileLoggerHook(os, FORMAT, DATE_FORMAT, LogLevel.MINOR);
+				hook.setMaxListBytes(10 * 1024 * 1024);
+				hook.start();
+				final int lines = 1000000 / threads;
+				long start = System.nanoTime();
+				log(hook, threads, lines, null);
+				long time = System.nanoTime() - start;
+				close(hook);
+				System.out.println(threads+" threads: "+(time / (threads * lines))+"ns per line, "+
+						hook.droppedLines()+" of "+(threads * lines)+" lines dropped");
+			}
+		}
+	}
+
+	/** Log lines "thread i" from each thread, with a stack trace on every 100th. */
+	private void log(final FileLoggerHook hook, int threads, final int lines, final Throwable t) throws InterruptedException {
+		Thread[] workers = new Thread[threads];
+		for(int i=0;i<threads;i++) {
+			final int thread = i;
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					for(int j=0;j<lines;j++)
+						hook.log(this, FileLoggerHookTest.class, thread+" "+j, (t != null && j % 100 == 0) ? t : null, LogLevel.NORMAL);
+				}
+			};
+		}
+		for(Thread worker : workers)
+			worker.start();
+		for(Thread worker : workers)
+			worker.join();
+	}
+
+	private void close(FileLoggerHook hook) {
+		// Waits for the writer to finish.
+		hook.new CloserThread().run();
+	}
+
+	private String message(String line) {
+		return line.substring(line.indexOf(": ") + 2);
+	}
+
+}
@@ -0,0 +1,61 @@
+package freenet.support;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import junit.framework.TestCase;
+
+public class HelperThreadsTest extends TestCase {
+
+	public void testRunsEveryPieceOnce() {
+		for(boolean parallel : new boolean[] { false, true }) {
+			final AtomicIntegerArray runs = new AtomicIntegerArray(1000);
+			HelperThreads.run(runs.length(), parallel, new HelperThreads.Task() {
+				@Override
+				public void run(int index) {
+					runs.incrementAndGet(index);
+				}
+			});
+			for(int i=0;i<runs.length();i++)
+				assertEquals(1, runs.get(i));
+		}
+		// Nothing to do.
+		HelperThreads.run(0, true, null);
+	}
+
+	public void testRethrowsAfterAllFinished() {
+		final AtomicIntegerArray runs = new AtomicIntegerArray(100);
+		try {
+			HelperThreads.run(runs.length(), true, new HelperThreads.Task() {
+				@Override
+				public void run(int index) {
+					runs.incrementAndGet(index);
+					if(index == 10) throw new IllegalStateException();
+				}
+			});
+			fail();
+		} catch (IllegalStateException e) {
+			// Expected.
+		}
+		for(int i=0;i<runs.length();i++)
+			assertEquals(1, runs.get(i));
+	}
+
+	/** A piece may itself split its work, even when all the helpers are busy. */
+	public void testNested() {
+		final AtomicIntegerArray runs = new AtomicIntegerArray(64);
+		HelperThreads.run(8, true, new HelperThreads.Task() {
+			@Override
+			public void run(final int outer) {
+				HelperThreads.run(8, true, new HelperThreads.Task() {
+					@Override
+					public void run(int inner) {
+						runs.incrementAndGet(outer * 8 + inner);
+					}
+				});
+			}
+		});
+		for(int i=0;i<runs.length();i++)
+			assertEquals(1, runs.get(i));
+	}
+
+}
@@ -0,0 +1,151 @@
+package freenet.support;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import freenet.node.PrioRunnable;
+import freenet.support.io.NativeThread;
+import junit.framework.TestCase;
+
+public class WorkStealingExecutorTest extends TestCase {
+
+	private static class CountingJob implements PrioRunnable {
+		final int prio;
+		final CountDownLatch done;
+		final AtomicInteger wrongPriority;
+
+		CountingJob(int prio, CountDownLatch done, AtomicInteger wrongPriority) {
+			this.prio = prio;
+			this.done = done;
+			this.wrongPriority = wrongPriority;
+		}
+
+		@Override
+		public void run() {
+			Thread t = Thread.currentThread();
+			if(!(t instanceof NativeThread) || ((NativeThread) t).getNativePriority() != prio)
+				wrongPriority.incrementAndGet();
+			done.countDown();
+		}
+
+		@Override
+		public int getPriority() {
+			return prio;
+		}
+	}
+
+	public void testRunsAllJobsAtTheirPriority() throws InterruptedException {
+		WorkStealingExecutor executor = new WorkStealingExecutor(2);
+		int jobs = 10000;
+		CountDownLatch done = new CountDownLatch(jobs);
+		AtomicInteger wrongPriority = new AtomicInteger();
+		int[] prios = new int[] { NativeThread.MIN_PRIORITY, NativeThread.NORM_PRIORITY, NativeThread.HIGH_PRIORITY };
+		for(int i=0;i<jobs;i++)
+			executor.execute(new CountingJob(prios[i % prios.length], done, wrongPriority), "test");
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		assertEquals(0, wrongPriority.get());
+		long started = 0;
+		for(long l : executor.jobsStarted())
+			started += l;
+		assertEquals(jobs, started);
+		for(int i : executor.queuedJobs())
+			assertEquals(0, i);
+		for(int i : executor.runningThreads())
+			assertTrue(i <= 2);
+	}
+
+	/** Jobs queued by a job, from inside the pool, are stolen by other threads. */
+	public void testJobsFromJobs() throws InterruptedException {
+		final WorkStealingExecutor executor = new WorkStealingExecutor(4);
+		final int jobs = 1000;
+		final CountDownLatch done = new CountDownLatch(jobs);
+		final AtomicInteger wrongPriority = new AtomicInteger();
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				for(int i=0;i<jobs;i++)
+					executor.execute(new CountingJob(NativeThread.NORM_PRIORITY, done, wrongPriority), "test");
+			}
+		}, "test");
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		assertEquals(0, wrongPriority.get());
+	}
+
+	/** A job which waits for another job mustn't deadlock, even if the pool is full. */
+	public void testBlockingJobs() throws InterruptedException {
+		final WorkStealingExecutor executor = new WorkStealingExecutor(1);
+		final CountDownLatch done = new CountDownLatch(3);
+		final CountDownLatch inner = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						inner.countDown();
+					}
+				}, "inner");
+				try {
+					if(inner.await(30, TimeUnit.SECONDS))
+						done.countDown();
+				} catch (InterruptedException e) {
+					// Fail
+				}
+			}
+		}, "outer");
+		// And from outside the pool.
+		final CountDownLatch release = new CountDownLatch(1);
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					if(release.await(30, TimeUnit.SECONDS))
+						done.countDown();
+				} catch (InterruptedException e) {
+					// Fail
+				}
+			}
+		}, "blocked");
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				release.countDown();
+				done.countDown();
+			}
+		}, "release");
+		assertTrue(done.await(30, TimeUnit.SECONDS));
+	}
+
+	public void testBenchmark() throws InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		for(int i=0;i<3;i++) {
+			benchmark(new PooledExecutor(), "PooledExecutor");
+			benchmark(new WorkStealingExecutor(), "WorkStealingExecutor");
+		}
+	}
+
+	private void benchmark(final Executor executor, String name) throws InterruptedException {
+		final int jobs = 200000;
+		final int submitters = 4;
+		final CountDownLatch done = new CountDownLatch(jobs);
+		final AtomicInteger wrongPriority = new AtomicInteger();
+		long start = System.nanoTime();
+		Thread[] threads = new Thread[submitters];
+		for(int t=0;t<submitters;t++) {
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					for(int i=0;i<jobs/submitters;i++)
+						executor.execute(new CountingJob(NativeThread.NORM_PRIORITY, done, wrongPriority), "bench");
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads) t.join();
+		assertTrue(done.await(120, TimeUnit.SECONDS));
+		long time = System.nanoTime() - start;
+		System.out.println(name+": "+jobs+" short jobs from "+submitters+" threads in "+(time / 1000000)+"ms, "+(time / jobs)+"ns per job");
+	}
+
+}
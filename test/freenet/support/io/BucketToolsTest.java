@@ -0,0 +1,167 @@
+/* This code is part of Freenet. It is distributed under the GNU General
+ * Public License, version 2 (or at your option any later version). See
+ * http://www.gnu.org/ for further details of the GPL. */
+package freenet.support.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+import freenet.support.Executor;
+import freenet.support.SerialExecutor;
+import freenet.support.TestProperty;
+import freenet.support.api.Bucket;
+
+public class BucketToolsTest extends TestCase {
+
+	private static final long MIN_DISK_SPACE = 2*1024*1024;
+
+	private final File base = new File("tmp.bucket-tools-test");
+	private final Random random = new Random(1234);
+
+	@Override
+	public void setUp() {
+		base.mkdir();
+	}
+
+	@Override
+	public void tearDown() {
+		FileUtil.removeAll(base);
+	}
+
+	private FileBucket makeFileBucket(String name, byte[] data) throws IOException {
+		FileBucket bucket = new FileBucket(new File(base, name), false, false, false, true);
+		OutputStream os = bucket.getOutputStream();
+		os.write(data);
+		os.close();
+		return bucket;
+	}
+
+	/** Data sent through the channel must come after anything already written to the stream. */
+	public void testCopyToChannel() throws IOException {
+		byte[] data = new byte[1024*1024+1];
+		random.nextBytes(data);
+		FileBucket bucket = makeFileBucket("data", data);
+		File out = new File(base, "out");
+		FileOutputStream fos = new FileOutputStream(out);
+		OutputStream os = new BufferedOutputStream(fos);
+		os.write(1);
+		assertEquals(data.length, BucketTools.copyTo(bucket, os, fos.getChannel(), Long.MAX_VALUE));
+		os.write(2);
+		assertEquals(1000, BucketTools.copyTo(bucket, os, fos.getChannel(), 1000));
+		os.close();
+		byte[] written = BucketTools.toByteArray(new FileBucket(out, true, false, false, false));
+		assertEquals(1 + data.length + 1 + 1000, written.length);
+		assertEquals(1, written[0]);
+		assertTrue(Arrays.equals(data, Arrays.copyOfRange(written, 1, data.length + 1)));
+		assertEquals(2, written[data.length + 1]);
+		assertTrue(Arrays.equals(Arrays.copyOf(data, 1000), Arrays.copyOfRange(written, data.length + 2, written.length)));
+		fos = new FileOutputStream(new File(base, "out2"));
+		try {
+			BucketTools.copyTo(bucket, fos, fos.getChannel(), data.length + 1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		} finally {
+			fos.close();
+		}
+		// A channel which stops accepting data must not end the copy silently.
+		WritableByteChannel stalled = new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) {
+				return 0;
+			}
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+			@Override
+			public void close() {
+			}
+		};
+		try {
+			BucketTools.copyTo(bucket, new ByteArrayOutputStream(), stalled, -1);
+			fail();
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	public void testGetPlainFile() throws IOException {
+		Executor exec = new SerialExecutor(NativeThread.NORM_PRIORITY);
+		FilenameGenerator fg = new FilenameGenerator(random, false, base, "junit");
+		FileBucket fileBucket = makeFileBucket("data", new byte[10]);
+		assertEquals(fileBucket.getFile(), BucketTools.getPlainFile(fileBucket));
+		assertEquals(fileBucket.getFile(), BucketTools.getPlainFile(new NoFreeBucket(fileBucket)));
+		assertNull(BucketTools.getPlainFile(new ArrayBucket(new byte[10])));
+		TempBucketFactory tbf = new TempBucketFactory(exec, fg, 16, 128, random, false, MIN_DISK_SPACE, TempBucketTest.secret);
+		Bucket ram = tbf.makeBucket(8);
+		assertNull(BucketTools.getPlainFile(ram));
+		ram.free();
+		Bucket disk = tbf.makeBucket(1024);
+		assertNotNull(BucketTools.getPlainFile(disk));
+		disk.free();
+		tbf = new TempBucketFactory(exec, fg, 16, 128, random, true, MIN_DISK_SPACE, TempBucketTest.secret);
+		Bucket encrypted = tbf.makeBucket(1024);
+		assertNull(BucketTools.getPlainFile(encrypted));
+		encrypted.free();
+	}
+
+	/** Send a big file over a loopback socket with and without FileChannel.transferTo(). */
+	public void testBenchmark() throws IOException, InterruptedException {
+		if(!TestProperty.BENCHMARK) return;
+		byte[] block = new byte[1024*1024];
+		random.nextBytes(block);
+		FileBucket bucket = new FileBucket(new File(base, "big"), false, false, false, true);
+		OutputStream os = bucket.getOutputStream();
+		for(int i=0;i<512;i++)
+			os.write(block);
+		os.close();
+		ServerSocketChannel server = ServerSocketChannel.open();
+		server.socket().bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+		for(int i=0;i<3;i++) {
+			System.out.println("Stream: "+send(server, bucket, false)+"ms, transferTo: "+send(server, bucket, true)+"ms for "+bucket.size()+" bytes");
+		}
+		server.close();
+	}
+
+	private long send(ServerSocketChannel server, Bucket bucket, boolean useChannel) throws IOException, InterruptedException {
+		final Socket client = new Socket(InetAddress.getLoopbackAddress(), server.socket().getLocalPort());
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				byte[] buf = new byte[65536];
+				try {
+					InputStream is = client.getInputStream();
+					while(is.read(buf) > 0);
+					client.close();
+				} catch (IOException e) {
+					// Ignore.
+				}
+			}
+		};
+		reader.start();
+		SocketChannel sc = server.accept();
+		Socket sock = sc.socket();
+		long start = System.currentTimeMillis();
+		BucketTools.copyTo(bucket, sock.getOutputStream(), useChannel ? sock.getChannel() : null, Long.MAX_VALUE);
+		sock.close();
+		reader.join();
+		return System.currentTimeMillis() - start;
+	}
+
+}